@@ -0,0 +1,123 @@
+package uk.ac.soton.ecs.cp6g18.ch12.benchmarks;
+
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.image.feature.dense.gradient.dsift.DenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.PyramidDenseSIFT;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+import org.openimaj.ml.clustering.assignment.hard.ExactByteAssigner;
+import org.openimaj.ml.clustering.assignment.hard.KDTreeByteEuclideanAssigner;
+import org.openimaj.ml.clustering.kmeans.ByteKMeans;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.soton.ecs.cp6g18.ch12.FlatByteAssigner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the HardAssigners used to quantise dense SIFT descriptors.
+ *
+ * The dense SIFT descriptors of the bundled images (with the exercise 2 configuration) are
+ * quantised against a vocabulary learnt from them, by:
+ *
+ *      - exact      : The ExactByteAssigner (ByteCentroidsResult.defaultHardAssigner()).
+ *      - kdTree     : The KD-tree ensemble assigner (KDTreeByteEuclideanAssigner).
+ *      - flatSingle : The FlatByteAssigner, one descriptor per call (as BagOfVisualWords uses it).
+ *      - flatBlock  : The FlatByteAssigner, one block of descriptors per call.
+ *
+ * Each operation assigns every descriptor of the images. FlatByteAssignerTest checks that the
+ * FlatByteAssigner gives the same assignments as the exact assigner.
+ *
+ * @author Charles Powell
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AssignerBenchmarks {
+
+    // member variables
+    @Param({ "300", "600" })
+    public int numVisWords;
+
+    byte[][] descriptors;
+    ExactByteAssigner exact;
+    KDTreeByteEuclideanAssigner kdTree;
+    FlatByteAssigner flat;
+
+    /**
+     * Extracts the descriptors of the images and learns the vocabulary.
+     *
+     * @throws IOException If the images could not be read.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        PyramidDenseSIFT<FImage> pdsift = new PyramidDenseSIFT<FImage>(new DenseSIFT(5, 7), 6f, 7);
+
+        List<byte[]> descriptorList = new ArrayList<byte[]>();
+        for(int i = 1; i <= 4; i++){
+            InputStream in = AssignerBenchmarks.class.getResourceAsStream("/img/dog" + i + ".jpeg");
+            if(in == null){
+                throw new IOException("Unable to find img/dog" + i + ".jpeg on the classpath");
+            }
+            try{
+                pdsift.analyseImage(ImageUtilities.readF(in));
+            }
+            finally{
+                in.close();
+            }
+            for(ByteDSIFTKeypoint keypoint : pdsift.getByteKeypoints(0.015f)){
+                descriptorList.add(keypoint.descriptor);
+            }
+        }
+        descriptors = descriptorList.toArray(new byte[descriptorList.size()][]);
+
+        ByteCentroidsResult vocabulary = ByteKMeans.createKDTreeEnsemble(numVisWords).cluster(descriptors);
+        exact = new ExactByteAssigner(vocabulary);
+        kdTree = new KDTreeByteEuclideanAssigner(vocabulary);
+        flat = new FlatByteAssigner(vocabulary);
+    }
+
+    @Benchmark
+    public int[] exact(){
+        return exact.assign(descriptors);
+    }
+
+    @Benchmark
+    public int[] kdTree(){
+        return kdTree.assign(descriptors);
+    }
+
+    @Benchmark
+    public int[] flatSingle(){
+        int[] assignments = new int[descriptors.length];
+        for(int i = 0; i < descriptors.length; i++){
+            assignments[i] = flat.assign(descriptors[i]);
+        }
+        return assignments;
+    }
+
+    @Benchmark
+    public int[] flatBlock(){
+        return flat.assign(descriptors);
+    }
+}
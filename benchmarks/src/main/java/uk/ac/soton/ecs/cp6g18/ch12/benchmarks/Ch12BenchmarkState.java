@@ -0,0 +1,198 @@
+package uk.ac.soton.ecs.cp6g18.ch12.benchmarks;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.image.feature.dense.gradient.dsift.DenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.PyramidDenseSIFT;
+import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
+import org.openimaj.image.feature.local.aggregate.BlockSpatialAggregator;
+import org.openimaj.image.feature.local.aggregate.PyramidSpatialAggregator;
+import org.openimaj.math.geometry.shape.Rectangle;
+import org.openimaj.ml.annotation.AnnotatedObject;
+import org.openimaj.ml.annotation.linear.LiblinearAnnotator;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.ml.clustering.kmeans.ByteKMeans;
+import org.openimaj.util.pair.IntFloatPair;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.bwaldvogel.liblinear.SolverType;
+
+import uk.ac.soton.ecs.cp6g18.ch12.MultiScaleDenseSIFT;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The state shared by the Chapter 12 benchmarks.
+ *
+ * Each benchmark thread gets its own state for one of the bundled images (img/dog1-4.jpeg, read
+ * from the classpath), holding the input of every stage of the pipeline for that image:
+ *
+ *      - The image (for the dense SIFT stage).
+ *      - Its keypoints and their descriptors (for the assignment and aggregation stages).
+ *      - Its pyramid histogram (for normaliseFV).
+ *      - Its normalised histogram (for LiblinearAnnotator.annotate).
+ *
+ * The configuration is that of exercise 3 (DenseSIFT(3, 7) over the sizes [4, 6, 8, 10], a 600
+ * word vocabulary and pyramid levels 2 and 4). The vocabulary is learnt from the descriptors
+ * of the four images, and the annotator is trained on random histograms of 101 classes, so it
+ * scores the same number of classes x features as the exercise's. Both are built once per JVM.
+ *
+ * @author Charles Powell
+ */
+@State(Scope.Thread)
+public class Ch12BenchmarkState {
+
+    // constants
+    static final int NUM_IMAGES = 4;
+    static final int NUM_VIS_WORDS = 600;
+    static final int NUM_CLASSES = 101;
+    static final int NUM_VOCABULARY_DESCRIPTORS = 20000;
+
+    // shared (built once) member variables
+    static FImage[] images;
+    static HardAssigner<byte[], float[], IntFloatPair> assigner;
+    static LiblinearAnnotator<DoubleFV, String> annotator;
+
+    // member variables
+    @Param({ "1", "2", "3", "4" })
+    public int image;
+
+    FImage img;
+    Rectangle bounds;
+    PyramidDenseSIFT<FImage> pdsift;
+    MultiScaleDenseSIFT multiScale;
+    LocalFeatureList<ByteDSIFTKeypoint> keypoints;
+    byte[][] descriptors;
+    BlockSpatialAggregator<byte[], SparseIntFV> blockAggregator;
+    PyramidSpatialAggregator<byte[], SparseIntFV> pyramidAggregator;
+    SparseIntFV histogram;
+    DoubleFV feature;
+
+    /**
+     * Builds the input of every stage for the image.
+     *
+     * @throws IOException If the images could not be read.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        build();
+
+        img = images[image - 1];
+        bounds = img.getBounds();
+        pdsift = createEngine();
+        multiScale = new MultiScaleDenseSIFT(3, 6f, 4,6,8,10);
+
+        pdsift.analyseImage(img);
+        keypoints = pdsift.getByteKeypoints(0.015f);
+        descriptors = new byte[keypoints.size()][];
+        for(int i = 0; i < descriptors.length; i++){
+            descriptors[i] = keypoints.get(i).descriptor;
+        }
+
+        BagOfVisualWords<byte[]> bovw = new BagOfVisualWords<byte[]>(assigner);
+        blockAggregator = new BlockSpatialAggregator<byte[], SparseIntFV>(bovw, 2, 2);
+        pyramidAggregator = new PyramidSpatialAggregator<byte[], SparseIntFV>(bovw, 2, 4);
+
+        histogram = pyramidAggregator.aggregate(keypoints, bounds);
+        feature = histogram.normaliseFV();
+    }
+
+    /**
+     * Creates the PyramidDenseSIFT of exercise 3.
+     *
+     * @return The PyramidDenseSIFT.
+     */
+    static PyramidDenseSIFT<FImage> createEngine(){
+        return new PyramidDenseSIFT<FImage>(new DenseSIFT(3, 7), 6f, 4,6,8,10);
+    }
+
+    /**
+     * Reads the images and builds the vocabulary and annotator (once per JVM).
+     *
+     * @throws IOException If the images could not be read.
+     */
+    static synchronized void build() throws IOException {
+        if(images != null){
+            return;
+        }
+
+        FImage[] read = new FImage[NUM_IMAGES];
+        for(int i = 0; i < NUM_IMAGES; i++){
+            InputStream in = Ch12BenchmarkState.class.getResourceAsStream("/img/dog" + (i + 1) + ".jpeg");
+            if(in == null){
+                throw new IOException("Unable to find img/dog" + (i + 1) + ".jpeg on the classpath");
+            }
+            try{
+                read[i] = ImageUtilities.readF(in);
+            }
+            finally{
+                in.close();
+            }
+        }
+
+        /**
+         * Vocabulary
+         */
+
+        Random random = new Random(0);
+        PyramidDenseSIFT<FImage> engine = createEngine();
+        List<byte[]> all = new ArrayList<byte[]>();
+        for(FImage img : read){
+            engine.analyseImage(img);
+            for(ByteDSIFTKeypoint keypoint : engine.getByteKeypoints(0.005f)){
+                all.add(keypoint.descriptor);
+            }
+        }
+
+        byte[][] sample = new byte[Math.min(NUM_VOCABULARY_DESCRIPTORS, all.size())][];
+        for(int i = 0; i < sample.length; i++){
+            sample[i] = all.remove(random.nextInt(all.size()));
+        }
+        assigner = ByteKMeans.createKDTreeEnsemble(NUM_VIS_WORDS).cluster(sample).defaultHardAssigner();
+
+        /**
+         * Annotator
+         *
+         * The training histograms are random L1 normalised histograms of the same length as the
+         * features (21 spatial bins x 600 words), with a few words boosted for each class.
+         */
+
+        int length = (2 * 2 + 4 * 4 + 1) * NUM_VIS_WORDS;
+        List<AnnotatedObject<DoubleFV, String>> training = new ArrayList<AnnotatedObject<DoubleFV, String>>();
+        for(int c = 0; c < NUM_CLASSES; c++){
+            for(int n = 0; n < 3; n++){
+                double[] values = new double[length];
+                for(int k = 0; k < 2000; k++){
+                    values[random.nextInt(length)] += 1;
+                }
+                for(int k = 0; k < 200; k++){
+                    values[(c * 97 + k * 13) % length] += 1;
+                }
+                training.add(new AnnotatedObject<DoubleFV, String>(new DoubleFV(values).normaliseFV(1), "class" + c));
+            }
+        }
+
+        annotator = new LiblinearAnnotator<DoubleFV, String>(new FeatureExtractor<DoubleFV, DoubleFV>() {
+            public DoubleFV extractFeature(DoubleFV object) {
+                return object;
+            }
+        }, LiblinearAnnotator.Mode.MULTICLASS, SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
+        annotator.train(training);
+
+        images = read;
+    }
+}
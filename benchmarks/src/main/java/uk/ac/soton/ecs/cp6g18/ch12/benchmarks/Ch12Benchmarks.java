@@ -0,0 +1,110 @@
+package uk.ac.soton.ecs.cp6g18.ch12.benchmarks;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.ml.annotation.ScoredAnnotation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the stages of the Chapter 12 (PHOW) pipeline.
+ *
+ * Each stage is benchmarked on its own, on each of the bundled images, with its input prepared
+ * by Ch12BenchmarkState:
+ *
+ *      - pyramidDenseSIFT    : PyramidDenseSIFT.analyseImage (and getByteKeypoints(0.015f)).
+ *      - multiScaleDenseSIFT : The same, with MultiScaleDenseSIFT.
+ *      - assign              : HardAssigner.assign of the descriptors of the image.
+ *      - blockAggregate      : BlockSpatialAggregator.aggregate (2 x 2 blocks).
+ *      - pyramidAggregate    : PyramidSpatialAggregator.aggregate (levels 2 and 4).
+ *      - normaliseFV         : normaliseFV of the pyramid histogram.
+ *      - annotate            : LiblinearAnnotator.annotate of the normalised histogram.
+ *
+ * The throughput of each is reported in operations per second, and (through the GC profiler)
+ * the allocation rate per operation as gc.alloc.rate.norm (bytes/op). Any JMH options given
+ * on the command line are added to these.
+ *
+ * main() also runs the AssignerBenchmarks, which compare the HardAssigners on the same images.
+ *
+ * @author Charles Powell
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class Ch12Benchmarks {
+
+    @Benchmark
+    public LocalFeatureList<ByteDSIFTKeypoint> pyramidDenseSIFT(Ch12BenchmarkState state){
+        state.pdsift.analyseImage(state.img);
+        return state.pdsift.getByteKeypoints(0.015f);
+    }
+
+    @Benchmark
+    public LocalFeatureList<ByteDSIFTKeypoint> multiScaleDenseSIFT(Ch12BenchmarkState state){
+        state.multiScale.analyseImage(state.img);
+        return state.multiScale.getByteKeypoints(0.015f);
+    }
+
+    @Benchmark
+    public int[] assign(Ch12BenchmarkState state){
+        return Ch12BenchmarkState.assigner.assign(state.descriptors);
+    }
+
+    @Benchmark
+    public SparseIntFV blockAggregate(Ch12BenchmarkState state){
+        return state.blockAggregator.aggregate(state.keypoints, state.bounds);
+    }
+
+    @Benchmark
+    public SparseIntFV pyramidAggregate(Ch12BenchmarkState state){
+        return state.pyramidAggregator.aggregate(state.keypoints, state.bounds);
+    }
+
+    @Benchmark
+    public DoubleFV normaliseFV(Ch12BenchmarkState state){
+        return state.histogram.normaliseFV();
+    }
+
+    @Benchmark
+    public List<ScoredAnnotation<String>> annotate(Ch12BenchmarkState state){
+        return Ch12BenchmarkState.annotator.annotate(state.feature);
+    }
+
+    /**
+     * Runs the benchmarks with the GC profiler.
+     *
+     * @param args JMH command line options.
+     * @throws RunnerException If the benchmarks could not be run.
+     * @throws CommandLineOptionException If the options could not be parsed.
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(Ch12Benchmarks.class.getSimpleName())
+                .include(AssignerBenchmarks.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+}
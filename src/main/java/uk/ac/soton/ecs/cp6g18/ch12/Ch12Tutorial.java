@@ -1,6 +1,5 @@
 package uk.ac.soton.ecs.cp6g18.ch12;
 
-import org.openimaj.data.DataSource;
 import org.openimaj.data.dataset.Dataset;
 import org.openimaj.data.dataset.GroupedDataset;
 import org.openimaj.data.dataset.ListDataset;
@@ -15,28 +14,21 @@ import org.openimaj.experiment.evaluation.classification.analysers.confusionmatr
 import org.openimaj.feature.DoubleFV;
 import org.openimaj.feature.FeatureExtractor;
 import org.openimaj.feature.SparseIntFV;
-import org.openimaj.feature.local.data.LocalFeatureListDataSource;
-import org.openimaj.feature.local.list.LocalFeatureList;
 import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
 import org.openimaj.image.annotation.evaluation.datasets.Caltech101;
 import org.openimaj.image.annotation.evaluation.datasets.Caltech101.Record;
-import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
 import org.openimaj.image.feature.dense.gradient.dsift.DenseSIFT;
 import org.openimaj.image.feature.dense.gradient.dsift.PyramidDenseSIFT;
 import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
 import org.openimaj.image.feature.local.aggregate.BlockSpatialAggregator;
 import org.openimaj.ml.annotation.linear.LiblinearAnnotator;
 import org.openimaj.ml.annotation.linear.LiblinearAnnotator.Mode;
-import org.openimaj.ml.clustering.ByteCentroidsResult;
 import org.openimaj.ml.clustering.assignment.HardAssigner;
-import org.openimaj.ml.clustering.kmeans.ByteKMeans;
 import org.openimaj.util.pair.IntFloatPair;
 
 import de.bwaldvogel.liblinear.SolverType;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -50,6 +42,9 @@ import java.util.Map;
  */
 public class Ch12Tutorial {
 
+    // constants
+    static final long SEED = 3204;
+
     /**
      * Main method.
      *
@@ -195,10 +190,10 @@ public class Ch12Tutorial {
          * identifiers.
          * 
          * The 'trainQuantiser' method is defined to create such a HardAssigner, which we
-         * make use of here.
+         * make use of here (the same way as the exercises do, using a MiniBatchVocabularyTrainer).
          */
 
-        HardAssigner<byte[], float[], IntFloatPair> assigner = trainQuantiser(GroupedUniformRandomisedSampler.sample(splits.getTrainingDataset(), 30), pdsift);
+        HardAssigner<byte[], float[], IntFloatPair> assigner = trainQuantiser(GroupedUniformRandomisedSampler.sample(splits.getTrainingDataset(), 30), dsift, 6f, 7);
 
         // EXTRACTING IMAGE FEATURES //
 
@@ -257,26 +252,19 @@ public class Ch12Tutorial {
     /**
      * Method to perform K-Means clustering on SIFT features extracted from a set of images.
      * 
+     * The clustering is done by a MiniBatchVocabularyTrainer, which clusters a reservoir sample
+     * of the keypoints with mini-batch k-means, rather than holding every keypoint of the sample
+     * in memory for ByteKMeans.
+     * 
      * @param sample The sample set of images to perform 
-     * @param pdsift The PyramidSIFT object.
+     * @param dsift The DenseSIFT configuration.
+     * @param magFactor The magnification factor of the PyramidDenseSIFT.
+     * @param sizes The bin sizes of the PyramidDenseSIFT.
      * @return A hard assigner for the groups of SIFT features within the sample images.
      */
-    static HardAssigner<byte[], float[], IntFloatPair> trainQuantiser(Dataset<Record<FImage>> sample, PyramidDenseSIFT<FImage> pdsift)
+    static HardAssigner<byte[], float[], IntFloatPair> trainQuantiser(Dataset<Record<FImage>> sample, DenseSIFT dsift, float magFactor, int... sizes)
     {
-        List<LocalFeatureList<ByteDSIFTKeypoint>> allkeys = new ArrayList<LocalFeatureList<ByteDSIFTKeypoint>>();
-        for (Record<FImage> rec : sample) {
-            FImage img = rec.getImage();
-            pdsift.analyseImage(img);
-            allkeys.add(pdsift.getByteKeypoints(0.005f));
-        }
-        if (allkeys.size() > 10000){
-            allkeys = allkeys.subList(0, 10000);
-        }
-            
-        ByteKMeans km = ByteKMeans.createKDTreeEnsemble(300);
-        DataSource<byte[]> datasource = new LocalFeatureListDataSource<ByteDSIFTKeypoint, byte[]>(allkeys);
-        ByteCentroidsResult result = km.cluster(datasource);
-        return result.defaultHardAssigner();
+        return new MiniBatchVocabularyTrainer(300, 200000, SEED).train(sample, dsift, magFactor, sizes).defaultHardAssigner();
     }
 
     /**
@@ -0,0 +1,578 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.ml.annotation.ScoredAnnotation;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.GlobalExecutorPool;
+import org.openimaj.util.parallel.Parallel;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long-running classification service for a trained PHOWModel.
+ *
+ * The service loads the model once and serves annotation requests over a socket bound to the
+ * loopback address. The protocol is line-based (UTF-8), with one response line per request line:
+ *
+ *      ANNOTATE <image path>   ->  OK <class> <score> [<class> <score> ...]   (best first)
+ *      STATS                   ->  STATS <requests, latency percentiles, queue depth, batches>
+ *      anything else / failure ->  ERROR <message>   (a single line)
+ *
+ * Requests from every connection go onto a single bounded queue, and are taken off it in
+ * micro-batches: a batch is started as soon as it is full, or once its first request has waited
+ * for the latency cap. The images of a batch are decoded and have their features extracted in
+ * parallel, so the cost of waking the workers is shared by the whole batch. The features are
+ * then scored one at a time on the batching thread (liblinear has no batch scoring, and scoring
+ * a feature costs little next to extracting it). If the queue is full, requests are rejected
+ * straight away ("ERROR busy") rather than queueing without bound.
+ *
+ * The latency of each request (from arriving to being answered) is recorded, and the p50 and
+ * p99 latency of the most recent requests are logged along with the queue depth at intervals
+ * (to the java.util.logging logger of the class, as are failed connections).
+ *
+ * @author Charles Powell
+ */
+public class ClassificationService implements Closeable {
+
+    // constants
+    static final int LATENCY_WINDOW = 8192; // number of recent requests the percentiles are over
+    static final Logger LOG = Logger.getLogger(ClassificationService.class.getName());
+
+    // member variables
+    final PooledPHOWExtractor extractor;
+    final SparseLiblinearAnnotator<?, String> annotator;
+    final int maxBatch;
+    final long maxDelayNanos;
+    final int topN;
+    final long reportInterval;
+    final ThreadPoolExecutor pool;
+    final BlockingQueue<Request> queue;
+    final LatencyRecorder latencies = new LatencyRecorder(LATENCY_WINDOW);
+    final AtomicLong batches = new AtomicLong();
+    final AtomicLong batched = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+    final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    ServerSocket server;
+    ExecutorService threads;
+    volatile boolean running;
+
+    /**
+     * Class constructor.
+     *
+     * @param model The model.
+     * @param maxBatch The largest number of requests in a batch.
+     * @param maxDelay The longest time a request waits for its batch to fill, in milliseconds.
+     * @param capacity The capacity of the request queue.
+     * @param topN The number of classes returned for each image.
+     * @param reportInterval The time between reports in milliseconds (0 for no reports).
+     */
+    public ClassificationService(PHOWModel model, int maxBatch, long maxDelay, int capacity, int topN, long reportInterval){
+        this.extractor = model.createExtractor();
+        this.annotator = model.createAnnotator(extractor);
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        this.topN = topN;
+        this.reportInterval = reportInterval;
+        this.pool = GlobalExecutorPool.getPool();
+        this.queue = new ArrayBlockingQueue<Request>(capacity);
+    }
+
+    /**
+     * Starts serving on the given port of the loopback address.
+     *
+     * @param port The port (0 for any free port).
+     * @return The port the service is listening on.
+     * @throws IOException If the socket could not be opened.
+     */
+    public synchronized int start(int port) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getByName(null));
+        threads = Executors.newCachedThreadPool(threadFactory());
+        running = true;
+
+        threads.execute(new Runnable() {
+            public void run() {
+                accept();
+            }
+        });
+        threads.execute(new Runnable() {
+            public void run() {
+                batch();
+            }
+        });
+        if(reportInterval > 0){
+            threads.execute(new Runnable() {
+                public void run() {
+                    try{
+                        while(running){
+                            Thread.sleep(reportInterval);
+                            LOG.info(report());
+                        }
+                    }
+                    catch(InterruptedException e){
+                        // the service has been closed
+                    }
+                }
+            });
+        }
+
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the service is closed, serving each on its own thread.
+     */
+    void accept(){
+        while(running){
+            try{
+                final Socket socket = server.accept();
+                threads.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+            catch(IOException e){
+                if(running){
+                    LOG.log(Level.WARNING, "Failed to accept connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves the requests of a connection until it is closed.
+     *
+     * @param socket The socket of the connection.
+     */
+    void serve(Socket socket){
+        connections.add(socket);
+        try{
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), PHOWModel.UTF8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), PHOWModel.UTF8));
+            try{
+                String line;
+                while(running && (line = in.readLine()) != null){
+                    out.println(handle(line.trim()));
+                    out.flush();
+                }
+            }
+            finally{
+                connections.remove(socket);
+                socket.close();
+            }
+        }
+        catch(SocketException e){
+            // the connection was closed (by the client, or by closing the service)
+        }
+        catch(IOException e){
+            LOG.log(Level.WARNING, "Connection failed", e);
+        }
+    }
+
+    /**
+     * Handles a single request line.
+     *
+     * @param line The request.
+     * @return The response.
+     */
+    String handle(String line){
+        if(line.equals("STATS")){
+            return "STATS " + stats();
+        }
+        if(!line.startsWith("ANNOTATE ")){
+            return "ERROR unknown request";
+        }
+
+        Request request = new Request(line.substring("ANNOTATE ".length()).trim());
+        if(!queue.offer(request)){
+            rejected.incrementAndGet();
+            return "ERROR busy";
+        }
+
+        try{
+            request.done.await();
+        }
+        catch(InterruptedException e){
+            return "ERROR interrupted";
+        }
+        latencies.add(System.nanoTime() - request.arrival);
+        return request.response;
+    }
+
+    /**
+     * Takes batches of requests off the queue and processes them, until the service is closed.
+     */
+    void batch(){
+        List<Request> batch = new ArrayList<Request>(maxBatch);
+        try{
+            while(running){
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null){
+                    continue;
+                }
+
+                // filling the batch until it is full, or the first request has waited long enough
+                batch.add(first);
+                long deadline = first.arrival + maxDelayNanos;
+                while(batch.size() < maxBatch){
+                    long wait = deadline - System.nanoTime();
+                    Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if(next == null){
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                try{
+                    process(batch);
+                }
+                catch(RuntimeException e){
+                    for(Request request : batch){
+                        request.complete(error(e));
+                    }
+                }
+                batches.incrementAndGet();
+                batched.addAndGet(batch.size());
+                batch.clear();
+            }
+        }
+        catch(InterruptedException e){
+            // the service has been closed
+        }
+        finally{
+            for(Request request : batch){
+                request.complete("ERROR service closed");
+            }
+        }
+    }
+
+    /**
+     * Extracts the features of a batch of requests in parallel, then scores them one at a time.
+     *
+     * @param batch The requests.
+     */
+    void process(final List<Request> batch){
+        final SparseDoubleFV[] features = new SparseDoubleFV[batch.size()];
+
+        Parallel.forIndex(0, batch.size(), 1, new Operation<Integer>() {
+            public void perform(Integer i) {
+                Request request = batch.get(i);
+                try{
+                    FImage image = ImageUtilities.readF(new File(request.path));
+                    features[i] = extractor.extractSparseFeature(image);
+                }
+                catch(Exception e){
+                    request.complete(error(e));
+                }
+            }
+        }, pool);
+
+        for(int i = 0; i < features.length; i++){
+            if(features[i] != null){
+                batch.get(i).complete(respond(annotator.annotate(features[i])));
+            }
+        }
+    }
+
+    /**
+     * Formats the response to a failed request, as a single line.
+     *
+     * @param e The cause of the failure.
+     * @return The response.
+     */
+    static String error(Throwable e){
+        String message = e.getMessage();
+        if(message == null || message.trim().isEmpty()){
+            message = e.getClass().getSimpleName();
+        }
+        return "ERROR " + message.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Formats the response to an annotation request.
+     *
+     * @param annotations The scored annotations (best first).
+     * @return The response.
+     */
+    String respond(List<? extends ScoredAnnotation<String>> annotations){
+        StringBuilder response = new StringBuilder("OK");
+        for(int i = 0; i < Math.min(topN, annotations.size()); i++){
+            ScoredAnnotation<String> annotation = annotations.get(i);
+            response.append(' ').append(annotation.annotation.replace(' ', '_'));
+            response.append(' ').append(String.format(Locale.ROOT, "%.4f", annotation.confidence));
+        }
+        return response.toString();
+    }
+
+    /**
+     * Describes the requests served so far, the latency percentiles and the queue depth.
+     *
+     * @return The description.
+     */
+    public String stats(){
+        long numBatches = batches.get();
+        return String.format(Locale.ROOT, "requests=%d rejected=%d p50=%.1fms p99=%.1fms queue=%d/%d batches=%d meanBatch=%.1f",
+                             latencies.getCount(),
+                             rejected.get(),
+                             latencies.percentile(50) / 1e6,
+                             latencies.percentile(99) / 1e6,
+                             queue.size(),
+                             queue.size() + queue.remainingCapacity(),
+                             numBatches,
+                             numBatches == 0 ? 0 : (double) batched.get() / numBatches);
+    }
+
+    /**
+     * Describes the state of the service.
+     *
+     * @return The description.
+     */
+    public String report(){
+        return "ClassificationService: " + stats();
+    }
+
+    /**
+     * Stops the service, closing the socket and its connections.
+     */
+    public synchronized void close() throws IOException {
+        running = false;
+        if(server != null){
+            server.close();
+        }
+        for(Socket socket : connections){
+            socket.close();
+        }
+        if(threads != null){
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates a factory of named daemon threads for the service.
+     *
+     * @return The factory.
+     */
+    static ThreadFactory threadFactory(){
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "classification-service-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Starts the service for a model written by PHOWModel.write(), and serves until the process
+     * is killed.
+     *
+     * Arguments: <model directory> [port] [max batch] [max delay ms]
+     *
+     * @param args The arguments.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1){
+            System.err.println("Usage: ClassificationService <model directory> [port] [max batch] [max delay ms]");
+            return;
+        }
+
+        PHOWModel model = PHOWModel.read(new File(args[0]));
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7204;
+        int maxBatch = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        long maxDelay = args.length > 3 ? Long.parseLong(args[3]) : 20;
+
+        ClassificationService service = new ClassificationService(model, maxBatch, maxDelay, 256, 5, 10000);
+        LOG.info("Serving on localhost:" + service.start(port));
+
+        // the service threads are daemons, so the main thread keeps the process alive
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    /**
+     * Annotation request waiting for its batch.
+     */
+    static class Request {
+
+        // member variables
+        final String path;
+        final long arrival = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String response;
+
+        /**
+         * Class constructor.
+         *
+         * @param path The path of the image.
+         */
+        Request(String path){
+            this.path = path;
+        }
+
+        /**
+         * Answers the request.
+         *
+         * @param response The response.
+         */
+        void complete(String response){
+            if(done.getCount() > 0){
+                this.response = response;
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Records the latencies of the most recent requests.
+     */
+    static class LatencyRecorder {
+
+        // member variables
+        final long[] window;
+        long count;
+
+        /**
+         * Class constructor.
+         *
+         * @param size The number of recent latencies kept.
+         */
+        LatencyRecorder(int size){
+            this.window = new long[size];
+        }
+
+        /**
+         * Records a latency.
+         *
+         * @param nanos The latency, in nanoseconds.
+         */
+        synchronized void add(long nanos){
+            window[(int) (count % window.length)] = nanos;
+            count++;
+        }
+
+        /**
+         * Returns the number of latencies recorded.
+         */
+        synchronized long getCount(){
+            return count;
+        }
+
+        /**
+         * Returns a percentile of the recent latencies.
+         *
+         * @param percentile The percentile (0 - 100).
+         * @return The latency, in nanoseconds (0 if none have been recorded).
+         */
+        double percentile(double percentile){
+            long[] sorted;
+            synchronized(this){
+                if(count == 0){
+                    return 0;
+                }
+                sorted = Arrays.copyOf(window, (int) Math.min(count, window.length));
+            }
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+
+    /**
+     * Minimal client for the service.
+     */
+    public static class Client implements Closeable {
+
+        // member variables
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+
+        /**
+         * Class constructor.
+         *
+         * @param port The port of the service on the loopback address.
+         * @throws IOException If the service could not be connected to.
+         */
+        public Client(int port) throws IOException {
+            this.socket = new Socket(InetAddress.getByName(null), port);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), PHOWModel.UTF8));
+            this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), PHOWModel.UTF8));
+        }
+
+        /**
+         * Annotates an image.
+         *
+         * @param image The image file (readable by the service).
+         * @return The response of the service.
+         * @throws IOException If the request failed.
+         */
+        public String annotate(File image) throws IOException {
+            return request("ANNOTATE " + image.getAbsolutePath());
+        }
+
+        /**
+         * Returns the statistics of the service.
+         *
+         * @return The response of the service.
+         * @throws IOException If the request failed.
+         */
+        public String stats() throws IOException {
+            return request("STATS");
+        }
+
+        /**
+         * Sends a request line and waits for the response line.
+         *
+         * @param line The request.
+         * @return The response.
+         * @throws IOException If the request failed.
+         */
+        String request(String line) throws IOException {
+            out.println(line);
+            out.flush();
+            String response = in.readLine();
+            if(response == null){
+                throw new IOException("The service closed the connection.");
+            }
+            return response;
+        }
+
+        /**
+         * Closes the connection.
+         */
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.experiment.evaluation.classification.BasicClassificationResult;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.ml.annotation.Annotated;
+import org.openimaj.ml.annotation.AnnotatedObject;
+import org.openimaj.ml.annotation.BatchAnnotator;
+import org.openimaj.ml.annotation.ScoredAnnotation;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Anytime (coarse-to-fine) annotator with a confidence based early exit.
+ *
+ * Every object is first classified by a cheap coarse annotator (e.g., a single SIFT scale and a
+ * 1 x 1 spatial histogram). If the margin between its best and second best decision values is
+ * at least the required confidence, its result is returned straight away. Otherwise the object
+ * is refined - it is classified again by the full (fine) annotator, and the fine result is
+ * returned.
+ *
+ * Easy objects therefore only ever pay for the coarse features. The confidence can be set by
+ * hand, or calibrated on a validation set with calibrate(), which picks the lowest confidence
+ * (the most early exits) whose accuracy is within a given tolerance of the fine annotator's.
+ *
+ * The number of early exits and refinements, and the mean time taken by each, are recorded.
+ *
+ * @author Charles Powell
+ */
+public class CoarseToFineAnnotator<OBJECT, ANNOTATION> extends BatchAnnotator<OBJECT, ANNOTATION> {
+
+    // constants
+    static final Logger LOG = Logger.getLogger(CoarseToFineAnnotator.class.getName());
+
+    // member variables
+    final SparseLiblinearAnnotator<OBJECT, ANNOTATION> coarse;
+    final SparseLiblinearAnnotator<OBJECT, ANNOTATION> fine;
+    volatile double confidence;
+    final AtomicLong exits = new AtomicLong();
+    final AtomicLong exitTime = new AtomicLong();
+    final AtomicLong refinements = new AtomicLong();
+    final AtomicLong refinementTime = new AtomicLong();
+
+    /**
+     * Class constructor.
+     *
+     * The annotators may already be trained (in which case train() need not be called).
+     *
+     * @param coarse The coarse annotator.
+     * @param fine The fine annotator.
+     * @param confidence The margin between the best two coarse decision values at which the
+     * coarse result is accepted.
+     */
+    public CoarseToFineAnnotator(SparseLiblinearAnnotator<OBJECT, ANNOTATION> coarse, SparseLiblinearAnnotator<OBJECT, ANNOTATION> fine, double confidence){
+        this.coarse = coarse;
+        this.fine = fine;
+        this.confidence = confidence;
+    }
+
+    /**
+     * Trains both the coarse and the fine annotator.
+     */
+    public void train(List<? extends Annotated<OBJECT, ANNOTATION>> data) {
+        coarse.train(data);
+        fine.train(data);
+    }
+
+    /**
+     * Returns the set of annotations the annotator was trained on.
+     */
+    public Set<ANNOTATION> getAnnotations() {
+        return fine.getAnnotations();
+    }
+
+    /**
+     * Returns the confidence at which the coarse result is accepted.
+     *
+     * @return The confidence.
+     */
+    public double getConfidence(){
+        return confidence;
+    }
+
+    /**
+     * Sets the confidence at which the coarse result is accepted.
+     *
+     * @param confidence The confidence (a margin between the best two coarse decision values).
+     */
+    public void setConfidence(double confidence){
+        this.confidence = confidence;
+    }
+
+    /**
+     * Classifies the object, refining it with the fine annotator only if the coarse annotator
+     * is not confident enough.
+     */
+    @Override
+    public ClassificationResult<ANNOTATION> classify(OBJECT object) {
+        return toResult(annotate(object));
+    }
+
+    /**
+     * Annotates the object, refining it with the fine annotator only if the coarse annotator
+     * is not confident enough.
+     */
+    public List<ScoredAnnotation<ANNOTATION>> annotate(OBJECT object) {
+        long start = System.nanoTime();
+
+        List<ScoredAnnotation<ANNOTATION>> annotations = coarse.annotate(object);
+        if(margin(annotations) >= confidence){
+            exits.incrementAndGet();
+            exitTime.addAndGet(System.nanoTime() - start);
+            return annotations;
+        }
+
+        annotations = fine.annotate(object);
+        refinements.incrementAndGet();
+        refinementTime.addAndGet(System.nanoTime() - start);
+        return annotations;
+    }
+
+    /**
+     * Returns the margin between the best two scored annotations.
+     *
+     * @param annotations The scored annotations (best first).
+     * @return The margin (infinite if there is only one annotation).
+     */
+    static <ANNOTATION> double margin(List<ScoredAnnotation<ANNOTATION>> annotations){
+        if(annotations.size() < 2){
+            return Double.POSITIVE_INFINITY;
+        }
+        return annotations.get(0).confidence - annotations.get(1).confidence;
+    }
+
+    /**
+     * Turns scored annotations into a classification result (as SparseLiblinearAnnotator does).
+     *
+     * @param annotations The scored annotations.
+     * @return The classification result.
+     */
+    static <ANNOTATION> ClassificationResult<ANNOTATION> toResult(List<ScoredAnnotation<ANNOTATION>> annotations){
+        BasicClassificationResult<ANNOTATION> result = new BasicClassificationResult<ANNOTATION>(Double.NEGATIVE_INFINITY);
+        for(ScoredAnnotation<ANNOTATION> annotation : annotations){
+            result.put(annotation.annotation, annotation.confidence);
+        }
+        return result;
+    }
+
+    /**
+     * Calibrates the confidence on a validation dataset.
+     *
+     * See calibrate(List, double).
+     *
+     * @param validation The validation dataset.
+     * @param tolerance The accuracy (0 - 1) that may be given up relative to the fine annotator.
+     * @return The chosen confidence.
+     */
+    public double calibrate(GroupedDataset<ANNOTATION, ? extends ListDataset<OBJECT>, OBJECT> validation, double tolerance){
+        return calibrate(AnnotatedObject.createList(validation), tolerance);
+    }
+
+    /**
+     * Calibrates the confidence on validation data.
+     *
+     * Every object is classified by both annotators. The objects are then taken in order of
+     * decreasing coarse margin, lowering the confidence past each of them (so that it exits
+     * early), and the lowest confidence at which the accuracy of the coarse-to-fine annotator
+     * is within the tolerance of the fine annotator's accuracy is chosen and set.
+     *
+     * @param validation The validation data.
+     * @param tolerance The accuracy (0 - 1) that may be given up relative to the fine annotator.
+     * @return The chosen confidence.
+     */
+    public double calibrate(final List<? extends Annotated<OBJECT, ANNOTATION>> validation, double tolerance){
+        final int n = validation.size();
+        final double[] margins = new double[n];
+        final boolean[] coarseCorrect = new boolean[n];
+        final boolean[] fineCorrect = new boolean[n];
+
+        Parallel.forIndex(0, n, 1, new Operation<Integer>() {
+            public void perform(Integer i) {
+                Annotated<OBJECT, ANNOTATION> item = validation.get(i);
+                List<ScoredAnnotation<ANNOTATION>> coarseAnnotations = coarse.annotate(item.getObject());
+                List<ScoredAnnotation<ANNOTATION>> fineAnnotations = fine.annotate(item.getObject());
+
+                margins[i] = margin(coarseAnnotations);
+                coarseCorrect[i] = item.getAnnotations().contains(coarseAnnotations.get(0).annotation);
+                fineCorrect[i] = item.getAnnotations().contains(fineAnnotations.get(0).annotation);
+            }
+        });
+
+        // objects by decreasing coarse margin
+        Integer[] order = new Integer[n];
+        for(int i = 0; i < n; i++){
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(margins[b], margins[a]);
+            }
+        });
+
+        // starting with every object refined (an infinite confidence), the correct count only
+        // changes when an object's coarse and fine results differ
+        int fineCount = 0;
+        for(int i = 0; i < n; i++){
+            fineCount += fineCorrect[i] ? 1 : 0;
+        }
+        double required = fineCount - tolerance * n;
+
+        int correct = fineCount;
+        double chosen = Double.POSITIVE_INFINITY;
+        for(int k = 0; k < n; k++){
+            int i = order[k];
+            correct += (coarseCorrect[i] ? 1 : 0) - (fineCorrect[i] ? 1 : 0);
+
+            // objects with equal margins exit together
+            if(k + 1 < n && margins[order[k + 1]] == margins[i]){
+                continue;
+            }
+            if(correct >= required){
+                chosen = margins[i];
+            }
+        }
+
+        LOG.info(String.format("Calibrated confidence %.4f on %d objects (fine accuracy %.4f, tolerance %.4f)", chosen, n, (double) fineCount / n, tolerance));
+        setConfidence(chosen);
+        return chosen;
+    }
+
+    /**
+     * Describes the early exits and refinements made so far.
+     *
+     * @return The description.
+     */
+    public String report(){
+        long e = exits.get();
+        long r = refinements.get();
+        long total = e + r;
+        return String.format("CoarseToFineAnnotator[confidence=%.4f, classified=%d, exits=%d (%.1f%%, mean %.2f ms), refinements=%d (mean %.2f ms), mean %.2f ms]",
+                             confidence,
+                             total,
+                             e,
+                             total == 0 ? 0 : 100.0 * e / total,
+                             e == 0 ? 0 : exitTime.get() / 1e6 / e,
+                             r,
+                             r == 0 ? 0 : refinementTime.get() / 1e6 / r,
+                             total == 0 ? 0 : (exitTime.get() + refinementTime.get()) / 1e6 / total);
+    }
+
+    /**
+     * Resets the record of early exits and refinements.
+     */
+    public void resetStatistics(){
+        exits.set(0);
+        exitTime.set(0);
+        refinements.set(0);
+        refinementTime.set(0);
+    }
+
+    @Override
+    public String toString(){
+        return report();
+    }
+}
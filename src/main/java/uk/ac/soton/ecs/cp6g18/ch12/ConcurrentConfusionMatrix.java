@@ -0,0 +1,121 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMResult;
+
+import gov.sandia.cognition.learning.performance.categorization.DefaultConfusionMatrix;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Confusion matrix that can be added to by many threads at once.
+ *
+ * Each (actual, predicted) cell is an AtomicLong in a two-level ConcurrentHashMap, so adding
+ * a classification never blocks, and the memory used depends on the number of classes rather
+ * than the number of classifications.
+ *
+ * The matrix can be turned into a DefaultConfusionMatrix (or a CMResult) at any point, giving
+ * the same reports as a CMAnalyser.
+ *
+ * @author Charles Powell
+ */
+public class ConcurrentConfusionMatrix<CLASS> {
+
+    // constants
+    static final Object NONE = new Object(); // stands in for a missing (null) class
+
+    // member variables
+    final ConcurrentMap<Object, ConcurrentMap<Object, AtomicLong>> counts = new ConcurrentHashMap<Object, ConcurrentMap<Object, AtomicLong>>();
+    final AtomicLong total = new AtomicLong();
+    final AtomicLong correct = new AtomicLong();
+
+    /**
+     * Adds a classification to the matrix.
+     *
+     * @param actual The actual class (or null).
+     * @param predicted The predicted class (or null if no class was predicted).
+     */
+    public void add(CLASS actual, CLASS predicted){
+        Object row = actual == null ? NONE : actual;
+        Object column = predicted == null ? NONE : predicted;
+
+        ConcurrentMap<Object, AtomicLong> rowCounts = counts.get(row);
+        if(rowCounts == null){
+            ConcurrentMap<Object, AtomicLong> created = new ConcurrentHashMap<Object, AtomicLong>();
+            rowCounts = counts.putIfAbsent(row, created);
+            rowCounts = rowCounts == null ? created : rowCounts;
+        }
+
+        AtomicLong count = rowCounts.get(column);
+        if(count == null){
+            AtomicLong created = new AtomicLong();
+            count = rowCounts.putIfAbsent(column, created);
+            count = count == null ? created : count;
+        }
+
+        count.incrementAndGet();
+        total.incrementAndGet();
+        if(row.equals(column)){
+            correct.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of classifications added.
+     *
+     * @return The number of classifications.
+     */
+    public long getTotalCount(){
+        return total.get();
+    }
+
+    /**
+     * Returns the number of correct classifications added.
+     *
+     * @return The number of correct classifications.
+     */
+    public long getTotalCorrectCount(){
+        return correct.get();
+    }
+
+    /**
+     * Returns the accuracy of the classifications added so far.
+     *
+     * @return The accuracy (0 if nothing has been added).
+     */
+    public double getAccuracy(){
+        long n = total.get();
+        return n == 0 ? 0 : (double) correct.get() / n;
+    }
+
+    /**
+     * Returns a snapshot of the matrix as a DefaultConfusionMatrix.
+     *
+     * Classifications added while the snapshot is taken may or may not be included.
+     *
+     * @return The snapshot.
+     */
+    @SuppressWarnings("unchecked")
+    public DefaultConfusionMatrix<CLASS> toConfusionMatrix(){
+        DefaultConfusionMatrix<CLASS> matrix = new DefaultConfusionMatrix<CLASS>();
+        for(Map.Entry<Object, ConcurrentMap<Object, AtomicLong>> row : counts.entrySet()){
+            CLASS actual = row.getKey() == NONE ? null : (CLASS) row.getKey();
+            for(Map.Entry<Object, AtomicLong> cell : row.getValue().entrySet()){
+                CLASS predicted = cell.getKey() == NONE ? null : (CLASS) cell.getKey();
+                matrix.add(actual, predicted, cell.getValue().get());
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Returns a snapshot of the matrix as a CMResult.
+     *
+     * @return The snapshot.
+     */
+    public CMResult<CLASS> toCMResult(){
+        return new CMResult<CLASS>(toConfusionMatrix());
+    }
+}
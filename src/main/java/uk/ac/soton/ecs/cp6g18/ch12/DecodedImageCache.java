@@ -0,0 +1,281 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageProvider;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Byte-budgeted LRU cache of decoded images, keyed by record ID.
+ *
+ * Each call to Record.getImage() decodes the JPEG into a new FImage, so an image used to train
+ * the vocabulary and then to extract features is decoded twice. Reading images through this
+ * cache decodes each image once, for as long as it stays in the cache.
+ *
+ * Images are stored in one of three ways:
+ *
+ *      - ON_HEAP, as the decoded FImage (4 bytes per pixel).
+ *      - OFF_HEAP, as the float pixels in a direct buffer (also 4 bytes per pixel). The cached
+ *        pixels are then not scanned or copied by the garbage collector, however large the
+ *        budget.
+ *      - OFF_HEAP_GREY8, as 8-bit greyscale pixels in a direct buffer (1 byte per pixel), so
+ *        the same budget holds four times as many images. The images read back are quantised
+ *        to 256 grey levels (within 1/510 of the decoded pixel).
+ *
+ * With ON_HEAP and OFF_HEAP, the images read back are exactly the decoded images, so features
+ * extracted through the cache (e.g., from training images) are the same as those extracted from
+ * images that are decoded directly (e.g., test images, or images sent to a ClassificationService).
+ * OFF_HEAP_GREY8 gives up that guarantee, so it must be asked for explicitly, and is only suited
+ * to images whose features need not match those of directly decoded images (e.g., images only
+ * used to sample vocabulary descriptors).
+ *
+ * When the cached pixels exceed the byte budget, the least recently used images are evicted.
+ * Every image read from the cache is a new FImage, so callers are free to modify it.
+ *
+ * @author Charles Powell
+ */
+public class DecodedImageCache {
+
+    /**
+     * How the cached pixels are stored.
+     */
+    public enum Storage {
+        /** The decoded FImage, on the heap. */
+        ON_HEAP,
+        /** The float pixels, in a direct buffer. */
+        OFF_HEAP,
+        /** The pixels quantised to 8-bit greyscale, in a direct buffer. */
+        OFF_HEAP_GREY8
+    }
+
+    // member variables
+    final long budget;
+    final Storage storage;
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    long size;
+    long hits;
+    long misses;
+    long evictions;
+
+    /**
+     * Class constructor.
+     *
+     * @param budget The maximum number of bytes of cached pixels.
+     * @param storage How to store the pixels.
+     */
+    public DecodedImageCache(long budget, Storage storage){
+        this.budget = budget;
+        this.storage = storage;
+    }
+
+    /**
+     * Returns the image of a record, decoding and caching it if it is not cached.
+     *
+     * Images are decoded outside of the lock of the cache, so threads reading different
+     * images do not wait for each other.
+     *
+     * @param record The record.
+     * @return The image.
+     */
+    public <T extends Identifiable & ImageProvider<FImage>> FImage getImage(T record){
+        FImage image = get(record.getID());
+        if(image != null){
+            return image;
+        }
+
+        image = record.getImage();
+        put(record.getID(), image);
+        return image;
+    }
+
+    /**
+     * Returns the cached image with the given ID.
+     *
+     * @param id The ID of the image.
+     * @return A copy of the image, or null if it is not cached.
+     */
+    public FImage get(String id){
+        Entry entry;
+        synchronized(this){
+            entry = entries.get(id);
+            if(entry == null){
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        return entry.toImage();
+    }
+
+    /**
+     * Caches an image, evicting the least recently used images if the cache is over budget.
+     *
+     * Images larger than the whole budget are not cached.
+     *
+     * @param id The ID of the image.
+     * @param image The image.
+     */
+    public void put(String id, FImage image){
+        Entry entry = new Entry(image, storage);
+        if(entry.bytes > budget){
+            return;
+        }
+
+        synchronized(this){
+            Entry previous = entries.put(id, entry);
+            if(previous != null){
+                size -= previous.bytes;
+            }
+            size += entry.bytes;
+
+            Iterator<Entry> eldest = entries.values().iterator();
+            while(size > budget && eldest.hasNext()){
+                size -= eldest.next().bytes;
+                eldest.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public synchronized void clear(){
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of cached images.
+     */
+    public synchronized int getCount(){
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of bytes of cached pixels.
+     */
+    public synchronized long getSize(){
+        return size;
+    }
+
+    /**
+     * Returns the number of reads that found their image in the cache.
+     */
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    /**
+     * Returns the number of reads that did not find their image in the cache.
+     */
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    /**
+     * Describes the state of the cache.
+     */
+    public synchronized String toString(){
+        return String.format("DecodedImageCache: %d images, %.1f / %.1f MB (%s), %d hits, %d misses, %d evictions",
+                             entries.size(),
+                             size / 1048576.0,
+                             budget / 1048576.0,
+                             storage,
+                             hits,
+                             misses,
+                             evictions);
+    }
+
+    /**
+     * Cached image.
+     */
+    static class Entry {
+
+        // member variables
+        final int width;
+        final int height;
+        final FImage image;
+        final FloatBuffer pixels;
+        final ByteBuffer grey;
+        final long bytes;
+
+        /**
+         * Class constructor.
+         *
+         * @param image The image.
+         * @param storage How to store the pixels.
+         */
+        Entry(FImage image, Storage storage){
+            this.width = image.width;
+            this.height = image.height;
+
+            switch(storage){
+                case OFF_HEAP:
+                    this.image = null;
+                    this.grey = null;
+                    this.pixels = ByteBuffer.allocateDirect(4 * width * height).order(ByteOrder.nativeOrder()).asFloatBuffer();
+                    for(int y = 0; y < height; y++){
+                        pixels.put(image.pixels[y], 0, width);
+                    }
+                    this.bytes = 4L * width * height;
+                    break;
+
+                case OFF_HEAP_GREY8:
+                    this.image = null;
+                    this.pixels = null;
+                    this.grey = ByteBuffer.allocateDirect(width * height);
+                    for(int y = 0; y < height; y++){
+                        float[] row = image.pixels[y];
+                        for(int x = 0; x < width; x++){
+                            grey.put(y * width + x, (byte) Math.round(Math.max(0f, Math.min(1f, row[x])) * 255f));
+                        }
+                    }
+                    this.bytes = (long) width * height;
+                    break;
+
+                default:
+                    this.image = image.clone();
+                    this.pixels = null;
+                    this.grey = null;
+                    this.bytes = 4L * width * height;
+            }
+        }
+
+        /**
+         * Returns a new copy of the image.
+         *
+         * @return The image.
+         */
+        FImage toImage(){
+            if(image != null){
+                return image.clone();
+            }
+
+            float[][] data = new float[height][width];
+            if(grey != null){
+                // absolute reads, so threads do not share a position
+                for(int y = 0; y < height; y++){
+                    float[] row = data[y];
+                    for(int x = 0; x < width; x++){
+                        row[x] = (grey.get(y * width + x) & 0xff) / 255f;
+                    }
+                }
+                return new FImage(data);
+            }
+
+            // reading through a duplicate, so threads do not share a position
+            FloatBuffer source = pixels.duplicate();
+            source.rewind();
+            for(int y = 0; y < height; y++){
+                source.get(data[y], 0, width);
+            }
+            return new FImage(data);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.ml.clustering.CentroidsProvider;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.util.pair.IntFloatPair;
+
+/**
+ * Exact (Euclidean) HardAssigner for byte descriptors, such as dense SIFT features.
+ *
+ * Gives the same assignments as the ExactByteAssigner returned by
+ * ByteCentroidsResult.defaultHardAssigner(), but is quicker:
+ *
+ *      - The centroids are held in a single flat byte array, rather than an array of arrays.
+ *      - Squared distances are computed with integer arithmetic (128 x 255^2 fits in an int).
+ *      - The distance to a centroid is abandoned as soon as its partial sum exceeds the best
+ *        distance so far (checked every CHUNK dimensions, to keep the inner loop tight).
+ *      - When a block of descriptors is assigned in one call, each descriptor starts with the
+ *        distance to the centroid of the previous descriptor as its bound. Neighbouring dense
+ *        SIFT descriptors are usually assigned to the same word, so most centroids are
+ *        abandoned after a chunk or two.
+ *
+ * Ties are broken by the lowest centroid index and distances are reported squared, as in the
+ * exact assigner.
+ *
+ * The assigner holds no per-call state, so a single instance can be shared between threads.
+ *
+ * @author Charles Powell
+ */
+public class FlatByteAssigner implements HardAssigner<byte[], float[], IntFloatPair> {
+
+    // constants
+    static final int CHUNK = 16;
+
+    // member variables
+    final byte[] centroids;
+    final int numClusters;
+    final int numDimensions;
+
+    /**
+     * Class constructor.
+     *
+     * @param provider The provider of the centroids.
+     */
+    public FlatByteAssigner(CentroidsProvider<byte[]> provider){
+        this(provider.getCentroids());
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param centroids The centroids.
+     */
+    public FlatByteAssigner(byte[][] centroids){
+        this.numClusters = centroids.length;
+        this.numDimensions = centroids.length == 0 ? 0 : centroids[0].length;
+        this.centroids = new byte[numClusters * numDimensions];
+        for(int c = 0; c < numClusters; c++){
+            System.arraycopy(centroids[c], 0, this.centroids, c * numDimensions, numDimensions);
+        }
+    }
+
+    /**
+     * Assigns a block of descriptors.
+     */
+    public int[] assign(byte[][] data) {
+        int[] indices = new int[data.length];
+        int previous = 0;
+        for(int i = 0; i < data.length; i++){
+            long result = nearest(data[i], 0, previous);
+            indices[i] = previous = (int) (result >>> 32);
+        }
+        return indices;
+    }
+
+    /**
+     * Assigns a single descriptor.
+     */
+    public int assign(byte[] data) {
+        return (int) (nearest(data, 0, 0) >>> 32);
+    }
+
+    /**
+     * Assigns a block of descriptors, also returning the squared distance to each
+     * assigned centroid.
+     */
+    public void assignDistance(byte[][] data, int[] indices, float[] distances) {
+        int previous = 0;
+        for(int i = 0; i < data.length; i++){
+            long result = nearest(data[i], 0, previous);
+            indices[i] = previous = (int) (result >>> 32);
+            distances[i] = (int) result;
+        }
+    }
+
+    /**
+     * Assigns a single descriptor, also returning the squared distance to the assigned
+     * centroid.
+     */
+    public IntFloatPair assignDistance(byte[] data) {
+        long result = nearest(data, 0, 0);
+        return new IntFloatPair((int) (result >>> 32), (int) result);
+    }
+
+    /**
+     * Assigns a block of descriptors packed one after the other in a single array.
+     *
+     * @param data The descriptors.
+     * @param count The number of descriptors.
+     * @param indices The array the assignments are written to.
+     */
+    public void assign(byte[] data, int count, int[] indices){
+        int previous = 0;
+        for(int i = 0; i < count; i++){
+            long result = nearest(data, i * numDimensions, previous);
+            indices[i] = previous = (int) (result >>> 32);
+        }
+    }
+
+    /**
+     * Finds the nearest centroid to a descriptor.
+     *
+     * @param data The array holding the descriptor.
+     * @param offset The offset of the descriptor in the array.
+     * @param guess The centroid used to bound the search.
+     * @return The index of the nearest centroid (high 32 bits) and its squared distance
+     * (low 32 bits).
+     */
+    long nearest(byte[] data, int offset, int guess){
+        final byte[] centroids = this.centroids;
+        final int dims = numDimensions;
+        final int chunked = dims - dims % CHUNK;
+
+        int best = guess;
+        int bestDistance = distance(data, offset, guess * dims);
+
+        for(int c = 0; c < numClusters; c++){
+            if(c == guess){
+                continue;
+            }
+
+            int base = c * dims;
+            int distance = 0;
+            int d = 0;
+            for(; d < chunked && distance <= bestDistance; d += CHUNK){
+                for(int e = d; e < d + CHUNK; e++){
+                    int diff = data[offset + e] - centroids[base + e];
+                    distance += diff * diff;
+                }
+            }
+            if(distance <= bestDistance){
+                for(; d < dims; d++){
+                    int diff = data[offset + d] - centroids[base + d];
+                    distance += diff * diff;
+                }
+            }
+
+            if(distance < bestDistance || (distance == bestDistance && c < best)){
+                bestDistance = distance;
+                best = c;
+            }
+        }
+
+        return ((long) best << 32) | (bestDistance & 0xffffffffL);
+    }
+
+    /**
+     * Computes the squared distance between a descriptor and a centroid.
+     *
+     * @param data The array holding the descriptor.
+     * @param offset The offset of the descriptor in the array.
+     * @param base The offset of the centroid in the centroid array.
+     * @return The squared distance.
+     */
+    int distance(byte[] data, int offset, int base){
+        int distance = 0;
+        for(int d = 0; d < numDimensions; d++){
+            int diff = data[offset + d] - centroids[base + d];
+            distance += diff * diff;
+        }
+        return distance;
+    }
+
+    /**
+     * Returns the number of centroids.
+     */
+    public int size() {
+        return numClusters;
+    }
+
+    /**
+     * Returns the number of dimensions of the centroids.
+     */
+    public int numDimensions() {
+        return numDimensions;
+    }
+}
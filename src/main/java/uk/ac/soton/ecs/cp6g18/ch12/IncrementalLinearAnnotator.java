@@ -0,0 +1,525 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.experiment.evaluation.classification.BasicClassificationResult;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.FeatureVector;
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.ml.annotation.Annotated;
+import org.openimaj.ml.annotation.BatchAnnotator;
+import org.openimaj.ml.annotation.ScoredAnnotation;
+import org.openimaj.util.array.SparseDoubleArray;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.GlobalExecutorPool;
+import org.openimaj.util.parallel.Parallel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Multiclass linear annotator that can be retrained incrementally.
+ *
+ * A LiblinearAnnotator extracts the feature of every training object and solves every
+ * one-vs-rest problem from scratch each time it is trained. Liblinear (1.92) has no way of
+ * starting its solvers from a previous solution, so this annotator solves the same problem as
+ * SolverType.L2R_L2LOSS_SVC (one-vs-rest, L2-regularised, L2-loss SVMs) itself, with the dual
+ * coordinate descent method of liblinear's L2R_L2LOSS_SVC_DUAL solver. Between calls to
+ * train(), it keeps:
+ *
+ *      - The features of the training objects, keyed by ID, so only the features of new objects
+ *        are extracted.
+ *      - The dual variables of each training object for each class. Retraining starts from
+ *        them (new objects and classes start from 0), so adding a few images or classes only
+ *        takes a few passes over the data rather than a full optimisation.
+ *
+ * The dual variables can be written to and read from a file, so the warm start carries over
+ * between runs (with the features then coming from a disk cache such as a
+ * MappedCachingFeatureExtractor).
+ *
+ * The kept features cost 12 bytes per non-zero entry of each training object, so they grow with
+ * the training set. Only the objects of the last call to train() are kept (objects dropped from
+ * the training set are forgotten), and setKeepFeatures(false) keeps none at all between calls,
+ * for when the extractor is already backed by a disk cache and re-reading every feature is
+ * cheaper than holding them on the heap.
+ *
+ * @author Charles Powell
+ */
+public class IncrementalLinearAnnotator<OBJECT extends Identifiable, ANNOTATION> extends BatchAnnotator<OBJECT, ANNOTATION> {
+
+    // constants
+    static final int MAX_ITERATIONS = 1000; // as in liblinear
+
+    // member variables
+    final FeatureExtractor<? extends FeatureVector, OBJECT> extractor;
+    final double C;
+    final double eps;
+    final double bias;
+    final Map<String, Sample> features = new HashMap<String, Sample>();
+    boolean keepFeatures = true;
+    List<ANNOTATION> annotations = new ArrayList<ANNOTATION>();
+    Map<String, double[]> alphas = new HashMap<String, double[]>();
+    double[][] weights;
+    int extracted;
+    int[] iterations;
+
+    /**
+     * Class constructor.
+     *
+     * @param extractor The feature extractor.
+     * @param C The cost of constraints violation.
+     * @param eps The tolerance of the termination criterion (on the projected gradient of the
+     * dual, as in L2R_L2LOSS_SVC_DUAL, for which liblinear's default is 0.1).
+     */
+    public IncrementalLinearAnnotator(FeatureExtractor<? extends FeatureVector, OBJECT> extractor, double C, double eps){
+        this(extractor, C, eps, -1);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param extractor The feature extractor.
+     * @param C The cost of constraints violation.
+     * @param eps The tolerance of the termination criterion.
+     * @param bias The bias term (a negative value disables the bias, as in liblinear).
+     */
+    public IncrementalLinearAnnotator(FeatureExtractor<? extends FeatureVector, OBJECT> extractor, double C, double eps, double bias){
+        this.extractor = extractor;
+        this.C = C;
+        this.eps = eps;
+        this.bias = bias;
+    }
+
+    /**
+     * Trains the annotator, starting from the solution of the previous call to train() (or
+     * the state read by readState()).
+     *
+     * Each object must have exactly one annotation. Objects with the same ID as an object seen
+     * before are assumed to have the same feature.
+     */
+    public void train(List<? extends Annotated<OBJECT, ANNOTATION>> data) {
+        // keeping the existing classes in the same order, so their dual variables line up
+        final List<ANNOTATION> annotations = new ArrayList<ANNOTATION>(this.annotations);
+        Map<ANNOTATION, Integer> labels = new HashMap<ANNOTATION, Integer>();
+        for(int i = 0; i < annotations.size(); i++){
+            labels.put(annotations.get(i), i);
+        }
+
+        final String[] ids = new String[data.size()];
+        final Sample[] x = new Sample[data.size()];
+        final int[] y = new int[data.size()];
+        int numFeatures = 0;
+        int extracted = 0;
+
+        for(int i = 0; i < data.size(); i++){
+            Annotated<OBJECT, ANNOTATION> item = data.get(i);
+            ANNOTATION annotation = singleAnnotation(item.getAnnotations());
+
+            Integer label = labels.get(annotation);
+            if(label == null){
+                label = annotations.size();
+                labels.put(annotation, label);
+                annotations.add(annotation);
+            }
+
+            ids[i] = item.getObject().getID();
+            x[i] = features.get(ids[i]);
+            if(x[i] == null){
+                x[i] = new Sample(extractor.extractFeature(item.getObject()));
+                features.put(ids[i], x[i]);
+                extracted++;
+            }
+            numFeatures = Math.max(numFeatures, x[i].length);
+            y[i] = label;
+        }
+
+        // the dual variables of the objects still in the training set, one per class
+        final Map<String, double[]> previous = this.alphas;
+        final Map<String, double[]> alphas = new HashMap<String, double[]>();
+        for(String id : ids){
+            alphas.put(id, new double[annotations.size()]);
+        }
+
+        final int dimensions = numFeatures + (bias >= 0 ? 1 : 0);
+        final double[][] weights = new double[annotations.size()][];
+        final int[] iterations = new int[annotations.size()];
+
+        Parallel.forIndex(0, annotations.size(), 1, new Operation<Integer>() {
+            public void perform(Integer k) {
+                double[] alpha = new double[ids.length];
+                for(int i = 0; i < ids.length; i++){
+                    double[] start = previous.get(ids[i]);
+                    alpha[i] = start != null && k < start.length ? start[k] : 0;
+                }
+
+                weights[k] = new double[dimensions];
+                iterations[k] = solve(x, y, k, alpha, weights[k]);
+
+                for(int i = 0; i < ids.length; i++){
+                    alphas.get(ids[i])[k] = alpha[i];
+                }
+            }
+        }, GlobalExecutorPool.getPool());
+
+        // keeping the features of the current training set only (or none)
+        if(keepFeatures){
+            features.keySet().retainAll(alphas.keySet());
+        }
+        else{
+            features.clear();
+        }
+
+        this.annotations = annotations;
+        this.alphas = alphas;
+        this.weights = weights;
+        this.extracted = extracted;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Solves the one-vs-rest problem of a class by dual coordinate descent (Hsieh et al., 2008),
+     * as in liblinear's L2R_L2LOSS_SVC_DUAL solver, starting from the given dual variables.
+     *
+     * @param x The training samples.
+     * @param labels The labels of the training samples.
+     * @param positive The label of the class (every other label is negative).
+     * @param alpha The dual variables, which are updated in place.
+     * @param w The weight vector (all zeros), set to the solution.
+     * @return The number of iterations (passes over the active samples).
+     */
+    int solve(Sample[] x, int[] labels, int positive, double[] alpha, double[] w){
+        int l = x.length;
+        double diag = 0.5 / C;
+        int[] y = new int[l];
+        double[] qd = new double[l];
+        int[] index = new int[l];
+
+        // the weight vector of the starting point, w = sum(y_i alpha_i x_i)
+        for(int i = 0; i < l; i++){
+            y[i] = labels[i] == positive ? 1 : -1;
+            qd[i] = diag + x[i].squaredNorm + (bias >= 0 ? bias * bias : 0);
+            index[i] = i;
+            if(alpha[i] != 0){
+                add(w, x[i], y[i] * alpha[i]);
+            }
+        }
+
+        Random random = new Random(positive);
+        double maxOld = Double.POSITIVE_INFINITY;
+        double minOld = Double.NEGATIVE_INFINITY;
+        int active = l;
+        int iteration = 0;
+
+        while(iteration < MAX_ITERATIONS){
+            double maxNew = Double.NEGATIVE_INFINITY;
+            double minNew = Double.POSITIVE_INFINITY;
+
+            for(int s = 0; s < active; s++){
+                int j = s + random.nextInt(active - s);
+                int swap = index[s]; index[s] = index[j]; index[j] = swap;
+            }
+
+            for(int s = 0; s < active; s++){
+                int i = index[s];
+                double g = y[i] * dot(w, x[i]) - 1 + alpha[i] * diag;
+
+                double pg = 0;
+                if(alpha[i] == 0){
+                    if(g > maxOld){
+                        // shrinking the sample, which is unlikely to move from the bound
+                        active--;
+                        index[s] = index[active]; index[active] = i;
+                        s--;
+                        continue;
+                    }
+                    if(g < 0){
+                        pg = g;
+                    }
+                }
+                else{
+                    pg = g;
+                }
+
+                maxNew = Math.max(maxNew, pg);
+                minNew = Math.min(minNew, pg);
+
+                if(Math.abs(pg) > 1.0e-12){
+                    double old = alpha[i];
+                    alpha[i] = Math.max(old - g / qd[i], 0);
+                    add(w, x[i], (alpha[i] - old) * y[i]);
+                }
+            }
+
+            iteration++;
+
+            if(maxNew - minNew <= eps){
+                if(active == l){
+                    break;
+                }
+                // checking the shrunk samples before stopping
+                active = l;
+                maxOld = Double.POSITIVE_INFINITY;
+                minOld = Double.NEGATIVE_INFINITY;
+                continue;
+            }
+
+            maxOld = maxNew <= 0 ? Double.POSITIVE_INFINITY : maxNew;
+            minOld = minNew >= 0 ? Double.NEGATIVE_INFINITY : minNew;
+        }
+        return iteration;
+    }
+
+    /**
+     * Returns the dot product of a weight vector and a sample (including the bias term).
+     *
+     * @param w The weight vector.
+     * @param x The sample.
+     * @return The dot product.
+     */
+    double dot(double[] w, Sample x){
+        double sum = 0;
+        int[] indices = x.indices;
+        double[] values = x.values;
+        int numFeatures = numFeaturesOf(w);
+        for(int j = 0; j < indices.length; j++){
+            // features beyond those trained on (which can only occur when annotating) have no weight
+            if(indices[j] < numFeatures){
+                sum += w[indices[j]] * values[j];
+            }
+        }
+        return bias >= 0 ? sum + w[w.length - 1] * bias : sum;
+    }
+
+    /**
+     * Adds a multiple of a sample (including the bias term) to a weight vector.
+     *
+     * @param w The weight vector.
+     * @param x The sample.
+     * @param scale The multiple.
+     */
+    void add(double[] w, Sample x, double scale){
+        int[] indices = x.indices;
+        double[] values = x.values;
+        for(int j = 0; j < indices.length; j++){
+            w[indices[j]] += scale * values[j];
+        }
+        if(bias >= 0){
+            w[w.length - 1] += scale * bias;
+        }
+    }
+
+    /**
+     * Returns the number of features (excluding the bias) of a weight vector.
+     *
+     * @param w The weight vector.
+     * @return The number of features.
+     */
+    int numFeaturesOf(double[] w){
+        return bias >= 0 ? w.length - 1 : w.length;
+    }
+
+    /**
+     * Returns the single annotation of a training item.
+     *
+     * @param annotations The annotations of the item.
+     * @return The annotation.
+     */
+    ANNOTATION singleAnnotation(Collection<ANNOTATION> annotations){
+        if(annotations.size() != 1){
+            throw new IllegalArgumentException("A multiclass annotator requires exactly one annotation per object.");
+        }
+        return annotations.iterator().next();
+    }
+
+    /**
+     * Writes the dual variables and classes of the annotator to a file, so a later run can
+     * warm-start from them with readState().
+     *
+     * The classes must be Serializable.
+     *
+     * @param file The file.
+     * @throws IOException If the file could not be written.
+     */
+    public void writeState(File file) throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try{
+            out.writeObject(new ArrayList<ANNOTATION>(annotations));
+            out.writeObject(new HashMap<String, double[]>(alphas));
+        }
+        finally{
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the dual variables and classes written by writeState(), which the next call to
+     * train() starts from.
+     *
+     * The annotator cannot annotate until it has been trained.
+     *
+     * @param file The file.
+     * @throws IOException If the file could not be read.
+     */
+    @SuppressWarnings("unchecked")
+    public void readState(File file) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try{
+            this.annotations = (List<ANNOTATION>) in.readObject();
+            this.alphas = (Map<String, double[]>) in.readObject();
+            this.weights = null;
+        }
+        catch(ClassNotFoundException e){
+            throw new IOException(e);
+        }
+        finally{
+            in.close();
+        }
+    }
+
+    /**
+     * Sets whether the features of the training objects are kept between calls to train().
+     *
+     * If not, every feature is extracted again by each call to train(), and only held while it
+     * runs.
+     *
+     * @param keepFeatures Whether to keep the features (true by default).
+     */
+    public void setKeepFeatures(boolean keepFeatures){
+        this.keepFeatures = keepFeatures;
+        if(!keepFeatures){
+            features.clear();
+        }
+    }
+
+    /**
+     * Returns the number of features extracted by the last call to train() (the rest came
+     * from the features of earlier calls).
+     *
+     * @return The number of features extracted.
+     */
+    public int getNumExtracted(){
+        return extracted;
+    }
+
+    /**
+     * Returns the number of solver iterations of each class in the last call to train().
+     *
+     * @return The number of iterations, in the order of the classes.
+     */
+    public int[] getIterations(){
+        return iterations;
+    }
+
+    /**
+     * Returns the set of annotations the annotator was trained on.
+     */
+    public Set<ANNOTATION> getAnnotations() {
+        return new HashSet<ANNOTATION>(annotations);
+    }
+
+    /**
+     * Classifies the object.
+     *
+     * As in SparseLiblinearAnnotator, every annotation is predicted (best first), since
+     * one-vs-rest decision values are often all negative.
+     */
+    @Override
+    public ClassificationResult<ANNOTATION> classify(OBJECT object) {
+        BasicClassificationResult<ANNOTATION> result = new BasicClassificationResult<ANNOTATION>(Double.NEGATIVE_INFINITY);
+        for(ScoredAnnotation<ANNOTATION> annotation : annotate(object)){
+            result.put(annotation.annotation, annotation.confidence);
+        }
+        return result;
+    }
+
+    /**
+     * Annotates the object, returning every annotation scored by its decision value
+     * (best first).
+     */
+    public List<ScoredAnnotation<ANNOTATION>> annotate(OBJECT object) {
+        if(weights == null){
+            throw new IllegalStateException("The annotator has not been trained.");
+        }
+
+        // features of objects that are not being trained on are not kept
+        Sample sample = new Sample(extractor.extractFeature(object));
+
+        List<ScoredAnnotation<ANNOTATION>> result = new ArrayList<ScoredAnnotation<ANNOTATION>>(weights.length);
+        for(int k = 0; k < weights.length; k++){
+            result.add(new ScoredAnnotation<ANNOTATION>(annotations.get(k), (float) dot(weights[k], sample)));
+        }
+        Collections.sort(result, Collections.reverseOrder());
+        return result;
+    }
+
+    /**
+     * Training sample: the non-zero entries of a feature.
+     */
+    static class Sample {
+
+        // member variables
+        final int length;
+        final int[] indices;
+        final double[] values;
+        final double squaredNorm;
+
+        /**
+         * Class constructor.
+         *
+         * @param fv The feature (sparse or dense).
+         */
+        Sample(FeatureVector fv){
+            int[] indices;
+            double[] values;
+            if(fv instanceof SparseDoubleFV){
+                SparseDoubleArray vector = ((SparseDoubleFV) fv).getVector();
+                indices = vector.indices();
+                values = vector.values();
+            }
+            else{
+                values = fv.asDoubleVector();
+                indices = new int[values.length];
+                for(int i = 0; i < indices.length; i++){
+                    indices[i] = i;
+                }
+            }
+
+            int used = 0;
+            for(double value : values){
+                if(value != 0){
+                    used++;
+                }
+            }
+
+            this.length = fv.length();
+            this.indices = new int[used];
+            this.values = new double[used];
+
+            double squaredNorm = 0;
+            for(int i = 0, j = 0; i < values.length; i++){
+                if(values[i] != 0){
+                    this.indices[j] = indices[i];
+                    this.values[j] = values[i];
+                    squaredNorm += values[i] * values[i];
+                    j++;
+                }
+            }
+            this.squaredNorm = squaredNorm;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.vfs2.FileObject;
+import org.openimaj.data.DataUtils;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.image.Image;
+import org.openimaj.image.annotation.evaluation.datasets.Caltech101;
+import org.openimaj.image.annotation.evaluation.datasets.Caltech101.Record;
+import org.openimaj.io.InputStreamObjectReader;
+import org.openimaj.io.ObjectReader;
+
+import uk.ac.soton.ecs.cp6g18.common.LazyGroupedDataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Lazy replacement for Caltech101.getData().
+ *
+ * Caltech101.getData() lists every image of every class up front (and GroupedRandomSplitter then
+ * creates a record - parsing its annotation - for every image it picks). The dataset given by
+ * getData() here only lists the class directories. The images of a class are listed when the
+ * class is first used, and the record of an image (with its annotation) is created when it is
+ * asked for, as the records of Caltech101.getData() are.
+ *
+ * The records are the same as Caltech101's (with the same IDs, classes, bounds and contours),
+ * and the images are downloaded to the same place if they are not already there.
+ *
+ * @author Charles Powell
+ */
+public class LazyCaltech101 {
+
+    // constants
+    static final String IMAGES_ZIP = "Caltech101/101_ObjectCategories.zip";
+    static final String IMAGES_DOWNLOAD_URL = "http://datasets.openimaj.org/Caltech101/101_ObjectCategories.zip";
+
+    /**
+     * Returns the Caltech101 dataset, grouped by class.
+     *
+     * @param reader The reader of the images.
+     * @return The dataset.
+     * @throws IOException If the images could not be downloaded or listed.
+     */
+    public static <IMAGE extends Image<?, IMAGE>> LazyGroupedDataset<String, Record<IMAGE>> getData(final InputStreamObjectReader<IMAGE> reader) throws IOException {
+        File zip = DataUtils.getDataLocation(IMAGES_ZIP);
+        if(!zip.exists()){
+            zip.getParentFile().mkdirs();
+            FileUtils.copyURLToFile(new URL(IMAGES_DOWNLOAD_URL), zip);
+        }
+
+        // records are read as Caltech101's own RecordReader reads them
+        final VFSListDataset.FileObjectISReader<IMAGE> images = new VFSListDataset.FileObjectISReader<IMAGE>(reader);
+        return LazyGroupedDataset.fromDirectory("zip:file:" + zip + "!101_ObjectCategories/", new ObjectReader<Record<IMAGE>, FileObject>() {
+            public Record<IMAGE> read(final FileObject source) throws IOException {
+                return new Caltech101.Record<IMAGE>(source) {
+                    public IMAGE getImage() {
+                        try{
+                            return images.read(source);
+                        }
+                        catch(IOException e){
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+            }
+
+            public boolean canRead(FileObject source, String name) {
+                return images.canRead(source, name);
+            }
+        });
+    }
+}
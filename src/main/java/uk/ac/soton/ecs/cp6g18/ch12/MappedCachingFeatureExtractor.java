@@ -0,0 +1,100 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drop-in replacement for DiskCachingFeatureExtractor backed by a MappedFeatureCache.
+ *
+ * Features are read from the cache if they exist, or extracted with the wrapped extractor
+ * and written to the cache if they don't. Either way, the feature is given as the cache stores
+ * it (with each value rounded to a float), so a cold run and a warm run see the same features.
+ *
+ * The cache index is only written when the extractor is closed (or flushed), so the
+ * extractor must be closed at the end of a run for the new features to be kept.
+ *
+ * @author Charles Powell
+ */
+public class MappedCachingFeatureExtractor<OBJECT extends Identifiable> implements FeatureExtractor<DoubleFV, OBJECT>, Closeable {
+
+    // constants
+    static final Logger LOG = Logger.getLogger(MappedCachingFeatureExtractor.class.getName());
+
+    // member variables
+    final MappedFeatureCache cache;
+    final FeatureExtractor<DoubleFV, OBJECT> extractor;
+
+    /**
+     * Class constructor.
+     *
+     * @param cacheDir The directory of the cache.
+     * @param extractor The extractor used for features that are not yet cached.
+     * @throws IOException If the cache could not be opened.
+     */
+    public MappedCachingFeatureExtractor(File cacheDir, FeatureExtractor<DoubleFV, OBJECT> extractor) throws IOException {
+        this(new MappedFeatureCache(cacheDir), extractor);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param cache The cache.
+     * @param extractor The extractor used for features that are not yet cached.
+     */
+    public MappedCachingFeatureExtractor(MappedFeatureCache cache, FeatureExtractor<DoubleFV, OBJECT> extractor){
+        this.cache = cache;
+        this.extractor = extractor;
+    }
+
+    /**
+     * Returns the underlying cache.
+     *
+     * @return The cache.
+     */
+    public MappedFeatureCache getCache(){
+        return cache;
+    }
+
+    /**
+     * Reads the feature from the cache, or extracts and caches it if it is not cached.
+     */
+    public DoubleFV extractFeature(OBJECT object) {
+        DoubleFV fv = cache.get(object.getID());
+        if(fv != null){
+            return fv;
+        }
+
+        fv = extractor.extractFeature(object);
+        try{
+            return cache.put(object.getID(), fv);
+        }
+        catch(IOException e){
+            // as with DiskCachingFeatureExtractor, a failed write only costs a re-extraction later
+            LOG.log(Level.WARNING, "Unable to cache feature of " + object.getID(), e);
+            return MappedFeatureCache.round(fv);
+        }
+    }
+
+    /**
+     * Writes the cache index to disk.
+     *
+     * @throws IOException If the index could not be written.
+     */
+    public void flush() throws IOException {
+        cache.flush();
+    }
+
+    /**
+     * Closes the underlying cache.
+     */
+    public void close() throws IOException {
+        cache.close();
+    }
+}
@@ -0,0 +1,409 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.feature.DoubleFV;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Compact, memory-mapped store of feature vectors keyed by record ID.
+ *
+ * DiskCachingFeatureExtractor writes one Java-serialised DoubleFV per record, which costs a
+ * file open and a deserialisation on every read, and stores every (mostly zero) value of
+ * the histogram as a double.
+ *
+ * This cache instead packs every vector into a small number of segment files, storing only
+ * the non-zero entries of each vector as (int index, float value) pairs. An index file maps
+ * each record ID to the segment and offset of its vector. Segments are memory-mapped when the
+ * cache is opened, so a warm read is a handful of absolute buffer reads.
+ *
+ * Record layout (within a segment):
+ *
+ *      [int length][int nnz][int index x nnz][float value x nnz]
+ *
+ * As the values are stored as floats, put() gives back the vector as the cache will read it
+ * (each value rounded to a float), so a vector is the same whether it was just extracted or
+ * read from the cache.
+ *
+ * A mapping covers its segment as it was when mapped, so vectors written since are kept on
+ * the heap until the segments are re-mapped. This happens whenever they take up more than
+ * the pending limit (DEFAULT_PENDING_BYTES unless given), and on every flush, so the heap used
+ * by the cache stays bounded however many vectors are written.
+ *
+ * @author Charles Powell
+ */
+public class MappedFeatureCache implements Closeable {
+
+    // constants
+    static final int MAGIC = 0x50484f57; // "PHOW"
+    static final int VERSION = 1;
+    static final String INDEX_FILE = "index.idx";
+    static final String SEGMENT_FORMAT = "segment-%04d.seg";
+    static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+    static final long DEFAULT_PENDING_BYTES = 16L * 1024 * 1024;
+
+    // member variables
+    final File dir;
+    final long segmentSize;
+    final long maxPendingBytes;
+    final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<MappedByteBuffer>();
+    final Map<String, long[]> index = new ConcurrentHashMap<String, long[]>();
+    final Map<String, DoubleFV> pending = new ConcurrentHashMap<String, DoubleFV>();
+    long pendingBytes;
+    FileChannel writer;
+    int writerSegment;
+    boolean dirty;
+
+    /**
+     * Class constructor.
+     *
+     * Opens (or creates) the cache in the given directory.
+     *
+     * @param dir The cache directory.
+     * @throws IOException If the cache could not be opened.
+     */
+    public MappedFeatureCache(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * Opens (or creates) the cache in the given directory.
+     *
+     * @param dir The cache directory.
+     * @param segmentSize The size in bytes at which a new segment file is started (at most 2GB,
+     * the limit of a single mapping).
+     * @throws IOException If the cache could not be opened.
+     */
+    public MappedFeatureCache(File dir, long segmentSize) throws IOException {
+        this(dir, segmentSize, DEFAULT_PENDING_BYTES);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * Opens (or creates) the cache in the given directory.
+     *
+     * @param dir The cache directory.
+     * @param segmentSize The size in bytes at which a new segment file is started (at most 2GB,
+     * the limit of a single mapping).
+     * @param maxPendingBytes The size in bytes (as dense vectors) of the vectors kept on the heap
+     * before the segments are re-mapped.
+     * @throws IOException If the cache could not be opened.
+     */
+    public MappedFeatureCache(File dir, long segmentSize, long maxPendingBytes) throws IOException {
+        if(segmentSize <= 0 || segmentSize > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("Segment size must be between 1 and " + Integer.MAX_VALUE + " bytes.");
+        }
+
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxPendingBytes = maxPendingBytes;
+
+        dir.mkdirs();
+        readIndex();
+        mapSegments();
+    }
+
+    /**
+     * Reads the index file (if it exists) into memory.
+     *
+     * @throws IOException If the index is unreadable.
+     */
+    void readIndex() throws IOException {
+        File indexFile = new File(dir, INDEX_FILE);
+        if(!indexFile.exists()){
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try{
+            if(in.readInt() != MAGIC || in.readInt() != VERSION){
+                throw new IOException("Not a feature cache index: " + indexFile);
+            }
+            int count = in.readInt();
+            for(int i = 0; i < count; i++){
+                String id = in.readUTF();
+                int segment = in.readInt();
+                int offset = in.readInt();
+                index.put(id, new long[] {segment, offset});
+            }
+        }
+        finally{
+            in.close();
+        }
+    }
+
+    /**
+     * Memory-maps every existing segment file.
+     *
+     * @throws IOException If a segment could not be mapped.
+     */
+    void mapSegments() throws IOException {
+        for(int i = 0; segmentFile(i).exists(); i++){
+            segments.add(map(i));
+        }
+        writerSegment = Math.max(segments.size() - 1, 0);
+    }
+
+    /**
+     * Memory-maps the whole of a segment file, as it is now.
+     *
+     * @param segment The segment number.
+     * @return The mapping.
+     * @throws IOException If the segment could not be mapped.
+     */
+    MappedByteBuffer map(int segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "r");
+        try{
+            FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally{
+            // the mapping stays valid once the channel is closed
+            file.close();
+        }
+    }
+
+    /**
+     * Re-maps every segment that has grown since it was mapped, so the vectors written since
+     * can be read from the mappings, and drops them from the heap.
+     *
+     * Readers see either the old mapping (and the vector on the heap) or the new mapping, as a
+     * mapping is replaced before the vectors it now covers are dropped.
+     *
+     * @throws IOException If a segment could not be mapped.
+     */
+    synchronized void remap() throws IOException {
+        for(int i = 0; i <= writerSegment && segmentFile(i).exists(); i++){
+            if(i < segments.size() && segments.get(i).capacity() == segmentFile(i).length()){
+                continue;
+            }
+            MappedByteBuffer mapping = map(i);
+            if(i < segments.size()){
+                segments.set(i, mapping);
+            }
+            else{
+                segments.add(mapping);
+            }
+        }
+        pending.clear();
+        pendingBytes = 0;
+    }
+
+    /**
+     * Returns the file of the given segment.
+     *
+     * @param segment The segment number.
+     * @return The segment file.
+     */
+    File segmentFile(int segment){
+        return new File(dir, String.format(SEGMENT_FORMAT, segment));
+    }
+
+    /**
+     * Checks if the cache holds the vector of the given record.
+     *
+     * @param id The record ID.
+     * @return True if the vector is cached.
+     */
+    public boolean contains(String id){
+        return pending.containsKey(id) || index.containsKey(id);
+    }
+
+    /**
+     * Returns the number of cached vectors.
+     *
+     * @return The number of cached vectors.
+     */
+    public int size(){
+        return index.size();
+    }
+
+    /**
+     * Reads the vector of the given record from the cache.
+     *
+     * Safe to call from any number of threads at once.
+     *
+     * @param id The record ID.
+     * @return The cached vector, or null if the record is not cached.
+     */
+    public DoubleFV get(String id){
+        DoubleFV fv = pending.get(id);
+        if(fv != null){
+            return fv;
+        }
+
+        long[] location = index.get(id);
+        if(location == null){
+            return null;
+        }
+
+        // absolute reads only, so the shared buffer's position is never touched
+        ByteBuffer segment = segments.get((int) location[0]);
+        int pos = (int) location[1];
+        int length = segment.getInt(pos);
+        int nnz = segment.getInt(pos + 4);
+        int indices = pos + 8;
+        int values = indices + 4 * nnz;
+
+        double[] vector = new double[length];
+        for(int i = 0; i < nnz; i++){
+            vector[segment.getInt(indices + 4 * i)] = segment.getFloat(values + 4 * i);
+        }
+        return new DoubleFV(vector);
+    }
+
+    /**
+     * Rounds each value of a vector to a float, as the cache stores it.
+     *
+     * @param fv The vector.
+     * @return The rounded vector.
+     */
+    static DoubleFV round(DoubleFV fv){
+        double[] vector = new double[fv.values.length];
+        for(int i = 0; i < vector.length; i++){
+            vector[i] = (float) fv.values[i];
+        }
+        return new DoubleFV(vector);
+    }
+
+    /**
+     * Writes the vector of the given record to the cache.
+     *
+     * @param id The record ID.
+     * @param fv The vector.
+     * @return The vector as the cache reads it back (with each value rounded to a float).
+     * @throws IOException If the vector could not be written.
+     */
+    public synchronized DoubleFV put(String id, DoubleFV fv) throws IOException {
+        if(contains(id)){
+            return get(id);
+        }
+
+        fv = round(fv);
+        double[] vector = fv.values;
+        int nnz = 0;
+        for(double value : vector){
+            if(value != 0){
+                nnz++;
+            }
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(8 + 8 * nnz);
+        record.putInt(vector.length);
+        record.putInt(nnz);
+        for(int i = 0; i < vector.length; i++){
+            if(vector[i] != 0){
+                record.putInt(i);
+            }
+        }
+        for(double value : vector){
+            if(value != 0){
+                record.putFloat((float) value);
+            }
+        }
+        record.flip();
+
+        FileChannel channel = writer();
+        if(channel.size() > 0 && channel.size() + record.remaining() > segmentSize){
+            channel.close();
+            writerSegment++;
+            channel = writer();
+        }
+
+        long offset = channel.size();
+        while(record.hasRemaining()){
+            channel.write(record, offset + record.position());
+        }
+
+        pending.put(id, fv);
+        index.put(id, new long[] {writerSegment, offset});
+        dirty = true;
+
+        pendingBytes += 8L * vector.length;
+        if(pendingBytes >= maxPendingBytes){
+            remap();
+        }
+        return fv;
+    }
+
+    /**
+     * Returns the channel of the segment currently being appended to.
+     *
+     * @return The channel.
+     * @throws IOException If the segment could not be opened.
+     */
+    FileChannel writer() throws IOException {
+        if(writer == null || !writer.isOpen()){
+            writer = new RandomAccessFile(segmentFile(writerSegment), "rw").getChannel();
+        }
+        return writer;
+    }
+
+    /**
+     * Writes the index to disk.
+     *
+     * The index is written to a temporary file and moved into place, so a reader never sees
+     * a partially written index. The segments are re-mapped first, dropping the vectors held on
+     * the heap.
+     *
+     * @throws IOException If the index could not be written.
+     */
+    public synchronized void flush() throws IOException {
+        if(!dirty){
+            return;
+        }
+        if(writer != null){
+            writer.force(false);
+        }
+        remap();
+
+        File tmp = new File(dir, INDEX_FILE + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try{
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(index.size());
+            for(Map.Entry<String, long[]> entry : index.entrySet()){
+                out.writeUTF(entry.getKey());
+                out.writeInt((int) entry.getValue()[0]);
+                out.writeInt((int) entry.getValue()[1]);
+            }
+        }
+        finally{
+            out.close();
+        }
+        Files.move(tmp.toPath(), new File(dir, INDEX_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        dirty = false;
+    }
+
+    /**
+     * Flushes the index and closes the active segment.
+     */
+    public synchronized void close() throws IOException {
+        flush();
+        if(writer != null){
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.data.dataset.Dataset;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageProvider;
+import org.openimaj.image.annotation.evaluation.datasets.Caltech101.Record;
+import org.openimaj.image.feature.dense.gradient.dsift.AbstractDenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.image.feature.dense.gradient.dsift.DenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.PyramidDenseSIFT;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.ml.clustering.assignment.hard.KDTreeByteEuclideanAssigner;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.IntFloatPair;
+import org.openimaj.util.parallel.GlobalExecutorPool;
+import org.openimaj.util.parallel.Parallel;
+import org.openimaj.util.parallel.Parallel.IntRange;
+
+import uk.ac.soton.ecs.cp6g18.common.Fingerprint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Bounded-memory visual vocabulary trainer.
+ *
+ * trainQuantiser keeps every dense SIFT keypoint of the sample images in memory before running
+ * ByteKMeans over all of them, so its memory use grows with the number of descriptors.
+ *
+ * This trainer instead streams over the sample, decoding and analysing the images in parallel,
+ * and samples the descriptors into a fixed-size buffer as it goes. Each descriptor is given a
+ * random key, drawn from a source seeded by the trainer's seed and the index of its image, and
+ * the budget descriptors with the smallest keys are kept - a uniform sample that does not depend
+ * on the order in which the threads finish their images, so the same seed gives the same
+ * vocabulary. The vocabulary is
+ * then learnt from the buffer with k-means++ seeded mini-batch k-means (Sculley, 2010): each iteration assigns a
+ * random batch of descriptors to their closest centroids (in parallel), and moves each centroid
+ * towards its assigned descriptors with a per-centroid learning rate of 1 / (assignments so far).
+ *
+ * Memory use is fixed at (budget + numVisWords) x 128 values (plus 20 bytes of key and heap per
+ * sampled descriptor), whatever the size of the sample.
+ *
+ * @author Charles Powell
+ */
+public class MiniBatchVocabularyTrainer {
+
+    // constants
+    static final int DIMS = 128;
+    static final float ENERGY_THRESHOLD = 0.005f; // of the sampled keypoints
+
+    // member variables
+    final int numVisWords;
+    final int budget;
+    final int batchSize;
+    final int iterations;
+    final long seed;
+    final ThreadPoolExecutor pool;
+    DecodedImageCache images;
+
+    /**
+     * Class constructor.
+     *
+     * Uses batches of 10,000 descriptors, 100 iterations and the global OpenIMAJ thread pool.
+     *
+     * @param numVisWords The number of visual words (k).
+     * @param budget The maximum number of descriptors held in memory.
+     * @param seed The seed of the random sampling.
+     */
+    public MiniBatchVocabularyTrainer(int numVisWords, int budget, long seed){
+        this(numVisWords, budget, 10000, 100, seed, GlobalExecutorPool.getPool());
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param numVisWords The number of visual words (k).
+     * @param budget The maximum number of descriptors held in memory.
+     * @param batchSize The number of descriptors in each mini-batch.
+     * @param iterations The number of mini-batch iterations.
+     * @param seed The seed of the random sampling.
+     * @param pool The pool of worker threads.
+     */
+    public MiniBatchVocabularyTrainer(int numVisWords, int budget, int batchSize, int iterations, long seed, ThreadPoolExecutor pool){
+        if(budget < numVisWords){
+            throw new IllegalArgumentException("The descriptor budget must be at least the number of visual words.");
+        }
+
+        this.numVisWords = numVisWords;
+        this.budget = budget;
+        this.batchSize = Math.min(batchSize, budget);
+        this.iterations = iterations;
+        this.seed = seed;
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the cache the sample images are read through.
+     *
+     * @param images The cache (or null to decode every image).
+     * @return This trainer.
+     */
+    public MiniBatchVocabularyTrainer setImageCache(DecodedImageCache images){
+        this.images = images;
+        return this;
+    }
+
+    /**
+     * Learns a vocabulary from the dense SIFT descriptors of the sample images, and returns a
+     * HardAssigner for it.
+     *
+     * @param sample The sample images.
+     * @param dsift The DenseSIFT configuration.
+     * @param magFactor The magnification factor of the PyramidDenseSIFT.
+     * @param sizes The bin sizes of the PyramidDenseSIFT.
+     * @return A HardAssigner for the vocabulary.
+     */
+    public HardAssigner<byte[], float[], IntFloatPair> trainAssigner(Dataset<Record<FImage>> sample, DenseSIFT dsift, float magFactor, int... sizes){
+        return new KDTreeByteEuclideanAssigner(train(sample, dsift, magFactor, sizes));
+    }
+
+    /**
+     * Adds the parameters the vocabulary depends on (all but the thread pool) to a fingerprint.
+     *
+     * @param fingerprint The fingerprint.
+     * @return The fingerprint.
+     */
+    public Fingerprint addTo(Fingerprint fingerprint){
+        return fingerprint.add("numVisWords", numVisWords)
+                          .add("budget", budget)
+                          .add("batchSize", batchSize)
+                          .add("iterations", iterations)
+                          .add("seed", seed)
+                          .add("energyThreshold", ENERGY_THRESHOLD);
+    }
+
+    /**
+     * Learns a vocabulary from the dense SIFT descriptors of the sample images.
+     *
+     * @param sample The sample images.
+     * @param dsift The DenseSIFT configuration.
+     * @param magFactor The magnification factor of the PyramidDenseSIFT.
+     * @param sizes The bin sizes of the PyramidDenseSIFT.
+     * @return The vocabulary.
+     */
+    public ByteCentroidsResult train(Dataset<Record<FImage>> sample, final DenseSIFT dsift, final float magFactor, final int... sizes){
+        return train(sample, new ThreadLocal<AbstractDenseSIFT<FImage>>(){
+            @Override
+            protected AbstractDenseSIFT<FImage> initialValue(){
+                return new PyramidDenseSIFT<FImage>(dsift, magFactor, sizes);
+            }
+        });
+    }
+
+    /**
+     * Learns a vocabulary from the dense SIFT descriptors of the sample images, extracted with
+     * (a copy per thread of) a MultiScaleDenseSIFT engine.
+     *
+     * @param sample The sample images.
+     * @param engine The MultiScaleDenseSIFT engine.
+     * @return The vocabulary.
+     */
+    public ByteCentroidsResult train(Dataset<Record<FImage>> sample, final MultiScaleDenseSIFT engine){
+        return train(sample, new ThreadLocal<AbstractDenseSIFT<FImage>>(){
+            @Override
+            protected AbstractDenseSIFT<FImage> initialValue(){
+                return engine.clone();
+            }
+        });
+    }
+
+    /**
+     * Learns a vocabulary from the dense SIFT descriptors of the sample images.
+     *
+     * @param sample The sample images.
+     * @param engines The dense SIFT engine of each thread.
+     * @return The vocabulary.
+     */
+    <T extends Identifiable & ImageProvider<FImage>> ByteCentroidsResult train(Iterable<T> sample, ThreadLocal<AbstractDenseSIFT<FImage>> engines){
+        Reservoir reservoir = sampleDescriptors(sample, engines);
+        if(reservoir.size < numVisWords){
+            throw new IllegalArgumentException("Only " + reservoir.size + " descriptors were found for " + numVisWords + " visual words.");
+        }
+
+        ByteCentroidsResult result = new ByteCentroidsResult();
+        result.centroids = cluster(reservoir.ordered(), reservoir.size);
+        return result;
+    }
+
+    /**
+     * Streams over the sample images and samples their descriptors.
+     *
+     * The images are analysed in parallel, but the keys of the descriptors of each image are
+     * drawn from a source seeded by the index of the image, so the sample is the same whatever
+     * order the images are offered in.
+     *
+     * @param sample The sample images.
+     * @param engines The dense SIFT engine of each thread.
+     * @return The sampled descriptors.
+     */
+    <T extends Identifiable & ImageProvider<FImage>> Reservoir sampleDescriptors(Iterable<T> sample, final ThreadLocal<AbstractDenseSIFT<FImage>> engines){
+        final List<T> records = new ArrayList<T>();
+        for(T record : sample){
+            records.add(record);
+        }
+        final Reservoir reservoir = new Reservoir(budget);
+
+        Parallel.forRange(0, records.size(), 1, new Operation<IntRange>() {
+            public void perform(IntRange range) {
+                AbstractDenseSIFT<FImage> pdsift = engines.get();
+                for(int i = range.start; i < range.stop; i += range.incr){
+                    T record = records.get(i);
+                    pdsift.analyseImage(images != null ? images.getImage(record) : record.getImage());
+                    reservoir.offer(i, pdsift.getByteKeypoints(ENERGY_THRESHOLD), new Random(seed ^ (i * 0x9E3779B97F4A7C15L)));
+                }
+            }
+        }, pool);
+
+        return reservoir;
+    }
+
+    /**
+     * Runs mini-batch k-means over the sampled descriptors.
+     *
+     * @param data The descriptors, packed one after the other.
+     * @param size The number of descriptors.
+     * @return The centroids.
+     */
+    byte[][] cluster(final byte[] data, final int size){
+        final Random random = new Random(seed);
+        final float[] centroids = new float[numVisWords * DIMS];
+        final long[] counts = new long[numVisWords];
+
+        seedCentroids(data, size, centroids, random);
+
+        final int[] batch = new int[batchSize];
+        final int[] assignments = new int[batchSize];
+        for(int iter = 0; iter < iterations; iter++){
+            for(int i = 0; i < batchSize; i++){
+                batch[i] = random.nextInt(size);
+            }
+
+            // assigning the batch to the current centroids in parallel
+            Parallel.forRange(0, batchSize, 1, new Operation<IntRange>() {
+                public void perform(IntRange range) {
+                    for(int i = range.start; i < range.stop; i += range.incr){
+                        assignments[i] = closest(centroids, data, batch[i] * DIMS);
+                    }
+                }
+            }, pool);
+
+            // moving each centroid towards its assigned descriptors
+            for(int i = 0; i < batchSize; i++){
+                int c = assignments[i];
+                float rate = 1f / ++counts[c];
+                int offset = batch[i] * DIMS;
+                for(int d = 0; d < DIMS; d++){
+                    int index = c * DIMS + d;
+                    centroids[index] += rate * (data[offset + d] - centroids[index]);
+                }
+            }
+        }
+
+        byte[][] result = new byte[numVisWords][DIMS];
+        for(int c = 0; c < numVisWords; c++){
+            for(int d = 0; d < DIMS; d++){
+                result[c][d] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, Math.round(centroids[c * DIMS + d])));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Initialises the centroids with k-means++ seeding over a random subsample of the
+     * descriptors (20 descriptors per visual word), so the cost of seeding does not grow with
+     * the budget.
+     *
+     * @param data The descriptors, packed one after the other.
+     * @param size The number of descriptors.
+     * @param centroids The centroids to initialise.
+     * @param random The source of randomness.
+     */
+    void seedCentroids(byte[] data, int size, float[] centroids, Random random){
+        int[] order = shuffledIndices(size, random);
+        int candidates = Math.min(size, 20 * numVisWords);
+
+        // squared distance from each candidate to its closest centroid so far
+        double[] distances = new double[candidates];
+        Arrays.fill(distances, Double.MAX_VALUE);
+
+        int chosen = order[random.nextInt(candidates)];
+        for(int c = 0; c < numVisWords; c++){
+            for(int d = 0; d < DIMS; d++){
+                centroids[c * DIMS + d] = data[chosen * DIMS + d];
+            }
+            if(c == numVisWords - 1){
+                break;
+            }
+
+            double total = 0;
+            for(int i = 0; i < candidates; i++){
+                int offset = order[i] * DIMS;
+                double distance = 0;
+                for(int d = 0; d < DIMS; d++){
+                    double diff = data[offset + d] - centroids[c * DIMS + d];
+                    distance += diff * diff;
+                }
+                distances[i] = Math.min(distances[i], distance);
+                total += distances[i];
+            }
+
+            // choosing the next centroid with probability proportional to its squared distance
+            double target = random.nextDouble() * total;
+            int next = candidates - 1;
+            for(int i = 0; i < candidates; i++){
+                target -= distances[i];
+                if(target <= 0){
+                    next = i;
+                    break;
+                }
+            }
+            chosen = order[next];
+        }
+    }
+
+    /**
+     * Finds the closest centroid to a descriptor.
+     *
+     * @param centroids The centroids, packed one after the other.
+     * @param data The descriptors, packed one after the other.
+     * @param offset The offset of the descriptor.
+     * @return The index of the closest centroid.
+     */
+    int closest(float[] centroids, byte[] data, int offset){
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for(int c = 0; c < numVisWords; c++){
+            int base = c * DIMS;
+            float distance = 0;
+            for(int d = 0; d < DIMS && distance < bestDistance; d++){
+                float diff = data[offset + d] - centroids[base + d];
+                distance += diff * diff;
+            }
+            if(distance < bestDistance){
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the indices 0..size-1 in a random order.
+     *
+     * @param size The number of indices.
+     * @param random The source of randomness.
+     * @return The shuffled indices.
+     */
+    static int[] shuffledIndices(int size, Random random){
+        int[] order = new int[size];
+        for(int i = 0; i < size; i++){
+            order[i] = i;
+        }
+        for(int i = size - 1; i > 0; i--){
+            int j = random.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        return order;
+    }
+
+    /**
+     * Fixed-size uniform sample of a stream of descriptors.
+     *
+     * Each descriptor offered has a random key, and the capacity descriptors with the smallest
+     * keys (ties broken by image, then by position in the image) are kept, in a max-heap by key.
+     * Which descriptors are kept, and the order ordered() gives them in, depend only on the keys,
+     * not on the order the images are offered in.
+     */
+    static class Reservoir {
+
+        // member variables
+        final byte[] data;
+        final int capacity;
+        final double[] keys;
+        final long[] ids;
+        final int[] heap;
+        int size;
+        long seen;
+
+        /**
+         * Class constructor.
+         *
+         * @param capacity The maximum number of descriptors held.
+         */
+        Reservoir(int capacity){
+            this.data = new byte[capacity * DIMS];
+            this.capacity = capacity;
+            this.keys = new double[capacity];
+            this.ids = new long[capacity];
+            this.heap = new int[capacity];
+        }
+
+        /**
+         * Offers the descriptors of an image to the reservoir.
+         *
+         * @param image The index of the image.
+         * @param keypoints The keypoints of the image.
+         * @param random The source of the keys of the image's descriptors.
+         */
+        synchronized void offer(int image, LocalFeatureList<ByteDSIFTKeypoint> keypoints, Random random){
+            int position = 0;
+            for(ByteDSIFTKeypoint keypoint : keypoints){
+                seen++;
+                double key = random.nextDouble();
+                long id = ((long) image << 32) | position++;
+                int slot;
+                if(size < capacity){
+                    slot = size;
+                    keys[slot] = key;
+                    ids[slot] = id;
+                    heap[size++] = slot;
+                    siftUp(size - 1);
+                }
+                else if(capacity > 0 && before(key, id, heap[0])){
+                    slot = heap[0];
+                    keys[slot] = key;
+                    ids[slot] = id;
+                    siftDown(0);
+                }
+                else{
+                    continue;
+                }
+                System.arraycopy(keypoint.descriptor, 0, data, slot * DIMS, DIMS);
+            }
+        }
+
+        /**
+         * Whether a key (and id) comes before that of a slot.
+         */
+        boolean before(double key, long id, int slot){
+            return key < keys[slot] || (key == keys[slot] && id < ids[slot]);
+        }
+
+        void siftUp(int i){
+            int slot = heap[i];
+            while(i > 0){
+                int parent = (i - 1) / 2;
+                if(!before(keys[heap[parent]], ids[heap[parent]], slot)){
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = slot;
+        }
+
+        void siftDown(int i){
+            int slot = heap[i];
+            while(2 * i + 1 < size){
+                int child = 2 * i + 1;
+                if(child + 1 < size && before(keys[heap[child]], ids[heap[child]], heap[child + 1])){
+                    child++;
+                }
+                if(!before(keys[slot], ids[slot], heap[child])){
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = slot;
+        }
+
+        /**
+         * Reorders the sampled descriptors (in place) by their keys, and returns them. No more
+         * descriptors may be offered afterwards.
+         *
+         * @return The descriptors, packed one after the other.
+         */
+        synchronized byte[] ordered(){
+            Integer[] slots = new Integer[size];
+            for(int i = 0; i < size; i++){
+                slots[i] = i;
+            }
+            Arrays.sort(slots, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return before(keys[a], ids[a], b) ? -1 : before(keys[b], ids[b], a) ? 1 : 0;
+                }
+            });
+
+            // following each cycle of the permutation, so only one descriptor is held aside
+            byte[] held = new byte[DIMS];
+            boolean[] placed = new boolean[size];
+            for(int i = 0; i < size; i++){
+                if(placed[i]){
+                    continue;
+                }
+                System.arraycopy(data, i * DIMS, held, 0, DIMS);
+                int j = i;
+                while(slots[j] != i){
+                    System.arraycopy(data, slots[j] * DIMS, data, j * DIMS, DIMS);
+                    placed[j] = true;
+                    j = slots[j];
+                }
+                System.arraycopy(held, 0, data, j * DIMS, DIMS);
+                placed[j] = true;
+            }
+            return data;
+        }
+    }
+}
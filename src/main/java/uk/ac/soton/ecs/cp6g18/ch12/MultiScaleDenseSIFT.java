@@ -0,0 +1,500 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.feature.local.list.MemoryLocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.feature.dense.gradient.dsift.AbstractDenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.image.feature.dense.gradient.dsift.FloatDSIFTKeypoint;
+import org.openimaj.image.processing.convolution.FGaussianConvolve;
+import org.openimaj.image.processing.convolution.FImageGradients;
+import org.openimaj.math.geometry.shape.Rectangle;
+import org.openimaj.util.array.ArrayUtils;
+
+/**
+ * Multi-scale dense SIFT engine - a faster drop-in for PyramidDenseSIFT<FImage>.
+ *
+ * PyramidDenseSIFT runs an independent DenseSIFT for every bin size. Each of them computes its
+ * own gradient orientation planes and then, for every (binX, binY, orientation) triple, convolves
+ * the whole plane with the spatial bin kernel - 4 x 4 x 8 = 128 full image convolutions per bin
+ * size - only to read back one pixel in every step x step block of the result.
+ *
+ * This engine produces exactly the same descriptors (and keypoints, in the same order), but:
+ *
+ *      - The orientation planes, and the buffers used to convolve them, are shared by all of the
+ *        bin sizes and reused from one image to the next (while the image size is unchanged).
+ *      - The kernels of every bin size are built once, when the engine is created.
+ *      - The horizontal pass of the convolution is only evaluated at the sampled columns (and
+ *        rows the vertical pass reads), and is shared by all of the binY kernels.
+ *      - The vertical pass is only evaluated at the sampled pixels.
+ *
+ * The convolutions accumulate in the same order and clamp at the image borders in the same way
+ * as FImageConvolveSeparable, so the output is bit-for-bit identical to PyramidDenseSIFT.
+ *
+ * Every bin size still needs its own gradients, as the image is smoothed by a different Gaussian
+ * (size / magFactor) before each of them - sharing a single set of gradients between the sizes
+ * would change the descriptors. With a magFactor of 0 the image is not smoothed, so the gradients
+ * are only computed once for all of the bin sizes.
+ *
+ * The bins of each size are square (size x size pixels), as in PyramidDenseSIFT, unless their
+ * width or height is changed with setBinWidth() or setBinHeight(), which rebuild the grid of
+ * every size with the new bins (the sizes still set the smoothing and offsets of the levels).
+ *
+ * The DenseSIFT defaults are used for the rest of the configuration (4 x 4 spatial bins, 8
+ * orientation bins, a Gaussian window of 2 and a value threshold of 0.2).
+ *
+ * @author Charles Powell
+ */
+public class MultiScaleDenseSIFT extends AbstractDenseSIFT<FImage> {
+
+    // constants
+    static final int NUM_BINS = 4;
+    static final int NUM_ORI_BINS = 8;
+    static final float GAUSSIAN_WINDOW_SIZE = 2f;
+    static final float VALUE_THRESHOLD = 0.2f;
+
+    // member variables
+    final int step;
+    final float magFactor;
+    final int[] sizes;
+    Level[] levels;
+    FImage[] planes;
+    float[][] sampled;
+
+    /**
+     * Class constructor.
+     *
+     * @param step The step size (in both directions) between the sampled keypoints.
+     * @param magFactor The magnification factor (the image is smoothed by size / magFactor before
+     * each bin size, or not at all if it is 0).
+     * @param sizes The bin sizes.
+     */
+    public MultiScaleDenseSIFT(int step, float magFactor, int... sizes){
+        this.step = step;
+        this.magFactor = magFactor;
+        this.sizes = sizes.clone();
+        this.levels = new Level[sizes.length];
+        for(int i = 0; i < sizes.length; i++){
+            levels[i] = new Level(sizes[i]);
+        }
+    }
+
+    /**
+     * Returns the bin sizes of the engine.
+     *
+     * @return The bin sizes.
+     */
+    public int[] getSizes(){
+        return sizes.clone();
+    }
+
+    /**
+     * Analyses an image, extracting the descriptors of every bin size.
+     *
+     * As in PyramidDenseSIFT, each bin size is offset by 1.5 x (maxSize - size) from the previous
+     * one, so that the centres of the keypoints line up.
+     *
+     * @param image The image.
+     * @param bounds The bounds to extract the features within.
+     */
+    @Override
+    public void analyseImage(FImage image, Rectangle bounds){
+        if(planes == null || planes[0].width != image.width || planes[0].height != image.height){
+            planes = new FImage[NUM_ORI_BINS];
+            for(int o = 0; o < NUM_ORI_BINS; o++){
+                planes[o] = new FImage(image.width, image.height);
+            }
+        }
+
+        int maxSize = ArrayUtils.maxValue(sizes);
+        float x = bounds.x;
+        float y = bounds.y;
+
+        for(int i = 0; i < levels.length; i++){
+            int size = sizes[i];
+            int off = (int) Math.floor(1.5f * (maxSize - size));
+
+            // the offsets accumulate from one bin size to the next (as they do in PyramidDenseSIFT)
+            x += off;
+            y += off;
+
+            if(magFactor != 0 || i == 0){
+                FImage img = magFactor == 0 ? image : image.process(new FGaussianConvolve(size / magFactor));
+                FImageGradients.gradientMagnitudesAndQuantisedOrientations(img, planes);
+            }
+
+            levels[i].analyse((int) x, (int) (bounds.width - 1), (int) y, (int) (bounds.height - 1));
+        }
+    }
+
+    /**
+     * Returns the float keypoints of the last analysed image, over every bin size.
+     *
+     * @return The keypoints.
+     */
+    @Override
+    public LocalFeatureList<FloatDSIFTKeypoint> getFloatKeypoints(){
+        return getFloatKeypoints(Float.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Returns the byte keypoints of the last analysed image, over every bin size.
+     *
+     * @return The keypoints.
+     */
+    @Override
+    public LocalFeatureList<ByteDSIFTKeypoint> getByteKeypoints(){
+        return getByteKeypoints(Float.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Returns the float keypoints of the last analysed image with at least the given energy.
+     *
+     * @param energyThreshold The minimum energy of a keypoint.
+     * @return The keypoints.
+     */
+    @Override
+    public LocalFeatureList<FloatDSIFTKeypoint> getFloatKeypoints(float energyThreshold){
+        MemoryLocalFeatureList<FloatDSIFTKeypoint> keypoints = new MemoryLocalFeatureList<FloatDSIFTKeypoint>(getDescriptorLength());
+        for(Level level : levels){
+            for(int j = 0; j < level.numY; j++){
+                for(int k = 0; k < level.numX; k++){
+                    int index = j * level.numX + k;
+                    if(level.energies[index] >= energyThreshold){
+                        keypoints.add(new FloatDSIFTKeypoint(level.keypointX(k), level.keypointY(j), level.descriptors[index], level.energies[index]));
+                    }
+                }
+            }
+        }
+        return keypoints;
+    }
+
+    /**
+     * Returns the byte keypoints of the last analysed image with at least the given energy.
+     *
+     * @param energyThreshold The minimum energy of a keypoint.
+     * @return The keypoints.
+     */
+    @Override
+    public LocalFeatureList<ByteDSIFTKeypoint> getByteKeypoints(float energyThreshold){
+        MemoryLocalFeatureList<ByteDSIFTKeypoint> keypoints = new MemoryLocalFeatureList<ByteDSIFTKeypoint>(getDescriptorLength());
+        for(Level level : levels){
+            for(int j = 0; j < level.numY; j++){
+                for(int k = 0; k < level.numX; k++){
+                    int index = j * level.numX + k;
+                    if(level.energies[index] >= energyThreshold){
+                        keypoints.add(new ByteDSIFTKeypoint(level.keypointX(k), level.keypointY(j), level.descriptors[index], level.energies[index]));
+                    }
+                }
+            }
+        }
+        return keypoints;
+    }
+
+    /**
+     * Returns the descriptors of the last analysed image, of every bin size.
+     *
+     * @return The descriptors.
+     */
+    @Override
+    public float[][] getDescriptors(){
+        int total = 0;
+        for(Level level : levels){
+            total += level.descriptors.length;
+        }
+
+        float[][] descriptors = new float[total][];
+        int offset = 0;
+        for(Level level : levels){
+            System.arraycopy(level.descriptors, 0, descriptors, offset, level.descriptors.length);
+            offset += level.descriptors.length;
+        }
+        return descriptors;
+    }
+
+    /**
+     * Returns the descriptors of the last analysed image, grouped by bin size.
+     *
+     * @return The descriptors of each bin size.
+     */
+    public float[][][] getLevelDescriptors(){
+        float[][][] descriptors = new float[levels.length][][];
+        for(int i = 0; i < levels.length; i++){
+            descriptors[i] = levels[i].descriptors;
+        }
+        return descriptors;
+    }
+
+    /**
+     * Returns the length of a descriptor.
+     *
+     * @return The length of a descriptor.
+     */
+    int getDescriptorLength(){
+        return NUM_ORI_BINS * NUM_BINS * NUM_BINS;
+    }
+
+    /**
+     * Sets the width of the bins of every size (as setBinWidth() of a DenseSIFT sets the width of
+     * its bins), rebuilding the grid of each size.
+     *
+     * @param size The width of the bins.
+     */
+    @Override
+    public void setBinWidth(int size){
+        for(int i = 0; i < levels.length; i++){
+            levels[i] = new Level(levels[i].size, size, levels[i].binHeight);
+        }
+    }
+
+    /**
+     * Sets the height of the bins of every size (as setBinHeight() of a DenseSIFT sets the
+     * height of its bins), rebuilding the grid of each size.
+     *
+     * @param size The height of the bins.
+     */
+    @Override
+    public void setBinHeight(int size){
+        for(int i = 0; i < levels.length; i++){
+            levels[i] = new Level(levels[i].size, levels[i].binWidth, size);
+        }
+    }
+
+    @Override
+    public int getBinWidth(){
+        return levels[0].binWidth;
+    }
+
+    @Override
+    public int getBinHeight(){
+        return levels[0].binHeight;
+    }
+
+    @Override
+    public int getNumBinsX(){
+        return NUM_BINS;
+    }
+
+    @Override
+    public int getNumBinsY(){
+        return NUM_BINS;
+    }
+
+    @Override
+    public int getNumOriBins(){
+        return NUM_ORI_BINS;
+    }
+
+    /**
+     * Returns a copy of this engine, with its own working space.
+     *
+     * @return The copy.
+     */
+    @Override
+    public MultiScaleDenseSIFT clone(){
+        MultiScaleDenseSIFT clone = new MultiScaleDenseSIFT(step, magFactor, sizes);
+        for(int i = 0; i < levels.length; i++){
+            clone.levels[i] = clone.new Level(levels[i].size, levels[i].binWidth, levels[i].binHeight);
+        }
+        return clone;
+    }
+
+    /**
+     * Builds the kernel of a spatial bin (exactly as DenseSIFT does).
+     *
+     * @param binSize The size of the bin.
+     * @param numBins The number of bins.
+     * @param binIndex The index of the bin.
+     * @param windowSize The size of the Gaussian window, in bins.
+     * @return The kernel.
+     */
+    static float[] buildKernel(int binSize, int numBins, int binIndex, float windowSize){
+        float[] kernel = new float[2 * binSize - 1];
+        float delta = binSize * (binIndex - 0.5f * (numBins - 1));
+        float sigma = binSize * windowSize;
+
+        for(int x = -binSize + 1, i = 0; x <= binSize - 1; x++, i++){
+            float z = (x - delta) / sigma;
+
+            // integer division, as in DenseSIFT (the triangle is flat within the bin)
+            kernel[i] = (1 - Math.abs(x) / binSize) * (binIndex >= 0 ? (float) Math.exp(-0.5f * z * z) : 1);
+        }
+        return kernel;
+    }
+
+    /**
+     * The working data of a single bin size.
+     */
+    class Level {
+
+        // member variables
+        final int size;
+        final int binWidth;
+        final int binHeight;
+        final float[][] kernelsX;
+        final float[][] kernelsY;
+        int boundMinX;
+        int boundMinY;
+        int numX;
+        int numY;
+        float[][] descriptors = new float[0][];
+        float[] energies = new float[0];
+
+        /**
+         * Class constructor (for square bins of the given size).
+         *
+         * @param size The bin size.
+         */
+        Level(int size){
+            this(size, size, size);
+        }
+
+        /**
+         * Class constructor.
+         *
+         * @param size The bin size (setting the smoothing and offset of the level).
+         * @param binWidth The width of the bins.
+         * @param binHeight The height of the bins.
+         */
+        Level(int size, int binWidth, int binHeight){
+            this.size = size;
+            this.binWidth = binWidth;
+            this.binHeight = binHeight;
+            this.kernelsX = new float[NUM_BINS][];
+            this.kernelsY = new float[NUM_BINS][];
+            for(int b = 0; b < NUM_BINS; b++){
+                kernelsX[b] = buildKernel(binWidth, NUM_BINS, b, GAUSSIAN_WINDOW_SIZE);
+                kernelsY[b] = buildKernel(binHeight, NUM_BINS, b, GAUSSIAN_WINDOW_SIZE);
+            }
+        }
+
+        /**
+         * Extracts the descriptors of this bin size from the (shared) orientation planes.
+         *
+         * @param boundMinX The first column a descriptor frame can start at.
+         * @param boundMaxX The last column a descriptor frame can end at.
+         * @param boundMinY The first row a descriptor frame can start at.
+         * @param boundMaxY The last row a descriptor frame can end at.
+         */
+        void analyse(int boundMinX, int boundMaxX, int boundMinY, int boundMaxY){
+            int width = planes[0].width;
+            int height = planes[0].height;
+            int frameSizeX = binWidth * (NUM_BINS - 1) + 1;
+            int frameSizeY = binHeight * (NUM_BINS - 1) + 1;
+            int rangeX = boundMaxX - boundMinX - (NUM_BINS - 1) * binWidth;
+            int rangeY = boundMaxY - boundMinY - (NUM_BINS - 1) * binHeight;
+
+            this.boundMinX = boundMinX;
+            this.boundMinY = boundMinY;
+            this.numX = rangeX >= 0 ? rangeX / step + 1 : 0;
+            this.numY = rangeY >= 0 ? rangeY / step + 1 : 0;
+            this.descriptors = new float[numX * numY][NUM_ORI_BINS * NUM_BINS * NUM_BINS];
+            this.energies = new float[numX * numY];
+
+            if(numX == 0 || numY == 0){
+                return;
+            }
+
+            int halfX = binWidth - 1;
+            int lengthX = 2 * binWidth - 1;
+            int halfY = binHeight - 1;
+            int lengthY = 2 * binHeight - 1;
+
+            // the rows the vertical pass reads (before clamping)
+            int rowMin = Math.max(0, boundMinY - halfY);
+            int rowMax = Math.min(height - 1, boundMinY + (numY - 1) * step + (NUM_BINS - 1) * binHeight + halfY);
+
+            if(sampled == null || sampled.length < height || sampled[0].length < numX){
+                sampled = new float[height][Math.max(numX, sampled == null ? 0 : sampled[0].length)];
+            }
+
+            for(int bx = 0; bx < NUM_BINS; bx++){
+                float[] kernelX = kernelsX[bx];
+
+                for(int o = 0; o < NUM_ORI_BINS; o++){
+                    float[][] pixels = planes[o].pixels;
+
+                    // horizontal pass, at the sampled columns only
+                    for(int r = rowMin; r <= rowMax; r++){
+                        float[] row = pixels[r];
+                        float[] out = sampled[r];
+                        for(int k = 0; k < numX; k++){
+                            int x = boundMinX + k * step + bx * binWidth - halfX;
+                            float sum = 0;
+                            for(int t = 0, kt = lengthX - 1; t < lengthX; t++, kt--){
+                                int xt = x + t;
+                                sum += row[xt < 0 ? 0 : (xt >= width ? width - 1 : xt)] * kernelX[kt];
+                            }
+                            out[k] = sum;
+                        }
+                    }
+
+                    // vertical pass, at the sampled pixels only
+                    for(int by = 0; by < NUM_BINS; by++){
+                        float[] kernelY = kernelsY[by];
+                        int bin = o + bx * NUM_ORI_BINS + by * NUM_BINS * NUM_ORI_BINS;
+
+                        for(int j = 0; j < numY; j++){
+                            int y = boundMinY + j * step + by * binHeight - halfY;
+                            for(int k = 0; k < numX; k++){
+                                float sum = 0;
+                                for(int t = 0, kt = lengthY - 1; t < lengthY; t++, kt--){
+                                    int yt = y + t;
+                                    sum += sampled[yt < 0 ? 0 : (yt >= height ? height - 1 : yt)][k] * kernelY[kt];
+                                }
+                                descriptors[j * numX + k][bin] = sum;
+                            }
+                        }
+                    }
+                }
+            }
+
+            normalise(frameSizeX * frameSizeY);
+        }
+
+        /**
+         * Normalises the descriptors (exactly as DenseSIFT does), recording their energies.
+         *
+         * @param frameArea The area of a descriptor frame.
+         */
+        void normalise(float frameArea){
+            for(int i = 0; i < descriptors.length; i++){
+                float[] descriptor = descriptors[i];
+                energies[i] = ArrayUtils.sumValues(descriptor) / frameArea;
+                ArrayUtils.normalise(descriptor);
+
+                boolean changed = false;
+                for(int d = 0; d < descriptor.length; d++){
+                    if(descriptor[d] > VALUE_THRESHOLD){
+                        descriptor[d] = VALUE_THRESHOLD;
+                        changed = true;
+                    }
+                }
+
+                if(changed){
+                    ArrayUtils.normalise(descriptor);
+                }
+            }
+        }
+
+        /**
+         * Returns the x coordinate of the centre of a keypoint.
+         *
+         * @param k The column of the keypoint.
+         * @return The x coordinate.
+         */
+        float keypointX(int k){
+            return (boundMinX + k * step) + 0.5f * binWidth * (NUM_BINS - 1);
+        }
+
+        /**
+         * Returns the y coordinate of the centre of a keypoint.
+         *
+         * @param j The row of the keypoint.
+         * @return The y coordinate.
+         */
+        float keypointY(int j){
+            return (boundMinY + j * step) + 0.5f * binHeight * (NUM_BINS - 1);
+        }
+    }
+}
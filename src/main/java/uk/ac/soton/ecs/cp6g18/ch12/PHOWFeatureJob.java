@@ -0,0 +1,463 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.io.IOUtils;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * MapReduce job that extracts the PHOW features of a directory of images.
+ *
+ * The job runs in two steps:
+ *
+ *      - The images are packed into a SequenceFile of (recordId, image bytes), where the record
+ *        ID is the path of the image relative to the image directory (e.g.,
+ *        "accordion/image_0001.jpg" - the ID Caltech101 gives the record of the image).
+ *      - A map-only job decodes each image and extracts its sparse PHOW feature, writing
+ *        SequenceFiles of (recordId, SparseFeatureWritable).
+ *
+ * The visual vocabulary is broadcast to the mappers through the DistributedCache (as a file in
+ * the format of PHOWModel's vocabulary.bin). Each mapper reads it once, in setup(), and builds
+ * a single FlatByteAssigner from it that quantises every image of its split.
+ *
+ * With localConfiguration() the job runs in Hadoop's local runner, against the local file
+ * system, so it needs no cluster. The same job runs unchanged on a cluster when given the
+ * cluster's Configuration (and paths on the cluster's file system).
+ *
+ * The features are read back with readFeatures(), as a map from record ID to feature that the
+ * training code can use straight away, e.g.:
+ *
+ *      PooledPHOWExtractor.precomputed(PHOWFeatureJob.readFeatures(conf, output), extractor.sparse())
+ *
+ * @author Charles Powell
+ */
+public class PHOWFeatureJob {
+
+    /**
+     * The counters of the job.
+     */
+    public enum Counter {
+        /** The number of images the features were extracted from. */
+        EXTRACTED,
+        /** The number of images that could not be decoded. */
+        UNREADABLE
+    }
+
+    // constants
+    static final Logger LOG = Logger.getLogger(PHOWFeatureJob.class.getName());
+    static final String STEP = "phow.step";
+    static final String MAG_FACTOR = "phow.magFactor";
+    static final String SIZES = "phow.sizes";
+    static final String AGGREGATION = "phow.aggregation";
+    static final String BLOCKS = "phow.blocks";
+    static final String VOCABULARY = "phow.vocabulary";
+    static final String VOCABULARY_NAME = "vocabulary.bin";
+    static final String[] IMAGE_EXTENSIONS = { ".jpg", ".jpeg", ".png", ".gif", ".bmp", ".pgm", ".ppm" };
+
+    // member variables
+    final int step;
+    final float magFactor;
+    final int[] sizes;
+    final PooledPHOWExtractor.Aggregation aggregation;
+    final int[] blocks;
+    int threads = 1;
+
+    /**
+     * Class constructor.
+     *
+     * @param step The step size of the dense SIFT.
+     * @param magFactor The magnification factor of the dense SIFT.
+     * @param sizes The bin sizes of the dense SIFT.
+     * @param aggregation The spatial aggregation.
+     * @param blocks The spatial blocks (BLOCK) or pyramid levels (PYRAMID).
+     */
+    public PHOWFeatureJob(int step, float magFactor, int[] sizes, PooledPHOWExtractor.Aggregation aggregation, int... blocks){
+        if(aggregation == PooledPHOWExtractor.Aggregation.BLOCK && blocks.length != 2){
+            throw new IllegalArgumentException("Block aggregation requires exactly two block counts [blocksX, blocksY].");
+        }
+
+        this.step = step;
+        this.magFactor = magFactor;
+        this.sizes = sizes.clone();
+        this.aggregation = aggregation;
+        this.blocks = blocks.clone();
+    }
+
+    /**
+     * Sets the number of threads each mapper extracts features with.
+     *
+     * With more than one thread, each map task runs that many mappers over its split at once
+     * (through a MultithreadedMapper), each with its own extractor.
+     *
+     * @param threads The number of threads.
+     * @return This job.
+     */
+    public PHOWFeatureJob setThreads(int threads){
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Returns a Configuration that runs jobs in Hadoop's local runner, against the local file
+     * system.
+     *
+     * @return The Configuration.
+     */
+    public static Configuration localConfiguration(){
+        Configuration conf = new Configuration();
+        conf.set("mapred.job.tracker", "local");
+        conf.set("fs.default.name", "file:///");
+        return conf;
+    }
+
+    /**
+     * Extracts the features of a directory of images.
+     *
+     * The working directory is left holding:
+     *
+     *      - images.seq     : the packed images.
+     *      - vocabulary.bin : the broadcast vocabulary.
+     *      - features/      : the SequenceFiles of features.
+     *
+     * @param conf The Configuration (e.g., localConfiguration()).
+     * @param imageDir The directory of images (searched recursively).
+     * @param vocabulary The visual vocabulary.
+     * @param workDir The working directory (which must not already hold features).
+     * @return The directory of features.
+     * @throws Exception If the images could not be packed or the job failed.
+     */
+    public Path run(Configuration conf, Path imageDir, ByteCentroidsResult vocabulary, Path workDir) throws Exception {
+        Path images = new Path(workDir, "images.seq");
+        Path vocabularyFile = new Path(workDir, VOCABULARY_NAME);
+        Path features = new Path(workDir, "features");
+
+        long start = System.currentTimeMillis();
+        int packed = packImages(conf, imageDir, images);
+        LOG.info("Packed " + packed + " images in " + (System.currentTimeMillis() - start) + " ms");
+
+        writeVocabulary(conf, vocabulary, vocabularyFile);
+
+        start = System.currentTimeMillis();
+        Job job = createJob(conf, images, vocabularyFile, features);
+        if(!job.waitForCompletion(true)){
+            throw new IOException("PHOW feature job failed");
+        }
+        LOG.info("Extracted " + job.getCounters().findCounter(Counter.EXTRACTED).getValue() + " features in " + (System.currentTimeMillis() - start) + " ms"
+                 + " (" + job.getCounters().findCounter(Counter.UNREADABLE).getValue() + " unreadable images)");
+
+        return features;
+    }
+
+    /**
+     * Creates the (map-only) feature extraction job.
+     *
+     * @param conf The Configuration (which is copied).
+     * @param images The SequenceFile(s) of packed images.
+     * @param vocabulary The vocabulary file (as written by writeVocabulary()).
+     * @param output The directory to write the features to.
+     * @return The job.
+     * @throws IOException If the job could not be created.
+     */
+    public Job createJob(Configuration conf, Path images, Path vocabulary, Path output) throws IOException {
+        Job job = new Job(conf, "PHOW features of " + images);
+        job.setJarByClass(PHOWFeatureJob.class);
+
+        Configuration jobConf = job.getConfiguration();
+        jobConf.setInt(STEP, step);
+        jobConf.setFloat(MAG_FACTOR, magFactor);
+        jobConf.set(SIZES, PHOWModel.join(sizes));
+        jobConf.set(AGGREGATION, aggregation.name());
+        jobConf.set(BLOCKS, PHOWModel.join(blocks));
+
+        // broadcast the vocabulary - the mappers fall back to reading it from the shared file
+        // system if the runner does not localise the cache
+        URI uri = vocabulary.getFileSystem(jobConf).makeQualified(vocabulary).toUri();
+        jobConf.set(VOCABULARY, uri.toString());
+        DistributedCache.addCacheFile(uri, jobConf);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        FileInputFormat.addInputPath(job, images);
+
+        if(threads > 1){
+            job.setMapperClass(MultithreadedMapper.class);
+            MultithreadedMapper.setMapperClass(job, PHOWMapper.class);
+            MultithreadedMapper.setNumberOfThreads(job, threads);
+        }
+        else{
+            job.setMapperClass(PHOWMapper.class);
+        }
+        job.setNumReduceTasks(0);
+
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(SparseFeatureWritable.class);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+        FileOutputFormat.setOutputPath(job, output);
+
+        return job;
+    }
+
+    /**
+     * Packs the images of a directory (searched recursively) into a SequenceFile of
+     * (recordId, image bytes).
+     *
+     * The images are packed in path order, so the same directory always gives the same file.
+     *
+     * @param conf The Configuration.
+     * @param imageDir The directory of images.
+     * @param images The SequenceFile to write.
+     * @return The number of images packed.
+     * @throws IOException If the images could not be packed.
+     */
+    public static int packImages(Configuration conf, Path imageDir, Path images) throws IOException {
+        FileSystem inFs = imageDir.getFileSystem(conf);
+        FileSystem outFs = images.getFileSystem(conf);
+        Path root = inFs.makeQualified(imageDir);
+
+        SequenceFile.Writer writer = SequenceFile.createWriter(outFs, conf, images, Text.class, BytesWritable.class, SequenceFile.CompressionType.NONE);
+        try{
+            return packImages(inFs, root, root, writer);
+        }
+        finally{
+            writer.close();
+        }
+    }
+
+    /**
+     * Packs the images below a directory.
+     *
+     * @param fs The file system of the images.
+     * @param root The image directory (that the record IDs are relative to).
+     * @param dir The directory to pack.
+     * @param writer The writer of the SequenceFile.
+     * @return The number of images packed.
+     * @throws IOException If the images could not be packed.
+     */
+    static int packImages(FileSystem fs, Path root, Path dir, SequenceFile.Writer writer) throws IOException {
+        FileStatus[] statuses = fs.listStatus(dir);
+        if(statuses == null){
+            throw new IOException("Unable to list image directory " + dir);
+        }
+        Arrays.sort(statuses);
+
+        String prefix = root.toUri().getPath();
+        int count = 0;
+        for(FileStatus status : statuses){
+            if(status.isDir()){
+                count += packImages(fs, root, status.getPath(), writer);
+            }
+            else if(isImage(status.getPath().getName())){
+                byte[] bytes = new byte[(int) status.getLen()];
+                FSDataInputStream in = fs.open(status.getPath());
+                try{
+                    in.readFully(bytes);
+                }
+                finally{
+                    in.close();
+                }
+
+                String id = status.getPath().toUri().getPath().substring(prefix.length());
+                writer.append(new Text(id.startsWith("/") ? id.substring(1) : id), new BytesWritable(bytes));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Checks whether a file name has an image extension.
+     *
+     * @param name The file name.
+     * @return True if the file is an image.
+     */
+    static boolean isImage(String name){
+        String lower = name.toLowerCase();
+        for(String extension : IMAGE_EXTENSIONS){
+            if(lower.endsWith(extension)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes a vocabulary to be broadcast to the mappers.
+     *
+     * @param conf The Configuration.
+     * @param vocabulary The vocabulary.
+     * @param file The file to write.
+     * @throws IOException If the vocabulary could not be written.
+     */
+    public static void writeVocabulary(Configuration conf, ByteCentroidsResult vocabulary, Path file) throws IOException {
+        FSDataOutputStream out = file.getFileSystem(conf).create(file, true);
+        try{
+            IOUtils.writeBinary(out, vocabulary);
+        }
+        finally{
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the vocabulary broadcast to a mapper, from its local copy in the DistributedCache if
+     * there is one, and otherwise from the file system the job was given it on.
+     *
+     * @param conf The Configuration of the job.
+     * @return The vocabulary.
+     * @throws IOException If the vocabulary could not be read.
+     */
+    static ByteCentroidsResult readVocabulary(Configuration conf) throws IOException {
+        Path file = new Path(conf.get(VOCABULARY));
+
+        Path[] cached = DistributedCache.getLocalCacheFiles(conf);
+        if(cached != null){
+            for(Path path : cached){
+                if(path.getName().equals(file.getName())){
+                    file = FileSystem.getLocal(conf).makeQualified(path);
+                    break;
+                }
+            }
+        }
+
+        InputStream in = file.getFileSystem(conf).open(file);
+        try{
+            return IOUtils.read(in, ByteCentroidsResult.class);
+        }
+        finally{
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the features written by the job.
+     *
+     * @param conf The Configuration.
+     * @param features The directory of features.
+     * @return The features, keyed by record ID.
+     * @throws IOException If the features could not be read.
+     */
+    public static Map<String, SparseDoubleFV> readFeatures(Configuration conf, Path features) throws IOException {
+        FileSystem fs = features.getFileSystem(conf);
+        FileStatus[] parts = fs.globStatus(new Path(features, "part-*"));
+        if(parts == null || parts.length == 0){
+            throw new IOException("No features found in " + features);
+        }
+
+        Map<String, SparseDoubleFV> map = new HashMap<String, SparseDoubleFV>();
+        Text key = new Text();
+        SparseFeatureWritable value = new SparseFeatureWritable();
+        for(FileStatus part : parts){
+            SequenceFile.Reader reader = new SequenceFile.Reader(fs, part.getPath(), conf);
+            try{
+                while(reader.next(key, value)){
+                    map.put(key.toString(), value.get());
+                }
+            }
+            finally{
+                reader.close();
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Mapper that extracts the PHOW feature of each packed image.
+     */
+    public static class PHOWMapper extends Mapper<Text, BytesWritable, Text, SparseFeatureWritable> {
+
+        // member variables
+        PooledPHOWExtractor extractor;
+        final SparseFeatureWritable feature = new SparseFeatureWritable();
+
+        /**
+         * Builds the extractor from the job configuration and the broadcast vocabulary.
+         */
+        @Override
+        protected void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            MultiScaleDenseSIFT engine = new MultiScaleDenseSIFT(conf.getInt(STEP, 3),
+                                                                 conf.getFloat(MAG_FACTOR, 6f),
+                                                                 PHOWModel.split(conf.get(SIZES)));
+            extractor = new PooledPHOWExtractor(engine,
+                                                new FlatByteAssigner(readVocabulary(conf)),
+                                                PooledPHOWExtractor.Aggregation.valueOf(conf.get(AGGREGATION)),
+                                                PHOWModel.split(conf.get(BLOCKS)));
+        }
+
+        /**
+         * Extracts the feature of an image.
+         */
+        @Override
+        protected void map(Text key, BytesWritable value, Context context) throws IOException, InterruptedException {
+            FImage image;
+            try{
+                image = ImageUtilities.readF(new ByteArrayInputStream(value.getBytes(), 0, value.getLength()));
+            }
+            catch(IOException e){
+                LOG.log(Level.WARNING, "Unable to decode " + key, e);
+                context.getCounter(Counter.UNREADABLE).increment(1);
+                return;
+            }
+
+            feature.set(extractor.extractSparseFeature(image));
+            context.write(key, feature);
+            context.getCounter(Counter.EXTRACTED).increment(1);
+            context.progress();
+        }
+    }
+
+    /**
+     * Runs the job in Hadoop's local runner with the configuration of exercise 3.
+     *
+     * Arguments: imageDir vocabulary.bin workDir [threads]
+     *
+     * @param args The arguments.
+     * @throws Exception If the job failed.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 3){
+            System.err.println("Usage: PHOWFeatureJob <imageDir> <vocabulary.bin> <workDir> [threads]");
+            System.exit(1);
+        }
+
+        Configuration conf = localConfiguration();
+        ByteCentroidsResult vocabulary = IOUtils.read(new File(args[1]), ByteCentroidsResult.class);
+
+        PHOWFeatureJob job = new PHOWFeatureJob(3, 6f, new int[]{ 4, 6, 8, 10 }, PooledPHOWExtractor.Aggregation.PYRAMID, 2, 4);
+        if(args.length > 3){
+            job.setThreads(Integer.parseInt(args[3]));
+        }
+
+        Path features = job.run(conf, new Path(args[0]), vocabulary, new Path(args[2]));
+        LOG.info("Read back " + readFeatures(conf, features).size() + " features from " + features);
+    }
+}
@@ -0,0 +1,295 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.image.FImage;
+import org.openimaj.image.annotation.evaluation.datasets.Caltech101.Record;
+import org.openimaj.io.IOUtils;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.SolverType;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A trained PHOW + liblinear classifier that can be written to and read from disk.
+ *
+ * The model is everything needed to classify an image without retraining: the DenseSIFT
+ * configuration, the visual vocabulary the HardAssigner is built from, the spatial aggregation,
+ * and the trained liblinear model with its classes. It is kept as a directory of files:
+ *
+ *      - model.properties : the feature configuration and liblinear solver.
+ *      - vocabulary.bin   : the visual vocabulary (written with IOUtils.writeBinary).
+ *      - liblinear.model  : the liblinear model (written with Linear.saveModel).
+ *      - labels.txt       : the classes, one per line, in liblinear label order.
+ *
+ * The bin size of the DenseSIFT is not part of the model, as the PyramidDenseSIFT (and the
+ * MultiScaleDenseSIFT of createExtractor()) sets it to each of the sizes in turn.
+ *
+ * @author Charles Powell
+ */
+public class PHOWModel {
+
+    // constants
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // member variables
+    final int step;
+    final float magFactor;
+    final int[] sizes;
+    final PooledPHOWExtractor.Aggregation aggregation;
+    final int[] blocks;
+    final ByteCentroidsResult vocabulary;
+    final SolverType solver;
+    final Model model;
+    final List<String> labels;
+
+    /**
+     * Class constructor.
+     *
+     * @param step The step size of the DenseSIFT.
+     * @param magFactor The magnification factor of the PyramidDenseSIFT.
+     * @param sizes The sizes of the PyramidDenseSIFT.
+     * @param aggregation The spatial aggregation.
+     * @param blocks The blocks (or pyramid levels) of the spatial aggregation.
+     * @param vocabulary The visual vocabulary.
+     * @param annotator The trained annotator.
+     */
+    public PHOWModel(int step, float magFactor, int[] sizes, PooledPHOWExtractor.Aggregation aggregation, int[] blocks, ByteCentroidsResult vocabulary, SparseLiblinearAnnotator<?, String> annotator){
+        this(step, magFactor, sizes, aggregation, blocks, vocabulary, annotator.getSolverType(), annotator.getModel(), labelsOf(annotator));
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param step The step size of the DenseSIFT.
+     * @param magFactor The magnification factor of the PyramidDenseSIFT.
+     * @param sizes The sizes of the PyramidDenseSIFT.
+     * @param aggregation The spatial aggregation.
+     * @param blocks The blocks (or pyramid levels) of the spatial aggregation.
+     * @param vocabulary The visual vocabulary.
+     * @param solver The liblinear solver the model was trained with.
+     * @param model The liblinear model.
+     * @param labels The classes, in liblinear label order.
+     */
+    PHOWModel(int step, float magFactor, int[] sizes, PooledPHOWExtractor.Aggregation aggregation, int[] blocks, ByteCentroidsResult vocabulary, SolverType solver, Model model, List<String> labels){
+        this.step = step;
+        this.magFactor = magFactor;
+        this.sizes = sizes.clone();
+        this.aggregation = aggregation;
+        this.blocks = blocks.clone();
+        this.vocabulary = vocabulary;
+        this.solver = solver;
+        this.model = model;
+        this.labels = new ArrayList<String>(labels);
+    }
+
+    /**
+     * Returns the classes of an annotator, in liblinear label order.
+     *
+     * @param annotator The trained annotator.
+     * @return The classes.
+     */
+    static List<String> labelsOf(SparseLiblinearAnnotator<?, String> annotator){
+        List<String> labels = new ArrayList<String>();
+        for(int label = 0; label < annotator.getModel().getNrClass(); label++){
+            labels.add(annotator.getAnnotation(label));
+        }
+        return labels;
+    }
+
+    /**
+     * Creates the feature extractor of the model.
+     *
+     * @return The extractor.
+     */
+    public PooledPHOWExtractor createExtractor(){
+        return new PooledPHOWExtractor(new MultiScaleDenseSIFT(step, magFactor, sizes), new FlatByteAssigner(vocabulary), aggregation, blocks);
+    }
+
+    /**
+     * Creates the annotator of the model, over the given extractor.
+     *
+     * @param extractor The extractor (from createExtractor()).
+     * @return The annotator.
+     */
+    public SparseLiblinearAnnotator<Record<FImage>, String> createAnnotator(PooledPHOWExtractor extractor){
+        return new SparseLiblinearAnnotator<Record<FImage>, String>(extractor.sparse(), solver, model, labels);
+    }
+
+    /**
+     * Writes the model to a directory.
+     *
+     * The files are written to a new directory next to it, which is then renamed into place
+     * (replacing any model already in the directory), so a reader never sees a partly written
+     * model.
+     *
+     * @param dir The directory.
+     * @throws IOException If the model could not be written.
+     */
+    public void write(File dir) throws IOException {
+        File parent = dir.getAbsoluteFile().getParentFile();
+        if(!parent.isDirectory() && !parent.mkdirs()){
+            throw new IOException("Unable to create model directory " + parent);
+        }
+
+        File tmp = Files.createTempDirectory(parent.toPath(), dir.getName() + ".new-").toFile();
+        try{
+            writeFiles(tmp);
+
+            // moving an existing model aside, as a directory cannot be renamed over another
+            File old = null;
+            if(dir.exists()){
+                old = new File(parent, tmp.getName() + ".old");
+                Files.move(dir.toPath(), old.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(tmp.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            if(old != null){
+                delete(old);
+            }
+        }
+        finally{
+            if(tmp.exists()){
+                delete(tmp);
+            }
+        }
+    }
+
+    /**
+     * Writes the files of the model into a directory.
+     *
+     * @param dir The (existing) directory.
+     * @throws IOException If the model could not be written.
+     */
+    void writeFiles(File dir) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("step", Integer.toString(step));
+        properties.setProperty("magFactor", Float.toString(magFactor));
+        properties.setProperty("sizes", join(sizes));
+        properties.setProperty("aggregation", aggregation.name());
+        properties.setProperty("blocks", join(blocks));
+        properties.setProperty("solver", solver.name());
+
+        OutputStream out = new FileOutputStream(new File(dir, "model.properties"));
+        try{
+            properties.store(out, "PHOW model");
+        }
+        finally{
+            out.close();
+        }
+
+        IOUtils.writeBinary(new File(dir, "vocabulary.bin"), vocabulary);
+        Linear.saveModel(new File(dir, "liblinear.model"), model);
+
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, "labels.txt")), UTF8));
+        try{
+            for(String label : labels){
+                writer.println(label);
+            }
+        }
+        finally{
+            writer.close();
+        }
+    }
+
+    /**
+     * Deletes a directory of model files.
+     *
+     * @param dir The directory.
+     * @throws IOException If a file could not be deleted.
+     */
+    static void delete(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if(files != null){
+            for(File file : files){
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(dir.toPath());
+    }
+
+    /**
+     * Reads a model written by write().
+     *
+     * @param dir The directory of the model.
+     * @return The model.
+     * @throws IOException If the model could not be read.
+     */
+    public static PHOWModel read(File dir) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(new File(dir, "model.properties"));
+        try{
+            properties.load(in);
+        }
+        finally{
+            in.close();
+        }
+
+        ByteCentroidsResult vocabulary = IOUtils.read(new File(dir, "vocabulary.bin"), ByteCentroidsResult.class);
+        Model model = Linear.loadModel(new File(dir, "liblinear.model"));
+
+        List<String> labels = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(dir, "labels.txt")), UTF8));
+        try{
+            String line;
+            while((line = reader.readLine()) != null){
+                labels.add(line);
+            }
+        }
+        finally{
+            reader.close();
+        }
+
+        return new PHOWModel(Integer.parseInt(properties.getProperty("step")),
+                             Float.parseFloat(properties.getProperty("magFactor")),
+                             split(properties.getProperty("sizes")),
+                             PooledPHOWExtractor.Aggregation.valueOf(properties.getProperty("aggregation")),
+                             split(properties.getProperty("blocks")),
+                             vocabulary,
+                             SolverType.valueOf(properties.getProperty("solver")),
+                             model,
+                             labels);
+    }
+
+    /**
+     * Joins integers into a comma separated string.
+     *
+     * @param values The integers.
+     * @return The string.
+     */
+    static String join(int[] values){
+        String joined = Arrays.toString(values);
+        return joined.substring(1, joined.length() - 1).replace(" ", "");
+    }
+
+    /**
+     * Splits a comma separated string of integers.
+     *
+     * @param joined The string.
+     * @return The integers.
+     */
+    static int[] split(String joined){
+        String[] parts = joined.split(",");
+        int[] values = new int[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
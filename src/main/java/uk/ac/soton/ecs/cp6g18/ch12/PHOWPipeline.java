@@ -0,0 +1,269 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.data.dataset.Dataset;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.feature.ArrayFeatureVector;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.feature.local.LocalFeature;
+import org.openimaj.feature.local.SpatialLocation;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.feature.local.quantised.QuantisedLocalFeature;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageProvider;
+import org.openimaj.image.feature.dense.gradient.dsift.AbstractDenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
+import org.openimaj.image.feature.local.aggregate.BlockSpatialAggregator;
+import org.openimaj.image.feature.local.aggregate.PyramidSpatialAggregator;
+import org.openimaj.math.geometry.shape.Rectangle;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.util.function.Function;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.IntFloatPair;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PHOW feature extraction as a staged Pipeline.
+ *
+ * A PooledPHOWExtractor runs every step of the extraction of an image on one thread. This
+ * class splits the extraction into four stages, each with its own worker threads and a
+ * bounded input queue:
+ *
+ *      - decode    : reads the image of the record (I/O-bound), through the image cache of
+ *                    the extractor if it has one.
+ *      - dsift     : extracts the dense SIFT keypoints of the image.
+ *      - quantise  : assigns each keypoint to a visual word (as a single block of descriptors).
+ *      - aggregate : builds the spatial histogram of visual words.
+ *
+ * so decoding overlaps with feature extraction, and the number of workers of each stage can
+ * be tuned from the queue depths and busy times the pipeline reports. The features are the
+ * same as those of the PooledPHOWExtractor the pipeline is built from.
+ *
+ * @param <T> The type of the records (e.g., Caltech101 records).
+ *
+ * @author Charles Powell
+ */
+public class PHOWPipeline<T extends Identifiable & ImageProvider<FImage>> {
+
+    // member variables
+    final PooledPHOWExtractor extractor;
+    final Pipeline<T, Item> pipeline;
+    final long reportInterval;
+
+    /**
+     * Class constructor.
+     *
+     * @param extractor The extractor defining the features (its DenseSIFT configuration,
+     * HardAssigner and spatial aggregation).
+     * @param decodeWorkers The number of decode workers.
+     * @param siftWorkers The number of dense SIFT workers.
+     * @param quantiseWorkers The number of quantisation workers.
+     * @param aggregateWorkers The number of aggregation workers.
+     * @param capacity The capacity of the queue in front of each stage.
+     * @param reportInterval The time between reports of the state of the pipeline in
+     * milliseconds (0 for no reports).
+     */
+    public PHOWPipeline(final PooledPHOWExtractor extractor, int decodeWorkers, int siftWorkers, int quantiseWorkers, int aggregateWorkers, int capacity, long reportInterval){
+        this.extractor = extractor;
+        this.reportInterval = reportInterval;
+
+        final ThreadLocal<AbstractDenseSIFT<FImage>> engines = extractor.createEngines();
+
+        this.pipeline = Pipeline.first("decode", new Function<T, Item>() {
+            public Item apply(T record) {
+                Item item = new Item(record.getID());
+                item.image = extractor.decode(record);
+                return item;
+            }
+        }, decodeWorkers, capacity).then("dsift", new Function<Item, Item>() {
+            public Item apply(Item item) {
+                AbstractDenseSIFT<FImage> pdsift = engines.get();
+                pdsift.analyseImage(item.image);
+                item.bounds = item.image.getBounds();
+                item.keypoints = pdsift.getByteKeypoints(0.015f);
+                item.image = null;
+                return item;
+            }
+        }, siftWorkers, capacity).then("quantise", new Function<Item, Item>() {
+            public Item apply(Item item) {
+                item.words = quantise(extractor.getAssigner(), item.keypoints);
+                item.keypoints = null;
+                return item;
+            }
+        }, quantiseWorkers, capacity).then("aggregate", new Function<Item, Item>() {
+            public Item apply(Item item) {
+                item.histogram = aggregate(item.words, item.bounds);
+                item.words = null;
+                return item;
+            }
+        }, aggregateWorkers, capacity);
+    }
+
+    /**
+     * Returns the underlying pipeline (for its stage statistics).
+     *
+     * @return The pipeline.
+     */
+    public Pipeline<T, Item> getPipeline(){
+        return pipeline;
+    }
+
+    /**
+     * Extracts the (dense, normalised) features of every record of a dataset.
+     *
+     * @param dataset The dataset.
+     * @return The features, keyed by record ID.
+     * @throws Exception If the extraction failed.
+     */
+    public Map<String, DoubleFV> extractFeatures(Dataset<T> dataset) throws Exception {
+        final Map<String, DoubleFV> features = new HashMap<String, DoubleFV>();
+        pipeline.run(dataset, new Operation<Item>() {
+            public void perform(Item item) {
+                features.put(item.id, item.histogram.normaliseFV());
+            }
+        }, reportInterval);
+        return features;
+    }
+
+    /**
+     * Extracts the sparse, normalised features of every record of a dataset.
+     *
+     * @param dataset The dataset.
+     * @return The features, keyed by record ID.
+     * @throws Exception If the extraction failed.
+     */
+    public Map<String, SparseDoubleFV> extractSparseFeatures(Dataset<T> dataset) throws Exception {
+        final Map<String, SparseDoubleFV> features = new HashMap<String, SparseDoubleFV>();
+        pipeline.run(dataset, new Operation<Item>() {
+            public void perform(Item item) {
+                features.put(item.id, PooledPHOWExtractor.normaliseSparse(item.histogram));
+            }
+        }, reportInterval);
+        return features;
+    }
+
+    /**
+     * Assigns the keypoints of an image to visual words.
+     *
+     * The descriptors are assigned in a single call, so block-aware assigners (such as the
+     * FlatByteAssigner) can make use of the similarity of neighbouring descriptors.
+     *
+     * @param assigner The assigner.
+     * @param keypoints The keypoints.
+     * @return The visual words of the keypoints.
+     */
+    static List<QuantisedLocalFeature<SpatialLocation>> quantise(HardAssigner<byte[], float[], IntFloatPair> assigner, LocalFeatureList<ByteDSIFTKeypoint> keypoints){
+        byte[][] descriptors = new byte[keypoints.size()][];
+        for(int i = 0; i < descriptors.length; i++){
+            descriptors[i] = keypoints.get(i).descriptor;
+        }
+        int[] assignments = assigner.assign(descriptors);
+
+        List<QuantisedLocalFeature<SpatialLocation>> words = new ArrayList<QuantisedLocalFeature<SpatialLocation>>(descriptors.length);
+        for(int i = 0; i < descriptors.length; i++){
+            words.add(new QuantisedLocalFeature<SpatialLocation>(keypoints.get(i).getLocation(), assignments[i]));
+        }
+        return words;
+    }
+
+    /**
+     * Builds the spatial histogram of the visual words of an image.
+     *
+     * The words are aggregated with the same spatial aggregator as the extractor, with an
+     * assigner that reads back the already assigned visual word.
+     *
+     * @param words The visual words.
+     * @param bounds The bounds of the image.
+     * @return The histogram.
+     */
+    SparseIntFV aggregate(List<QuantisedLocalFeature<SpatialLocation>> words, Rectangle bounds){
+        BagOfVisualWords<int[]> bovw = new BagOfVisualWords<int[]>(new WordAssigner(extractor.getAssigner().size()));
+        List<? extends LocalFeature<? extends SpatialLocation, ? extends ArrayFeatureVector<int[]>>> features = words;
+        if(extractor.aggregation == PooledPHOWExtractor.Aggregation.BLOCK){
+            return new BlockSpatialAggregator<int[], SparseIntFV>(bovw, extractor.blocks[0], extractor.blocks[1]).aggregate(features, bounds);
+        }
+        return new PyramidSpatialAggregator<int[], SparseIntFV>(bovw, extractor.blocks).aggregate(features, bounds);
+    }
+
+    /**
+     * Item passing through the pipeline.
+     *
+     * Each stage clears the field it consumed, so items waiting in a queue only hold on to
+     * what the next stage needs.
+     */
+    public static class Item {
+
+        // member variables
+        final String id;
+        FImage image;
+        Rectangle bounds;
+        LocalFeatureList<ByteDSIFTKeypoint> keypoints;
+        List<QuantisedLocalFeature<SpatialLocation>> words;
+        SparseIntFV histogram;
+
+        /**
+         * Class constructor.
+         *
+         * @param id The ID of the record.
+         */
+        Item(String id){
+            this.id = id;
+        }
+    }
+
+    /**
+     * HardAssigner for already quantised features, which returns the visual word stored in the
+     * (single element) feature vector.
+     */
+    static class WordAssigner implements HardAssigner<int[], float[], IntFloatPair> {
+
+        // member variables
+        final int numWords;
+
+        /**
+         * Class constructor.
+         *
+         * @param numWords The number of visual words.
+         */
+        WordAssigner(int numWords){
+            this.numWords = numWords;
+        }
+
+        public int[] assign(int[][] data) {
+            int[] words = new int[data.length];
+            for(int i = 0; i < data.length; i++){
+                words[i] = data[i][0];
+            }
+            return words;
+        }
+
+        public int assign(int[] data) {
+            return data[0];
+        }
+
+        public void assignDistance(int[][] data, int[] indices, float[] distances) {
+            for(int i = 0; i < data.length; i++){
+                indices[i] = data[i][0];
+                distances[i] = 0;
+            }
+        }
+
+        public IntFloatPair assignDistance(int[] data) {
+            return new IntFloatPair(data[0], 0);
+        }
+
+        public int size() {
+            return numWords;
+        }
+
+        public int numDimensions() {
+            return 1;
+        }
+    }
+}
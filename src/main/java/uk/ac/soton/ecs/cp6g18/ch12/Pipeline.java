@@ -0,0 +1,414 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.util.function.Function;
+import org.openimaj.util.function.Operation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Staged processing pipeline with bounded queues and backpressure.
+ *
+ * A pipeline is a chain of stages, each of which applies a Function to the items it takes from
+ * its input queue and puts the results on the input queue of the next stage. Each stage has its
+ * own pool of worker threads, so I/O-bound stages (e.g., decoding images) overlap with
+ * CPU-bound ones (e.g., extracting SIFT features), and each stage can be given as many workers
+ * as it needs.
+ *
+ * Every queue is bounded, so a fast stage blocks when the next stage falls behind, rather than
+ * filling memory with its results (backpressure). The output of the last stage is handed to a
+ * sink on the calling thread.
+ *
+ * Each stage counts its items and the time its workers spend busy, and its queue depth can be
+ * read at any time, so the bottleneck of the pipeline is the stage with a full input queue and
+ * busy workers.
+ *
+ * Pipelines are built with first() and then():
+ *
+ *      Pipeline<A, C> pipeline = Pipeline.first("a-to-b", aToB, 2, 16).then("b-to-c", bToC, 4, 16);
+ *
+ * @author Charles Powell
+ */
+public class Pipeline<IN, OUT> {
+
+    // constants
+    static final Object END = new Object(); // end-of-stream marker
+    static final long POLL_MILLIS = 100;
+
+    // member variables
+    final List<Stage> stages;
+
+    /**
+     * Class constructor.
+     *
+     * @param stages The stages of the pipeline.
+     */
+    Pipeline(List<Stage> stages){
+        this.stages = Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * Creates a pipeline with a single stage.
+     *
+     * @param name The name of the stage.
+     * @param function The function applied by the stage (a null result drops the item).
+     * @param workers The number of worker threads of the stage.
+     * @param capacity The capacity of the input queue of the stage.
+     * @return The pipeline.
+     */
+    public static <IN, OUT> Pipeline<IN, OUT> first(String name, Function<IN, OUT> function, int workers, int capacity){
+        List<Stage> stages = new ArrayList<Stage>();
+        stages.add(new Stage(name, function, workers, capacity));
+        return new Pipeline<IN, OUT>(stages);
+    }
+
+    /**
+     * Creates a new pipeline with a stage added to the end of this one.
+     *
+     * @param name The name of the stage.
+     * @param function The function applied by the stage (a null result drops the item).
+     * @param workers The number of worker threads of the stage.
+     * @param capacity The capacity of the input queue of the stage.
+     * @return The new pipeline.
+     */
+    public <NEXT> Pipeline<IN, NEXT> then(String name, Function<OUT, NEXT> function, int workers, int capacity){
+        List<Stage> stages = new ArrayList<Stage>(this.stages);
+        stages.add(new Stage(name, function, workers, capacity));
+        return new Pipeline<IN, NEXT>(stages);
+    }
+
+    /**
+     * Returns the stages of the pipeline.
+     *
+     * @return The stages.
+     */
+    public List<Stage> getStages(){
+        return stages;
+    }
+
+    /**
+     * Runs the inputs through the pipeline.
+     *
+     * @param inputs The inputs.
+     * @param sink The operation applied to each output (on the calling thread).
+     * @throws Exception If a stage failed.
+     */
+    public void run(Iterable<? extends IN> inputs, Operation<OUT> sink) throws Exception {
+        run(inputs, sink, 0);
+    }
+
+    /**
+     * Runs the inputs through the pipeline, printing the state of each stage at intervals.
+     *
+     * Outputs are not necessarily in the order of the inputs.
+     *
+     * @param inputs The inputs.
+     * @param sink The operation applied to each output (on the calling thread).
+     * @param reportInterval The time between reports in milliseconds (0 for no reports).
+     * @throws Exception If a stage failed.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void run(final Iterable<? extends IN> inputs, Operation<OUT> sink, long reportInterval) throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final BlockingQueue<Object> output = new ArrayBlockingQueue<Object>(stages.get(stages.size() - 1).capacity);
+        List<ExecutorService> pools = new ArrayList<ExecutorService>();
+
+        for(Stage stage : stages){
+            stage.reset();
+        }
+
+        try{
+            // starting the workers of each stage
+            for(int i = 0; i < stages.size(); i++){
+                Stage stage = stages.get(i);
+                BlockingQueue<Object> next = i + 1 < stages.size() ? stages.get(i + 1).queue : output;
+                ExecutorService pool = Executors.newFixedThreadPool(stage.workers, threadFactory(stage.name));
+                pools.add(pool);
+                for(int w = 0; w < stage.workers; w++){
+                    pool.execute(stage.worker(next, failure));
+                }
+            }
+
+            // feeding the inputs into the first stage
+            final BlockingQueue<Object> head = stages.get(0).queue;
+            ExecutorService feeder = Executors.newSingleThreadExecutor(threadFactory("feeder"));
+            pools.add(feeder);
+            feeder.execute(new Runnable() {
+                public void run() {
+                    try{
+                        for(IN input : inputs){
+                            put(head, input, failure);
+                        }
+                        put(head, END, failure);
+                    }
+                    catch(Throwable t){
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+
+            // draining the outputs into the sink
+            long start = System.currentTimeMillis();
+            long lastReport = start;
+            while(true){
+                Object item = output.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if(failure.get() != null){
+                    break;
+                }
+
+                long now = System.currentTimeMillis();
+                if(reportInterval > 0 && now - lastReport >= reportInterval){
+                    System.out.println(report(now - start));
+                    lastReport = now;
+                }
+
+                if(item == END){
+                    break;
+                }
+                if(item != null){
+                    sink.perform((OUT) item);
+                }
+            }
+
+            if(reportInterval > 0){
+                System.out.println(report(System.currentTimeMillis() - start));
+            }
+        }
+        finally{
+            for(ExecutorService pool : pools){
+                pool.shutdownNow();
+            }
+        }
+
+        Throwable t = failure.get();
+        if(t instanceof Exception){
+            throw (Exception) t;
+        }
+        if(t instanceof Error){
+            throw (Error) t;
+        }
+    }
+
+    /**
+     * Describes the state of each stage.
+     *
+     * @param elapsed The time the pipeline has been running for, in milliseconds.
+     * @return The description.
+     */
+    public String report(long elapsed){
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Pipeline after %.1fs:%n", elapsed / 1000.0));
+        for(Stage stage : stages){
+            double busy = stage.getBusyTime() / 1000.0;
+            double utilisation = elapsed == 0 ? 0 : 100.0 * stage.getBusyTime() / (elapsed * stage.workers);
+            report.append(String.format("    %-12s workers %2d   queue %4d / %-4d   items %8d   busy %8.1fs (%5.1f%%)%n",
+                                        stage.name,
+                                        stage.workers,
+                                        stage.getQueueDepth(),
+                                        stage.capacity,
+                                        stage.getProcessed(),
+                                        busy,
+                                        utilisation));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Puts an item on a queue, waiting for space unless the pipeline has failed.
+     *
+     * @param queue The queue.
+     * @param item The item.
+     * @param failure The failure of the pipeline (if any).
+     * @throws InterruptedException If the pipeline has failed, or the thread was interrupted.
+     */
+    static void put(BlockingQueue<Object> queue, Object item, AtomicReference<Throwable> failure) throws InterruptedException {
+        while(!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)){
+            if(failure.get() != null){
+                throw new InterruptedException("The pipeline has failed.");
+            }
+        }
+    }
+
+    /**
+     * Takes an item from a queue, waiting for one unless the pipeline has failed.
+     *
+     * @param queue The queue.
+     * @param failure The failure of the pipeline (if any).
+     * @return The item.
+     * @throws InterruptedException If the pipeline has failed, or the thread was interrupted.
+     */
+    static Object take(BlockingQueue<Object> queue, AtomicReference<Throwable> failure) throws InterruptedException {
+        Object item;
+        while((item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null){
+            if(failure.get() != null){
+                throw new InterruptedException("The pipeline has failed.");
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Creates a factory of named daemon threads.
+     *
+     * @param name The name of the threads.
+     * @return The factory.
+     */
+    static ThreadFactory threadFactory(final String name){
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pipeline-" + name + "-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Stage of a pipeline.
+     */
+    public static class Stage {
+
+        // member variables
+        final String name;
+        @SuppressWarnings("rawtypes")
+        final Function function;
+        final int workers;
+        final int capacity;
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong processed = new AtomicLong();
+        final AtomicInteger running = new AtomicInteger();
+        BlockingQueue<Object> queue;
+
+        /**
+         * Class constructor.
+         *
+         * @param name The name of the stage.
+         * @param function The function applied by the stage.
+         * @param workers The number of worker threads.
+         * @param capacity The capacity of the input queue.
+         */
+        Stage(String name, Function<?, ?> function, int workers, int capacity){
+            if(workers < 1 || capacity < 1){
+                throw new IllegalArgumentException("A stage needs at least one worker and a queue capacity of at least one.");
+            }
+
+            this.name = name;
+            this.function = function;
+            this.workers = workers;
+            this.capacity = capacity;
+            this.queue = new ArrayBlockingQueue<Object>(capacity);
+        }
+
+        /**
+         * Clears the queue and statistics of the stage before a run.
+         */
+        void reset(){
+            queue = new ArrayBlockingQueue<Object>(capacity);
+            busyNanos.set(0);
+            processed.set(0);
+            running.set(workers);
+        }
+
+        /**
+         * Creates a worker of the stage.
+         *
+         * Each worker takes items from the input queue until it takes the end-of-stream
+         * marker, which it puts back for the other workers. The last worker to finish clears
+         * the marker and passes it on to the next stage.
+         *
+         * @param next The input queue of the next stage.
+         * @param failure The failure of the pipeline (if any).
+         * @return The worker.
+         */
+        Runnable worker(final BlockingQueue<Object> next, final AtomicReference<Throwable> failure){
+            final BlockingQueue<Object> input = queue;
+            return new Runnable() {
+                @SuppressWarnings("unchecked")
+                public void run() {
+                    try{
+                        while(true){
+                            Object item = take(input, failure);
+                            if(item == END){
+                                put(input, END, failure);
+                                if(running.decrementAndGet() == 0){
+                                    input.clear();
+                                    put(next, END, failure);
+                                }
+                                return;
+                            }
+
+                            long start = System.nanoTime();
+                            Object result = function.apply(item);
+                            busyNanos.addAndGet(System.nanoTime() - start);
+                            processed.incrementAndGet();
+
+                            if(result != null){
+                                put(next, result, failure);
+                            }
+                        }
+                    }
+                    catch(InterruptedException e){
+                        // the pipeline has failed or been shut down
+                    }
+                    catch(Throwable t){
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Returns the name of the stage.
+         */
+        public String getName(){
+            return name;
+        }
+
+        /**
+         * Returns the number of worker threads of the stage.
+         */
+        public int getWorkers(){
+            return workers;
+        }
+
+        /**
+         * Returns the number of items waiting in the input queue of the stage.
+         */
+        public int getQueueDepth(){
+            return queue.size();
+        }
+
+        /**
+         * Returns the capacity of the input queue of the stage.
+         */
+        public int getQueueCapacity(){
+            return capacity;
+        }
+
+        /**
+         * Returns the total time the workers of the stage have spent processing items, in
+         * milliseconds.
+         */
+        public long getBusyTime(){
+            return busyNanos.get() / 1000000;
+        }
+
+        /**
+         * Returns the number of items the stage has processed.
+         */
+        public long getProcessed(){
+            return processed.get();
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.data.dataset.Dataset;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageProvider;
+import org.openimaj.image.annotation.evaluation.datasets.Caltech101.Record;
+import org.openimaj.image.feature.dense.gradient.dsift.AbstractDenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.image.feature.dense.gradient.dsift.DenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.PyramidDenseSIFT;
+import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
+import org.openimaj.image.feature.local.aggregate.BlockSpatialAggregator;
+import org.openimaj.image.feature.local.aggregate.PyramidSpatialAggregator;
+import org.openimaj.math.geometry.shape.Rectangle;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.array.SparseBinSearchDoubleArray;
+import org.openimaj.util.array.SparseIntArray;
+import org.openimaj.util.pair.IntFloatPair;
+import org.openimaj.util.parallel.GlobalExecutorPool;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Thread-safe PHOW feature extractor.
+ *
+ * PHOWExtractor and PHOWExtractoPyramidSpatialAggregator share a single PyramidDenseSIFT,
+ * which keeps the keypoints of the last analysed image as internal state. They can therefore
+ * only ever be used by one thread at a time.
+ *
+ * This extractor instead keeps a pool of PyramidDenseSIFT (or MultiScaleDenseSIFT) engines
+ * (one per worker thread), all built from the same DenseSIFT configuration. The HardAssigner
+ * is only read during assignment, so a single instance is shared by every engine.
+ *
+ * The extractor can be used either as a normal FeatureExtractor (e.g., by a LiblinearAnnotator)
+ * or through extractFeatures(), which extracts the features of a whole dataset in parallel.
+ *
+ * The sparse() view of the extractor returns the same (L1 normalised) histograms as sparse
+ * vectors, without ever expanding them to the full vocabulary size x spatial bins.
+ *
+ * @author Charles Powell
+ */
+public class PooledPHOWExtractor implements FeatureExtractor<DoubleFV, Record<FImage>> {
+
+    /**
+     * The type of spatial aggregation applied to the bag of visual words.
+     */
+    public enum Aggregation {
+        /** BlockSpatialAggregator - blocks are given as [blocksX, blocksY]. */
+        BLOCK,
+        /** PyramidSpatialAggregator - blocks are given as the pyramid levels. */
+        PYRAMID
+    }
+
+    // member variables
+    final DenseSIFT dsift;
+    final MultiScaleDenseSIFT multiScale;
+    final float magFactor;
+    final int[] sizes;
+    final HardAssigner<byte[], float[], IntFloatPair> assigner;
+    final Aggregation aggregation;
+    final int[] blocks;
+    final ThreadLocal<AbstractDenseSIFT<FImage>> engines;
+    DecodedImageCache images;
+
+    /**
+     * Class constructor.
+     *
+     * @param dsift The DenseSIFT configuration each pooled engine is built from.
+     * @param magFactor The magnification factor of the PyramidDenseSIFT.
+     * @param sizes The bin sizes of the PyramidDenseSIFT.
+     * @param assigner The (shared) HardAssigner used to quantise the SIFT features.
+     * @param aggregation The type of spatial aggregation.
+     * @param blocks The spatial blocks (BLOCK) or pyramid levels (PYRAMID).
+     */
+    public PooledPHOWExtractor(DenseSIFT dsift, float magFactor, int[] sizes, HardAssigner<byte[], float[], IntFloatPair> assigner, Aggregation aggregation, int... blocks){
+        if(aggregation == Aggregation.BLOCK && blocks.length != 2){
+            throw new IllegalArgumentException("Block aggregation requires exactly two block counts [blocksX, blocksY].");
+        }
+
+        this.dsift = dsift;
+        this.multiScale = null;
+        this.magFactor = magFactor;
+        this.sizes = sizes.clone();
+        this.assigner = assigner;
+        this.aggregation = aggregation;
+        this.blocks = blocks.clone();
+
+        // PyramidDenseSIFT clones the given DenseSIFT for each level, so the shared
+        // configuration is never written to by the engines.
+        this.engines = createEngines();
+    }
+
+    /**
+     * Class constructor.
+     *
+     * Each pooled engine is a copy of the given MultiScaleDenseSIFT, which extracts the same
+     * features as a PyramidDenseSIFT of the same configuration in a fraction of the time.
+     *
+     * @param multiScale The MultiScaleDenseSIFT each pooled engine is copied from.
+     * @param assigner The (shared) HardAssigner used to quantise the SIFT features.
+     * @param aggregation The type of spatial aggregation.
+     * @param blocks The spatial blocks (BLOCK) or pyramid levels (PYRAMID).
+     */
+    public PooledPHOWExtractor(MultiScaleDenseSIFT multiScale, HardAssigner<byte[], float[], IntFloatPair> assigner, Aggregation aggregation, int... blocks){
+        if(aggregation == Aggregation.BLOCK && blocks.length != 2){
+            throw new IllegalArgumentException("Block aggregation requires exactly two block counts [blocksX, blocksY].");
+        }
+
+        this.dsift = null;
+        this.multiScale = multiScale;
+        this.magFactor = multiScale.magFactor;
+        this.sizes = multiScale.getSizes();
+        this.assigner = assigner;
+        this.aggregation = aggregation;
+        this.blocks = blocks.clone();
+        this.engines = createEngines();
+    }
+
+    /**
+     * Creates the pool of engines (one per thread).
+     *
+     * @return The pool of engines.
+     */
+    ThreadLocal<AbstractDenseSIFT<FImage>> createEngines(){
+        return new ThreadLocal<AbstractDenseSIFT<FImage>>(){
+            @Override
+            protected AbstractDenseSIFT<FImage> initialValue(){
+                return createEngine();
+            }
+        };
+    }
+
+    /**
+     * Creates a new dense SIFT engine with this extractor's configuration.
+     *
+     * @return A new MultiScaleDenseSIFT (if the extractor was given one) or PyramidDenseSIFT engine.
+     */
+    AbstractDenseSIFT<FImage> createEngine(){
+        if(multiScale != null){
+            return multiScale.clone();
+        }
+        return new PyramidDenseSIFT<FImage>(dsift, magFactor, sizes);
+    }
+
+    /**
+     * Sets the cache the images of the records are read through.
+     *
+     * @param images The cache (or null to decode every image).
+     * @return This extractor.
+     */
+    public PooledPHOWExtractor setImageCache(DecodedImageCache images){
+        this.images = images;
+        return this;
+    }
+
+    /**
+     * Returns the image of a record, through the image cache if one is set.
+     *
+     * @param object The record.
+     * @return The image.
+     */
+    <T extends Identifiable & ImageProvider<FImage>> FImage decode(T object){
+        return images != null ? images.getImage(object) : object.getImage();
+    }
+
+    /**
+     * Returns the HardAssigner shared by the pooled engines.
+     *
+     * @return The HardAssigner.
+     */
+    public HardAssigner<byte[], float[], IntFloatPair> getAssigner(){
+        return assigner;
+    }
+
+    /**
+     * Extracts a single feature from the image.
+     *
+     * Safe to call from any number of threads at once.
+     */
+    public DoubleFV extractFeature(Record<FImage> object) {
+        return extractHistogram(object).normaliseFV();
+    }
+
+    /**
+     * Extracts a single feature from the image as a sparse vector.
+     *
+     * The feature holds the same values as extractFeature(), but only stores the visual
+     * words that occur in the image.
+     *
+     * @param object The record to extract the feature of.
+     * @return The sparse feature.
+     */
+    public SparseDoubleFV extractSparseFeature(Record<FImage> object){
+        return normaliseSparse(extractHistogram(object));
+    }
+
+    /**
+     * Extracts a single sparse feature from an image that is not part of a dataset.
+     *
+     * @param image The image.
+     * @return The sparse feature.
+     */
+    public SparseDoubleFV extractSparseFeature(FImage image){
+        return normaliseSparse(extractHistogram(image));
+    }
+
+    /**
+     * Returns a view of this extractor that extracts sparse features.
+     *
+     * @return The sparse FeatureExtractor.
+     */
+    public FeatureExtractor<SparseDoubleFV, Record<FImage>> sparse(){
+        return new FeatureExtractor<SparseDoubleFV, Record<FImage>>() {
+            public SparseDoubleFV extractFeature(Record<FImage> object) {
+                return extractSparseFeature(object);
+            }
+        };
+    }
+
+    /**
+     * L1 normalises a histogram of visual words without densifying it.
+     *
+     * Equivalent to SparseIntFV.normaliseFV(), except the result is a sparse vector whose
+     * entries are sorted by index (as required by liblinear).
+     *
+     * @param histogram The histogram.
+     * @return The normalised sparse vector.
+     */
+    static SparseDoubleFV normaliseSparse(SparseIntFV histogram){
+        SparseIntArray counts = histogram.getVector();
+        int[] indices = counts.indices();
+        int[] values = counts.values();
+
+        // packing (index, count) into longs so a single primitive sort orders the entries by index
+        long[] entries = new long[indices.length];
+        int used = 0;
+        double sum = 0;
+        for(int i = 0; i < indices.length; i++){
+            if(values[i] != 0){
+                entries[used++] = ((long) indices[i] << 32) | (values[i] & 0xffffffffL);
+                sum += values[i];
+            }
+        }
+        Arrays.sort(entries, 0, used);
+
+        int[] keys = new int[used];
+        double[] normalised = new double[used];
+        for(int i = 0; i < used; i++){
+            keys[i] = (int) (entries[i] >>> 32);
+            normalised[i] = (int) entries[i] / sum;
+        }
+        return new SparseDoubleFV(new SparseBinSearchDoubleArray(counts.length, used, keys, normalised));
+    }
+
+    /**
+     * Extracts the un-normalised spatial histogram of visual words from the image.
+     *
+     * @param object The record to extract the histogram of.
+     * @return The spatial histogram of visual words.
+     */
+    SparseIntFV extractHistogram(Record<FImage> object){
+        return extractHistogram(decode(object));
+    }
+
+    /**
+     * Extracts the un-normalised spatial histogram of visual words from an image.
+     *
+     * @param image The image.
+     * @return The spatial histogram of visual words.
+     */
+    SparseIntFV extractHistogram(FImage image){
+        AbstractDenseSIFT<FImage> pdsift = engines.get();
+        pdsift.analyseImage(image);
+        return aggregate(pdsift.getByteKeypoints(0.015f), image.getBounds());
+    }
+
+    /**
+     * Quantises and spatially aggregates the given keypoints.
+     *
+     * @param keypoints The dense SIFT keypoints of the image.
+     * @param bounds The bounds of the image.
+     * @return The spatial histogram of visual words.
+     */
+    SparseIntFV aggregate(LocalFeatureList<ByteDSIFTKeypoint> keypoints, Rectangle bounds){
+        BagOfVisualWords<byte[]> bovw = new BagOfVisualWords<byte[]>(assigner);
+        if(aggregation == Aggregation.BLOCK){
+            return new BlockSpatialAggregator<byte[], SparseIntFV>(bovw, blocks[0], blocks[1]).aggregate(keypoints, bounds);
+        }
+        return new PyramidSpatialAggregator<byte[], SparseIntFV>(bovw, blocks).aggregate(keypoints, bounds);
+    }
+
+    /**
+     * Extracts the features of every record in the dataset in parallel, using the
+     * global OpenIMAJ thread pool (one thread per core).
+     *
+     * @param dataset The records to extract features from.
+     * @return The extracted features, keyed by record ID.
+     */
+    public Map<String, DoubleFV> extractFeatures(Dataset<Record<FImage>> dataset){
+        return extractFeatures(dataset, GlobalExecutorPool.getPool());
+    }
+
+    /**
+     * Extracts the features of every record in the dataset in parallel.
+     *
+     * @param dataset The records to extract features from.
+     * @param pool The pool of worker threads to extract the features with.
+     * @return The extracted features, keyed by record ID.
+     */
+    public Map<String, DoubleFV> extractFeatures(Dataset<Record<FImage>> dataset, ThreadPoolExecutor pool){
+        return extractAll(this, dataset, pool);
+    }
+
+    /**
+     * Extracts the sparse features of every record in the dataset in parallel, using the
+     * global OpenIMAJ thread pool (one thread per core).
+     *
+     * @param dataset The records to extract features from.
+     * @return The extracted sparse features, keyed by record ID.
+     */
+    public Map<String, SparseDoubleFV> extractSparseFeatures(Dataset<Record<FImage>> dataset){
+        return extractAll(sparse(), dataset, GlobalExecutorPool.getPool());
+    }
+
+    /**
+     * Extracts the features of every record in the dataset in parallel.
+     *
+     * The given extractor must be safe to call from multiple threads at once.
+     *
+     * @param extractor The extractor.
+     * @param dataset The records to extract features from.
+     * @param pool The pool of worker threads to extract the features with.
+     * @return The extracted features, keyed by record ID.
+     */
+    static <F> Map<String, F> extractAll(final FeatureExtractor<F, Record<FImage>> extractor, Dataset<Record<FImage>> dataset, ThreadPoolExecutor pool){
+        final Map<String, F> features = new ConcurrentHashMap<String, F>(dataset.numInstances());
+
+        Parallel.forEach(dataset, new Operation<Record<FImage>>() {
+            public void perform(Record<FImage> record) {
+                features.put(record.getID(), extractor.extractFeature(record));
+            }
+        }, pool);
+
+        return features;
+    }
+
+    /**
+     * Returns a FeatureExtractor that serves the given pre-extracted features, and falls back
+     * to this extractor for any record that was not pre-extracted.
+     *
+     * Used to hand the output of extractFeatures() to a LiblinearAnnotator or
+     * ClassificationEvaluator, which both extract features one record at a time.
+     *
+     * @param features The pre-extracted features, keyed by record ID.
+     * @return The FeatureExtractor.
+     */
+    public FeatureExtractor<DoubleFV, Record<FImage>> precomputed(Map<String, DoubleFV> features){
+        return precomputed(features, this);
+    }
+
+    /**
+     * Returns a FeatureExtractor that serves the given pre-extracted features, and falls back
+     * to the given extractor for any record that was not pre-extracted.
+     *
+     * @param features The pre-extracted features, keyed by record ID.
+     * @param fallback The extractor used for records that were not pre-extracted.
+     * @return The FeatureExtractor.
+     */
+    public static <F> FeatureExtractor<F, Record<FImage>> precomputed(final Map<String, F> features, final FeatureExtractor<F, Record<FImage>> fallback){
+        return new FeatureExtractor<F, Record<FImage>>() {
+            public F extractFeature(Record<FImage> object) {
+                F feature = features.get(object.getID());
+                return feature != null ? feature : fallback.extractFeature(object);
+            }
+        };
+    }
+}
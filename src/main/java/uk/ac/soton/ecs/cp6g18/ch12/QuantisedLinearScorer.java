@@ -0,0 +1,320 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.ml.annotation.ScoredAnnotation;
+import org.openimaj.util.array.SparseDoubleArray;
+
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.SolverType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact scorer exported from a trained liblinear model, with float or int8 weights.
+ *
+ * A liblinear model keeps its weights as doubles, and scoring a feature through liblinear means
+ * building a FeatureNode object for each of its non-zero entries. For the pyramid PHOW features
+ * of exercise 3 that is 101 classes x 12,600 features of doubles.
+ *
+ * The scorer instead keeps the weights in a single contiguous array, either as:
+ *
+ *      - FLOAT : floats (half the memory of the model).
+ *      - INT8  : bytes, scaled per class by the largest absolute weight of the class / 127
+ *                (an eighth of the memory of the model).
+ *
+ * The weights of every class for a feature are kept next to each other (feature 1 of every
+ * class, then feature 2 of every class, ...). With a class-major layout each class would have
+ * to gather its weights from the scattered non-zero entries of a sparse feature, whereas here
+ * each non-zero entry updates the scores of every class from one contiguous run of weights.
+ *
+ * In INT8 mode the feature is also quantised (to integers summing to just under
+ * Integer.MAX_VALUE / 127), so the scores are accumulated as integers and cannot overflow.
+ *
+ * The bias weight of each class is kept separately as a float. Sparse features are scored
+ * straight from their index and value arrays.
+ *
+ * The scores are approximations of the liblinear decision values, so the best class can
+ * (rarely) differ from liblinear's - agreement() measures how often it does.
+ *
+ * @author Charles Powell
+ */
+public class QuantisedLinearScorer<ANNOTATION> {
+
+    /**
+     * The precision of the weights.
+     */
+    public enum Precision {
+        /** 32-bit float weights. */
+        FLOAT,
+        /** 8-bit integer weights with a per class scale. */
+        INT8
+    }
+
+    // member variables
+    final Precision precision;
+    final int numClasses;
+    final int numFeatures;
+    final float[] floatWeights;
+    final byte[] byteWeights;
+    final float[] scales;
+    final float[] biases;
+    final List<ANNOTATION> annotations;
+
+    /**
+     * Class constructor.
+     *
+     * @param precision The precision of the weights.
+     * @param numClasses The number of classes.
+     * @param numFeatures The number of features.
+     * @param floatWeights The float weights, indexed by feature x numClasses + class (FLOAT only).
+     * @param byteWeights The int8 weights, indexed by feature x numClasses + class (INT8 only).
+     * @param scales The scale of the weights of each class (INT8 only).
+     * @param biases The bias term of each class.
+     * @param annotations The annotation of each class.
+     */
+    QuantisedLinearScorer(Precision precision, int numClasses, int numFeatures, float[] floatWeights, byte[] byteWeights, float[] scales, float[] biases, List<ANNOTATION> annotations){
+        this.precision = precision;
+        this.numClasses = numClasses;
+        this.numFeatures = numFeatures;
+        this.floatWeights = floatWeights;
+        this.byteWeights = byteWeights;
+        this.scales = scales;
+        this.biases = biases;
+        this.annotations = annotations;
+    }
+
+    /**
+     * Exports a trained SparseLiblinearAnnotator.
+     *
+     * @param annotator The trained annotator.
+     * @param precision The precision of the weights.
+     * @return The scorer.
+     */
+    public static <ANNOTATION> QuantisedLinearScorer<ANNOTATION> export(SparseLiblinearAnnotator<?, ANNOTATION> annotator, Precision precision){
+        Model model = annotator.getModel();
+        List<ANNOTATION> annotations = new ArrayList<ANNOTATION>();
+        for(int label : model.getLabels()){
+            annotations.add(annotator.getAnnotation(label));
+        }
+        return export(model, annotator.getSolverType(), annotations, precision);
+    }
+
+    /**
+     * Exports a trained liblinear model.
+     *
+     * @param model The model.
+     * @param solver The solver the model was trained with.
+     * @param annotations The annotation of each class, in the order of model.getLabels().
+     * @param precision The precision of the weights.
+     * @return The scorer.
+     */
+    public static <ANNOTATION> QuantisedLinearScorer<ANNOTATION> export(Model model, SolverType solver, List<ANNOTATION> annotations, Precision precision){
+        int numClasses = model.getNrClass();
+        int numFeatures = model.getNrFeature();
+        double[] w = model.getFeatureWeights();
+
+        // with two classes (and any solver but MCSVM_CS) liblinear only keeps the weights of the
+        // first class - the second is its negation
+        boolean mirrored = numClasses == 2 && solver != SolverType.MCSVM_CS;
+        int numWeights = mirrored ? 1 : numClasses;
+
+        double[][] weights = new double[numClasses][numFeatures];
+        float[] biases = new float[numClasses];
+        for(int c = 0; c < numClasses; c++){
+            int column = mirrored ? 0 : c;
+            double sign = mirrored && c == 1 ? -1 : 1;
+            for(int f = 0; f < numFeatures; f++){
+                weights[c][f] = sign * w[f * numWeights + column];
+            }
+            if(model.getBias() >= 0){
+                biases[c] = (float) (sign * w[numFeatures * numWeights + column] * model.getBias());
+            }
+        }
+
+        float[] floatWeights = null;
+        byte[] byteWeights = null;
+        float[] scales = null;
+
+        if(precision == Precision.FLOAT){
+            floatWeights = new float[numClasses * numFeatures];
+            for(int c = 0; c < numClasses; c++){
+                for(int f = 0; f < numFeatures; f++){
+                    floatWeights[f * numClasses + c] = (float) weights[c][f];
+                }
+            }
+        }
+        else{
+            byteWeights = new byte[numClasses * numFeatures];
+            scales = new float[numClasses];
+            for(int c = 0; c < numClasses; c++){
+                double max = 0;
+                for(int f = 0; f < numFeatures; f++){
+                    max = Math.max(max, Math.abs(weights[c][f]));
+                }
+
+                double scale = max > 0 ? max / 127 : 1;
+                scales[c] = (float) scale;
+                for(int f = 0; f < numFeatures; f++){
+                    byteWeights[f * numClasses + c] = (byte) Math.round(weights[c][f] / scale);
+                }
+            }
+        }
+
+        return new QuantisedLinearScorer<ANNOTATION>(precision, numClasses, numFeatures, floatWeights, byteWeights, scales, biases, new ArrayList<ANNOTATION>(annotations));
+    }
+
+    /**
+     * Scores a feature against every class.
+     *
+     * Entries of the feature past the number of features the model was trained on are ignored
+     * (as they are by liblinear).
+     *
+     * @param fv The feature.
+     * @return The score of each class (in the order of getAnnotation()).
+     */
+    public float[] score(SparseDoubleFV fv){
+        SparseDoubleArray vector = fv.getVector();
+        int[] indices = vector.indices();
+        double[] values = vector.values();
+        int used = vector.used();
+
+        // entries are sorted by index, so the ones past the model can be dropped up front
+        while(used > 0 && indices[used - 1] >= numFeatures){
+            used--;
+        }
+
+        float[] scores = new float[numClasses];
+        if(precision == Precision.FLOAT){
+            for(int i = 0; i < used; i++){
+                float value = (float) values[i];
+                int offset = indices[i] * numClasses;
+                for(int c = 0; c < numClasses; c++){
+                    scores[c] += floatWeights[offset + c] * value;
+                }
+            }
+            for(int c = 0; c < numClasses; c++){
+                scores[c] += biases[c];
+            }
+        }
+        else{
+            double norm = 0;
+            for(int i = 0; i < used; i++){
+                norm += Math.abs(values[i]);
+            }
+
+            // |sum of quantised values| <= quantum + used / 2, so |score| <= 127 x that fits an int
+            double quantum = Integer.MAX_VALUE / 127 - used;
+            double step = norm > 0 ? norm / quantum : 1;
+
+            int[] sums = new int[numClasses];
+            for(int i = 0; i < used; i++){
+                int value = (int) Math.round(values[i] / step);
+                int offset = indices[i] * numClasses;
+                for(int c = 0; c < numClasses; c++){
+                    sums[c] += byteWeights[offset + c] * value;
+                }
+            }
+            for(int c = 0; c < numClasses; c++){
+                scores[c] = (float) (sums[c] * step * scales[c]) + biases[c];
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Returns the index of the best scoring class for a feature.
+     *
+     * @param fv The feature.
+     * @return The index of the best class.
+     */
+    public int predict(SparseDoubleFV fv){
+        float[] scores = score(fv);
+        int best = 0;
+        for(int c = 1; c < numClasses; c++){
+            if(scores[c] > scores[best]){
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Annotates a feature, returning every annotation scored by its (approximate) decision value
+     * (best first).
+     *
+     * @param fv The feature.
+     * @return The scored annotations.
+     */
+    public List<ScoredAnnotation<ANNOTATION>> annotate(SparseDoubleFV fv){
+        float[] scores = score(fv);
+        List<ScoredAnnotation<ANNOTATION>> result = new ArrayList<ScoredAnnotation<ANNOTATION>>(numClasses);
+        for(int c = 0; c < numClasses; c++){
+            result.add(new ScoredAnnotation<ANNOTATION>(annotations.get(c), scores[c]));
+        }
+        Collections.sort(result, Collections.reverseOrder());
+        return result;
+    }
+
+    /**
+     * Returns the annotation of a class.
+     *
+     * @param c The index of the class.
+     * @return The annotation.
+     */
+    public ANNOTATION getAnnotation(int c){
+        return annotations.get(c);
+    }
+
+    /**
+     * Returns the precision of the weights.
+     *
+     * @return The precision.
+     */
+    public Precision getPrecision(){
+        return precision;
+    }
+
+    /**
+     * Returns the number of bytes taken by the weights, scales and biases.
+     *
+     * @return The number of bytes.
+     */
+    public long getWeightBytes(){
+        long bytes = 4L * biases.length;
+        if(precision == Precision.FLOAT){
+            bytes += 4L * floatWeights.length;
+        }
+        else{
+            bytes += byteWeights.length + 4L * scales.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Measures how often the best class of the scorer agrees with the best class of the
+     * annotator it was exported from.
+     *
+     * @param annotator The annotator.
+     * @param features The features to compare on.
+     * @return The fraction (0 - 1) of the features the best classes agree on.
+     */
+    public double agreement(SparseLiblinearAnnotator<?, ANNOTATION> annotator, Iterable<SparseDoubleFV> features){
+        int agreed = 0;
+        int total = 0;
+        for(SparseDoubleFV fv : features){
+            ANNOTATION expected = annotator.annotate(fv).get(0).annotation;
+            if(expected.equals(getAnnotation(predict(fv)))){
+                agreed++;
+            }
+            total++;
+        }
+        return total == 0 ? 1 : (double) agreed / total;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("QuantisedLinearScorer[precision=%s, classes=%d, features=%d, weights=%.2f MB]", precision, numClasses, numFeatures, getWeightBytes() / (1024.0 * 1024.0));
+    }
+}
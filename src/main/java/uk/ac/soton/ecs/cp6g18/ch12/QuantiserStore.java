@@ -0,0 +1,193 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+
+import uk.ac.soton.ecs.cp6g18.common.Fingerprint;
+import uk.ac.soton.ecs.cp6g18.common.StoreLock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+
+/**
+ * Content-addressed store of trained vocabularies (quantisers).
+ *
+ * Exercise 2 used to cache its HardAssigner at a fixed path, and reused it whatever
+ * configuration or training sample had produced it. This store instead files each vocabulary
+ * under a Fingerprint of everything that went into training it (the quantiser configuration
+ * and the IDs of the training images), so each configuration is trained exactly once and a
+ * stale vocabulary is never picked up by a different configuration.
+ *
+ * Published vocabularies are immutable:
+ *
+ *      - A vocabulary is written to a temporary file and atomically renamed into place, so
+ *        readers never see a partially written file.
+ *      - Any number of readers (threads or JVMs) can load a vocabulary at once, through a
+ *        read-only memory mapping.
+ *      - getOrTrain() holds an exclusive file lock while training, so concurrent threads or
+ *        runs with the same configuration train it once between them.
+ *
+ * File layout: [int MAGIC][int numClusters][int numDimensions][byte centroids...]
+ *
+ * @author Charles Powell
+ */
+public class QuantiserStore {
+
+    // constants
+    static final int MAGIC = 0x564f4342; // "VOCB"
+    static final String EXTENSION = ".vocab";
+
+    // member variables
+    final File root;
+
+    /**
+     * Class constructor.
+     *
+     * @param root The directory of the store.
+     */
+    public QuantiserStore(File root){
+        this.root = root;
+        root.mkdirs();
+    }
+
+    /**
+     * Returns the file a vocabulary with the given fingerprint is published to.
+     *
+     * @param fingerprint The fingerprint.
+     * @return The file.
+     */
+    public File getFile(Fingerprint fingerprint){
+        return new File(root, fingerprint.toHex() + EXTENSION);
+    }
+
+    /**
+     * Checks if a vocabulary with the given fingerprint has been published.
+     *
+     * @param fingerprint The fingerprint.
+     * @return True if the vocabulary exists.
+     */
+    public boolean contains(Fingerprint fingerprint){
+        return getFile(fingerprint).exists();
+    }
+
+    /**
+     * Loads the vocabulary with the given fingerprint.
+     *
+     * @param fingerprint The fingerprint.
+     * @return The vocabulary, or null if it has not been published.
+     * @throws IOException If the vocabulary could not be read.
+     */
+    public ByteCentroidsResult load(Fingerprint fingerprint) throws IOException {
+        File file = getFile(fingerprint);
+        if(!file.exists()){
+            return null;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try{
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if(buffer.getInt() != MAGIC){
+                throw new IOException("Not a vocabulary: " + file);
+            }
+            int numClusters = buffer.getInt();
+            int numDimensions = buffer.getInt();
+
+            ByteCentroidsResult result = new ByteCentroidsResult();
+            result.centroids = new byte[numClusters][numDimensions];
+            for(byte[] centroid : result.centroids){
+                buffer.get(centroid);
+            }
+            return result;
+        }
+        finally{
+            raf.close();
+        }
+    }
+
+    /**
+     * Publishes a vocabulary under the given fingerprint.
+     *
+     * If a vocabulary with the same fingerprint has already been published, it is kept (both
+     * were trained from the same inputs).
+     *
+     * @param fingerprint The fingerprint.
+     * @param vocabulary The vocabulary.
+     * @throws IOException If the vocabulary could not be written.
+     */
+    public void publish(Fingerprint fingerprint, ByteCentroidsResult vocabulary) throws IOException {
+        byte[][] centroids = vocabulary.centroids;
+        int numDimensions = centroids.length == 0 ? 0 : centroids[0].length;
+
+        File tmp = File.createTempFile(fingerprint.toHex(), ".tmp", root);
+        try{
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try{
+                FileChannel channel = raf.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(12 + centroids.length * numDimensions);
+                buffer.putInt(MAGIC);
+                buffer.putInt(centroids.length);
+                buffer.putInt(numDimensions);
+                for(byte[] centroid : centroids){
+                    buffer.put(centroid);
+                }
+                buffer.flip();
+                while(buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            finally{
+                raf.close();
+            }
+
+            try{
+                Files.move(tmp.toPath(), getFile(fingerprint).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch(FileAlreadyExistsException e){
+                // already published by another writer
+            }
+            catch(AtomicMoveNotSupportedException e){
+                throw new IOException("The store directory does not support atomic renames: " + root, e);
+            }
+        }
+        finally{
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Loads the vocabulary with the given fingerprint, training and publishing it first if it
+     * does not yet exist.
+     *
+     * Training is guarded by an exclusive lock on a per-fingerprint lock file, so if several
+     * threads or processes ask for the same missing vocabulary, one trains it and the rest
+     * load it.
+     *
+     * @param fingerprint The fingerprint.
+     * @param trainer Trains the vocabulary.
+     * @return The vocabulary.
+     * @throws Exception If the vocabulary could not be loaded or trained.
+     */
+    public ByteCentroidsResult getOrTrain(final Fingerprint fingerprint, final Callable<ByteCentroidsResult> trainer) throws Exception {
+        return StoreLock.getOrBuild(new File(root, fingerprint.toHex() + ".lock"), new Callable<ByteCentroidsResult>() {
+            public ByteCentroidsResult call() throws IOException {
+                return load(fingerprint);
+            }
+        }, new Callable<ByteCentroidsResult>() {
+            public ByteCentroidsResult call() throws Exception {
+                ByteCentroidsResult vocabulary = trainer.call();
+                publish(fingerprint, vocabulary);
+                return vocabulary;
+            }
+        });
+    }
+}
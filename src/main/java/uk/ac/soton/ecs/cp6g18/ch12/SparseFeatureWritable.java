@@ -0,0 +1,138 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.util.array.SparseBinSearchDoubleArray;
+import org.openimaj.util.array.SparseDoubleArray;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Hadoop Writable holding a sparse feature (such as a PHOW histogram).
+ *
+ * Only the non-zero entries are written, as the gaps between their (ascending) indices and
+ * their values:
+ *
+ *      [vint length][vint used][vint gap, double value]...
+ *
+ * A PHOW histogram has a few hundred non-zero entries out of tens of thousands, so the gaps
+ * mostly fit in a single byte. The values are written at full precision, so a feature read
+ * back is identical to the one written.
+ *
+ * Features are read back as SparseBinSearchDoubleArray vectors (sorted by index), as
+ * PooledPHOWExtractor.extractSparseFeature() produces and SparseLiblinearAnnotator expects.
+ *
+ * @author Charles Powell
+ */
+public class SparseFeatureWritable implements Writable {
+
+    // member variables
+    SparseDoubleFV feature;
+
+    /**
+     * Class constructor (for Hadoop, which fills the Writable with readFields()).
+     */
+    public SparseFeatureWritable(){
+        this.feature = new SparseDoubleFV(0);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param feature The feature.
+     */
+    public SparseFeatureWritable(SparseDoubleFV feature){
+        this.feature = feature;
+    }
+
+    /**
+     * Returns the feature.
+     *
+     * @return The feature.
+     */
+    public SparseDoubleFV get(){
+        return feature;
+    }
+
+    /**
+     * Sets the feature.
+     *
+     * @param feature The feature.
+     */
+    public void set(SparseDoubleFV feature){
+        this.feature = feature;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        SparseDoubleArray vector = feature.getVector();
+        int used = vector.used();
+        int[] indices = vector.indices();
+        double[] values = vector.values();
+
+        if(!isSorted(indices, used)){
+            long[] order = new long[used];
+            for(int i = 0; i < used; i++){
+                order[i] = ((long) indices[i] << 32) | i;
+            }
+            Arrays.sort(order);
+
+            int[] sortedIndices = new int[used];
+            double[] sortedValues = new double[used];
+            for(int i = 0; i < used; i++){
+                sortedIndices[i] = (int) (order[i] >>> 32);
+                sortedValues[i] = values[(int) order[i]];
+            }
+            indices = sortedIndices;
+            values = sortedValues;
+        }
+
+        WritableUtils.writeVInt(out, vector.length);
+        WritableUtils.writeVInt(out, used);
+        int previous = 0;
+        for(int i = 0; i < used; i++){
+            WritableUtils.writeVInt(out, indices[i] - previous);
+            out.writeDouble(values[i]);
+            previous = indices[i];
+        }
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        int length = WritableUtils.readVInt(in);
+        int used = WritableUtils.readVInt(in);
+
+        int[] indices = new int[used];
+        double[] values = new double[used];
+        int previous = 0;
+        for(int i = 0; i < used; i++){
+            indices[i] = previous += WritableUtils.readVInt(in);
+            values[i] = in.readDouble();
+        }
+
+        feature = new SparseDoubleFV(new SparseBinSearchDoubleArray(length, used, indices, values));
+    }
+
+    /**
+     * Checks whether the first entries of an array of indices are in ascending order.
+     *
+     * @param indices The indices.
+     * @param used The number of entries to check.
+     * @return True if the entries are in ascending order.
+     */
+    static boolean isSorted(int[] indices, int used){
+        for(int i = 1; i < used; i++){
+            if(indices[i] < indices[i - 1]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString(){
+        return "SparseFeatureWritable[length=" + feature.length() + ", used=" + feature.getVector().used() + "]";
+    }
+}
@@ -0,0 +1,250 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.ml.kernel.HomogeneousKernelMap;
+import org.openimaj.util.array.SparseBinSearchDoubleArray;
+import org.openimaj.util.array.SparseDoubleArray;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.GlobalExecutorPool;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Batched HomogeneousKernelMap over sparse feature vectors.
+ *
+ * HomogeneousKernelMap.createWrappedExtractor() maps every element of a dense feature vector,
+ * and returns a dense vector of (2 x order + 1) times the dimensionality. A homogeneous kernel
+ * maps 0 to 0 though, so only the non-zero entries of a feature need mapping, and the result
+ * can stay sparse.
+ *
+ * This class maps blocks of sparse features at a time. The entries of an L1 normalised
+ * histogram only take a few distinct values (count / total for the few small counts that
+ * occur), so the map of each distinct value is computed once per block and kept in a lookup
+ * table, and every other entry with that value is a table lookup.
+ *
+ * The mapped features hold the same values as those of the wrapped HomogeneousKernelMap, at the
+ * same indices (input dimension x (2 x order + 1) + component), so a linear classifier trained
+ * on them is the same as one trained on the dense features, while costing about as much as the
+ * un-mapped (linear) features.
+ *
+ * @author Charles Powell
+ */
+public class SparseKernelMap {
+
+    // constants
+    static final int DEFAULT_BLOCK_SIZE = 256;
+
+    // member variables
+    final HomogeneousKernelMap hkm;
+    final int width;
+
+    /**
+     * Class constructor.
+     *
+     * @param hkm The kernel map.
+     */
+    public SparseKernelMap(HomogeneousKernelMap hkm){
+        this.hkm = hkm;
+
+        // the kernel map does not expose its order, but maps a single value to 2 x order + 1
+        this.width = hkm.evaluate(new DoubleFV(new double[]{ 1 })).length();
+    }
+
+    /**
+     * Returns the number of components each input dimension is mapped to (2 x order + 1).
+     *
+     * @return The number of components.
+     */
+    public int getWidth(){
+        return width;
+    }
+
+    /**
+     * Maps a single feature.
+     *
+     * @param feature The feature.
+     * @return The mapped feature.
+     */
+    public SparseDoubleFV map(SparseDoubleFV feature){
+        return map(new SparseDoubleFV[]{ feature })[0];
+    }
+
+    /**
+     * Maps a block of features, sharing one lookup table of mapped values between them.
+     *
+     * The entries of each feature must be in index order (as they are in the features of
+     * PooledPHOWExtractor.sparse()).
+     *
+     * @param features The features.
+     * @return The mapped features (in the same order).
+     */
+    public SparseDoubleFV[] map(SparseDoubleFV[] features){
+        int entries = 0;
+        for(SparseDoubleFV feature : features){
+            entries += feature.getVector().used();
+        }
+
+        ValueTable table = new ValueTable(entries);
+        SparseDoubleFV[] mapped = new SparseDoubleFV[features.length];
+
+        for(int f = 0; f < features.length; f++){
+            SparseDoubleArray vector = features[f].getVector();
+            int[] indices = vector.indices();
+            double[] values = vector.values();
+
+            int[] keys = new int[values.length * width];
+            double[] components = new double[values.length * width];
+            int used = 0;
+            for(int i = 0; i < values.length; i++){
+                if(values[i] == 0){
+                    continue;
+                }
+
+                int row = table.lookup(values[i]);
+                for(int j = 0; j < width; j++){
+                    double component = table.components[row + j];
+                    if(component != 0){
+                        keys[used] = indices[i] * width + j;
+                        components[used] = component;
+                        used++;
+                    }
+                }
+            }
+
+            mapped[f] = new SparseDoubleFV(new SparseBinSearchDoubleArray(vector.length * width, used, keys, components));
+        }
+        return mapped;
+    }
+
+    /**
+     * Maps every feature of a map, in blocks, in parallel, using the global OpenIMAJ thread
+     * pool.
+     *
+     * @param features The features, keyed by record ID.
+     * @return The mapped features, keyed by record ID.
+     */
+    public Map<String, SparseDoubleFV> mapAll(Map<String, SparseDoubleFV> features){
+        return mapAll(features, DEFAULT_BLOCK_SIZE, GlobalExecutorPool.getPool());
+    }
+
+    /**
+     * Maps every feature of a map, in blocks, in parallel.
+     *
+     * @param features The features, keyed by record ID.
+     * @param blockSize The number of features in each block.
+     * @param pool The pool of worker threads.
+     * @return The mapped features, keyed by record ID.
+     */
+    public Map<String, SparseDoubleFV> mapAll(Map<String, SparseDoubleFV> features, int blockSize, ThreadPoolExecutor pool){
+        List<List<String>> blocks = new ArrayList<List<String>>();
+        List<String> block = null;
+        for(String id : features.keySet()){
+            if(block == null || block.size() == blockSize){
+                block = new ArrayList<String>(blockSize);
+                blocks.add(block);
+            }
+            block.add(id);
+        }
+
+        final Map<String, SparseDoubleFV> inputs = features;
+        final Map<String, SparseDoubleFV> mapped = new ConcurrentHashMap<String, SparseDoubleFV>(features.size());
+
+        Parallel.forEach(blocks, new Operation<List<String>>() {
+            public void perform(List<String> ids) {
+                SparseDoubleFV[] block = new SparseDoubleFV[ids.size()];
+                for(int i = 0; i < block.length; i++){
+                    block[i] = inputs.get(ids.get(i));
+                }
+
+                SparseDoubleFV[] results = map(block);
+                for(int i = 0; i < results.length; i++){
+                    mapped.put(ids.get(i), results[i]);
+                }
+            }
+        }, pool);
+
+        return mapped;
+    }
+
+    /**
+     * Returns a FeatureExtractor that maps the features of the given extractor one at a time.
+     *
+     * Used for records whose features were not mapped up front.
+     *
+     * @param extractor The sparse feature extractor.
+     * @return The mapped feature extractor.
+     */
+    public <T> FeatureExtractor<SparseDoubleFV, T> createWrappedExtractor(final FeatureExtractor<SparseDoubleFV, T> extractor){
+        return new FeatureExtractor<SparseDoubleFV, T>() {
+            public SparseDoubleFV extractFeature(T object) {
+                return map(extractor.extractFeature(object));
+            }
+        };
+    }
+
+    /**
+     * Lookup table from an input value to its mapped components.
+     *
+     * An open-addressed hash table keyed on the bits of the value, sized for the number of
+     * entries in the block so it never needs to grow.
+     */
+    class ValueTable {
+
+        // member variables
+        final long[] keys;
+        final int[] rows;
+        final int mask;
+        double[] components;
+        int size;
+
+        /**
+         * Class constructor.
+         *
+         * @param capacity The largest number of distinct values the table will hold.
+         */
+        ValueTable(int capacity){
+            int slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+            this.keys = new long[slots];
+            this.rows = new int[slots];
+            this.mask = slots - 1;
+            this.components = new double[Math.max(16, Math.min(capacity, 1024)) * width];
+            Arrays.fill(rows, -1);
+        }
+
+        /**
+         * Returns the offset of the mapped components of a value in the components array,
+         * mapping the value if it is not in the table yet.
+         *
+         * @param value The value.
+         * @return The offset of its components.
+         */
+        int lookup(double value){
+            long bits = Double.doubleToLongBits(value);
+            int slot = (int) (bits ^ (bits >>> 32)) * 0x9e3779b9 & mask;
+            while(rows[slot] != -1){
+                if(keys[slot] == bits){
+                    return rows[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            int row = size * width;
+            if(row + width > components.length){
+                components = Arrays.copyOf(components, components.length * 2);
+            }
+            hkm.evaluate(components, 1, row, value);
+            keys[slot] = bits;
+            rows[slot] = row;
+            size++;
+            return row;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.experiment.evaluation.classification.BasicClassificationResult;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.ml.annotation.Annotated;
+import org.openimaj.ml.annotation.BatchAnnotator;
+import org.openimaj.ml.annotation.ScoredAnnotation;
+import org.openimaj.util.array.SparseDoubleArray;
+
+import de.bwaldvogel.liblinear.Feature;
+import de.bwaldvogel.liblinear.FeatureNode;
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.Parameter;
+import de.bwaldvogel.liblinear.Problem;
+import de.bwaldvogel.liblinear.SolverType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Multiclass liblinear annotator over sparse feature vectors.
+ *
+ * Works in the same way as a LiblinearAnnotator in MULTICLASS mode, except that the features are
+ * SparseDoubleFVs which are turned straight into liblinear FeatureNode arrays holding only the
+ * non-zero entries. Training memory and scoring cost therefore depend on the number of visual
+ * words that occur in each image, rather than on vocabulary size x spatial bins.
+ *
+ * Unlike LiblinearAnnotator, the trained liblinear Model is exposed through getModel().
+ *
+ * @author Charles Powell
+ */
+public class SparseLiblinearAnnotator<OBJECT, ANNOTATION> extends BatchAnnotator<OBJECT, ANNOTATION> {
+
+    // member variables
+    final FeatureExtractor<SparseDoubleFV, OBJECT> extractor;
+    final Parameter parameter;
+    final double bias;
+    List<ANNOTATION> annotations = new ArrayList<ANNOTATION>();
+    Model model;
+
+    /**
+     * Class constructor.
+     *
+     * @param extractor The sparse feature extractor.
+     * @param solver The liblinear solver.
+     * @param C The cost of constraints violation.
+     * @param eps The tolerance of the termination criterion.
+     */
+    public SparseLiblinearAnnotator(FeatureExtractor<SparseDoubleFV, OBJECT> extractor, SolverType solver, double C, double eps){
+        this(extractor, solver, C, eps, -1);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param extractor The sparse feature extractor.
+     * @param solver The liblinear solver.
+     * @param C The cost of constraints violation.
+     * @param eps The tolerance of the termination criterion.
+     * @param bias The bias term (a negative value disables the bias, as in liblinear).
+     */
+    public SparseLiblinearAnnotator(FeatureExtractor<SparseDoubleFV, OBJECT> extractor, SolverType solver, double C, double eps, double bias){
+        this.extractor = extractor;
+        this.parameter = new Parameter(solver, C, eps);
+        this.bias = bias;
+    }
+
+    /**
+     * Class constructor for an already trained annotator (e.g., one read back from disk).
+     *
+     * @param extractor The sparse feature extractor.
+     * @param solver The liblinear solver the model was trained with.
+     * @param model The trained liblinear model.
+     * @param annotations The annotations, indexed by liblinear label.
+     */
+    public SparseLiblinearAnnotator(FeatureExtractor<SparseDoubleFV, OBJECT> extractor, SolverType solver, Model model, List<ANNOTATION> annotations){
+        this.extractor = extractor;
+        this.parameter = new Parameter(solver, 1, 0.01);
+        this.bias = model.getBias();
+        this.model = model;
+        this.annotations = new ArrayList<ANNOTATION>(annotations);
+    }
+
+    /**
+     * Trains the annotator.
+     *
+     * Each object must have exactly one annotation.
+     */
+    public void train(List<? extends Annotated<OBJECT, ANNOTATION>> data) {
+        List<ANNOTATION> annotations = new ArrayList<ANNOTATION>();
+        Map<ANNOTATION, Integer> labels = new HashMap<ANNOTATION, Integer>();
+        Feature[][] x = new Feature[data.size()][];
+        double[] y = new double[data.size()];
+        int numFeatures = 0;
+
+        for(int i = 0; i < data.size(); i++){
+            Annotated<OBJECT, ANNOTATION> item = data.get(i);
+            ANNOTATION annotation = singleAnnotation(item.getAnnotations());
+
+            Integer label = labels.get(annotation);
+            if(label == null){
+                label = annotations.size();
+                labels.put(annotation, label);
+                annotations.add(annotation);
+            }
+
+            SparseDoubleFV fv = extractor.extractFeature(item.getObject());
+            numFeatures = Math.max(numFeatures, fv.length());
+            x[i] = toFeatureNodes(fv, -1);
+            y[i] = label;
+        }
+
+        // the bias node sits one past the last feature
+        if(bias >= 0){
+            for(int i = 0; i < x.length; i++){
+                x[i] = appendBias(x[i], numFeatures, bias);
+            }
+        }
+
+        Problem problem = new Problem();
+        problem.l = data.size();
+        problem.n = numFeatures + (bias >= 0 ? 1 : 0);
+        problem.x = x;
+        problem.y = y;
+        problem.bias = bias;
+
+        this.model = Linear.train(problem, parameter);
+        this.annotations = annotations;
+    }
+
+    /**
+     * Returns the single annotation of a training item.
+     *
+     * @param annotations The annotations of the item.
+     * @return The annotation.
+     */
+    ANNOTATION singleAnnotation(Collection<ANNOTATION> annotations){
+        if(annotations.size() != 1){
+            throw new IllegalArgumentException("A multiclass annotator requires exactly one annotation per object.");
+        }
+        return annotations.iterator().next();
+    }
+
+    /**
+     * Converts a sparse feature into a liblinear FeatureNode array.
+     *
+     * Only the non-zero entries are converted. Liblinear indices start at 1.
+     *
+     * @param fv The feature (with entries sorted by index).
+     * @param bias The bias term, or a negative value for no bias.
+     * @return The FeatureNode array.
+     */
+    public static Feature[] toFeatureNodes(SparseDoubleFV fv, double bias){
+        SparseDoubleArray vector = fv.getVector();
+        int[] indices = vector.indices();
+        double[] values = vector.values();
+        int used = vector.used();
+
+        Feature[] nodes = new Feature[used];
+        for(int i = 0; i < used; i++){
+            nodes[i] = new FeatureNode(indices[i] + 1, values[i]);
+        }
+        return bias >= 0 ? appendBias(nodes, fv.length(), bias) : nodes;
+    }
+
+    /**
+     * Appends the bias node to a FeatureNode array.
+     *
+     * @param nodes The FeatureNode array.
+     * @param numFeatures The number of features (excluding the bias).
+     * @param bias The bias term.
+     * @return The extended FeatureNode array.
+     */
+    static Feature[] appendBias(Feature[] nodes, int numFeatures, double bias){
+        Feature[] biased = new Feature[nodes.length + 1];
+        System.arraycopy(nodes, 0, biased, 0, nodes.length);
+        biased[nodes.length] = new FeatureNode(numFeatures + 1, bias);
+        return biased;
+    }
+
+    /**
+     * Returns the set of annotations the annotator was trained on.
+     */
+    public Set<ANNOTATION> getAnnotations() {
+        return new HashSet<ANNOTATION>(annotations);
+    }
+
+    /**
+     * Returns the annotation with the given liblinear label.
+     *
+     * @param label The label.
+     * @return The annotation.
+     */
+    public ANNOTATION getAnnotation(int label){
+        return annotations.get(label);
+    }
+
+    /**
+     * Returns the liblinear solver of the annotator.
+     *
+     * @return The solver.
+     */
+    public SolverType getSolverType(){
+        return parameter.getSolverType();
+    }
+
+    /**
+     * Returns the trained liblinear model.
+     *
+     * @return The model (null if the annotator is untrained).
+     */
+    public Model getModel(){
+        return model;
+    }
+
+    /**
+     * Returns the number of features (excluding the bias) the model was trained on.
+     *
+     * @return The number of features.
+     */
+    public int getNumFeatures(){
+        return model.getNrFeature();
+    }
+
+    /**
+     * Classifies the object.
+     *
+     * BasicClassificationResult only predicts classes with a confidence above its threshold
+     * (0 by default), but one-vs-rest decision values are often all negative. The threshold
+     * is therefore removed, so every annotation is predicted, best first.
+     */
+    @Override
+    public ClassificationResult<ANNOTATION> classify(OBJECT object) {
+        BasicClassificationResult<ANNOTATION> result = new BasicClassificationResult<ANNOTATION>(Double.NEGATIVE_INFINITY);
+        for(ScoredAnnotation<ANNOTATION> annotation : annotate(object)){
+            result.put(annotation.annotation, annotation.confidence);
+        }
+        return result;
+    }
+
+    /**
+     * Annotates the object, returning every annotation scored by its decision value
+     * (best first).
+     */
+    public List<ScoredAnnotation<ANNOTATION>> annotate(OBJECT object) {
+        return annotate(extractor.extractFeature(object));
+    }
+
+    /**
+     * Annotates an already extracted feature, returning every annotation scored by its
+     * decision value (best first).
+     *
+     * @param fv The feature.
+     * @return The scored annotations.
+     */
+    public List<ScoredAnnotation<ANNOTATION>> annotate(SparseDoubleFV fv){
+        double[] scores = decisionValues(fv);
+
+        int[] labels = model.getLabels();
+        List<ScoredAnnotation<ANNOTATION>> result = new ArrayList<ScoredAnnotation<ANNOTATION>>(labels.length);
+        for(int i = 0; i < labels.length; i++){
+            result.add(new ScoredAnnotation<ANNOTATION>(annotations.get(labels[i]), (float) scores[i]));
+        }
+        Collections.sort(result, Collections.reverseOrder());
+        return result;
+    }
+
+    /**
+     * Computes the decision value of each class (in model label order) for a feature.
+     *
+     * With two classes liblinear only computes a single decision value (for the first label),
+     * so it is mirrored to give a value per class.
+     *
+     * @param fv The feature.
+     * @return The decision values.
+     */
+    public double[] decisionValues(SparseDoubleFV fv){
+        int numClasses = model.getNrClass();
+        double[] values = new double[numClasses];
+        Linear.predictValues(model, toFeatureNodes(fv, model.getBias()), values);
+
+        if(numClasses == 2 && parameter.getSolverType() != SolverType.MCSVM_CS){
+            values[1] = -values[0];
+        }
+        return values;
+    }
+}
@@ -0,0 +1,183 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.experiment.evaluation.classification.Classifier;
+import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMResult;
+import org.openimaj.util.pair.IndependentPair;
+import org.openimaj.util.parallel.GlobalExecutorPool;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parallel, streaming alternative to a ClassificationEvaluator with a CMAnalyser.
+ *
+ * ClassificationEvaluator.evaluate() classifies the test set one object at a time and keeps
+ * every result in a map, which is only turned into a confusion matrix by analyse() once the
+ * whole test set has been classified.
+ *
+ * This evaluator instead has a fixed number of workers pull the test objects from a shared
+ * cursor over the dataset and fold each result straight into a ConcurrentConfusionMatrix, so
+ * no results are kept and memory use does not grow with the size of the test set. While it
+ * runs, it prints the number of objects classified, the throughput and the accuracy so far.
+ *
+ * Results are added in the same way as CMAnalyser.Strategy.SINGLE: the actual class is the
+ * group of the object, and the predicted class is the first predicted class (or null if there
+ * is none).
+ *
+ * @author Charles Powell
+ */
+public class StreamingClassificationEvaluator<CLASS, OBJECT> {
+
+    // member variables
+    final Classifier<CLASS, OBJECT> classifier;
+    final GroupedDataset<CLASS, ? extends ListDataset<OBJECT>, OBJECT> dataset;
+    final long reportInterval;
+    final ThreadPoolExecutor pool;
+    final ConcurrentConfusionMatrix<CLASS> matrix = new ConcurrentConfusionMatrix<CLASS>();
+
+    /**
+     * Class constructor.
+     *
+     * Reports progress every 10 seconds and uses the global OpenIMAJ thread pool.
+     *
+     * @param classifier The classifier.
+     * @param dataset The test dataset (grouped by actual class).
+     */
+    public StreamingClassificationEvaluator(Classifier<CLASS, OBJECT> classifier, GroupedDataset<CLASS, ? extends ListDataset<OBJECT>, OBJECT> dataset){
+        this(classifier, dataset, 10000, GlobalExecutorPool.getPool());
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param classifier The classifier.
+     * @param dataset The test dataset (grouped by actual class).
+     * @param reportInterval The time between progress reports in milliseconds (0 for no reports).
+     * @param pool The pool of worker threads.
+     */
+    public StreamingClassificationEvaluator(Classifier<CLASS, OBJECT> classifier, GroupedDataset<CLASS, ? extends ListDataset<OBJECT>, OBJECT> dataset, long reportInterval, ThreadPoolExecutor pool){
+        this.classifier = classifier;
+        this.dataset = dataset;
+        this.reportInterval = reportInterval;
+        this.pool = pool;
+    }
+
+    /**
+     * Classifies every object of the test dataset, and returns the resulting confusion matrix.
+     *
+     * @return The confusion matrix.
+     * @throws Exception If an object could not be classified.
+     */
+    public CMResult<CLASS> evaluate() throws Exception {
+        final Cursor cursor = new Cursor();
+        final long total = dataset.numInstances();
+        final long start = System.currentTimeMillis();
+        final AtomicLong lastReport = new AtomicLong(start);
+
+        int numWorkers = Math.max(1, pool.getCorePoolSize());
+        List<Future<?>> workers = new ArrayList<Future<?>>(numWorkers);
+        for(int i = 0; i < numWorkers; i++){
+            workers.add(pool.submit(new Runnable() {
+                public void run() {
+                    IndependentPair<CLASS, OBJECT> next;
+                    while((next = cursor.next()) != null){
+                        ClassificationResult<CLASS> result = classifier.classify(next.getSecondObject());
+                        Set<CLASS> predicted = result.getPredictedClasses();
+                        matrix.add(next.getFirstObject(), predicted.isEmpty() ? null : predicted.iterator().next());
+
+                        long now = System.currentTimeMillis();
+                        long last = lastReport.get();
+                        if(reportInterval > 0 && now - last >= reportInterval && lastReport.compareAndSet(last, now)){
+                            report(total, start, now);
+                        }
+                    }
+                }
+            }));
+        }
+
+        try{
+            for(Future<?> worker : workers){
+                worker.get();
+            }
+        }
+        finally{
+            // stopping the remaining workers if one of them failed
+            cursor.close();
+        }
+
+        if(reportInterval > 0){
+            report(total, start, System.currentTimeMillis());
+        }
+        return matrix.toCMResult();
+    }
+
+    /**
+     * Prints the progress of the evaluation.
+     *
+     * @param total The number of objects in the test dataset.
+     * @param start The start time of the evaluation.
+     * @param now The current time.
+     */
+    void report(long total, long start, long now){
+        long done = matrix.getTotalCount();
+        double seconds = Math.max(1, now - start) / 1000.0;
+        System.out.println(String.format("Classified %d / %d (%.1f%%), %.1f objects/s, accuracy so far %.3f",
+                                          done,
+                                          total,
+                                          total == 0 ? 100.0 : 100.0 * done / total,
+                                          done / seconds,
+                                          matrix.getAccuracy()));
+    }
+
+    /**
+     * Returns the confusion matrix, which is filled in as the evaluation runs.
+     *
+     * @return The confusion matrix.
+     */
+    public ConcurrentConfusionMatrix<CLASS> getMatrix(){
+        return matrix;
+    }
+
+    /**
+     * Shared cursor over the (class, object) pairs of the test dataset.
+     */
+    class Cursor {
+
+        // member variables
+        final Iterator<CLASS> groups = dataset.getGroups().iterator();
+        CLASS group;
+        Iterator<OBJECT> instances;
+        boolean closed;
+
+        /**
+         * Returns the next (class, object) pair.
+         *
+         * @return The pair, or null if there are none left.
+         */
+        synchronized IndependentPair<CLASS, OBJECT> next(){
+            while(!closed && (instances == null || !instances.hasNext())){
+                if(!groups.hasNext()){
+                    return null;
+                }
+                group = groups.next();
+                instances = dataset.getInstances(group).iterator();
+            }
+            return closed ? null : IndependentPair.pair(group, instances.next());
+        }
+
+        /**
+         * Stops the cursor, so next() returns null from now on.
+         */
+        synchronized void close(){
+            closed = true;
+        }
+    }
+}
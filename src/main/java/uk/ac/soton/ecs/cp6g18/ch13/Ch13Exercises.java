@@ -2,8 +2,6 @@ package uk.ac.soton.ecs.cp6g18.ch13;
 
 import org.openimaj.data.dataset.GroupedDataset;
 import org.openimaj.data.dataset.ListDataset;
-import org.openimaj.data.dataset.VFSGroupDataset;
-import org.openimaj.experiment.dataset.split.GroupedRandomSplitter;
 import org.openimaj.experiment.dataset.util.DatasetAdaptors;
 import org.openimaj.feature.DoubleFV;
 import org.openimaj.feature.DoubleFVComparison;
@@ -11,7 +9,15 @@ import org.openimaj.image.DisplayUtilities;
 import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
 import org.openimaj.image.model.EigenImages;
+import org.openimaj.util.pair.ObjectDoublePair;
 
+import uk.ac.soton.ecs.cp6g18.common.Fingerprint;
+import uk.ac.soton.ecs.cp6g18.common.LazyGroupedDataset;
+import uk.ac.soton.ecs.cp6g18.common.LazyGroupedRandomSplitter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +34,11 @@ import java.util.Random;
  */
 public class Ch13Exercises {
 
+    // constants
+    static final long SEED = 3204;
+    static final String DATASET = "zip:http://datasets.openimaj.org/att_faces.zip";
+    static final File CACHE_DIR = new File(System.getProperty("cache.dir", "target/cache")); // build output, not source
+
     /**
      * Main method.
      *
@@ -66,7 +77,7 @@ public class Ch13Exercises {
          * Gathering the dataset
          */
 
-        VFSGroupDataset<FImage> dataset = new VFSGroupDataset<FImage>("zip:http://datasets.openimaj.org/att_faces.zip", ImageUtilities.FIMAGE_READER);
+        GroupedDataset<String, ListDataset<FImage>, FImage> dataset = LazyGroupedDataset.fromDirectory(DATASET, ImageUtilities.FIMAGE_READER);
 
         /**
          * Splitting the data
@@ -74,7 +85,7 @@ public class Ch13Exercises {
 
         int nTraining = 5;
         int nTesting = 5;
-        GroupedRandomSplitter<String, FImage> splits = new GroupedRandomSplitter<String, FImage>(dataset, nTraining, 0, nTesting);
+        LazyGroupedRandomSplitter<String, FImage> splits = new LazyGroupedRandomSplitter<String, FImage>(dataset, nTraining, 0, nTesting, SEED);
         GroupedDataset<String, ListDataset<FImage>, FImage> training = splits.getTrainingDataset();
         GroupedDataset<String, ListDataset<FImage>, FImage> testing = splits.getTestDataset();
 
@@ -142,64 +153,111 @@ public class Ch13Exercises {
          * Forming datasets
          */
 
-        VFSGroupDataset<FImage> dataset = new VFSGroupDataset<FImage>("zip:http://datasets.openimaj.org/att_faces.zip", ImageUtilities.FIMAGE_READER);
+        GroupedDataset<String, ListDataset<FImage>, FImage> dataset = LazyGroupedDataset.fromDirectory(DATASET, ImageUtilities.FIMAGE_READER);
 
         int nTraining = 2;
         int nTesting = 5;
-        GroupedRandomSplitter<String, FImage> splits = new GroupedRandomSplitter<String, FImage>(dataset, nTraining, 0, nTesting);
-        GroupedDataset<String, ListDataset<FImage>, FImage> training = splits.getTrainingDataset();
+        LazyGroupedRandomSplitter<String, FImage> splits = new LazyGroupedRandomSplitter<String, FImage>(dataset, nTraining, 0, nTesting, SEED);
+        // the training images are read twice (to learn the PCA basis, then to form the database),
+        // so they are kept once read rather than read from the zip file each time
+        LazyGroupedDataset<String, FImage> training = splits.getTrainingDataset().cached();
         GroupedDataset<String, ListDataset<FImage>, FImage> testing = splits.getTestDataset();
 
         /**
-         * Learning PCA basis
+         * Learning PCA basis and forming database of features
+         *
+         * (kept in an EigenfaceStore - learnt and published on the first run, and memory-mapped
+         * on later runs)
          */
 
-        List<FImage> basisImages = DatasetAdaptors.asList(training);
         int nFeatures = 100;
-        EigenImages eigen = new EigenImages(nFeatures);
-        eigen.train(basisImages);
+        MappedEigenfaceModel eigen = loadModel(training, nTraining, nFeatures);
 
         /**
-         * Forming database of features
+         * Packing the database of features into a single block (so the testing images can be
+         * compared with it all at once)
          */
 
-        Map<String, DoubleFV[]> features = new HashMap<String, DoubleFV[]>();
-        for (final String person : training.getGroups()) {
-            final DoubleFV[] fvs = new DoubleFV[nTraining];
-            for (int i = 0; i < nTraining; i++) {
-                final FImage face = training.get(person).get(i);
-                fvs[i] = eigen.extractFeature(face);
-            }
-            features.put(person, fvs);
-        }
+        FlatFaceGallery gallery = eigen.toFlatGallery();
 
         /**
-         * Classifying new images
+         * Classifying new images (projected and compared as one batch)
          */
 
-        double correct = 0, incorrect = 0;
+        List<String> truePeople = new ArrayList<String>();
+        List<FImage> testFaces = new ArrayList<FImage>();
         for (String truePerson : testing.getGroups()) {
             for (FImage face : testing.get(truePerson)) {
-                DoubleFV testFeature = eigen.extractFeature(face);
-                String bestPerson = null;
+                truePeople.add(truePerson);
+                testFaces.add(face);
+            }
+        }
+        double[] testFeatures = eigen.extractFeatures(testFaces);
+        List<ObjectDoublePair<String>> matches = gallery.identify(testFeatures);
+
+        double correct = 0, incorrect = 0;
+        for (int i = 0; i < truePeople.size(); i++) {
+            String truePerson = truePeople.get(i);
+            String bestPerson = matches.get(i).first;
+            System.out.println("Actual: " + truePerson + "\tguess: " + bestPerson);
+            if (truePerson.equals(bestPerson))
+                correct++;
+            else
+                incorrect++;
+        }
+        System.out.println("Accuracy: " + (correct / (correct + incorrect)));
+
+        /**
+         * Compressing the database of features (product quantised to 10 bytes per face, with the
+         * exact features kept on disk for re-ranking) and comparing it with the exact search
+         *
+         * (the quantiser is learnt from the images that are neither training nor testing images -
+         * 3 per person, which the PCA basis never saw and which are not in the database - with 16
+         * centroids per sub-quantiser, fewer than the 80 faces of the database, so the recall is
+         * that of faces the quantiser was not fitted to)
+         */
+
+        List<DoubleFV> galleryFeatures = new ArrayList<DoubleFV>();
+        for (int i = 0; i < eigen.size(); i++) {
+            galleryFeatures.add(new DoubleFV(eigen.getFeature(i)));
+        }
+        List<FImage> sampleFaces = new ArrayList<FImage>();
+        for (FImage face : splits.getRemainingDataset()) {
+            sampleFaces.add(face);
+        }
+        double[] packedSample = eigen.extractFeatures(sampleFaces);
+        List<DoubleFV> sampleFeatures = new ArrayList<DoubleFV>();
+        for (int i = 0; i < sampleFaces.size(); i++) {
+            sampleFeatures.add(new DoubleFV(Arrays.copyOfRange(packedSample, i * nFeatures, (i + 1) * nFeatures)));
+        }
+        File vectorFile = new File(CACHE_DIR, "eigenfaces/att-faces-" + nTraining + "-" + nFeatures + "-" + SEED + ".vectors");
+        CompressedFaceGallery compressed = new CompressedFaceGallery(sampleFeatures, 10, 16, SEED, vectorFile);
+        try {
+            for (int i = 0; i < eigen.size(); i++) {
+                compressed.enrol(eigen.getPerson(i), galleryFeatures.get(i));
+            }
+
+            List<DoubleFV> probes = new ArrayList<DoubleFV>();
+            int[] exact = new int[truePeople.size()];
+            for (int i = 0; i < truePeople.size(); i++) {
+                DoubleFV probe = new DoubleFV(Arrays.copyOfRange(testFeatures, i * nFeatures, (i + 1) * nFeatures));
+                probes.add(probe);
                 double minDistance = Double.MAX_VALUE;
-                for (final String person : features.keySet()) {
-                    for (final DoubleFV fv : features.get(person)) {
-                        double distance = fv.compare(testFeature, DoubleFVComparison.EUCLIDEAN);
-                        if (distance < minDistance) {
-                            minDistance = distance;
-                            bestPerson = person;
-                        }
+                for (int j = 0; j < galleryFeatures.size(); j++) {
+                    double distance = DoubleFVComparison.EUCLIDEAN.compare(probe, galleryFeatures.get(j));
+                    if (distance < minDistance) {
+                        minDistance = distance;
+                        exact[i] = j;
                     }
                 }
-                System.out.println("Actual: " + truePerson + "\tguess: " + bestPerson);
-                if (truePerson.equals(bestPerson))
-                    correct++;
-                else
-                    incorrect++;
+            }
+            for (int numCandidates : new int[] { 1, 2, 4, 8, 16 }) {
+                System.out.println("Recall@1 (compressed, " + numCandidates + " candidates re-ranked): " + compressed.recallAt1(probes, exact, numCandidates));
             }
         }
-        System.out.println("Accuracy: " + (correct / (correct + incorrect)));
+        finally {
+            compressed.close();
+        }
 
         /**
          * Conclusion
@@ -242,36 +300,32 @@ public class Ch13Exercises {
          * Forming datasets
          */
 
-        VFSGroupDataset<FImage> dataset = new VFSGroupDataset<FImage>("zip:http://datasets.openimaj.org/att_faces.zip", ImageUtilities.FIMAGE_READER);
+        GroupedDataset<String, ListDataset<FImage>, FImage> dataset = LazyGroupedDataset.fromDirectory(DATASET, ImageUtilities.FIMAGE_READER);
 
         int nTraining = 2;
         int nTesting = 5;
-        GroupedRandomSplitter<String, FImage> splits = new GroupedRandomSplitter<String, FImage>(dataset, nTraining, 0, nTesting);
-        GroupedDataset<String, ListDataset<FImage>, FImage> training = splits.getTrainingDataset();
+        LazyGroupedRandomSplitter<String, FImage> splits = new LazyGroupedRandomSplitter<String, FImage>(dataset, nTraining, 0, nTesting, SEED);
+        // the training images are read twice (to learn the PCA basis, then to form the database),
+        // so they are kept once read rather than read from the zip file each time
+        LazyGroupedDataset<String, FImage> training = splits.getTrainingDataset().cached();
         GroupedDataset<String, ListDataset<FImage>, FImage> testing = splits.getTestDataset();
 
         /**
-         * Learning PCA basis
+         * Learning PCA basis and forming database of features
+         *
+         * (kept in an EigenfaceStore - learnt and published on the first run, and memory-mapped
+         * on later runs)
          */
 
-        List<FImage> basisImages = DatasetAdaptors.asList(training);
         int nFeatures = 100;
-        EigenImages eigen = new EigenImages(nFeatures);
-        eigen.train(basisImages);
+        MappedEigenfaceModel eigen = loadModel(training, nTraining, nFeatures);
 
         /**
-         * Forming database of features
+         * Forming the open-set gallery (the search for the nearest person is bounded by the
+         * threshold, so unknown faces are rejected after only a few dimensions of each feature)
          */
 
-        Map<String, DoubleFV[]> features = new HashMap<String, DoubleFV[]>();
-        for (final String person : training.getGroups()) {
-            final DoubleFV[] fvs = new DoubleFV[nTraining];
-            for (int i = 0; i < nTraining; i++) {
-                final FImage face = training.get(person).get(i);
-                fvs[i] = eigen.extractFeature(face);
-            }
-            features.put(person, fvs);
-        }
+        OpenSetFaceGallery gallery = eigen.toOpenSetGallery();
 
         /**
          * Classifying new images
@@ -282,17 +336,8 @@ public class Ch13Exercises {
         for (String truePerson : testing.getGroups()) {
             for (FImage face : testing.get(truePerson)) {
                 DoubleFV testFeature = eigen.extractFeature(face);
-                String bestPerson = null;
-                double minDistance = Double.MAX_VALUE;
-                for (final String person : features.keySet()) {
-                    for (final DoubleFV fv : features.get(person)) {
-                        double distance = fv.compare(testFeature, DoubleFVComparison.EUCLIDEAN);
-                        if (distance < minDistance && distance < threshold) {
-                            minDistance = distance;
-                            bestPerson = person;
-                        }
-                    }
-                }
+                ObjectDoublePair<String> match = gallery.identify(testFeature, threshold);
+                String bestPerson = match == null ? null : match.first;
                 if(bestPerson != null){
                     System.out.println("Actual: " + truePerson + "\tGuess: " + bestPerson);
                     if (truePerson.equals(bestPerson))
@@ -326,4 +371,61 @@ public class Ch13Exercises {
     ///////////////////////
     // END OF EXERCISE 3 //
     ///////////////////////
+
+    /////////////
+    // HELPERS //
+    /////////////
+
+    /**
+     * Opens the eigenface model (PCA basis and database of features) of a training set from the
+     * model store, learning and publishing it first if this is the first run.
+     *
+     * The basis is learnt exactly (StreamingEigenImages.Mode.EXACT - a thin SVD of every
+     * training image, as EigenImages does), so the features are those of the tutorial. The
+     * RANDOMISED and INCREMENTAL modes only hold a few images at a time, for training sets too
+     * big to fit in memory, but are not needed for the 80 images of the AT&T splits.
+     *
+     * The training set has fewer images (80) than features (100), so it only has 79 directions
+     * of variance - the remaining 21 features are zero for every image, and don't change any
+     * distance.
+     *
+     * @param training The training set.
+     * @param nTraining The number of training images of each person.
+     * @param nFeatures The number of features (principal components).
+     * @return The model.
+     */
+    static MappedEigenfaceModel loadModel(final LazyGroupedDataset<String, FImage> training, final int nTraining, final int nFeatures) throws Exception{
+        // the model is filed under everything that went into it - the dataset, the PCA and the
+        // images of the training split (by ID, so the images aren't read to find the model)
+        Fingerprint fingerprint = new Fingerprint()
+                .add("dataset", DATASET)
+                .add("nTraining", nTraining)
+                .add("nFeatures", nFeatures)
+                .add("mode", StreamingEigenImages.Mode.EXACT)
+                .addIDs(training.getIDs());
+        EigenfaceStore store = new EigenfaceStore(new File(CACHE_DIR, "eigenfaces"));
+        String name = "att-faces-" + fingerprint.toHex();
+
+        return store.getOrBuild(name, new EigenfaceStore.Builder() {
+            public StreamingEigenImages buildModel() {
+                StreamingEigenImages eigen = new StreamingEigenImages(nFeatures, StreamingEigenImages.Mode.EXACT);
+                eigen.train(training);
+                return eigen;
+            }
+
+            public FlatFaceGallery buildGallery(StreamingEigenImages eigen) {
+                List<String> people = new ArrayList<String>();
+                List<FImage> faces = new ArrayList<FImage>();
+                for (final String person : training.getGroups()) {
+                    for (final FImage face : training.get(person)) {
+                        people.add(person);
+                        faces.add(face);
+                    }
+                }
+                FlatFaceGallery gallery = new FlatFaceGallery(nFeatures);
+                gallery.enrol(people, eigen.extractFeatures(faces));
+                return gallery;
+            }
+        });
+    }
 }
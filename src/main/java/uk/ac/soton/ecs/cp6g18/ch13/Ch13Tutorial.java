@@ -6,7 +6,6 @@ import org.openimaj.data.dataset.VFSGroupDataset;
 import org.openimaj.experiment.dataset.split.GroupedRandomSplitter;
 import org.openimaj.experiment.dataset.util.DatasetAdaptors;
 import org.openimaj.feature.DoubleFV;
-import org.openimaj.feature.DoubleFVComparison;
 import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
 import org.openimaj.image.model.EigenImages;
@@ -295,21 +294,20 @@ public class Ch13Tutorial {
          * of this method.
          */
 
+        /**
+         * Comparing the new feature with every known feature (looping over the database) takes
+         * time proportional to the size of the database. Instead, the database is indexed by a
+         * FaceGallery - a KD-tree over the features, which finds the same nearest feature while
+         * only comparing with a small part of the database.
+         */
+
+        FaceGallery gallery = new FaceGallery(features);
+
         double correct = 0, incorrect = 0;
         for (String truePerson : testing.getGroups()) {
             for (FImage face : testing.get(truePerson)) {
                 DoubleFV testFeature = eigen.extractFeature(face);
-                String bestPerson = null;
-                double minDistance = Double.MAX_VALUE;
-                for (final String person : features.keySet()) {
-                    for (final DoubleFV fv : features.get(person)) {
-                        double distance = fv.compare(testFeature, DoubleFVComparison.EUCLIDEAN);
-                        if (distance < minDistance) {
-                            minDistance = distance;
-                            bestPerson = person;
-                        }
-                    }
-                }
+                String bestPerson = gallery.identify(testFeature).first;
                 System.out.println("Actual: " + truePerson + "\tguess: " + bestPerson);
                 if (truePerson.equals(bestPerson))
                     correct++;
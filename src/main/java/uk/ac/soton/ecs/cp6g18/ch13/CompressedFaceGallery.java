@@ -0,0 +1,443 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.knn.DoubleNearestNeighboursExact;
+import org.openimaj.knn.pq.DoubleProductQuantiser;
+import org.openimaj.ml.clustering.kmeans.DoubleKMeans;
+import org.openimaj.util.pair.IntDoublePair;
+import org.openimaj.util.pair.ObjectDoublePair;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gallery of enrolled face features, labelled by person, compressed with a product quantiser for
+ * galleries too large to hold in memory as doubles.
+ *
+ * Each feature is split into numSubquantisers sub-vectors, and each sub-vector is replaced by
+ * the index (one byte) of its nearest centroid, learnt by k-means over a sample of features - so
+ * a feature of 100 doubles (800 bytes) is held as, e.g., 10 bytes:
+ *
+ *      - The codes of every enrolment are held one after the other in a single byte array, with
+ *        an int array of the index of each enrolment's person (each person's name is held
+ *        once).
+ *      - The exact features are appended to a file on disk, and never read back into memory as
+ *        a whole. The file is deleted when the gallery is closed.
+ *      - A query computes a table of the (squared) distances from each of its sub-vectors to
+ *        each centroid once (asymmetric distance computation), so the approximate distance to an
+ *        enrolment is just numSubquantisers table lookups.
+ *      - The numCandidates enrolments with the smallest approximate distances are then re-ranked
+ *        by their exact distances, read from the file.
+ *
+ * Eigenface features have most of their variance in their first dimensions, so the dimensions
+ * are dealt out to the sub-quantisers in turn (dimension d to sub-quantiser d % numSubquantisers)
+ * rather than in consecutive runs, so each sub-quantiser gets a similar share of the variance.
+ *
+ * The answer is approximate - the true nearest enrolment is only found if it is among the
+ * candidates - but its distance is exact. See recallAt1() for how often it is found. The
+ * centroids should be learnt from a sample of features other than the enrolments, and there
+ * should be fewer of them than enrolments - otherwise each enrolment can have a centroid of its
+ * own, and the recall says nothing about new enrolments.
+ *
+ * Distances are Euclidean (as given by DoubleFVComparison.EUCLIDEAN).
+ *
+ * Queries may be made from multiple threads at once, but not at the same time as an enrolment.
+ *
+ * @author Charles Powell
+ */
+public class CompressedFaceGallery implements Closeable {
+
+    // constants
+    static final int NUM_CENTROIDS = 256;
+    static final int KMEANS_ITERATIONS = 100;
+    static final int DEFAULT_CANDIDATES = 64;
+    static final int INITIAL_CAPACITY = 64;
+
+    // member variables
+    final int numDimensions;
+    final int numSubquantisers;
+    final int subDimensions;
+    final int numCentroids;
+    final double[] centroids;
+    final DoubleProductQuantiser quantiser;
+    final File vectorFile;
+    final RandomAccessFile vectors;
+    final FileChannel channel;
+    byte[] codes;
+    int[] personIndices;
+    final List<String> people;
+    final Map<String, Integer> indicesOfPeople;
+    int size;
+
+    /**
+     * Class constructor (for an empty gallery, training the quantiser on a sample of features,
+     * with NUM_CENTROIDS centroids per sub-quantiser).
+     *
+     * @param sample The sample of features to learn the centroids from.
+     * @param numSubquantisers The number of sub-quantisers (bytes per enrolment) - must divide the
+     * number of dimensions of the features.
+     * @param seed The seed of the random initialisation of the centroids.
+     * @param vectorFile The file to keep the exact features in (overwritten, and deleted on
+     * close()).
+     * @throws IOException If the file could not be opened.
+     */
+    public CompressedFaceGallery(List<DoubleFV> sample, int numSubquantisers, long seed, File vectorFile) throws IOException {
+        this(sample, numSubquantisers, NUM_CENTROIDS, seed, vectorFile);
+    }
+
+    /**
+     * Class constructor (for an empty gallery, training the quantiser on a sample of features).
+     *
+     * @param sample The sample of features to learn the centroids from.
+     * @param numSubquantisers The number of sub-quantisers (bytes per enrolment) - must divide the
+     * number of dimensions of the features.
+     * @param numCentroids The number of centroids of each sub-quantiser (at most NUM_CENTROIDS,
+     * and clipped to the size of the sample).
+     * @param seed The seed of the random initialisation of the centroids.
+     * @param vectorFile The file to keep the exact features in (overwritten, and deleted on
+     * close()).
+     * @throws IOException If the file could not be opened.
+     */
+    public CompressedFaceGallery(List<DoubleFV> sample, int numSubquantisers, int numCentroids, long seed, File vectorFile) throws IOException {
+        if(sample.isEmpty()){
+            throw new IllegalArgumentException("Cannot train a quantiser on an empty sample");
+        }
+        if(numCentroids <= 0 || numCentroids > NUM_CENTROIDS){
+            throw new IllegalArgumentException("Expected 1 to " + NUM_CENTROIDS + " centroids, got " + numCentroids);
+        }
+        this.numDimensions = sample.get(0).length();
+        if(numSubquantisers <= 0 || numDimensions % numSubquantisers != 0){
+            throw new IllegalArgumentException(numSubquantisers + " sub-quantisers do not divide " + numDimensions + " dimensions");
+        }
+        this.numSubquantisers = numSubquantisers;
+        this.subDimensions = numDimensions / numSubquantisers;
+        int clipped = Math.min(numCentroids, sample.size());
+        this.numCentroids = clipped;
+
+        // learning the centroids of each sub-quantiser
+        this.centroids = new double[numSubquantisers * clipped * subDimensions];
+        DoubleNearestNeighboursExact[] assigners = new DoubleNearestNeighboursExact[numSubquantisers];
+        DoubleKMeans kmeans = DoubleKMeans.createExact(clipped, KMEANS_ITERATIONS);
+        kmeans.seed(seed);
+        double[][] subVectors = new double[sample.size()][subDimensions];
+        for(int m = 0; m < numSubquantisers; m++){
+            for(int i = 0; i < sample.size(); i++){
+                double[] values = sample.get(i).values;
+                if(values.length != numDimensions){
+                    throw new IllegalArgumentException("Expected a feature of " + numDimensions + " dimensions, got " + values.length);
+                }
+                for(int j = 0; j < subDimensions; j++){
+                    subVectors[i][j] = values[m + j * numSubquantisers];
+                }
+            }
+            DoubleKMeans.Result result = kmeans.cluster(subVectors);
+            double[][] subCentroids = result.getCentroids();
+            for(int c = 0; c < clipped; c++){
+                System.arraycopy(subCentroids[c], 0, centroids, (m * clipped + c) * subDimensions, subDimensions);
+            }
+            assigners[m] = (DoubleNearestNeighboursExact) result.getNearestNeighbours();
+        }
+        this.quantiser = new DoubleProductQuantiser(assigners);
+
+        this.vectorFile = vectorFile;
+        vectorFile.getAbsoluteFile().getParentFile().mkdirs();
+        this.vectors = new RandomAccessFile(vectorFile, "rw");
+        this.vectors.setLength(0);
+        this.channel = vectors.getChannel();
+        this.codes = new byte[INITIAL_CAPACITY * numSubquantisers];
+        this.personIndices = new int[INITIAL_CAPACITY];
+        this.people = new ArrayList<String>();
+        this.indicesOfPeople = new HashMap<String, Integer>();
+        this.size = 0;
+    }
+
+    /**
+     * Enrols a feature of a person.
+     *
+     * @param person The person.
+     * @param feature The feature.
+     * @return The index of the enrolment.
+     * @throws IOException If the feature could not be written to the vector file.
+     */
+    public int enrol(String person, DoubleFV feature) throws IOException {
+        double[] values = feature.values;
+        if(values.length != numDimensions){
+            throw new IllegalArgumentException("Expected a feature of " + numDimensions + " dimensions, got " + values.length);
+        }
+
+        if(size == personIndices.length){
+            codes = Arrays.copyOf(codes, codes.length * 2);
+            personIndices = Arrays.copyOf(personIndices, personIndices.length * 2);
+        }
+
+        System.arraycopy(quantiser.quantise(interleave(values)), 0, codes, size * numSubquantisers, numSubquantisers);
+        ByteBuffer buffer = ByteBuffer.allocate(numDimensions * 8);
+        buffer.asDoubleBuffer().put(values);
+        long position = (long) size * numDimensions * 8;
+        while(buffer.hasRemaining()){
+            position += channel.write(buffer, position);
+        }
+        Integer personIndex = indicesOfPeople.get(person);
+        if(personIndex == null){
+            personIndex = people.size();
+            people.add(person);
+            indicesOfPeople.put(person, personIndex);
+        }
+        personIndices[size] = personIndex;
+        return size++;
+    }
+
+    /**
+     * Reorders a feature so that the dimensions of each sub-quantiser are consecutive.
+     *
+     * @param values The feature.
+     * @return The reordered feature.
+     */
+    double[] interleave(double[] values){
+        double[] interleaved = new double[numDimensions];
+        for(int m = 0; m < numSubquantisers; m++){
+            for(int j = 0; j < subDimensions; j++){
+                interleaved[m * subDimensions + j] = values[m + j * numSubquantisers];
+            }
+        }
+        return interleaved;
+    }
+
+    /**
+     * Identifies the person nearest to a probe (re-ranking DEFAULT_CANDIDATES candidates).
+     *
+     * @param probe The feature of the probe.
+     * @return The nearest person and their distance from the probe (null if the gallery is empty).
+     * @throws IOException If the exact features could not be read.
+     */
+    public ObjectDoublePair<String> identify(DoubleFV probe) throws IOException {
+        List<IntDoublePair> nearest = search(probe, 1, DEFAULT_CANDIDATES);
+        return nearest.isEmpty() ? null : new ObjectDoublePair<String>(getPerson(nearest.get(0).first), nearest.get(0).second);
+    }
+
+    /**
+     * Finds the k enrolments nearest to a probe.
+     *
+     * @param probe The feature of the probe.
+     * @param k The number of enrolments.
+     * @param numCandidates The number of candidates (by approximate distance) to re-rank by exact
+     * distance - at least k.
+     * @return The indices of the enrolments and their distances from the probe, nearest first.
+     * @throws IOException If the exact features could not be read.
+     */
+    public List<IntDoublePair> search(DoubleFV probe, int k, int numCandidates) throws IOException {
+        double[] q = probe.values;
+        if(q.length != numDimensions){
+            throw new IllegalArgumentException("Expected a feature of " + numDimensions + " dimensions, got " + q.length);
+        }
+
+        // approximate distances, from the table of sub-vector to centroid distances
+        double[] approximate = approximateDistances(q);
+        NearestResults candidates = new NearestResults(Math.max(k, numCandidates));
+        for(int i = 0; i < size; i++){
+            if(approximate[i] < candidates.bound()){
+                candidates.offer(i, approximate[i]);
+            }
+        }
+
+        // re-ranking by exact distances
+        NearestResults nearest = new NearestResults(k);
+        ByteBuffer buffer = ByteBuffer.allocate(numDimensions * 8);
+        double[] feature = new double[numDimensions];
+        for(int c = 0; c < candidates.count; c++){
+            int index = candidates.indices[c];
+            readFeature(index, buffer, feature);
+            double distance = 0;
+            for(int d = 0; d < numDimensions; d++){
+                double diff = q[d] - feature[d];
+                distance += diff * diff;
+            }
+            if(distance < nearest.bound()){
+                nearest.offer(index, distance);
+            }
+        }
+
+        List<IntDoublePair> results = nearest.toList();
+        for(IntDoublePair result : results){
+            result.second = Math.sqrt(result.second);
+        }
+        return results;
+    }
+
+    /**
+     * Computes the squared distances from a probe to the approximate feature (see
+     * getApproximateFeature()) of each enrolment.
+     *
+     * @param q The probe.
+     * @return The squared distances, indexed by enrolment.
+     */
+    double[] approximateDistances(double[] q){
+        double[] table = distanceTable(interleave(q));
+        double[] distances = new double[size];
+        for(int i = 0; i < size; i++){
+            int offset = i * numSubquantisers;
+            double distance = 0;
+            for(int m = 0; m < numSubquantisers; m++){
+                distance += table[m * numCentroids + codes[offset + m] + 128];
+            }
+            distances[i] = distance;
+        }
+        return distances;
+    }
+
+    /**
+     * Computes the squared distances from each sub-vector of a probe to each centroid of its
+     * sub-quantiser.
+     *
+     * @param q The (interleaved) probe.
+     * @return The distances, indexed by sub-quantiser * numCentroids + centroid.
+     */
+    double[] distanceTable(double[] q){
+        double[] table = new double[numSubquantisers * numCentroids];
+        for(int m = 0; m < numSubquantisers; m++){
+            int from = m * subDimensions;
+            for(int c = 0; c < numCentroids; c++){
+                int centroid = (m * numCentroids + c) * subDimensions;
+                double distance = 0;
+                for(int j = 0; j < subDimensions; j++){
+                    double diff = q[from + j] - centroids[centroid + j];
+                    distance += diff * diff;
+                }
+                table[m * numCentroids + c] = distance;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Reads the exact feature of an enrolment from the vector file.
+     *
+     * @param index The index of the enrolment.
+     * @param buffer A buffer of numDimensions doubles to read through.
+     * @param feature The array to read the feature into.
+     * @throws IOException If the feature could not be read.
+     */
+    void readFeature(int index, ByteBuffer buffer, double[] feature) throws IOException {
+        buffer.clear();
+        long position = (long) index * numDimensions * 8;
+        while(buffer.hasRemaining()){
+            int read = channel.read(buffer, position);
+            if(read < 0){
+                throw new IOException("Unexpected end of vector file: " + vectorFile);
+            }
+            position += read;
+        }
+        buffer.flip();
+        buffer.asDoubleBuffer().get(feature);
+    }
+
+    /**
+     * Computes the fraction of probes whose nearest enrolment (by exact search) is the one found
+     * by the compressed search - its Recall@1.
+     *
+     * @param probes The features of the probes.
+     * @param exact The index of the exact nearest enrolment to each probe.
+     * @param numCandidates The number of candidates to re-rank.
+     * @return The Recall@1.
+     * @throws IOException If the exact features could not be read.
+     */
+    public double recallAt1(List<DoubleFV> probes, int[] exact, int numCandidates) throws IOException {
+        int found = 0;
+        for(int p = 0; p < probes.size(); p++){
+            List<IntDoublePair> nearest = search(probes.get(p), 1, numCandidates);
+            if(!nearest.isEmpty() && nearest.get(0).first == exact[p]){
+                found++;
+            }
+        }
+        return probes.isEmpty() ? 0 : (double) found / probes.size();
+    }
+
+    /**
+     * Returns the person of an enrolment.
+     *
+     * @param index The index of the enrolment.
+     * @return The person.
+     */
+    public String getPerson(int index){
+        return people.get(personIndices[index]);
+    }
+
+    /**
+     * Returns the feature of an enrolment, as reconstructed from its code.
+     *
+     * @param index The index of the enrolment.
+     * @return The approximate feature.
+     */
+    public double[] getApproximateFeature(int index){
+        double[] feature = new double[numDimensions];
+        for(int m = 0; m < numSubquantisers; m++){
+            int centroid = (m * numCentroids + codes[index * numSubquantisers + m] + 128) * subDimensions;
+            for(int j = 0; j < subDimensions; j++){
+                feature[m + j * numSubquantisers] = centroids[centroid + j];
+            }
+        }
+        return feature;
+    }
+
+    /**
+     * Returns the exact feature of an enrolment, read from the vector file.
+     *
+     * @param index The index of the enrolment.
+     * @return The feature.
+     * @throws IOException If the feature could not be read.
+     */
+    public double[] getFeature(int index) throws IOException {
+        double[] feature = new double[numDimensions];
+        readFeature(index, ByteBuffer.allocate(numDimensions * 8), feature);
+        return feature;
+    }
+
+    /**
+     * Returns the number of bytes each enrolment is compressed to.
+     *
+     * @return The number of bytes (sub-quantisers).
+     */
+    public int getNumSubquantisers(){
+        return numSubquantisers;
+    }
+
+    /**
+     * Returns the number of dimensions of the features.
+     *
+     * @return The number of dimensions.
+     */
+    public int numDimensions(){
+        return numDimensions;
+    }
+
+    /**
+     * Returns the number of enrolments.
+     *
+     * @return The number of enrolments.
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Closes and deletes the vector file.
+     */
+    public void close() throws IOException {
+        try{
+            vectors.close();
+        }
+        finally{
+            Files.deleteIfExists(vectorFile.toPath());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import uk.ac.soton.ecs.cp6g18.common.StoreLock;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+
+/**
+ * Directory of named, memory-mapped eigenface models (see MappedEigenfaceModel).
+ *
+ * A model is published under a name, and replaced by publishing a new model under the same name:
+ *
+ *      - The new model is written to a temporary file and atomically renamed over the current
+ *        one, so a reader opening the name always sees either the old or the new model in full.
+ *      - Readers that already have the old model open keep using it (its file is only unlinked,
+ *        and its pages stay mapped) until they reopen the name - see reopenIfChanged().
+ *      - getOrBuild() holds an exclusive file lock while building (see StoreLock), so
+ *        concurrent threads or processes asking for the same missing model build it once
+ *        between them.
+ *
+ * @author Charles Powell
+ */
+public class EigenfaceStore {
+
+    /**
+     * Builds the contents of a model.
+     */
+    public interface Builder {
+
+        /**
+         * Learns the eigenbasis.
+         *
+         * @return The eigenbasis.
+         * @throws Exception If the basis could not be learnt.
+         */
+        StreamingEigenImages buildModel() throws Exception;
+
+        /**
+         * Builds the gallery.
+         *
+         * @param eigen The eigenbasis (from buildModel()).
+         * @return The gallery (of features extracted by the eigenbasis).
+         * @throws Exception If the gallery could not be built.
+         */
+        FlatFaceGallery buildGallery(StreamingEigenImages eigen) throws Exception;
+    }
+
+    // constants
+    static final String EXTENSION = ".eigf";
+
+    // member variables
+    final File root;
+
+    /**
+     * Class constructor.
+     *
+     * @param root The directory of the store.
+     */
+    public EigenfaceStore(File root){
+        this.root = root;
+        root.mkdirs();
+    }
+
+    /**
+     * Returns the file a model is published to.
+     *
+     * @param name The name of the model.
+     * @return The file.
+     */
+    public File getFile(String name){
+        return new File(root, name + EXTENSION);
+    }
+
+    /**
+     * Opens the current model published under a name.
+     *
+     * @param name The name of the model.
+     * @return The model, or null if no model has been published under the name.
+     * @throws IOException If the model could not be read.
+     */
+    public MappedEigenfaceModel open(String name) throws IOException {
+        File file = getFile(name);
+        if(!file.exists()){
+            return null;
+        }
+        return MappedEigenfaceModel.open(file);
+    }
+
+    /**
+     * Reopens a model if a new model has been published under its name since it was opened.
+     *
+     * @param name The name of the model.
+     * @param model The open model.
+     * @return The new model, or the given model if it is still current.
+     * @throws IOException If the new model could not be read.
+     */
+    public MappedEigenfaceModel reopenIfChanged(String name, MappedEigenfaceModel model) throws IOException {
+        File file = getFile(name);
+        if(model != null && (!file.exists() || MappedEigenfaceModel.fileKey(file).equals(model.fileKey))){
+            return model;
+        }
+        MappedEigenfaceModel reopened = open(name);
+        return reopened != null ? reopened : model;
+    }
+
+    /**
+     * Publishes a model under a name, replacing the current model (if any).
+     *
+     * @param name The name of the model.
+     * @param eigen The eigenbasis.
+     * @param gallery The gallery (of features extracted by the eigenbasis).
+     * @throws IOException If the model could not be written.
+     */
+    public void publish(String name, StreamingEigenImages eigen, FlatFaceGallery gallery) throws IOException {
+        File tmp = File.createTempFile(name + ".new-", ".tmp", root);
+        try{
+            MappedEigenfaceModel.write(tmp, eigen, gallery);
+            try{
+                Files.move(tmp.toPath(), getFile(name).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch(AtomicMoveNotSupportedException e){
+                throw new IOException("The store directory does not support atomic renames: " + root, e);
+            }
+        }
+        finally{
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Opens the model published under a name, building and publishing it first if it does not
+     * yet exist.
+     *
+     * @param name The name of the model.
+     * @param builder Builds the model.
+     * @return The model.
+     * @throws Exception If the model could not be opened or built.
+     */
+    public MappedEigenfaceModel getOrBuild(final String name, final Builder builder) throws Exception {
+        return StoreLock.getOrBuild(new File(root, name + ".lock"), new Callable<MappedEigenfaceModel>() {
+            public MappedEigenfaceModel call() throws IOException {
+                return open(name);
+            }
+        }, new Callable<MappedEigenfaceModel>() {
+            public MappedEigenfaceModel call() throws Exception {
+                rebuild(name, builder);
+                return open(name);
+            }
+        });
+    }
+
+    /**
+     * Builds a model and publishes it under a name, replacing the current model (if any).
+     *
+     * @param name The name of the model.
+     * @param builder Builds the model.
+     * @throws Exception If the model could not be built or written.
+     */
+    public void rebuild(String name, Builder builder) throws Exception {
+        StreamingEigenImages eigen = builder.buildModel();
+        publish(name, eigen, builder.buildGallery(eigen));
+    }
+}
@@ -0,0 +1,338 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.util.pair.IntDoublePair;
+import org.openimaj.util.pair.ObjectDoublePair;
+import org.openimaj.util.tree.DoubleKDTree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Gallery of enrolled face features (e.g., eigenface projections), labelled by person, for
+ * nearest-neighbour identification.
+ *
+ * Replaces looping over a Map<String, DoubleFV[]> database and comparing the probe with every
+ * feature (DoubleFVComparison.EUCLIDEAN). The features are indexed by OpenIMAJ's DoubleKDTree,
+ * whose nearest-neighbour and radius searches are exact, so a query only visits a small part of
+ * the gallery, but gives the same answer as the loop:
+ *
+ *      - identify() : the nearest person (optionally only if they are closer than a threshold).
+ *      - nearest() : the k nearest enrolments.
+ *      - withinDistance() : every enrolment within a distance.
+ *
+ * Distances are Euclidean (as given by DoubleFVComparison.EUCLIDEAN).
+ *
+ * A DoubleKDTree can't be added to, so enrolments are kept in a few trees of doubling size, over
+ * consecutive runs of enrolments (the logarithmic method). New enrolments go into a small
+ * buffer, which is compared with every probe; once the buffer is full it becomes a tree, and
+ * trees of the same size are merged into one tree. So each enrolment is re-indexed O(log n)
+ * times, and a query searches O(log n) trees. (IncrementalDoubleKDTree can be added to, but
+ * it doesn't balance its tree, and gives the nearest points rather than their indices, so
+ * can't tell enrolments with equal features apart.)
+ *
+ * Enrolments can be added at any time, and queries may be made from multiple threads at once.
+ *
+ * @author Charles Powell
+ */
+public class FaceGallery {
+
+    // constants
+    static final int BUFFER_SIZE = 64;
+
+    /**
+     * A tree over a run of consecutive enrolments.
+     */
+    static final class Block {
+
+        // member variables
+        final int offset;
+        final int count;
+        final DoubleKDTree tree;
+
+        /**
+         * Class constructor.
+         *
+         * @param points The features of every enrolment.
+         * @param offset The index of the first enrolment of the run.
+         * @param count The number of enrolments in the run.
+         */
+        Block(List<double[]> points, int offset, int count){
+            this.offset = offset;
+            this.count = count;
+            this.tree = new DoubleKDTree(points.subList(offset, offset + count).toArray(new double[count][]));
+        }
+    }
+
+    // member variables
+    final int numDimensions;
+    final List<double[]> points;
+    final List<String> people;
+    final List<Block> blocks;
+    int indexed;
+    final ReadWriteLock lock;
+
+    /**
+     * Class constructor (for an empty gallery).
+     *
+     * @param numDimensions The number of dimensions of the features.
+     */
+    public FaceGallery(int numDimensions){
+        this.numDimensions = numDimensions;
+        this.points = new ArrayList<double[]>();
+        this.people = new ArrayList<String>();
+        this.blocks = new ArrayList<Block>();
+        this.indexed = 0;
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Class constructor (building the gallery from a database of features).
+     *
+     * @param features The features of each person.
+     */
+    public FaceGallery(Map<String, DoubleFV[]> features){
+        this.points = new ArrayList<double[]>();
+        this.people = new ArrayList<String>();
+        for(Map.Entry<String, DoubleFV[]> entry : features.entrySet()){
+            for(DoubleFV fv : entry.getValue()){
+                points.add(fv.values);
+                people.add(entry.getKey());
+            }
+        }
+        this.numDimensions = points.isEmpty() ? 0 : points.get(0).length;
+        this.blocks = new ArrayList<Block>();
+        this.indexed = 0;
+        this.lock = new ReentrantReadWriteLock();
+        index();
+    }
+
+    /**
+     * Class constructor (building the gallery from a list of enrolments).
+     *
+     * The features are not copied.
+     *
+     * @param numDimensions The number of dimensions of the features.
+     * @param people The person of each enrolment.
+     * @param points The feature of each enrolment.
+     */
+    FaceGallery(int numDimensions, List<String> people, List<double[]> points){
+        this.numDimensions = numDimensions;
+        this.points = new ArrayList<double[]>(points);
+        this.people = new ArrayList<String>(people);
+        this.blocks = new ArrayList<Block>();
+        this.indexed = 0;
+        this.lock = new ReentrantReadWriteLock();
+        index();
+    }
+
+    /**
+     * Indexes every enrolment not yet in a tree as a single tree (merging it with the trees
+     * that are no bigger).
+     */
+    void index(){
+        int offset = indexed;
+        while(!blocks.isEmpty() && blocks.get(blocks.size() - 1).count <= points.size() - offset){
+            offset = blocks.remove(blocks.size() - 1).offset;
+        }
+        if(points.size() > offset){
+            blocks.add(new Block(points, offset, points.size() - offset));
+        }
+        indexed = points.size();
+    }
+
+    /**
+     * Enrols a feature of a person.
+     *
+     * @param person The person.
+     * @param feature The feature.
+     * @return The index of the enrolment.
+     */
+    public int enrol(String person, DoubleFV feature){
+        if(feature.values.length != numDimensions){
+            throw new IllegalArgumentException("Expected a feature of " + numDimensions + " dimensions, got " + feature.values.length);
+        }
+
+        lock.writeLock().lock();
+        try{
+            points.add(feature.values);
+            people.add(person);
+            if(points.size() - indexed == BUFFER_SIZE){
+                index();
+            }
+            return points.size() - 1;
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Identifies the person nearest to a probe.
+     *
+     * @param probe The feature of the probe.
+     * @return The nearest person and their distance from the probe (null if the gallery is empty).
+     */
+    public ObjectDoublePair<String> identify(DoubleFV probe){
+        List<ObjectDoublePair<String>> nearest = nearest(probe, 1);
+        return nearest.isEmpty() ? null : nearest.get(0);
+    }
+
+    /**
+     * Identifies the person nearest to a probe, if they are closer than a threshold.
+     *
+     * @param probe The feature of the probe.
+     * @param threshold The threshold distance.
+     * @return The nearest person and their distance from the probe (null if no one is closer than
+     * the threshold - i.e., the probe is unknown).
+     */
+    public ObjectDoublePair<String> identify(DoubleFV probe, double threshold){
+        ObjectDoublePair<String> nearest = identify(probe);
+        return nearest != null && nearest.second < threshold ? nearest : null;
+    }
+
+    /**
+     * Finds the k enrolments nearest to a probe.
+     *
+     * @param probe The feature of the probe.
+     * @param k The number of enrolments.
+     * @return The people of the enrolments and their distances from the probe, nearest first.
+     */
+    public List<ObjectDoublePair<String>> nearest(DoubleFV probe, int k){
+        lock.readLock().lock();
+        try{
+            return label(searchKNN(probe.values, k));
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the enrolments within a distance of a probe.
+     *
+     * @param probe The feature of the probe.
+     * @param distance The distance.
+     * @return The people of the enrolments and their distances from the probe, nearest first.
+     */
+    public List<ObjectDoublePair<String>> withinDistance(DoubleFV probe, double distance){
+        lock.readLock().lock();
+        try{
+            return label(searchRadius(probe.values, distance));
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the k enrolments nearest to a query, in every tree and the buffer.
+     *
+     * @param query The query.
+     * @param k The number of enrolments.
+     * @return The indices of the enrolments and their squared distances from the query, nearest
+     * first.
+     */
+    List<IntDoublePair> searchKNN(double[] query, int k){
+        NearestResults results = new NearestResults(k);
+        for(Block block : blocks){
+            for(IntDoublePair result : block.tree.nearestNeighbours(query, k)){
+                results.offer(block.offset + result.first, result.second);
+            }
+        }
+        for(int i = indexed; i < points.size(); i++){
+            results.offer(i, distance(query, points.get(i)));
+        }
+        return results.toList();
+    }
+
+    /**
+     * Finds the enrolments within a distance of a query, in every tree and the buffer.
+     *
+     * @param query The query.
+     * @param distance The distance.
+     * @return The indices of the enrolments and their squared distances from the query, nearest
+     * first.
+     */
+    List<IntDoublePair> searchRadius(double[] query, double distance){
+        List<IntDoublePair> results = new ArrayList<IntDoublePair>();
+        for(Block block : blocks){
+            for(int i : block.tree.indexRadiusSearch(query, distance)){
+                results.add(new IntDoublePair(block.offset + i, distance(query, block.tree.data[i])));
+            }
+        }
+        for(int i = indexed; i < points.size(); i++){
+            double d = distance(query, points.get(i));
+            if(d <= distance * distance){
+                results.add(new IntDoublePair(i, d));
+            }
+        }
+        NearestResults.sort(results);
+        return results;
+    }
+
+    /**
+     * Computes the squared distance between two points.
+     *
+     * @param a The first point.
+     * @param b The second point.
+     * @return The squared distance.
+     */
+    static double distance(double[] a, double[] b){
+        double sum = 0;
+        for(int d = 0; d < a.length; d++){
+            double diff = a[d] - b[d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * Labels the results of a search with their people (and converts their distances from
+     * squared to Euclidean).
+     *
+     * @param results The results.
+     * @return The labelled results.
+     */
+    List<ObjectDoublePair<String>> label(List<IntDoublePair> results){
+        List<ObjectDoublePair<String>> labelled = new ArrayList<ObjectDoublePair<String>>(results.size());
+        for(IntDoublePair result : results){
+            labelled.add(new ObjectDoublePair<String>(people.get(result.first), Math.sqrt(result.second)));
+        }
+        return labelled;
+    }
+
+    /**
+     * Returns the person of an enrolment.
+     *
+     * @param index The index of the enrolment.
+     * @return The person.
+     */
+    public String getPerson(int index){
+        lock.readLock().lock();
+        try{
+            return people.get(index);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of enrolments.
+     *
+     * @return The number of enrolments.
+     */
+    public int size(){
+        lock.readLock().lock();
+        try{
+            return points.size();
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.DoubleFVComparison;
+import org.openimaj.util.pair.ObjectDoublePair;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of identifying a batch of probes against a gallery of eigenface-like features.
+ *
+ * A random gallery (with the variance falling off along the dimensions, as it does for eigenface
+ * projections) and a batch of probes are identified by:
+ *
+ *      - The loop over a Map<String, DoubleFV[]> database, comparing each probe with every
+ *        feature (DoubleFVComparison.EUCLIDEAN), as exercise 2 originally did.
+ *      - The FlatFaceGallery, with a pool of 1, 2, 4, ... threads, up to the number of cores.
+ *
+ * Each is timed over several rounds (after a warm-up round), and its identities are compared with
+ * those of the loop.
+ *
+ * Usage: FaceGalleryBenchmark [gallerySize] [numProbes] [numDimensions] [rounds]
+ *
+ * @author Charles Powell
+ */
+public class FaceGalleryBenchmark {
+
+    /**
+     * Main method.
+     *
+     * @param args The size of the gallery, the number of probes, the number of dimensions and the
+     * number of timed rounds.
+     */
+    public static void main(String[] args) throws Exception {
+        int gallerySize = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int numProbes = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int numDimensions = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        /**
+         * Forming the gallery (of 10 features per person) and the probes
+         */
+
+        Random random = new Random(3204);
+        Map<String, DoubleFV[]> features = new LinkedHashMap<String, DoubleFV[]>();
+        for(int p = 0; p * 10 < gallerySize; p++){
+            DoubleFV[] fvs = new DoubleFV[Math.min(10, gallerySize - p * 10)];
+            for(int i = 0; i < fvs.length; i++){
+                fvs[i] = feature(random, numDimensions);
+            }
+            features.put("person-" + p, fvs);
+        }
+        List<DoubleFV> probes = new ArrayList<DoubleFV>();
+        for(int i = 0; i < numProbes; i++){
+            probes.add(feature(random, numDimensions));
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println(gallerySize + " x " + numDimensions + " gallery, " + numProbes + " probes, " + rounds + " rounds, " + cores + " cores");
+        System.out.println();
+
+        /**
+         * Timing the loop over the database
+         */
+
+        String[] expected = loop(features, probes);
+        long start = System.nanoTime();
+        for(int r = 0; r < rounds; r++){
+            loop(features, probes);
+        }
+        double loopMs = (System.nanoTime() - start) / 1e6 / rounds;
+        System.out.println(String.format("%-28s %10.1f ms/round", "Map<String, DoubleFV[]> loop", loopMs));
+
+        /**
+         * Timing the flat gallery for each number of threads
+         */
+
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        for(int threads = 1; threads < cores; threads *= 2){
+            threadCounts.add(threads);
+        }
+        threadCounts.add(cores);
+
+        for(int threads : threadCounts){
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+            try{
+                FlatFaceGallery gallery = new FlatFaceGallery(numDimensions, pool);
+                for(Map.Entry<String, DoubleFV[]> entry : features.entrySet()){
+                    for(DoubleFV fv : entry.getValue()){
+                        gallery.enrol(entry.getKey(), fv);
+                    }
+                }
+
+                List<ObjectDoublePair<String>> matches = gallery.identify(probes);
+                start = System.nanoTime();
+                for(int r = 0; r < rounds; r++){
+                    gallery.identify(probes);
+                }
+                double flatMs = (System.nanoTime() - start) / 1e6 / rounds;
+
+                int agreed = 0;
+                for(int i = 0; i < numProbes; i++){
+                    agreed += expected[i].equals(matches.get(i).first) ? 1 : 0;
+                }
+                System.out.println(String.format("%-28s %10.1f ms/round %6.1fx  agreement %.4f", "FlatFaceGallery, " + threads + " thread(s)", flatMs, loopMs / flatMs, (double) agreed / numProbes));
+            }
+            finally{
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns a random feature, with the variance falling off along the dimensions.
+     *
+     * @param random The source of randomness.
+     * @param numDimensions The number of dimensions.
+     * @return The feature.
+     */
+    static DoubleFV feature(Random random, int numDimensions){
+        double[] values = new double[numDimensions];
+        for(int d = 0; d < numDimensions; d++){
+            values[d] = random.nextGaussian() * 10 / (d + 1);
+        }
+        return new DoubleFV(values);
+    }
+
+    /**
+     * Identifies each probe by comparing it with every feature of the database.
+     *
+     * @param features The database.
+     * @param probes The probes.
+     * @return The nearest person to each probe.
+     */
+    static String[] loop(Map<String, DoubleFV[]> features, List<DoubleFV> probes){
+        String[] people = new String[probes.size()];
+        for(int i = 0; i < probes.size(); i++){
+            double minDistance = Double.MAX_VALUE;
+            for(Map.Entry<String, DoubleFV[]> entry : features.entrySet()){
+                for(DoubleFV fv : entry.getValue()){
+                    double distance = fv.compare(probes.get(i), DoubleFVComparison.EUCLIDEAN);
+                    if(distance < minDistance){
+                        minDistance = distance;
+                        people[i] = entry.getKey();
+                    }
+                }
+            }
+        }
+        return people;
+    }
+}
@@ -0,0 +1,413 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.image.FImage;
+import org.openimaj.image.feature.FImage2DoubleFV;
+import org.openimaj.util.pair.ObjectDoublePair;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Eigenface model (the mean face and eigenbasis) and gallery (the projected features of the
+ * enrolled faces and their people), read straight from a memory-mapped file.
+ *
+ * Opening a model only maps its file and reads its header - nothing is copied onto the heap -
+ * so a recognition process can start answering queries as soon as the file is opened, without
+ * downloading the faces, training the basis or projecting the gallery. The mapping is
+ * read-only, so any number of processes can open the same file and share its pages.
+ *
+ * Models are written with write() (normally through an EigenfaceStore, which publishes them
+ * atomically). A file is never modified once written, so an open model is unaffected by a new
+ * model being published in its place.
+ *
+ * File layout (big-endian, with the arrays aligned to 8 bytes):
+ *
+ *      [int MAGIC][int VERSION][int width][int height][int numComponents][int numEnrolments]
+ *      [long numImages][padding to HEADER_SIZE]
+ *      [double mean x pixels][double eigenvalues x numComponents]
+ *      [double basis x numComponents x pixels][double gallery x numEnrolments x numComponents]
+ *      [int labelOffsets x (numEnrolments + 1)][byte labels (UTF-8)...]
+ *
+ * @author Charles Powell
+ */
+public class MappedEigenfaceModel implements FeatureExtractor<DoubleFV, FImage> {
+
+    // constants
+    static final int MAGIC = 0x45494746; // "EIGF"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // member variables
+    final File file;
+    final Object fileKey;
+    final int width;
+    final int height;
+    final int numPixels;
+    final int numComponents;
+    final int numEnrolments;
+    final long numImages;
+    final DoubleBuffer mean;
+    final DoubleBuffer eigenvalues;
+    final DoubleBuffer basis;
+    final DoubleBuffer gallery;
+    final IntBuffer labelOffsets;
+    final ByteBuffer labels;
+
+    /**
+     * Class constructor.
+     *
+     * @param file The file the model was read from.
+     * @param fileKey The key identifying the file (see fileKey()).
+     * @param buffer The mapping of the file.
+     * @throws IOException If the file is not a model.
+     */
+    MappedEigenfaceModel(File file, Object fileKey, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.fileKey = fileKey;
+        if(buffer.getInt(0) != MAGIC){
+            throw new IOException("Not an eigenface model: " + file);
+        }
+        if(buffer.getInt(4) != VERSION){
+            throw new IOException("Unsupported eigenface model version " + buffer.getInt(4) + ": " + file);
+        }
+        this.width = buffer.getInt(8);
+        this.height = buffer.getInt(12);
+        this.numComponents = buffer.getInt(16);
+        this.numEnrolments = buffer.getInt(20);
+        this.numImages = buffer.getLong(24);
+        this.numPixels = width * height;
+
+        int offset = HEADER_SIZE;
+        this.mean = doubles(buffer, offset, numPixels);
+        offset += numPixels * 8;
+        this.eigenvalues = doubles(buffer, offset, numComponents);
+        offset += numComponents * 8;
+        this.basis = doubles(buffer, offset, numComponents * numPixels);
+        offset += numComponents * numPixels * 8;
+        this.gallery = doubles(buffer, offset, numEnrolments * numComponents);
+        offset += numEnrolments * numComponents * 8;
+        this.labelOffsets = slice(buffer, offset, (numEnrolments + 1) * 4).asIntBuffer();
+        offset += (numEnrolments + 1) * 4;
+        this.labels = slice(buffer, offset, buffer.capacity() - offset);
+    }
+
+    /**
+     * Opens a model.
+     *
+     * @param file The file of the model.
+     * @return The model.
+     * @throws IOException If the model could not be read.
+     */
+    public static MappedEigenfaceModel open(File file) throws IOException {
+        Object key = fileKey(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try{
+            FileChannel channel = raf.getChannel();
+            if(channel.size() > Integer.MAX_VALUE){
+                throw new IOException("Eigenface model too large to map: " + file);
+            }
+            return new MappedEigenfaceModel(file, key, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        finally{
+            // the mapping stays valid once the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns a key identifying a file (its inode, where the file system has one), which changes
+     * when a new file is renamed into its place.
+     *
+     * @param file The file.
+     * @return The key.
+     * @throws IOException If the attributes of the file could not be read.
+     */
+    static Object fileKey(File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object key = attributes.fileKey();
+        return key != null ? key : attributes.lastModifiedTime() + ":" + attributes.size();
+    }
+
+    /**
+     * Writes a model.
+     *
+     * @param file The file to write to.
+     * @param eigen The eigenbasis.
+     * @param gallery The gallery (of features extracted by the eigenbasis).
+     * @throws IOException If the model could not be written.
+     */
+    public static void write(File file, StreamingEigenImages eigen, FlatFaceGallery gallery) throws IOException {
+        if(gallery.numDimensions() != eigen.numComponents){
+            throw new IllegalArgumentException("The gallery has " + gallery.numDimensions() + " dimensions, but the basis has " + eigen.numComponents + " components");
+        }
+
+        FileOutputStream stream = new FileOutputStream(file);
+        try{
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(eigen.width);
+            out.writeInt(eigen.height);
+            out.writeInt(eigen.numComponents);
+            out.writeInt(gallery.size());
+            out.writeLong(eigen.count);
+            out.write(new byte[HEADER_SIZE - 32]);
+
+            writeDoubles(out, eigen.mean, eigen.numPixels);
+            writeDoubles(out, eigen.eigenvalues, eigen.numComponents);
+            writeDoubles(out, eigen.basis, eigen.numComponents * eigen.numPixels);
+            writeDoubles(out, gallery.features, gallery.size() * gallery.numDimensions());
+
+            byte[][] encoded = new byte[gallery.size()][];
+            int labelOffset = 0;
+            out.writeInt(0);
+            for(int i = 0; i < encoded.length; i++){
+                encoded[i] = gallery.getPerson(i).getBytes(UTF8);
+                labelOffset += encoded[i].length;
+                out.writeInt(labelOffset);
+            }
+            for(byte[] label : encoded){
+                out.write(label);
+            }
+            out.flush();
+            stream.getChannel().force(true);
+        }
+        finally{
+            stream.close();
+        }
+    }
+
+    /**
+     * Writes the first values of an array of doubles.
+     */
+    static void writeDoubles(DataOutputStream out, double[] values, int count) throws IOException {
+        for(int i = 0; i < count; i++){
+            out.writeDouble(values[i]);
+        }
+    }
+
+    /**
+     * Returns a view of a region of a buffer.
+     */
+    static ByteBuffer slice(ByteBuffer buffer, int offset, int length){
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    /**
+     * Returns a view of a region of a buffer as doubles.
+     */
+    static DoubleBuffer doubles(ByteBuffer buffer, int offset, int count){
+        return slice(buffer, offset, count * 8).asDoubleBuffer();
+    }
+
+    /**
+     * Extracts the feature of an image - its projection onto the eigenbasis.
+     */
+    public DoubleFV extractFeature(FImage image) {
+        if(image.width != width || image.height != height){
+            throw new IllegalArgumentException("Expected a " + width + "x" + height + " image, got " + image.width + "x" + image.height);
+        }
+        double[] x = FImage2DoubleFV.INSTANCE.extractFeature(image).values;
+        for(int d = 0; d < numPixels; d++){
+            x[d] -= mean.get(d);
+        }
+
+        double[] feature = new double[numComponents];
+        for(int c = 0; c < numComponents; c++){
+            int row = c * numPixels;
+            double sum = 0;
+            for(int d = 0; d < numPixels; d++){
+                sum += x[d] * basis.get(row + d);
+            }
+            feature[c] = sum;
+        }
+        return new DoubleFV(feature);
+    }
+
+    /**
+     * Extracts the features of a batch of images at once, as a blocked matrix product (see
+     * BatchProjection). The features are the same as extractFeature() gives for each image.
+     *
+     * The mean and basis are copied onto the heap for the product (once per call), so large
+     * batches should be projected in a single call.
+     *
+     * @param images The images.
+     * @return The features, packed one after the other (getNumComponents() values per image).
+     */
+    public double[] extractFeatures(Iterable<? extends FImage> images){
+        double[] meanValues = new double[numPixels];
+        mean.duplicate().get(meanValues);
+        double[] basisValues = new double[numComponents * numPixels];
+        basis.duplicate().get(basisValues);
+        return BatchProjection.project(images, width, height, meanValues, basisValues, numComponents);
+    }
+
+    /**
+     * Identifies the enrolled person nearest to a probe.
+     *
+     * @param probe The feature of the probe.
+     * @return The nearest person and their (Euclidean) distance from the probe (null if the
+     * gallery is empty).
+     */
+    public ObjectDoublePair<String> identify(DoubleFV probe){
+        double[] q = probe.values;
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for(int i = 0; i < numEnrolments; i++){
+            int row = i * numComponents;
+            double distance = 0;
+            for(int c = 0; c < numComponents && distance < bestDistance; c++){
+                double diff = q[c] - gallery.get(row + c);
+                distance += diff * diff;
+            }
+            if(distance < bestDistance){
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best < 0 ? null : new ObjectDoublePair<String>(getPerson(best), Math.sqrt(bestDistance));
+    }
+
+    /**
+     * Copies the gallery onto the heap, for batched identification.
+     *
+     * @return The gallery.
+     */
+    public FlatFaceGallery toFlatGallery(){
+        FlatFaceGallery flat = new FlatFaceGallery(numComponents);
+        for(int i = 0; i < numEnrolments; i++){
+            flat.enrol(getPerson(i), new DoubleFV(getFeature(i)));
+        }
+        return flat;
+    }
+
+    /**
+     * Copies the gallery into a (KD-tree) index, for single queries of large galleries.
+     *
+     * @return The gallery.
+     */
+    public FaceGallery toFaceGallery(){
+        List<String> people = new ArrayList<String>(numEnrolments);
+        List<double[]> points = new ArrayList<double[]>(numEnrolments);
+        for(int i = 0; i < numEnrolments; i++){
+            people.add(getPerson(i));
+            points.add(getFeature(i));
+        }
+        return new FaceGallery(numComponents, people, points);
+    }
+
+    /**
+     * Copies the gallery into an open-set gallery, for identification against a threshold.
+     *
+     * @return The gallery.
+     */
+    public OpenSetFaceGallery toOpenSetGallery(){
+        OpenSetFaceGallery openSet = new OpenSetFaceGallery(numComponents);
+        for(int i = 0; i < numEnrolments; i++){
+            openSet.enrol(getPerson(i), new DoubleFV(getFeature(i)));
+        }
+        return openSet;
+    }
+
+    /**
+     * Returns the person of an enrolment.
+     *
+     * @param index The index of the enrolment.
+     * @return The person.
+     */
+    public String getPerson(int index){
+        int from = labelOffsets.get(index);
+        int to = labelOffsets.get(index + 1);
+        byte[] bytes = new byte[to - from];
+        ByteBuffer label = labels.duplicate();
+        label.position(from);
+        label.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Returns the feature of an enrolment.
+     *
+     * @param index The index of the enrolment.
+     * @return The feature (a copy).
+     */
+    public double[] getFeature(int index){
+        double[] feature = new double[numComponents];
+        DoubleBuffer row = gallery.duplicate();
+        row.position(index * numComponents);
+        row.get(feature);
+        return feature;
+    }
+
+    /**
+     * Returns the variance of the training images along each principal component.
+     *
+     * @return The variances (eigenvalues).
+     */
+    public double[] getEigenValues(){
+        double[] values = new double[numComponents];
+        eigenvalues.duplicate().get(values);
+        return values;
+    }
+
+    /**
+     * Returns the file the model was read from.
+     *
+     * @return The file.
+     */
+    public File getFile(){
+        return file;
+    }
+
+    /**
+     * Returns the number of principal components (i.e., dimensions of the features).
+     *
+     * @return The number of components.
+     */
+    public int getNumComponents(){
+        return numComponents;
+    }
+
+    /**
+     * Returns the number of images the basis was learnt from.
+     *
+     * @return The number of images.
+     */
+    public long getNumImages(){
+        return numImages;
+    }
+
+    /**
+     * Returns the number of enrolments of the gallery.
+     *
+     * @return The number of enrolments.
+     */
+    public int size(){
+        return numEnrolments;
+    }
+
+    @Override
+    public String toString(){
+        return "MappedEigenfaceModel[" + file + ", " + width + "x" + height + ", components=" + numComponents + ", enrolments=" + numEnrolments + "]";
+    }
+}
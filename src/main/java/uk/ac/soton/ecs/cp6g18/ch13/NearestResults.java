@@ -0,0 +1,118 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import org.openimaj.util.pair.IntDoublePair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The k nearest points found so far by a search, as a bounded max-heap of (index, distance) -
+ * the farthest of the k is at the root, so is the one replaced by a nearer point.
+ *
+ * @author Charles Powell
+ */
+final class NearestResults {
+
+    // member variables
+    final int k;
+    final int[] indices;
+    final double[] distances;
+    int count;
+
+    /**
+     * Class constructor.
+     *
+     * @param k The number of points to keep.
+     */
+    NearestResults(int k){
+        this.k = k;
+        this.indices = new int[k];
+        this.distances = new double[k];
+        this.count = 0;
+    }
+
+    /**
+     * Returns the distance beyond which points are of no interest (the distance of the k-th
+     * nearest point, or infinity if fewer than k points have been offered).
+     *
+     * @return The bound.
+     */
+    double bound(){
+        return count < k ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    /**
+     * Offers a point, which is kept if it is one of the k nearest so far.
+     *
+     * @param index The index of the point.
+     * @param distance The distance of the point.
+     */
+    void offer(int index, double distance){
+        if(count < k){
+            // sift up
+            int i = count++;
+            while(i > 0){
+                int parent = (i - 1) >>> 1;
+                if(distances[parent] >= distance){
+                    break;
+                }
+                indices[i] = indices[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            indices[i] = index;
+            distances[i] = distance;
+        }
+        else if(distance < distances[0]){
+            // replace the root and sift down
+            int i = 0;
+            while(true){
+                int child = 2 * i + 1;
+                if(child >= count){
+                    break;
+                }
+                if(child + 1 < count && distances[child + 1] > distances[child]){
+                    child++;
+                }
+                if(distances[child] <= distance){
+                    break;
+                }
+                indices[i] = indices[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            indices[i] = index;
+            distances[i] = distance;
+        }
+    }
+
+    /**
+     * Returns the points, nearest first (and by index, for equal distances).
+     *
+     * @return The points.
+     */
+    List<IntDoublePair> toList(){
+        List<IntDoublePair> list = new ArrayList<IntDoublePair>(count);
+        for(int i = 0; i < count; i++){
+            list.add(new IntDoublePair(indices[i], distances[i]));
+        }
+        sort(list);
+        return list;
+    }
+
+    /**
+     * Sorts (index, distance) pairs by distance, and then by index.
+     *
+     * @param list The pairs.
+     */
+    static void sort(List<IntDoublePair> list){
+        Collections.sort(list, new Comparator<IntDoublePair>() {
+            public int compare(IntDoublePair a, IntDoublePair b) {
+                int c = Double.compare(a.second, b.second);
+                return c != 0 ? c : Integer.compare(a.first, b.first);
+            }
+        });
+    }
+}
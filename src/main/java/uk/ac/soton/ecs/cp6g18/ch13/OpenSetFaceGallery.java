@@ -0,0 +1,259 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.util.pair.ObjectDoublePair;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Gallery of enrolled face features, labelled by person, for open-set identification - finding
+ * the nearest person only if they are closer than a threshold, and otherwise reporting the probe
+ * as unknown.
+ *
+ * Most probes of an open-set system are impostors, who are not near anyone in the gallery.
+ * Rather than computing the full distance to every enrolment and then comparing the nearest
+ * with the threshold, the search is bounded:
+ *
+ *      - The bound starts at the threshold, and drops to the distance of the nearest enrolment
+ *        found so far.
+ *      - The (squared) distance to each enrolment is summed a few dimensions at a time, and
+ *        abandoned as soon as the partial sum exceeds the bound.
+ *      - The dimensions are summed in order of decreasing variance over the gallery (the
+ *        features are stored in that order), so the partial sums grow fastest at the start and
+ *        most enrolments are abandoned after only a few dimensions.
+ *
+ * So, an impostor is rejected after a few dimensions of each enrolment, and a genuine probe
+ * quickly finds a near enrolment, which then bounds the rest of the search. The answer is the
+ * same as comparing the full distances.
+ *
+ * The order of the dimensions is worked out again whenever the gallery has doubled in size.
+ * Eigenface features already have their dimensions in order of variance (of the training
+ * images), so the order is usually close to the original one.
+ *
+ * Distances are Euclidean (as given by DoubleFVComparison.EUCLIDEAN).
+ *
+ * Queries may be made from multiple threads at once, but not at the same time as an enrolment.
+ *
+ * @author Charles Powell
+ */
+public class OpenSetFaceGallery {
+
+    // constants
+    static final int INITIAL_CAPACITY = 64;
+
+    // member variables
+    final int numDimensions;
+    double[] features;
+    String[] people;
+    int size;
+    double[] sums;
+    double[] sumsOfSquares;
+    int[] order;
+    int orderedAt;
+
+    /**
+     * Class constructor (for an empty gallery).
+     *
+     * @param numDimensions The number of dimensions of the features.
+     */
+    public OpenSetFaceGallery(int numDimensions){
+        this.numDimensions = numDimensions;
+        this.features = new double[INITIAL_CAPACITY * numDimensions];
+        this.people = new String[INITIAL_CAPACITY];
+        this.size = 0;
+        this.sums = new double[numDimensions];
+        this.sumsOfSquares = new double[numDimensions];
+        this.order = new int[numDimensions];
+        for(int d = 0; d < numDimensions; d++){
+            order[d] = d;
+        }
+        this.orderedAt = 0;
+    }
+
+    /**
+     * Enrols a feature of a person.
+     *
+     * @param person The person.
+     * @param feature The feature.
+     * @return The index of the enrolment.
+     */
+    public int enrol(String person, DoubleFV feature){
+        double[] values = feature.values;
+        if(values.length != numDimensions){
+            throw new IllegalArgumentException("Expected a feature of " + numDimensions + " dimensions, got " + values.length);
+        }
+
+        if(size == people.length){
+            features = Arrays.copyOf(features, features.length * 2);
+            people = Arrays.copyOf(people, people.length * 2);
+        }
+
+        int row = size * numDimensions;
+        for(int d = 0; d < numDimensions; d++){
+            features[row + d] = values[order[d]];
+            sums[d] += values[d];
+            sumsOfSquares[d] += values[d] * values[d];
+        }
+        people[size] = person;
+        size++;
+
+        if(size >= 2 * orderedAt){
+            reorder();
+        }
+        return size - 1;
+    }
+
+    /**
+     * Reorders the dimensions of the stored features by decreasing variance over the gallery.
+     */
+    void reorder(){
+        final double[] variances = new double[numDimensions];
+        Integer[] byVariance = new Integer[numDimensions];
+        for(int d = 0; d < numDimensions; d++){
+            double mean = sums[d] / size;
+            variances[d] = sumsOfSquares[d] / size - mean * mean;
+            byVariance[d] = d;
+        }
+        Arrays.sort(byVariance, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(variances[b], variances[a]);
+            }
+        });
+
+        // moving each stored feature from the old order to the new one
+        int[] newOrder = new int[numDimensions];
+        int[] position = new int[numDimensions];
+        for(int d = 0; d < numDimensions; d++){
+            newOrder[d] = byVariance[d];
+            position[order[d]] = d;
+        }
+        double[] row = new double[numDimensions];
+        for(int i = 0; i < size; i++){
+            int offset = i * numDimensions;
+            System.arraycopy(features, offset, row, 0, numDimensions);
+            for(int d = 0; d < numDimensions; d++){
+                features[offset + d] = row[position[newOrder[d]]];
+            }
+        }
+
+        order = newOrder;
+        orderedAt = size;
+    }
+
+    /**
+     * Identifies the person nearest to a probe.
+     *
+     * @param probe The feature of the probe.
+     * @return The nearest person and their distance from the probe (null if the gallery is empty).
+     */
+    public ObjectDoublePair<String> identify(DoubleFV probe){
+        return identify(probe, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Identifies the person nearest to a probe, if they are closer than a threshold.
+     *
+     * @param probe The feature of the probe.
+     * @param threshold The threshold distance.
+     * @return The nearest person and their distance from the probe (null if no one is closer than
+     * the threshold - i.e., the probe is unknown).
+     */
+    public ObjectDoublePair<String> identify(DoubleFV probe, double threshold){
+        double[] values = probe.values;
+        if(values.length != numDimensions){
+            throw new IllegalArgumentException("Expected a feature of " + numDimensions + " dimensions, got " + values.length);
+        }
+
+        // the probe, in the order of the stored features
+        double[] q = new double[numDimensions];
+        for(int d = 0; d < numDimensions; d++){
+            q[d] = values[order[d]];
+        }
+
+        int best = -1;
+        double bound = threshold * threshold;
+        for(int i = 0; i < size; i++){
+            double distance = distance(q, features, i * numDimensions, bound);
+            if(distance < bound){
+                bound = distance;
+                best = i;
+            }
+        }
+        return best < 0 ? null : new ObjectDoublePair<String>(people[best], Math.sqrt(bound));
+    }
+
+    /**
+     * Computes the squared distance between a probe and a stored feature, abandoning the sum
+     * (checked every four dimensions) once it is at least a bound.
+     *
+     * @param q The probe (in the order of the stored features).
+     * @param features The stored features.
+     * @param offset The offset of the feature.
+     * @param bound The bound.
+     * @return The squared distance, or a partial sum of it that is at least the bound.
+     */
+    static double distance(double[] q, double[] features, int offset, double bound){
+        int n = q.length;
+        double sum = 0;
+        int d = 0;
+        for(; d + 3 < n; d += 4){
+            double diff0 = q[d] - features[offset + d];
+            double diff1 = q[d + 1] - features[offset + d + 1];
+            double diff2 = q[d + 2] - features[offset + d + 2];
+            double diff3 = q[d + 3] - features[offset + d + 3];
+            sum += diff0 * diff0 + diff1 * diff1 + diff2 * diff2 + diff3 * diff3;
+            if(sum >= bound){
+                return sum;
+            }
+        }
+        for(; d < n; d++){
+            double diff = q[d] - features[offset + d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the person of an enrolment.
+     *
+     * @param index The index of the enrolment.
+     * @return The person.
+     */
+    public String getPerson(int index){
+        return people[index];
+    }
+
+    /**
+     * Returns the feature of an enrolment.
+     *
+     * @param index The index of the enrolment.
+     * @return A copy of the feature (in its original order).
+     */
+    public double[] getFeature(int index){
+        double[] feature = new double[numDimensions];
+        int offset = index * numDimensions;
+        for(int d = 0; d < numDimensions; d++){
+            feature[order[d]] = features[offset + d];
+        }
+        return feature;
+    }
+
+    /**
+     * Returns the number of dimensions of the features.
+     *
+     * @return The number of dimensions.
+     */
+    public int numDimensions(){
+        return numDimensions;
+    }
+
+    /**
+     * Returns the number of enrolments.
+     *
+     * @return The number of enrolments.
+     */
+    public int size(){
+        return size;
+    }
+}
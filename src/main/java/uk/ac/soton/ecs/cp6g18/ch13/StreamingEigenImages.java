@@ -0,0 +1,549 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.image.FImage;
+import org.openimaj.image.feature.FImage2DoubleFV;
+import org.openimaj.math.matrix.algorithm.pca.ThinSvdPrincipalComponentAnalysis;
+import org.openimaj.ml.training.BatchTrainer;
+import org.openimaj.util.array.ArrayUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replacement for EigenImages that can learn its basis without holding every training image in
+ * memory at once.
+ *
+ * Features, reconstructions and visualisations are as given by EigenImages (the projection of
+ * the mean-centred pixels onto the principal components). The basis can be learnt in one of
+ * three modes:
+ *
+ *      - EXACT : as EigenImages does - every image is held in a single matrix, which is
+ *        decomposed with a thin SVD.
+ *      - RANDOMISED : a randomised SVD (Halko, Martinsson & Tropp). The images are streamed
+ *        through a few times (to find the mean, then once per power iteration); only a
+ *        pixels x (components + OVERSAMPLING) block and a small square matrix are held, so the
+ *        memory does not depend on the number of images.
+ *      - INCREMENTAL : the images are streamed through once, in batches of BATCH_SIZE, each
+ *        batch updating the basis (as update() does).
+ *
+ * However the basis was learnt, it can be updated with new images by update() (incremental
+ * PCA - Ross et al.), which only decomposes a matrix of the current components and the new
+ * images, so faces can be added without retraining on every image.
+ *
+ * The training images may be any Iterable - e.g., a (lazy) GroupedDataset, so that each image is
+ * only read when it is needed. In the RANDOMISED mode each image is read once per pass.
+ *
+ * If the images have fewer directions of variance than components, the remaining components are
+ * zero (so the features always have getNumComponents() dimensions).
+ *
+ * @author Charles Powell
+ */
+public class StreamingEigenImages implements BatchTrainer<FImage>, FeatureExtractor<DoubleFV, FImage> {
+
+    /**
+     * The ways the basis can be learnt.
+     */
+    public enum Mode {
+        EXACT,
+        RANDOMISED,
+        INCREMENTAL
+    }
+
+    // constants
+    static final int OVERSAMPLING = 10;
+    static final int POWER_ITERATIONS = 2;
+    static final int BATCH_SIZE = 50;
+
+    // member variables
+    final int numComponents;
+    final Mode mode;
+    final long seed;
+    int width;
+    int height;
+    int numPixels;
+    long count;
+    double[] mean;
+    double[] basis;
+    double[] eigenvalues;
+
+    /**
+     * Class constructor.
+     *
+     * @param numComponents The number of principal components (i.e., dimensions of the features).
+     * @param mode The way the basis is learnt.
+     */
+    public StreamingEigenImages(int numComponents, Mode mode){
+        this(numComponents, mode, 0);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param numComponents The number of principal components (i.e., dimensions of the features).
+     * @param mode The way the basis is learnt.
+     * @param seed The seed of the random projection (of the RANDOMISED mode).
+     */
+    public StreamingEigenImages(int numComponents, Mode mode, long seed){
+        this.numComponents = numComponents;
+        this.mode = mode;
+        this.seed = seed;
+    }
+
+    /**
+     * Learns the basis from a list of images (replacing any previous basis).
+     *
+     * @param images The images.
+     */
+    public void train(List<? extends FImage> images) {
+        train((Iterable<? extends FImage>) images);
+    }
+
+    /**
+     * Learns the basis from some images (replacing any previous basis).
+     *
+     * @param images The images.
+     */
+    public void train(Iterable<? extends FImage> images){
+        count = 0;
+        numPixels = 0;
+        switch(mode){
+            case EXACT:
+                trainExact(images);
+                break;
+            case RANDOMISED:
+                trainRandomised(images);
+                break;
+            case INCREMENTAL:
+                List<FImage> batch = new ArrayList<FImage>(BATCH_SIZE);
+                for(FImage image : images){
+                    batch.add(image);
+                    if(batch.size() == BATCH_SIZE){
+                        update(batch);
+                        batch.clear();
+                    }
+                }
+                if(!batch.isEmpty()){
+                    update(batch);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Learns the basis with a thin SVD of every image (as EigenImages does).
+     *
+     * @param images The images.
+     */
+    void trainExact(Iterable<? extends FImage> images){
+        List<double[]> data = new ArrayList<double[]>();
+        for(FImage image : images){
+            data.add(pixels(image));
+        }
+
+        ThinSvdPrincipalComponentAnalysis pca = new ThinSvdPrincipalComponentAnalysis(numComponents);
+        pca.learnBasis(data.toArray(new double[data.size()][]));
+
+        Matrix components = pca.getBasis();
+        double[] values = pca.getEigenValues();
+        basis = new double[numComponents * numPixels];
+        eigenvalues = new double[numComponents];
+        for(int c = 0; c < Math.min(numComponents, components.getColumnDimension()); c++){
+            for(int d = 0; d < numPixels; d++){
+                basis[c * numPixels + d] = components.get(d, c);
+            }
+            eigenvalues[c] = values[c];
+        }
+        mean = pca.getMean();
+        count = data.size();
+    }
+
+    /**
+     * Learns the basis with a randomised SVD.
+     *
+     * The range of the (centred) data is found by projecting it onto numComponents + OVERSAMPLING
+     * random directions, refined by POWER_ITERATIONS passes of subspace iteration, and the
+     * basis is then found by decomposing the (small) covariance of the data within that range.
+     *
+     * @param images The images.
+     */
+    void trainRandomised(Iterable<? extends FImage> images){
+        // pass 1 - the mean
+        double[] sum = null;
+        long n = 0;
+        for(FImage image : images){
+            double[] x = pixels(image);
+            if(sum == null){
+                sum = new double[numPixels];
+            }
+            for(int d = 0; d < numPixels; d++){
+                sum[d] += x[d];
+            }
+            n++;
+        }
+        if(n == 0){
+            throw new IllegalArgumentException("No images to train on");
+        }
+        for(int d = 0; d < numPixels; d++){
+            sum[d] /= n;
+        }
+        mean = sum;
+        count = n;
+
+        // pass 2 - the range of the data, from random combinations of the images
+        int l = numComponents + OVERSAMPLING;
+        Random random = new Random(seed);
+        double[] range = new double[l * numPixels];
+        for(FImage image : images){
+            double[] x = centre(pixels(image));
+            for(int j = 0; j < l; j++){
+                double w = random.nextGaussian();
+                int row = j * numPixels;
+                for(int d = 0; d < numPixels; d++){
+                    range[row + d] += w * x[d];
+                }
+            }
+        }
+
+        // subspace iterations - each pass projects the data onto the (orthonormalised) range,
+        // giving the next range and the covariance of the data within the current one
+        double[] q = range;
+        double[] covariance = null;
+        for(int iteration = 0; iteration <= POWER_ITERATIONS; iteration++){
+            orthonormalise(q, l);
+            double[] next = new double[l * numPixels];
+            covariance = new double[l * l];
+            double[] z = new double[l];
+            for(FImage image : images){
+                double[] x = centre(pixels(image));
+                for(int j = 0; j < l; j++){
+                    z[j] = dot(x, 0, q, j * numPixels, numPixels);
+                }
+                for(int j = 0; j < l; j++){
+                    if(iteration < POWER_ITERATIONS){
+                        int row = j * numPixels;
+                        for(int d = 0; d < numPixels; d++){
+                            next[row + d] += z[j] * x[d];
+                        }
+                    }
+                    for(int k = 0; k < l; k++){
+                        covariance[j * l + k] += z[j] * z[k];
+                    }
+                }
+            }
+            if(iteration < POWER_ITERATIONS){
+                q = next;
+            }
+        }
+
+        // the basis - the leading eigenvectors of the covariance, taken back to pixel space
+        setBasis(q, l, covariance, n);
+    }
+
+    /**
+     * Updates the basis with a batch of new images (incremental PCA).
+     *
+     * The current basis (scaled by its singular values), the centred new images and the shift of
+     * the mean are decomposed together, which gives the basis of every image seen so far
+     * (exactly, if the current basis held every direction of variance of the earlier images).
+     *
+     * @param images The new images.
+     */
+    public void update(List<? extends FImage> images){
+        int m = images.size();
+        if(m == 0){
+            return;
+        }
+
+        double[][] batch = new double[m][];
+        double[] batchMean = null;
+        for(int i = 0; i < m; i++){
+            batch[i] = pixels(images.get(i));
+            if(batchMean == null){
+                batchMean = new double[numPixels];
+            }
+            for(int d = 0; d < numPixels; d++){
+                batchMean[d] += batch[i][d] / m;
+            }
+        }
+
+        // the rows to decompose
+        List<double[]> rows = new ArrayList<double[]>();
+        if(count > 0){
+            for(int c = 0; c < numComponents; c++){
+                double s = Math.sqrt(eigenvalues[c] * Math.max(1, count - 1));
+                if(s > 0){
+                    double[] row = Arrays.copyOfRange(basis, c * numPixels, (c + 1) * numPixels);
+                    for(int d = 0; d < numPixels; d++){
+                        row[d] *= s;
+                    }
+                    rows.add(row);
+                }
+            }
+        }
+        for(int i = 0; i < m; i++){
+            for(int d = 0; d < numPixels; d++){
+                batch[i][d] -= batchMean[d];
+            }
+            rows.add(batch[i]);
+        }
+        double[] newMean = batchMean;
+        if(count > 0){
+            double scale = Math.sqrt((double) count * m / (count + m));
+            double[] shift = new double[numPixels];
+            newMean = new double[numPixels];
+            for(int d = 0; d < numPixels; d++){
+                shift[d] = scale * (mean[d] - batchMean[d]);
+                newMean[d] = (count * mean[d] + m * batchMean[d]) / (count + m);
+            }
+            rows.add(shift);
+        }
+
+        // decomposing the rows through their Gram matrix
+        int r = rows.size();
+        double[] packed = new double[r * numPixels];
+        for(int i = 0; i < r; i++){
+            System.arraycopy(rows.get(i), 0, packed, i * numPixels, numPixels);
+        }
+        double[] gram = new double[r * r];
+        for(int i = 0; i < r; i++){
+            for(int j = i; j < r; j++){
+                gram[i * r + j] = gram[j * r + i] = dot(packed, i * numPixels, packed, j * numPixels, numPixels);
+            }
+        }
+
+        mean = newMean;
+        count += m;
+        setBasis(packed, r, gram, count);
+    }
+
+    /**
+     * Sets the basis to the leading eigenvectors of a covariance matrix of the data within a
+     * range, taken back to pixel space.
+     *
+     * @param range The rows spanning the range, one after the other.
+     * @param l The number of rows.
+     * @param covariance The l x l scatter matrix of the data within the range (in terms of the
+     * rows - so for rows that are not orthonormal, their Gram matrix).
+     * @param n The number of images.
+     */
+    void setBasis(double[] range, int l, double[] covariance, long n){
+        Matrix matrix = new Matrix(l, l);
+        for(int i = 0; i < l; i++){
+            for(int j = 0; j < l; j++){
+                matrix.set(i, j, covariance[i * l + j]);
+            }
+        }
+        EigenvalueDecomposition eig = matrix.eig();
+        double[] values = eig.getRealEigenvalues();
+        Matrix vectors = eig.getV();
+
+        // largest first
+        Integer[] order = new Integer[l];
+        for(int i = 0; i < l; i++){
+            order[i] = i;
+        }
+        final double[] v = values;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(v[b], v[a]);
+            }
+        });
+
+        double tolerance = Math.max(v[order[0]], 0) * 1e-12;
+        double[] newBasis = new double[numComponents * numPixels];
+        double[] newEigenvalues = new double[numComponents];
+        for(int c = 0; c < Math.min(numComponents, l); c++){
+            int i = order[c];
+            if(values[i] <= tolerance){
+                break;
+            }
+            int row = c * numPixels;
+            for(int j = 0; j < l; j++){
+                double w = vectors.get(j, i);
+                int from = j * numPixels;
+                for(int d = 0; d < numPixels; d++){
+                    newBasis[row + d] += w * range[from + d];
+                }
+            }
+
+            // normalising (which also undoes the scaling of rows that are not orthonormal)
+            double norm = Math.sqrt(dot(newBasis, row, newBasis, row, numPixels));
+            for(int d = 0; d < numPixels; d++){
+                newBasis[row + d] /= norm;
+            }
+            newEigenvalues[c] = values[i] / Math.max(1, n - 1);
+        }
+        basis = newBasis;
+        eigenvalues = newEigenvalues;
+    }
+
+    /**
+     * Orthonormalises rows (modified Gram-Schmidt, twice). Rows that depend on the earlier ones
+     * are set to zero.
+     *
+     * @param rows The rows, one after the other.
+     * @param l The number of rows.
+     */
+    void orthonormalise(double[] rows, int l){
+        for(int pass = 0; pass < 2; pass++){
+            for(int i = 0; i < l; i++){
+                int a = i * numPixels;
+                double before = Math.sqrt(dot(rows, a, rows, a, numPixels));
+                for(int j = 0; j < i; j++){
+                    int b = j * numPixels;
+                    double projection = dot(rows, a, rows, b, numPixels);
+                    for(int d = 0; d < numPixels; d++){
+                        rows[a + d] -= projection * rows[b + d];
+                    }
+                }
+                double norm = Math.sqrt(dot(rows, a, rows, a, numPixels));
+                double scale = norm > 1e-10 * before ? 1 / norm : 0;
+                for(int d = 0; d < numPixels; d++){
+                    rows[a + d] *= scale;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the pixels of an image, checking that it is the same size as the others.
+     *
+     * @param image The image.
+     * @return The pixels.
+     */
+    double[] pixels(FImage image){
+        if(numPixels == 0){
+            width = image.width;
+            height = image.height;
+            numPixels = width * height;
+        }
+        else if(image.width != width || image.height != height){
+            throw new IllegalArgumentException("Expected a " + width + "x" + height + " image, got " + image.width + "x" + image.height);
+        }
+        return FImage2DoubleFV.INSTANCE.extractFeature(image).values;
+    }
+
+    /**
+     * Centres pixels on the mean (in place).
+     *
+     * @param x The pixels.
+     * @return The centred pixels.
+     */
+    double[] centre(double[] x){
+        for(int d = 0; d < numPixels; d++){
+            x[d] -= mean[d];
+        }
+        return x;
+    }
+
+    /**
+     * Computes the dot product of two vectors held in arrays.
+     */
+    static double dot(double[] a, int offsetA, double[] b, int offsetB, int n){
+        double sum = 0;
+        for(int d = 0; d < n; d++){
+            sum += a[offsetA + d] * b[offsetB + d];
+        }
+        return sum;
+    }
+
+    /**
+     * Extracts the feature of an image - its projection onto the principal components.
+     */
+    public DoubleFV extractFeature(FImage image) {
+        double[] x = centre(pixels(image));
+        double[] feature = new double[numComponents];
+        for(int c = 0; c < numComponents; c++){
+            feature[c] = dot(x, 0, basis, c * numPixels, numPixels);
+        }
+        return new DoubleFV(feature);
+    }
+
+    /**
+     * Extracts the features of a batch of images at once, as a blocked matrix product (see
+     * BatchProjection). The features are the same as extractFeature() gives for each image.
+     *
+     * @param images The images.
+     * @return The features, packed one after the other (getNumComponents() values per image).
+     */
+    public double[] extractFeatures(Iterable<? extends FImage> images){
+        return BatchProjection.project(images, width, height, mean, basis, numComponents);
+    }
+
+    /**
+     * Reconstructs an image from its feature.
+     *
+     * @param feature The feature.
+     * @return The reconstructed image.
+     */
+    public FImage reconstruct(DoubleFV feature){
+        return reconstruct(feature.values);
+    }
+
+    /**
+     * Reconstructs an image from its feature.
+     *
+     * @param feature The feature.
+     * @return The reconstructed image.
+     */
+    public FImage reconstruct(double[] feature){
+        double[] x = mean.clone();
+        for(int c = 0; c < numComponents; c++){
+            int row = c * numPixels;
+            for(int d = 0; d < numPixels; d++){
+                x[d] += feature[c] * basis[row + d];
+            }
+        }
+        return new FImage(ArrayUtils.reshapeFloat(x, width, height));
+    }
+
+    /**
+     * Draws a principal component as a (normalised) image.
+     *
+     * @param index The index of the component.
+     * @return The image of the component.
+     */
+    public FImage visualisePC(int index){
+        double[] component = Arrays.copyOfRange(basis, index * numPixels, (index + 1) * numPixels);
+        return new FImage(ArrayUtils.reshapeFloat(component, width, height)).normalise();
+    }
+
+    /**
+     * Returns the variance of the images along each principal component.
+     *
+     * @return The variances (eigenvalues).
+     */
+    public double[] getEigenValues(){
+        return eigenvalues.clone();
+    }
+
+    /**
+     * Returns the number of images the basis has been learnt from.
+     *
+     * @return The number of images.
+     */
+    public long getNumImages(){
+        return count;
+    }
+
+    /**
+     * Returns the number of principal components (i.e., dimensions of the features).
+     *
+     * @return The number of components.
+     */
+    public int getNumComponents(){
+        return numComponents;
+    }
+
+    @Override
+    public String toString(){
+        return "StreamingEigenImages[mode=" + mode + ", components=" + numComponents + ", images=" + count + "]";
+    }
+}
@@ -0,0 +1,113 @@
+package uk.ac.soton.ecs.cp6g18.common;
+
+import org.openimaj.data.dataset.Dataset;
+import org.openimaj.data.identity.Identifiable;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fingerprint of the inputs of a trained artifact.
+ *
+ * Parameters are added as name/value pairs, in a fixed order, and the training records
+ * are added by ID (in sorted order, so the order of iteration does not matter). The
+ * fingerprint is the SHA-256 hash of the result.
+ *
+ * Stores (QuantiserStore, and the eigenface models of chapter 13) file their artifacts under
+ * the fingerprint, so an artifact is never reused for different inputs.
+ *
+ * @author Charles Powell
+ */
+public class Fingerprint {
+
+    // member variables
+    final StringBuilder description = new StringBuilder();
+
+    /**
+     * Adds a named parameter to the fingerprint.
+     *
+     * @param name The name of the parameter.
+     * @param value The value of the parameter (arrays are expanded).
+     * @return This fingerprint.
+     */
+    public Fingerprint add(String name, Object value){
+        String text;
+        if(value instanceof int[]){
+            text = Arrays.toString((int[]) value);
+        }
+        else if(value instanceof float[]){
+            text = Arrays.toString((float[]) value);
+        }
+        else if(value instanceof Object[]){
+            text = Arrays.deepToString((Object[]) value);
+        }
+        else{
+            text = String.valueOf(value);
+        }
+        description.append(name).append('=').append(text).append('\n');
+        return this;
+    }
+
+    /**
+     * Adds the IDs of the training records to the fingerprint.
+     *
+     * @param records The training records.
+     * @return This fingerprint.
+     */
+    public Fingerprint addRecords(Dataset<? extends Identifiable> records){
+        List<String> ids = new ArrayList<String>();
+        for(Identifiable record : records){
+            ids.add(record.getID());
+        }
+        return addIDs(ids);
+    }
+
+    /**
+     * Adds the IDs of the training records to the fingerprint.
+     *
+     * @param ids The IDs of the training records.
+     * @return This fingerprint.
+     */
+    public Fingerprint addIDs(Collection<String> ids){
+        List<String> sorted = new ArrayList<String>(ids);
+        Collections.sort(sorted);
+
+        description.append("records=").append(sorted.size()).append('\n');
+        for(String id : sorted){
+            description.append(id).append('\n');
+        }
+        return this;
+    }
+
+    /**
+     * Returns the fingerprint as a hexadecimal SHA-256 hash.
+     *
+     * @return The hash.
+     */
+    public String toHex(){
+        try{
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(description.toString().getBytes(Charset.forName("UTF-8")));
+            StringBuilder hex = new StringBuilder();
+            for(byte b : hash){
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        }
+        catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException("SHA-256 is unavailable", e);
+        }
+    }
+
+    /**
+     * Returns the (un-hashed) description of the fingerprint.
+     */
+    public String toString(){
+        return description.toString();
+    }
+}
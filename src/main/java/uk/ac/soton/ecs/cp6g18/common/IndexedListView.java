@@ -0,0 +1,150 @@
+package uk.ac.soton.ecs.cp6g18.common;
+
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.ReadableListDataset;
+import org.openimaj.data.identity.Identifiable;
+
+import java.util.AbstractList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Read-only view of a subset of a ListDataset, given by the indices of its instances.
+ *
+ * The view holds only the source dataset and an array of indices. An instance is read from the
+ * source each time it is asked for, and is not kept by the view, so a view over a VFS dataset
+ * reads (and decodes) its images as they are used rather than up front, and holds no more
+ * memory however large its instances are.
+ *
+ * The cost is paid on every read - a view over a remote dataset (such as a zip file over http)
+ * reads and decodes an image again each time it is used, so an algorithm making several passes
+ * over the view (such as randomised PCA) pays for reading the images on every pass. For such
+ * uses, cached() gives a view that keeps each instance once it has been read (holding the
+ * memory of every instance read so far, so only for datasets that fit in memory).
+ *
+ * @author Charles Powell
+ */
+public class IndexedListView<INSTANCE> extends AbstractList<INSTANCE> implements ListDataset<INSTANCE> {
+
+    // member variables
+    final ListDataset<INSTANCE> source;
+    final int[] indices;
+    final AtomicReferenceArray<INSTANCE> cache;
+    final Random random = new Random();
+
+    /**
+     * Class constructor.
+     *
+     * @param source The source dataset.
+     * @param indices The indices (into the source) of the instances of the view, in order.
+     */
+    public IndexedListView(ListDataset<INSTANCE> source, int[] indices){
+        this(source, indices, false);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param source The source dataset.
+     * @param indices The indices (into the source) of the instances of the view, in order.
+     * @param cached Whether the view keeps each instance once it has been read.
+     */
+    IndexedListView(ListDataset<INSTANCE> source, int[] indices, boolean cached){
+        this.source = source;
+        this.indices = indices;
+        this.cache = cached ? new AtomicReferenceArray<INSTANCE>(indices.length) : null;
+    }
+
+    /**
+     * Returns a view of the same instances that keeps each instance once it has been read, so
+     * it is only read from the source once.
+     *
+     * The instances are shared by every read, so should not be modified.
+     *
+     * @return The cached view (this view, if it is already cached).
+     */
+    public IndexedListView<INSTANCE> cached(){
+        return cache != null ? this : new IndexedListView<INSTANCE>(source, indices, true);
+    }
+
+    /**
+     * Returns whether the view keeps its instances once they have been read.
+     *
+     * @return Whether the view is cached.
+     */
+    public boolean isCached(){
+        return cache != null;
+    }
+
+    /**
+     * Returns the index in the source dataset of an instance of the view.
+     *
+     * @param i The index of the instance in the view.
+     * @return The index of the instance in the source.
+     */
+    public int getSourceIndex(int i){
+        return indices[i];
+    }
+
+    /**
+     * Returns the source dataset of the view.
+     *
+     * @return The source.
+     */
+    public ListDataset<INSTANCE> getSource(){
+        return source;
+    }
+
+    /**
+     * Returns the ID of an instance.
+     *
+     * The ID is given without reading the instance if the source is a ReadableListDataset (such
+     * as a VFSListDataset). Otherwise the instance is read, and its ID given if it is
+     * Identifiable.
+     *
+     * @param i The index of the instance in the view.
+     * @return The ID, or null if there is none.
+     */
+    public String getID(int i){
+        if(source instanceof ReadableListDataset){
+            return ((ReadableListDataset<?, ?>) source).getID(indices[i]);
+        }
+        if(source instanceof IndexedListView){
+            return ((IndexedListView<?>) source).getID(indices[i]);
+        }
+        INSTANCE instance = get(i);
+        return instance instanceof Identifiable ? ((Identifiable) instance).getID() : null;
+    }
+
+    public INSTANCE getInstance(int i) {
+        if(cache == null){
+            return source.getInstance(indices[i]);
+        }
+
+        // two threads may both read an uncached instance, but only one copy is kept
+        INSTANCE instance = cache.get(i);
+        if(instance == null){
+            cache.compareAndSet(i, null, source.getInstance(indices[i]));
+            instance = cache.get(i);
+        }
+        return instance;
+    }
+
+    @Override
+    public INSTANCE get(int i){
+        return getInstance(i);
+    }
+
+    @Override
+    public int size(){
+        return indices.length;
+    }
+
+    public int numInstances() {
+        return indices.length;
+    }
+
+    public INSTANCE getRandomInstance() {
+        return getInstance(random.nextInt(indices.length));
+    }
+}
@@ -0,0 +1,78 @@
+package uk.ac.soton.ecs.cp6g18.common;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.experiment.dataset.sampling.Sampler;
+import org.openimaj.util.function.Function;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Lazy, deterministic replacement for GroupSampler.
+ *
+ * Samples a number of the groups of a grouped dataset. The sample is a LazyGroupedDataset, so
+ * the source groups are only asked for when the sampled groups are used (GroupSampler asks for
+ * every sampled group up front), and nothing of the groups that are not sampled is ever used.
+ *
+ * Without shuffling, the first groups are taken in the order of the source's getGroups() (name
+ * order for a LazyGroupedDataset). With shuffling, the groups are shuffled with the given seed,
+ * so the same seed always gives the same sample.
+ *
+ * @author Charles Powell
+ */
+public class LazyGroupSampler<KEY, INSTANCE> implements Sampler<GroupedDataset<KEY, ? extends ListDataset<INSTANCE>, INSTANCE>> {
+
+    // member variables
+    final int numGroups;
+    final boolean shuffle;
+    final long seed;
+
+    /**
+     * Class constructor.
+     *
+     * @param numGroups The number of groups to sample.
+     * @param shuffle Whether the groups should be shuffled before sampling.
+     * @param seed The seed of the shuffle.
+     */
+    public LazyGroupSampler(int numGroups, boolean shuffle, long seed){
+        this.numGroups = numGroups;
+        this.shuffle = shuffle;
+        this.seed = seed;
+    }
+
+    /**
+     * Samples the groups of a dataset.
+     *
+     * @param dataset The dataset.
+     * @return The sampled groups.
+     */
+    public LazyGroupedDataset<KEY, INSTANCE> sample(final GroupedDataset<KEY, ? extends ListDataset<INSTANCE>, INSTANCE> dataset) {
+        List<KEY> keys = new ArrayList<KEY>(dataset.getGroups());
+        if(shuffle){
+            Collections.shuffle(keys, new Random(seed));
+        }
+        keys = keys.subList(0, Math.min(numGroups, keys.size()));
+
+        return new LazyGroupedDataset<KEY, INSTANCE>(keys, new Function<KEY, ListDataset<INSTANCE>>() {
+            public ListDataset<INSTANCE> apply(KEY key) {
+                return dataset.getInstances(key);
+            }
+        });
+    }
+
+    /**
+     * Samples the groups of a dataset.
+     *
+     * @param dataset The dataset.
+     * @param numGroups The number of groups to sample.
+     * @param shuffle Whether the groups should be shuffled before sampling.
+     * @param seed The seed of the shuffle.
+     * @return The sampled groups.
+     */
+    public static <KEY, INSTANCE> LazyGroupedDataset<KEY, INSTANCE> sample(GroupedDataset<KEY, ? extends ListDataset<INSTANCE>, INSTANCE> dataset, int numGroups, boolean shuffle, long seed){
+        return new LazyGroupSampler<KEY, INSTANCE>(numGroups, shuffle, seed).sample(dataset);
+    }
+}
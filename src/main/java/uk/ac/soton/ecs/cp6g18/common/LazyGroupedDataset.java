@@ -0,0 +1,323 @@
+package uk.ac.soton.ecs.cp6g18.common;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileType;
+import org.apache.commons.vfs2.VFS;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.ReadableListDataset;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.io.InputStreamObjectReader;
+import org.openimaj.io.ObjectReader;
+import org.openimaj.util.function.Function;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Grouped dataset whose groups are only created when they are first used.
+ *
+ * The keys of the groups are known up front, but the dataset of each group is created by a
+ * loader function the first time the group is asked for, and then kept. Nothing is done for
+ * groups that are never used, so (for example) a split of the first few classes of a dataset
+ * never lists the directories of the other classes.
+ *
+ * The instances of the groups are not read by the dataset itself - the loaded groups are
+ * expected to be views that read each instance when it is asked for (e.g., a VFSListDataset,
+ * or an IndexedListView of one).
+ *
+ * Iterating over the instances of the dataset streams through the groups in key order, so
+ * only the group being iterated needs to have been loaded. numInstances() has to load every
+ * group.
+ *
+ * The dataset is read-only.
+ *
+ * @author Charles Powell
+ */
+public class LazyGroupedDataset<KEY, INSTANCE> extends AbstractMap<KEY, ListDataset<INSTANCE>> implements GroupedDataset<KEY, ListDataset<INSTANCE>, INSTANCE> {
+
+    // member variables
+    final Set<KEY> keys;
+    final Function<KEY, ListDataset<INSTANCE>> loader;
+    final ConcurrentHashMap<KEY, ListDataset<INSTANCE>> groups;
+    final Random random = new Random();
+
+    /**
+     * Class constructor.
+     *
+     * @param keys The keys of the groups (in the order the groups are iterated in).
+     * @param loader The function creating the dataset of a group from its key.
+     */
+    public LazyGroupedDataset(List<KEY> keys, Function<KEY, ListDataset<INSTANCE>> loader){
+        this.keys = Collections.unmodifiableSet(new LinkedHashSet<KEY>(keys));
+        this.loader = loader;
+        this.groups = new ConcurrentHashMap<KEY, ListDataset<INSTANCE>>();
+    }
+
+    /**
+     * Creates a grouped dataset of the sub-directories of a directory, in the same form as a
+     * VFSGroupDataset.
+     *
+     * See fromDirectory(String, ObjectReader).
+     *
+     * @param uri The URI of the directory (any URI understood by VFS, e.g. a zip file).
+     * @param reader The reader of the instances.
+     * @return The grouped dataset (with its groups in name order).
+     * @throws FileSystemException If the directory could not be listed.
+     */
+    public static <INSTANCE> LazyGroupedDataset<String, INSTANCE> fromDirectory(String uri, InputStreamObjectReader<INSTANCE> reader) throws FileSystemException {
+        return fromDirectory(uri, new VFSListDataset.FileObjectISReader<INSTANCE>(reader));
+    }
+
+    /**
+     * Creates a grouped dataset of the sub-directories of a directory, in the same form as a
+     * VFSGroupDataset (each sub-directory is a group, named after the directory, of the files
+     * it contains).
+     *
+     * Only the names of the sub-directories are listed up front. The files of a sub-directory are
+     * listed when its group is first used, and each file is read when its instance is asked for.
+     *
+     * @param uri The URI of the directory (any URI understood by VFS, e.g. a zip file).
+     * @param reader The reader of the instances.
+     * @return The grouped dataset (with its groups in name order).
+     * @throws FileSystemException If the directory could not be listed.
+     */
+    public static <INSTANCE> LazyGroupedDataset<String, INSTANCE> fromDirectory(String uri, final ObjectReader<INSTANCE, FileObject> reader) throws FileSystemException {
+        FileObject root = VFS.getManager().resolveFile(uri);
+        FileObject[] children = root.getChildren();
+        if(children == null){
+            throw new FileSystemException("Unable to list " + uri);
+        }
+
+        List<String> names = new ArrayList<String>();
+        for(FileObject child : children){
+            if(child.getType() == FileType.FOLDER && !child.isHidden()){
+                names.add(child.getName().getBaseName());
+            }
+        }
+        Collections.sort(names);
+
+        final String base = root.getName().getURI();
+        return new LazyGroupedDataset<String, INSTANCE>(names, new Function<String, ListDataset<INSTANCE>>() {
+            public ListDataset<INSTANCE> apply(String name) {
+                try{
+                    return new VFSListDataset<INSTANCE>(base + "/" + name, reader);
+                }
+                catch(FileSystemException e){
+                    throw new RuntimeException("Unable to list group " + name + " of " + base, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the dataset of a group, creating it if it has not been used before.
+     */
+    public ListDataset<INSTANCE> getInstances(KEY key) {
+        if(!keys.contains(key)){
+            return null;
+        }
+
+        ListDataset<INSTANCE> group = groups.get(key);
+        if(group == null){
+            ListDataset<INSTANCE> loaded = loader.apply(key);
+            group = groups.putIfAbsent(key, loaded);
+            if(group == null){
+                group = loaded;
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Returns a dataset of the same groups whose instances are kept once they have been read
+     * (see IndexedListView.cached()), for datasets that are passed over several times and fit
+     * in memory.
+     *
+     * The groups are still only created when they are first used.
+     *
+     * @return The cached dataset.
+     */
+    public LazyGroupedDataset<KEY, INSTANCE> cached(){
+        return new LazyGroupedDataset<KEY, INSTANCE>(new ArrayList<KEY>(keys), new Function<KEY, ListDataset<INSTANCE>>() {
+            public ListDataset<INSTANCE> apply(KEY key) {
+                ListDataset<INSTANCE> group = getInstances(key);
+                if(group instanceof IndexedListView){
+                    return ((IndexedListView<INSTANCE>) group).cached();
+                }
+
+                int[] indices = new int[group.size()];
+                for(int i = 0; i < indices.length; i++){
+                    indices[i] = i;
+                }
+                return new IndexedListView<INSTANCE>(group, indices).cached();
+            }
+        });
+    }
+
+    /**
+     * Returns the ID of every instance, as "key/ID" (e.g., "s1/1.pgm"), in iteration order.
+     *
+     * The IDs are given without reading the instances if the groups are ReadableListDatasets
+     * (such as VFSListDatasets) or IndexedListViews of them. Otherwise each instance is read,
+     * and must be Identifiable.
+     *
+     * @return The IDs.
+     * @throws IllegalArgumentException If an instance has no ID.
+     */
+    public List<String> getIDs(){
+        List<String> ids = new ArrayList<String>();
+        for(KEY key : keys){
+            ListDataset<INSTANCE> group = getInstances(key);
+            for(int i = 0; i < group.size(); i++){
+                String id;
+                if(group instanceof IndexedListView){
+                    id = ((IndexedListView<INSTANCE>) group).getID(i);
+                }
+                else if(group instanceof ReadableListDataset){
+                    id = ((ReadableListDataset<?, ?>) group).getID(i);
+                }
+                else{
+                    INSTANCE instance = group.getInstance(i);
+                    id = instance instanceof Identifiable ? ((Identifiable) instance).getID() : null;
+                }
+                if(id == null){
+                    throw new IllegalArgumentException("Instance " + i + " of group " + key + " has no ID");
+                }
+                ids.add(key + "/" + id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the number of groups that have been created so far.
+     *
+     * @return The number of loaded groups.
+     */
+    public int numLoadedGroups(){
+        return groups.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public ListDataset<INSTANCE> get(Object key){
+        return keys.contains(key) ? getInstances((KEY) key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key){
+        return keys.contains(key);
+    }
+
+    @Override
+    public int size(){
+        return keys.size();
+    }
+
+    public Set<KEY> getGroups() {
+        return keys;
+    }
+
+    @Override
+    public Set<KEY> keySet(){
+        return keys;
+    }
+
+    /**
+     * Returns the groups, each created as the iteration reaches it.
+     */
+    @Override
+    public Set<Map.Entry<KEY, ListDataset<INSTANCE>>> entrySet() {
+        return new AbstractSet<Map.Entry<KEY, ListDataset<INSTANCE>>>() {
+            public Iterator<Map.Entry<KEY, ListDataset<INSTANCE>>> iterator() {
+                final Iterator<KEY> it = keys.iterator();
+                return new Iterator<Map.Entry<KEY, ListDataset<INSTANCE>>>() {
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    public Map.Entry<KEY, ListDataset<INSTANCE>> next() {
+                        KEY key = it.next();
+                        return new AbstractMap.SimpleImmutableEntry<KEY, ListDataset<INSTANCE>>(key, getInstances(key));
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            public int size() {
+                return keys.size();
+            }
+        };
+    }
+
+    public INSTANCE getRandomInstance(KEY key) {
+        ListDataset<INSTANCE> group = getInstances(key);
+        return group == null ? null : group.getRandomInstance();
+    }
+
+    public INSTANCE getRandomInstance() {
+        List<KEY> list = new ArrayList<KEY>(keys);
+        return getRandomInstance(list.get(random.nextInt(list.size())));
+    }
+
+    /**
+     * Returns the total number of instances (creating every group).
+     */
+    public int numInstances() {
+        int total = 0;
+        for(KEY key : keys){
+            total += getInstances(key).numInstances();
+        }
+        return total;
+    }
+
+    /**
+     * Iterates over the instances of every group, in key order, creating each group as the
+     * iteration reaches it.
+     */
+    public Iterator<INSTANCE> iterator() {
+        final Iterator<KEY> groupIterator = keys.iterator();
+        return new Iterator<INSTANCE>() {
+            Iterator<INSTANCE> current = Collections.<INSTANCE>emptyList().iterator();
+
+            public boolean hasNext() {
+                while(!current.hasNext() && groupIterator.hasNext()){
+                    current = getInstances(groupIterator.next()).iterator();
+                }
+                return current.hasNext();
+            }
+
+            public INSTANCE next() {
+                if(!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public String toString(){
+        return "LazyGroupedDataset[groups=" + keys.size() + ", loaded=" + groups.size() + "]";
+    }
+}
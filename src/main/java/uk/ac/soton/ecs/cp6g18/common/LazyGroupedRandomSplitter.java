@@ -0,0 +1,171 @@
+package uk.ac.soton.ecs.cp6g18.common;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.experiment.dataset.split.TestSplitProvider;
+import org.openimaj.experiment.dataset.split.TrainSplitProvider;
+import org.openimaj.experiment.dataset.split.ValidateSplitProvider;
+import org.openimaj.util.function.Function;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lazy, deterministic replacement for GroupedRandomSplitter.
+ *
+ * GroupedRandomSplitter copies the chosen instances of every group into new lists as soon as it
+ * is created, which for a VFS dataset means reading every chosen instance (decoding each image,
+ * or for Caltech101 creating each record and parsing its annotation) before any work is done.
+ * Its choice is also different on every run.
+ *
+ * This splitter instead gives splits whose groups are IndexedListViews of the source groups -
+ * the indices of the chosen instances, which are read from the source as they are used:
+ *
+ *      - Nothing is chosen for a group until one of its splits is first used, so the time to
+ *        the first instance does not depend on the number of groups.
+ *      - The memory held by a split is an int per chosen instance.
+ *      - The instances chosen for a group depend only on the seed and the key of the group
+ *        (through its hashCode), so the same seed always gives the same splits, whatever order
+ *        the groups are used in.
+ *
+ * As with GroupedRandomSplitter, the training, validation and testing instances of a group are
+ * distinct, the testing split takes as many of the remaining instances as it can, and a group
+ * with fewer instances than the training and validation splits need is an error (reported when
+ * the group is first used). The instances left over (if the testing split can't take them all)
+ * are given by getRemainingDataset().
+ *
+ * @author Charles Powell
+ */
+public class LazyGroupedRandomSplitter<KEY, INSTANCE> implements TrainSplitProvider<GroupedDataset<KEY, ListDataset<INSTANCE>, INSTANCE>>,
+                                                                  TestSplitProvider<GroupedDataset<KEY, ListDataset<INSTANCE>, INSTANCE>>,
+                                                                  ValidateSplitProvider<GroupedDataset<KEY, ListDataset<INSTANCE>, INSTANCE>> {
+
+    // member variables
+    final GroupedDataset<KEY, ? extends ListDataset<INSTANCE>, INSTANCE> dataset;
+    final int numTraining;
+    final int numValidation;
+    final int numTesting;
+    final long seed;
+    final ConcurrentHashMap<KEY, int[]> chosen;
+    final LazyGroupedDataset<KEY, INSTANCE> training;
+    final LazyGroupedDataset<KEY, INSTANCE> validation;
+    final LazyGroupedDataset<KEY, INSTANCE> testing;
+    final LazyGroupedDataset<KEY, INSTANCE> remaining;
+
+    /**
+     * Class constructor.
+     *
+     * @param dataset The dataset to split.
+     * @param numTraining The number of training instances of each group.
+     * @param numValidation The number of validation instances of each group.
+     * @param numTesting The (maximum) number of testing instances of each group.
+     * @param seed The seed of the choice of instances.
+     */
+    public LazyGroupedRandomSplitter(GroupedDataset<KEY, ? extends ListDataset<INSTANCE>, INSTANCE> dataset, int numTraining, int numValidation, int numTesting, long seed){
+        this.dataset = dataset;
+        this.numTraining = numTraining;
+        this.numValidation = numValidation;
+        this.numTesting = numTesting;
+        this.seed = seed;
+        this.chosen = new ConcurrentHashMap<KEY, int[]>();
+
+        List<KEY> keys = new ArrayList<KEY>(dataset.getGroups());
+        this.training = new LazyGroupedDataset<KEY, INSTANCE>(keys, split(0, numTraining));
+        this.validation = new LazyGroupedDataset<KEY, INSTANCE>(keys, split(numTraining, numTraining + numValidation));
+        int numChosen = (int) Math.min(Integer.MAX_VALUE, (long) numTraining + numValidation + numTesting);
+        this.testing = new LazyGroupedDataset<KEY, INSTANCE>(keys, split(numTraining + numValidation, numChosen));
+        this.remaining = new LazyGroupedDataset<KEY, INSTANCE>(keys, split(numChosen, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Returns the loader of the groups of a split, which views a range of the chosen instances
+     * of each group.
+     *
+     * @param from The start of the range (inclusive, clipped to the number of instances).
+     * @param to The end of the range (exclusive, clipped to the number of instances).
+     * @return The loader.
+     */
+    Function<KEY, ListDataset<INSTANCE>> split(final int from, final int to){
+        return new Function<KEY, ListDataset<INSTANCE>>() {
+            public ListDataset<INSTANCE> apply(KEY key) {
+                int[] indices = choose(key);
+                int end = Math.min(to, indices.length);
+                return new IndexedListView<INSTANCE>(dataset.getInstances(key), Arrays.copyOfRange(indices, Math.min(from, end), end));
+            }
+        };
+    }
+
+    /**
+     * Chooses the instances of a group (once - later calls return the same choice).
+     *
+     * The first numTraining indices are the training instances, the next numValidation the
+     * validation instances, the next (up to) numTesting the testing instances, and the rest
+     * the remaining instances.
+     *
+     * @param key The key of the group.
+     * @return The indices of every instance of the group, in that order.
+     */
+    int[] choose(KEY key){
+        int[] indices = chosen.get(key);
+        if(indices != null){
+            return indices;
+        }
+
+        int size = dataset.getInstances(key).size();
+        if(numTraining + numValidation > size){
+            throw new RuntimeException("Group " + key + " has " + size + " instances, too few for " + numTraining + " training and " + numValidation + " validation instances");
+        }
+        int count = numTraining + numValidation + Math.min(numTesting, size - numTraining - numValidation);
+
+        // a partial Fisher-Yates shuffle, seeded by the group
+        Random random = new Random(seed ^ (key.hashCode() * 0x9E3779B97F4A7C15L));
+        int[] order = new int[size];
+        for(int i = 0; i < size; i++){
+            order[i] = i;
+        }
+        for(int i = 0; i < count; i++){
+            int j = i + random.nextInt(size - i);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        indices = order;
+
+        int[] existing = chosen.putIfAbsent(key, indices);
+        return existing != null ? existing : indices;
+    }
+
+    /**
+     * Returns the seed of the choice of instances.
+     *
+     * @return The seed.
+     */
+    public long getSeed(){
+        return seed;
+    }
+
+    public LazyGroupedDataset<KEY, INSTANCE> getTrainingDataset() {
+        return training;
+    }
+
+    public LazyGroupedDataset<KEY, INSTANCE> getValidationDataset() {
+        return validation;
+    }
+
+    public LazyGroupedDataset<KEY, INSTANCE> getTestDataset() {
+        return testing;
+    }
+
+    /**
+     * Returns the instances of each group that are in none of the splits (those the testing
+     * split had no room for).
+     *
+     * @return The remaining instances.
+     */
+    public LazyGroupedDataset<KEY, INSTANCE> getRemainingDataset() {
+        return remaining;
+    }
+}
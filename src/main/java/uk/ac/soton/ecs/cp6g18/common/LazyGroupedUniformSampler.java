@@ -0,0 +1,110 @@
+package uk.ac.soton.ecs.cp6g18.common;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.experiment.dataset.sampling.Sampler;
+import org.openimaj.util.function.Function;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Lazy, deterministic replacement for GroupedUniformRandomisedSampler.
+ *
+ * Samples a number of instances uniformly from all of the instances of a grouped dataset,
+ * keeping their groups. As with LazyGroupedRandomSplitter, the sampled groups are
+ * IndexedListViews of the source groups, so no instance is read until it is used, and the
+ * sample is chosen with the given seed, so the same seed always gives the same sample (which
+ * GroupedUniformRandomisedSampler does not - its sample is different on every run).
+ *
+ * The size of every source group is needed to choose the sample, but not its instances.
+ * Groups with no sampled instances are left out of the sample.
+ *
+ * @author Charles Powell
+ */
+public class LazyGroupedUniformSampler<KEY, INSTANCE> implements Sampler<GroupedDataset<KEY, ? extends ListDataset<INSTANCE>, INSTANCE>> {
+
+    // member variables
+    final int numInstances;
+    final long seed;
+
+    /**
+     * Class constructor.
+     *
+     * @param numInstances The number of instances to sample.
+     * @param seed The seed of the choice of instances.
+     */
+    public LazyGroupedUniformSampler(int numInstances, long seed){
+        this.numInstances = numInstances;
+        this.seed = seed;
+    }
+
+    /**
+     * Samples the instances of a dataset.
+     *
+     * @param dataset The dataset.
+     * @return The sampled instances, in their groups.
+     */
+    public LazyGroupedDataset<KEY, INSTANCE> sample(final GroupedDataset<KEY, ? extends ListDataset<INSTANCE>, INSTANCE> dataset) {
+        List<KEY> keys = new ArrayList<KEY>(dataset.getGroups());
+        int[] offsets = new int[keys.size() + 1];
+        for(int g = 0; g < keys.size(); g++){
+            offsets[g + 1] = offsets[g] + dataset.getInstances(keys.get(g)).size();
+        }
+        int total = offsets[keys.size()];
+        int count = Math.min(numInstances, total);
+
+        // a partial Fisher-Yates shuffle over the instances of all of the groups
+        Random random = new Random(seed);
+        int[] order = new int[total];
+        for(int i = 0; i < total; i++){
+            order[i] = i;
+        }
+        for(int i = 0; i < count; i++){
+            int j = i + random.nextInt(total - i);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        int[] chosen = Arrays.copyOf(order, count);
+        Arrays.sort(chosen);
+
+        // splitting the chosen instances into their groups
+        final Map<KEY, int[]> indices = new HashMap<KEY, int[]>();
+        List<KEY> sampledKeys = new ArrayList<KEY>();
+        int c = 0;
+        for(int g = 0; g < keys.size(); g++){
+            int start = c;
+            while(c < count && chosen[c] < offsets[g + 1]){
+                chosen[c] -= offsets[g];
+                c++;
+            }
+            if(c > start){
+                indices.put(keys.get(g), Arrays.copyOfRange(chosen, start, c));
+                sampledKeys.add(keys.get(g));
+            }
+        }
+
+        return new LazyGroupedDataset<KEY, INSTANCE>(sampledKeys, new Function<KEY, ListDataset<INSTANCE>>() {
+            public ListDataset<INSTANCE> apply(KEY key) {
+                return new IndexedListView<INSTANCE>(dataset.getInstances(key), indices.get(key));
+            }
+        });
+    }
+
+    /**
+     * Samples the instances of a dataset.
+     *
+     * @param dataset The dataset.
+     * @param numInstances The number of instances to sample.
+     * @param seed The seed of the choice of instances.
+     * @return The sampled instances, in their groups.
+     */
+    public static <KEY, INSTANCE> LazyGroupedDataset<KEY, INSTANCE> sample(GroupedDataset<KEY, ? extends ListDataset<INSTANCE>, INSTANCE> dataset, int numInstances, long seed){
+        return new LazyGroupedUniformSampler<KEY, INSTANCE>(numInstances, seed).sample(dataset);
+    }
+}
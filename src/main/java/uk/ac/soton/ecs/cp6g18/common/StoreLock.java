@@ -0,0 +1,66 @@
+package uk.ac.soton.ecs.cp6g18.common;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Builds an artifact of a store at most once between the threads and processes that ask for it.
+ *
+ * An artifact (e.g., a vocabulary of QuantiserStore, or a model of EigenfaceStore) is loaded if it
+ * has been published. Otherwise, an exclusive lock is taken on a lock file of the artifact, and
+ * the artifact is loaded again (another thread or process may have published it while waiting
+ * for the lock) and only built if it is still missing. So, if several threads or processes ask
+ * for the same missing artifact, one builds it and the rest load it.
+ *
+ * File locks are held per JVM, so the threads of a JVM are first serialised on a monitor of the
+ * lock file.
+ *
+ * @author Charles Powell
+ */
+public class StoreLock {
+
+    // constants
+    static final ConcurrentMap<String, Object> MONITORS = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Loads an artifact, building it under the lock first if it has not been published.
+     *
+     * @param lockPath The lock file of the artifact.
+     * @param loader Loads the artifact (giving null if it has not been published).
+     * @param builder Builds and publishes the artifact, giving the published artifact.
+     * @return The artifact.
+     * @throws Exception If the artifact could not be loaded or built.
+     */
+    public static <T> T getOrBuild(File lockPath, Callable<T> loader, Callable<T> builder) throws Exception {
+        T artifact = loader.call();
+        if(artifact != null){
+            return artifact;
+        }
+
+        lockPath = lockPath.getCanonicalFile();
+        Object monitor = new Object();
+        Object existing = MONITORS.putIfAbsent(lockPath.getPath(), monitor);
+        monitor = existing != null ? existing : monitor;
+
+        synchronized(monitor){
+            RandomAccessFile lockFile = new RandomAccessFile(lockPath, "rw");
+            try{
+                FileLock lock = lockFile.getChannel().lock();
+                try{
+                    artifact = loader.call();
+                    return artifact != null ? artifact : builder.call();
+                }
+                finally{
+                    lock.release();
+                }
+            }
+            finally{
+                lockFile.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.processing.convolution.FGaussianConvolve;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.SolverType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for ClassificationService (and the PHOWModel it serves), over the loopback address.
+ *
+ * @author Charles Powell
+ */
+public class ClassificationServiceTest {
+
+    static TemporaryFolder folder = new TemporaryFolder();
+
+    static List<File> images = new ArrayList<File>();
+    static PHOWModel model;
+    static ClassificationService service;
+    static int port;
+
+    /**
+     * Writes a few images of two (made up) classes, trains a small model on them, and starts
+     * the service for the model (after writing it and reading it back).
+     */
+    @BeforeClass
+    public static void startService() throws Exception {
+        folder.create();
+        Linear.disableDebugOutput();
+        Random random = new Random(3204);
+        File imageDir = folder.newFolder("images");
+
+        // smooth and sharp noise
+        MapBackedDataset<String, ListDataset<FImage>, FImage> training = new MapBackedDataset<String, ListDataset<FImage>, FImage>();
+        for(String name : new String[]{ "smooth", "sharp" }){
+            List<FImage> group = new ArrayList<FImage>();
+            for(int i = 0; i < 6; i++){
+                FImage image = new FImage(64, 64);
+                for(int y = 0; y < image.height; y++){
+                    for(int x = 0; x < image.width; x++){
+                        image.pixels[y][x] = random.nextFloat();
+                    }
+                }
+                if(name.equals("smooth")){
+                    image.processInplace(new FGaussianConvolve(3f));
+                }
+                group.add(image);
+
+                File file = new File(imageDir, name + "-" + i + ".png");
+                ImageUtilities.write(image, file);
+                images.add(file);
+            }
+            training.put(name, new ListBackedDataset<FImage>(group));
+        }
+
+        ByteCentroidsResult vocabulary = new ByteCentroidsResult();
+        vocabulary.centroids = new byte[16][128];
+        for(byte[] centroid : vocabulary.centroids){
+            random.nextBytes(centroid);
+        }
+
+        final PooledPHOWExtractor extractor = new PooledPHOWExtractor(new MultiScaleDenseSIFT(4, 6f, 4, 6), new FlatByteAssigner(vocabulary), PooledPHOWExtractor.Aggregation.PYRAMID, 2);
+        SparseLiblinearAnnotator<FImage, String> annotator = new SparseLiblinearAnnotator<FImage, String>(new FeatureExtractor<SparseDoubleFV, FImage>() {
+            public SparseDoubleFV extractFeature(FImage image) {
+                return extractor.extractSparseFeature(image);
+            }
+        }, SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
+        annotator.train(training);
+
+        File modelDir = new File(folder.getRoot(), "model");
+        new PHOWModel(4, 6f, new int[]{ 4, 6 }, PooledPHOWExtractor.Aggregation.PYRAMID, new int[]{ 2 }, vocabulary, annotator).write(modelDir);
+        model = PHOWModel.read(modelDir);
+
+        service = new ClassificationService(model, 4, 5, 64, 2, 0);
+        port = service.start(0);
+    }
+
+    @AfterClass
+    public static void stopService() throws IOException {
+        if(service != null){
+            service.close();
+        }
+        folder.delete();
+    }
+
+    @Test
+    public void annotationsMatchTheModel() throws IOException {
+        PooledPHOWExtractor extractor = model.createExtractor();
+        SparseLiblinearAnnotator<?, String> annotator = model.createAnnotator(extractor);
+
+        // formats responses the same way as the running service (top 2 classes)
+        ClassificationService formatter = new ClassificationService(model, 1, 0, 1, 2, 0);
+
+        ClassificationService.Client client = new ClassificationService.Client(port);
+        try{
+            for(File file : images){
+                String expected = formatter.respond(annotator.annotate(extractor.extractSparseFeature(ImageUtilities.readF(file))));
+                assertEquals(expected, client.annotate(file));
+            }
+            assertTrue(client.stats().startsWith("STATS requests="));
+        }
+        finally{
+            client.close();
+        }
+    }
+
+    @Test
+    public void failuresAreSingleLineErrors() throws IOException {
+        ClassificationService.Client client = new ClassificationService.Client(port);
+        try{
+            String missing = client.annotate(new File(folder.getRoot(), "missing.png"));
+            assertTrue(missing, missing.startsWith("ERROR "));
+            assertFalse(missing, missing.equals("ERROR null"));
+
+            assertEquals("ERROR unknown request", client.request("CLASSIFY"));
+
+            // the connection is still usable
+            assertTrue(client.annotate(images.get(0)).startsWith("OK "));
+        }
+        finally{
+            client.close();
+        }
+    }
+
+    @Test
+    public void errorsAreSanitised() {
+        assertEquals("ERROR NullPointerException", ClassificationService.error(new NullPointerException()));
+        assertEquals("ERROR first line second line", ClassificationService.error(new IOException(" first line\r\n  second line\n")));
+        assertEquals("ERROR busy", ClassificationService.error(new RuntimeException("busy")));
+    }
+
+    @Test
+    public void writingReplacesTheModelAtomically() throws IOException {
+        File modelDir = new File(folder.getRoot(), "rewritten");
+        model.write(modelDir);
+        model.write(modelDir);
+
+        // only the model directory is left - no temporary or old copies
+        String[] names = folder.getRoot().list();
+        for(String name : names){
+            assertFalse(name, name.startsWith("rewritten") && !name.equals("rewritten"));
+        }
+        assertEquals(model.labels, PHOWModel.read(modelDir).labels);
+    }
+
+    /**
+     * Returns a task that annotates an image over its own connection.
+     */
+    static Callable<String> annotation(final int port, final File image){
+        return new Callable<String>() {
+            public String call() throws IOException {
+                ClassificationService.Client client = new ClassificationService.Client(port);
+                try{
+                    return client.annotate(image);
+                }
+                finally{
+                    client.close();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void concurrentClientsAreBatchedTogether() throws Exception {
+        // a batch of 4 waits up to 10s to fill, so 4 concurrent requests form a single batch
+        ClassificationService batching = new ClassificationService(model, 4, 10000, 64, 2, 0);
+        int batchingPort = batching.start(0);
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        try{
+            List<Future<String>> responses = new ArrayList<Future<String>>();
+            for(int i = 0; i < 4; i++){
+                responses.add(clients.submit(annotation(batchingPort, images.get(i))));
+            }
+
+            ClassificationService.Client client = new ClassificationService.Client(port);
+            try{
+                for(int i = 0; i < 4; i++){
+                    assertEquals(client.annotate(images.get(i)), responses.get(i).get());
+                }
+            }
+            finally{
+                client.close();
+            }
+
+            assertEquals(1, batching.batches.get());
+            assertEquals(4, batching.batched.get());
+            assertTrue(batching.stats(), batching.stats().contains("batches=1 meanBatch=4.0"));
+        }
+        finally{
+            clients.shutdownNow();
+            batching.close();
+        }
+    }
+
+    @Test
+    public void requestsBeyondTheQueueAreRejected() throws Exception {
+        // a queue of one request, behind a batch that is held until released
+        final CountDownLatch processing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ClassificationService held = new ClassificationService(model, 1, 0, 1, 2, 0) {
+            @Override
+            void process(List<Request> batch) {
+                processing.countDown();
+                try{
+                    release.await();
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+                super.process(batch);
+            }
+        };
+        int heldPort = held.start(0);
+        ExecutorService clients = Executors.newFixedThreadPool(2);
+        try{
+            // the first request is being processed, and the second fills the queue
+            Future<String> first = clients.submit(annotation(heldPort, images.get(0)));
+            processing.await();
+            Future<String> second = clients.submit(annotation(heldPort, images.get(1)));
+            while(held.queue.size() < 1){
+                Thread.sleep(1);
+            }
+
+            ClassificationService.Client client = new ClassificationService.Client(heldPort);
+            try{
+                assertEquals("ERROR busy", client.annotate(images.get(2)));
+                assertEquals(1, held.rejected.get());
+                assertTrue(client.stats().contains("rejected=1"));
+
+                // the queued requests are still answered
+                release.countDown();
+                assertTrue(first.get().startsWith("OK "));
+                assertTrue(second.get().startsWith("OK "));
+                assertTrue(client.annotate(images.get(2)).startsWith("OK "));
+            }
+            finally{
+                client.close();
+            }
+        }
+        finally{
+            release.countDown();
+            clients.shutdownNow();
+            held.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.openimaj.ml.annotation.AnnotatedObject;
+import org.openimaj.ml.annotation.ScoredAnnotation;
+
+import de.bwaldvogel.liblinear.SolverType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for CoarseToFineAnnotator.
+ *
+ * @author Charles Powell
+ */
+public class CoarseToFineAnnotatorTest {
+
+    // constants
+    static final String RIGHT = "right";
+    static final String WRONG = "wrong";
+
+    /**
+     * Annotator that gives scripted annotations, and counts the objects it annotates.
+     */
+    static class Scripted extends SparseLiblinearAnnotator<Integer, String> {
+
+        // member variables
+        final Map<Integer, List<ScoredAnnotation<String>>> results = new HashMap<Integer, List<ScoredAnnotation<String>>>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        Scripted(){
+            super(null, SolverType.L2R_L2LOSS_SVC, 1.0, 0.01);
+        }
+
+        /**
+         * Scripts the annotations of an object - the best annotation, and the margin to the
+         * second best.
+         */
+        void script(int object, boolean right, double margin){
+            List<ScoredAnnotation<String>> annotations = new ArrayList<ScoredAnnotation<String>>();
+            annotations.add(new ScoredAnnotation<String>(right ? RIGHT : WRONG, (float) margin));
+            annotations.add(new ScoredAnnotation<String>(right ? WRONG : RIGHT, 0f));
+            results.put(object, annotations);
+        }
+
+        @Override
+        public List<ScoredAnnotation<String>> annotate(Integer object) {
+            calls.incrementAndGet();
+            return results.get(object);
+        }
+    }
+
+    // member variables
+    Scripted coarse = new Scripted();
+    Scripted fine = new Scripted();
+    List<AnnotatedObject<Integer, String>> validation = new ArrayList<AnnotatedObject<Integer, String>>();
+
+    /**
+     * Adds a validation object with the given coarse margin, and whether the coarse and fine
+     * annotators are right about it.
+     */
+    void add(double margin, boolean coarseRight, boolean fineRight){
+        int object = validation.size();
+        coarse.script(object, coarseRight, margin);
+        fine.script(object, fineRight, 1.0);
+        validation.add(new AnnotatedObject<Integer, String>(object, RIGHT));
+    }
+
+    CoarseToFineAnnotator<Integer, String> annotator(){
+        return new CoarseToFineAnnotator<Integer, String>(coarse, fine, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Fills the validation data with objects whose best confidence depends on the tolerance.
+     *
+     * The fine annotator gets 6 of the 8 right. Exiting at a margin of 9 loses nothing, at 6 loses
+     * one, at 5 loses one, at 4 loses nothing, at 3 loses one and at 2 loses two.
+     */
+    void addValidation(){
+        add(9, true, true);
+        add(6, true, false);
+        add(6, false, true);
+        add(6, false, true);
+        add(5, true, true);
+        add(4, true, false);
+        add(3, false, true);
+        add(2, false, true);
+    }
+
+    @Test
+    public void calibrateChoosesTheLowestConfidenceWithinTheTolerance() {
+        addValidation();
+        CoarseToFineAnnotator<Integer, String> annotator = annotator();
+
+        // the lowest confidence at which nothing is lost (not the last before the first loss)
+        assertEquals(4, annotator.calibrate(validation, 0), 0);
+        assertEquals(4, annotator.getConfidence(), 0);
+
+        // giving up one object in eight
+        assertEquals(3, annotator.calibrate(validation, 1.0 / 8), 0);
+
+        // giving up everything the coarse annotator gets wrong
+        assertEquals(2, annotator.calibrate(validation, 1), 0);
+    }
+
+    @Test
+    public void calibrateExitsObjectsOfEqualMarginTogether() {
+        // exiting the first object alone would gain one, but the three of them lose one
+        add(2, true, false);
+        add(2, false, true);
+        add(2, false, true);
+
+        assertEquals(Double.POSITIVE_INFINITY, annotator().calibrate(validation, 0), 0);
+    }
+
+    @Test
+    public void earlyExitSkipsTheFinePass() {
+        addValidation();
+        CoarseToFineAnnotator<Integer, String> annotator = annotator();
+        annotator.setConfidence(5);
+
+        // margins of 9, 6, 6, 6 and 5 exit
+        for(int object = 0; object < 5; object++){
+            assertEquals(coarse.results.get(object), annotator.annotate(object));
+        }
+        assertEquals(5, coarse.calls.get());
+        assertEquals(0, fine.calls.get());
+        assertEquals(5, annotator.exits.get());
+        assertEquals(0, annotator.refinements.get());
+
+        // margins of 4, 3 and 2 are refined
+        for(int object = 5; object < 8; object++){
+            assertEquals(fine.results.get(object), annotator.annotate(object));
+        }
+        assertEquals(8, coarse.calls.get());
+        assertEquals(3, fine.calls.get());
+        assertEquals(5, annotator.exits.get());
+        assertEquals(3, annotator.refinements.get());
+
+        // classify() goes the same way
+        assertEquals(6, annotator.classify(2).getConfidence(WRONG), 0);
+        assertEquals(1, annotator.classify(7).getConfidence(RIGHT), 0);
+        assertEquals(4, fine.calls.get());
+        assertEquals(6, annotator.exits.get());
+        assertEquals(4, annotator.refinements.get());
+
+        annotator.resetStatistics();
+        assertEquals(0, annotator.exits.get());
+        assertEquals(0, annotator.refinements.get());
+    }
+}
@@ -0,0 +1,110 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.openimaj.image.FImage;
+
+import java.util.Random;
+
+/**
+ * Tests for DecodedImageCache.
+ *
+ * @author Charles Powell
+ */
+public class DecodedImageCacheTest {
+
+    static FImage image(Random random, int width, int height){
+        FImage image = new FImage(width, height);
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                image.pixels[y][x] = random.nextFloat();
+            }
+        }
+        return image;
+    }
+
+    static void assertSameImage(FImage expected, FImage actual){
+        assertEquals(expected.width, actual.width);
+        assertEquals(expected.height, actual.height);
+        for(int y = 0; y < expected.height; y++){
+            assertArrayEquals(expected.pixels[y], actual.pixels[y], 0f);
+        }
+    }
+
+    @Test
+    public void imagesAreReadBackExactly() {
+        Random random = new Random(1);
+        for(DecodedImageCache.Storage storage : new DecodedImageCache.Storage[]{ DecodedImageCache.Storage.ON_HEAP, DecodedImageCache.Storage.OFF_HEAP }){
+            DecodedImageCache cache = new DecodedImageCache(1024 * 1024, storage);
+            FImage image = image(random, 37, 23);
+            cache.put("image", image);
+            assertSameImage(image, cache.get("image"));
+
+            // every read is a new copy
+            cache.get("image").pixels[0][0] = -1f;
+            assertSameImage(image, cache.get("image"));
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedImagesAreEvicted() {
+        Random random = new Random(2);
+        for(DecodedImageCache.Storage storage : new DecodedImageCache.Storage[]{ DecodedImageCache.Storage.ON_HEAP, DecodedImageCache.Storage.OFF_HEAP }){
+            // room for two 10x10 images
+            DecodedImageCache cache = new DecodedImageCache(2 * 4 * 100, storage);
+            cache.put("a", image(random, 10, 10));
+            cache.put("b", image(random, 10, 10));
+            cache.get("a");
+            cache.put("c", image(random, 10, 10));
+
+            assertEquals(2, cache.getCount());
+            assertEquals(800, cache.getSize());
+            assertNull(cache.get("b"));
+        }
+    }
+
+    @Test
+    public void greyImagesAreReadBackWithinAGreyLevel() {
+        Random random = new Random(3);
+        DecodedImageCache cache = new DecodedImageCache(1024 * 1024, DecodedImageCache.Storage.OFF_HEAP_GREY8);
+        FImage image = image(random, 37, 23);
+        image.pixels[0][0] = -0.5f;
+        image.pixels[0][1] = 1.5f;
+        cache.put("image", image);
+        assertEquals(37 * 23, cache.getSize());
+
+        FImage read = cache.get("image");
+        assertEquals(image.width, read.width);
+        assertEquals(image.height, read.height);
+        for(int y = 0; y < image.height; y++){
+            for(int x = 0; x < image.width; x++){
+                float expected = Math.max(0f, Math.min(1f, image.pixels[y][x]));
+                assertEquals(expected, read.pixels[y][x], 1f / 510 + 1e-6f);
+            }
+        }
+
+        // every read is a new copy
+        FImage copy = read.clone();
+        read.pixels[1][1] = -1f;
+        assertSameImage(copy, cache.get("image"));
+    }
+
+    @Test
+    public void greyImagesTakeAQuarterOfTheBudget() {
+        Random random = new Random(4);
+        // the budget of two full precision 10x10 images
+        DecodedImageCache cache = new DecodedImageCache(2 * 4 * 100, DecodedImageCache.Storage.OFF_HEAP_GREY8);
+        for(int i = 0; i < 8; i++){
+            cache.put("image-" + i, image(random, 10, 10));
+        }
+        assertEquals(8, cache.getCount());
+        assertEquals(800, cache.getSize());
+
+        cache.put("image-8", image(random, 10, 10));
+        assertEquals(8, cache.getCount());
+        assertNull(cache.get("image-0"));
+    }
+}
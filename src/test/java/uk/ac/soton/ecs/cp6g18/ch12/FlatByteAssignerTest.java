@@ -0,0 +1,128 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+import org.openimaj.ml.clustering.assignment.hard.ExactByteAssigner;
+import org.openimaj.util.pair.IntFloatPair;
+
+import java.util.Random;
+
+/**
+ * Tests for FlatByteAssigner.
+ *
+ * @author Charles Powell
+ */
+public class FlatByteAssignerTest {
+
+    // constants
+    static final int DIMS = 128;
+
+    static byte[] random(Random random){
+        byte[] descriptor = new byte[DIMS];
+        random.nextBytes(descriptor);
+        return descriptor;
+    }
+
+    /**
+     * Returns random centroids, some of them repeated (so that ties must be broken by the lowest
+     * index).
+     */
+    static byte[][] centroids(Random random, int count){
+        byte[][] centroids = new byte[count][];
+        for(int c = 0; c < count; c++){
+            centroids[c] = c % 7 == 6 ? centroids[c - 3].clone() : random(random);
+        }
+        return centroids;
+    }
+
+    /**
+     * Returns descriptors that drift from centroid to centroid (as neighbouring dense SIFT
+     * descriptors do, so that the bound of the previous descriptor is often the answer), with
+     * some exact copies of centroids and some descriptors at random.
+     */
+    static byte[][] descriptors(Random random, byte[][] centroids, int count){
+        byte[][] descriptors = new byte[count][];
+        byte[] current = centroids[0].clone();
+        for(int i = 0; i < count; i++){
+            if(i % 50 == 0){
+                current = centroids[random.nextInt(centroids.length)].clone();
+            }
+            if(i % 17 == 0){
+                descriptors[i] = random(random);
+            }
+            else if(i % 11 == 0){
+                descriptors[i] = centroids[random.nextInt(centroids.length)].clone();
+            }
+            else{
+                for(int d = 0; d < DIMS; d++){
+                    current[d] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, current[d] + random.nextInt(21) - 10));
+                }
+                descriptors[i] = current.clone();
+            }
+        }
+        return descriptors;
+    }
+
+    @Test
+    public void agreesWithTheExactAssigner() {
+        Random random = new Random(3204);
+        for(int numClusters : new int[]{ 1, 2, 37, 300 }){
+            ByteCentroidsResult vocabulary = new ByteCentroidsResult();
+            vocabulary.centroids = centroids(random, numClusters);
+            byte[][] descriptors = descriptors(random, vocabulary.centroids, 2000);
+
+            ExactByteAssigner exact = new ExactByteAssigner(vocabulary);
+            FlatByteAssigner flat = new FlatByteAssigner(vocabulary);
+            assertEquals(numClusters, flat.size());
+            assertEquals(DIMS, flat.numDimensions());
+
+            // one descriptor at a time
+            int[] expected = exact.assign(descriptors);
+            for(int i = 0; i < descriptors.length; i++){
+                assertEquals(expected[i], flat.assign(descriptors[i]));
+
+                IntFloatPair expectedPair = exact.assignDistance(descriptors[i]);
+                IntFloatPair pair = flat.assignDistance(descriptors[i]);
+                assertEquals(expectedPair.first, pair.first);
+                assertEquals(expectedPair.second, pair.second, 0);
+            }
+
+            // a block of descriptors
+            assertArrayEquals(expected, flat.assign(descriptors));
+
+            int[] expectedIndices = new int[descriptors.length];
+            float[] expectedDistances = new float[descriptors.length];
+            exact.assignDistance(descriptors, expectedIndices, expectedDistances);
+            int[] indices = new int[descriptors.length];
+            float[] distances = new float[descriptors.length];
+            flat.assignDistance(descriptors, indices, distances);
+            assertArrayEquals(expectedIndices, indices);
+            assertArrayEquals(expectedDistances, distances, 0);
+
+            // a packed block of descriptors
+            byte[] packed = new byte[descriptors.length * DIMS];
+            for(int i = 0; i < descriptors.length; i++){
+                System.arraycopy(descriptors[i], 0, packed, i * DIMS, DIMS);
+            }
+            int[] packedIndices = new int[descriptors.length];
+            flat.assign(packed, descriptors.length, packedIndices);
+            assertArrayEquals(expected, packedIndices);
+        }
+    }
+
+    @Test
+    public void breaksTiesByTheLowestIndex() {
+        Random random = new Random(3204);
+        byte[] centroid = random(random);
+        byte[][] centroids = new byte[][]{ random(random), centroid, random(random), centroid.clone(), centroid.clone() };
+        FlatByteAssigner flat = new FlatByteAssigner(centroids);
+
+        // starting the search from a later copy of the centroid (the previous descriptor's)
+        assertArrayEquals(new int[]{ 1, 1, 1 }, flat.assign(new byte[][]{ centroid, centroid, centroid }));
+        assertEquals(1, (int) (flat.nearest(centroid, 0, 4) >>> 32));
+        assertEquals(1, flat.assign(centroid));
+    }
+}
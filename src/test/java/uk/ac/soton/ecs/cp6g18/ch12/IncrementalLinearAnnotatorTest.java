@@ -0,0 +1,307 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.ml.annotation.AnnotatedObject;
+import org.openimaj.ml.annotation.linear.LiblinearAnnotator;
+import org.openimaj.ml.annotation.linear.LiblinearAnnotator.Mode;
+
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.SolverType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for IncrementalLinearAnnotator.
+ *
+ * @author Charles Powell
+ */
+public class IncrementalLinearAnnotatorTest {
+
+    // constants
+    static final int NUM_CLASSES = 8;
+    static final int NUM_DIMENSIONS = 40;
+
+    // member variables
+    TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Object with a feature.
+     */
+    static class Point implements Identifiable {
+
+        // member variables
+        final String id;
+        final double[] values;
+
+        Point(String id, double[] values){
+            this.id = id;
+            this.values = values;
+        }
+
+        public String getID() {
+            return id;
+        }
+    }
+
+    static final FeatureExtractor<DoubleFV, Point> EXTRACTOR = new FeatureExtractor<DoubleFV, Point>() {
+        public DoubleFV extractFeature(Point point) {
+            return new DoubleFV(point.values);
+        }
+    };
+
+    @Before
+    public void createFolder() throws IOException {
+        folder.create();
+    }
+
+    @After
+    public void deleteFolder() {
+        folder.delete();
+    }
+
+    /**
+     * Returns the random centres of the classes.
+     */
+    static double[][] centres(Random random, int numClasses){
+        double[][] centres = new double[numClasses][NUM_DIMENSIONS];
+        for(int c = 0; c < numClasses; c++){
+            for(int d = 0; d < NUM_DIMENSIONS; d++){
+                centres[c][d] = random.nextGaussian() * 0.6;
+            }
+        }
+        return centres;
+    }
+
+    /**
+     * Returns a dataset of overlapping Gaussian classes (so that the SVMs do not separate
+     * them, and the solution depends on C).
+     */
+    static MapBackedDataset<String, ListDataset<Point>, Point> dataset(Random random, double[][] centres, int perClass, String prefix){
+        MapBackedDataset<String, ListDataset<Point>, Point> dataset = new MapBackedDataset<String, ListDataset<Point>, Point>();
+        for(int c = 0; c < centres.length; c++){
+            List<Point> points = new ArrayList<Point>();
+            for(int i = 0; i < perClass; i++){
+                double[] values = new double[NUM_DIMENSIONS];
+                for(int d = 0; d < NUM_DIMENSIONS; d++){
+                    values[d] = centres[c][d] + random.nextGaussian();
+                }
+                points.add(new Point(prefix + c + "-" + i, values));
+            }
+            dataset.put("class-" + c, new ListBackedDataset<Point>(points));
+        }
+        return dataset;
+    }
+
+    /**
+     * The annotator, at the tolerance exercise 2 uses, should agree with the LiblinearAnnotator
+     * exercise 2 originally used (L2R_L2LOSS_SVC, eps = 1e-5) on almost every test object.
+     */
+    @Test
+    public void agreesWithLiblinear() {
+        Random random = new Random(3204);
+        double[][] centres = centres(random, NUM_CLASSES);
+        MapBackedDataset<String, ListDataset<Point>, Point> training = dataset(random, centres, 50, "train-");
+        MapBackedDataset<String, ListDataset<Point>, Point> testing = dataset(random, centres, 250, "test-");
+
+        Linear.disableDebugOutput();
+        LiblinearAnnotator<Point, String> liblinear = new LiblinearAnnotator<Point, String>(EXTRACTOR, Mode.MULTICLASS, SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
+        liblinear.train(training);
+        IncrementalLinearAnnotator<Point, String> incremental = new IncrementalLinearAnnotator<Point, String>(EXTRACTOR, 1.0, Ch12Exercises.ANNOTATOR_EPS);
+        incremental.train(training);
+
+        int agreed = 0;
+        int total = 0;
+        for(Point point : testing){
+            String expected = liblinear.annotate(point).get(0).annotation;
+            String actual = incremental.annotate(point).get(0).annotation;
+            agreed += expected.equals(actual) ? 1 : 0;
+            total++;
+        }
+        double agreement = (double) agreed / total;
+        assertTrue("agreement " + agreement, agreement >= 0.99);
+    }
+
+    static IncrementalLinearAnnotator<Point, String> annotator(){
+        return new IncrementalLinearAnnotator<Point, String>(EXTRACTOR, 1.0, Ch12Exercises.ANNOTATOR_EPS);
+    }
+
+    static List<AnnotatedObject<Point, String>> list(MapBackedDataset<String, ListDataset<Point>, Point> dataset){
+        return AnnotatedObject.createList(dataset);
+    }
+
+    static int sum(int[] values){
+        int sum = 0;
+        for(int value : values){
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * Asserts that a warm-started annotator has converged to the same solution as a cold one
+     * (to within the tolerance of the solver).
+     */
+    static void assertSameSolution(IncrementalLinearAnnotator<Point, String> cold, IncrementalLinearAnnotator<Point, String> warm){
+        assertEquals(cold.annotations, warm.annotations);
+        for(int k = 0; k < cold.weights.length; k++){
+            double norm = 0;
+            double diff = 0;
+            for(int d = 0; d < cold.weights[k].length; d++){
+                norm += cold.weights[k][d] * cold.weights[k][d];
+                diff += (cold.weights[k][d] - warm.weights[k][d]) * (cold.weights[k][d] - warm.weights[k][d]);
+            }
+            assertTrue("class " + k + " differs by " + Math.sqrt(diff / norm), diff <= norm * 1e-4);
+        }
+    }
+
+    /**
+     * Retraining after adding samples should only extract the new features, take fewer solver
+     * iterations than training from scratch, and reach the same solution.
+     */
+    @Test
+    public void warmStartAfterAddingSamples() {
+        Random random = new Random(3204);
+        double[][] centres = centres(random, NUM_CLASSES);
+        List<AnnotatedObject<Point, String>> first = list(dataset(random, centres, 50, "first-"));
+        List<AnnotatedObject<Point, String>> both = new ArrayList<AnnotatedObject<Point, String>>(first);
+        both.addAll(list(dataset(random, centres, 5, "second-")));
+
+        IncrementalLinearAnnotator<Point, String> warm = annotator();
+        warm.train(first);
+        assertEquals(first.size(), warm.getNumExtracted());
+        warm.train(both);
+        assertEquals(both.size() - first.size(), warm.getNumExtracted());
+
+        IncrementalLinearAnnotator<Point, String> cold = annotator();
+        cold.train(both);
+
+        assertSameSolution(cold, warm);
+        assertTrue(sum(warm.getIterations()) + " against " + sum(cold.getIterations()), sum(warm.getIterations()) < sum(cold.getIterations()));
+    }
+
+    /**
+     * Retraining after adding a class should keep the existing classes in order, add the new
+     * one, and reach the same solution as training from scratch.
+     */
+    @Test
+    public void warmStartAfterAddingAClass() {
+        Random random = new Random(3204);
+        double[][] centres = centres(random, NUM_CLASSES);
+        MapBackedDataset<String, ListDataset<Point>, Point> dataset = dataset(random, centres, 50, "train-");
+        List<AnnotatedObject<Point, String>> all = list(dataset);
+        List<AnnotatedObject<Point, String>> without = new ArrayList<AnnotatedObject<Point, String>>();
+        for(AnnotatedObject<Point, String> item : all){
+            if(!item.getAnnotations().contains("class-0")){
+                without.add(item);
+            }
+        }
+
+        IncrementalLinearAnnotator<Point, String> warm = annotator();
+        warm.train(without);
+        assertEquals(NUM_CLASSES - 1, warm.getAnnotations().size());
+        List<String> before = new ArrayList<String>(warm.annotations);
+        warm.train(all);
+        assertEquals(NUM_CLASSES, warm.getAnnotations().size());
+        assertEquals(before, warm.annotations.subList(0, NUM_CLASSES - 1));
+        assertEquals("class-0", warm.annotations.get(NUM_CLASSES - 1));
+        assertEquals(50, warm.getNumExtracted());
+
+        // trained from scratch in the same class order, so the weights line up
+        IncrementalLinearAnnotator<Point, String> cold = annotator();
+        cold.annotations = new ArrayList<String>(warm.annotations);
+        cold.train(all);
+
+        assertSameSolution(cold, warm);
+        Point probe = dataset.get("class-0").get(0);
+        assertEquals(cold.annotate(probe).get(0).annotation, warm.annotate(probe).get(0).annotation);
+    }
+
+    /**
+     * The state read back should be the state written, and training from it on the same data
+     * should be almost free and give the same solution.
+     */
+    @Test
+    public void stateRoundTrip() throws IOException {
+        Random random = new Random(3204);
+        double[][] centres = centres(random, NUM_CLASSES);
+        List<AnnotatedObject<Point, String>> data = list(dataset(random, centres, 50, "train-"));
+
+        IncrementalLinearAnnotator<Point, String> written = annotator();
+        written.train(data);
+        File state = new File(folder.getRoot(), "annotator.state");
+        written.writeState(state);
+
+        IncrementalLinearAnnotator<Point, String> read = annotator();
+        read.readState(state);
+        assertEquals(written.annotations, read.annotations);
+        assertEquals(written.alphas.keySet(), read.alphas.keySet());
+        for(String id : written.alphas.keySet()){
+            assertArrayEquals(written.alphas.get(id), read.alphas.get(id), 0);
+        }
+
+        IncrementalLinearAnnotator<Point, String> cold = annotator();
+        cold.train(data);
+        read.train(data);
+        assertSameSolution(written, read);
+        assertTrue(sum(read.getIterations()) + " against " + sum(cold.getIterations()), sum(read.getIterations()) * 4 <= sum(cold.getIterations()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void readStateNeedsTraining() throws IOException {
+        IncrementalLinearAnnotator<Point, String> written = annotator();
+        written.train(list(dataset(new Random(3204), centres(new Random(1), 2), 5, "train-")));
+        File state = new File(folder.getRoot(), "annotator.state");
+        written.writeState(state);
+
+        IncrementalLinearAnnotator<Point, String> read = annotator();
+        read.readState(state);
+        read.annotate(new Point("probe", new double[NUM_DIMENSIONS]));
+    }
+
+    /**
+     * Only the features of the current training set are kept, or none if the annotator is
+     * told not to keep them.
+     */
+    @Test
+    public void featuresAreBounded() {
+        Random random = new Random(3204);
+        double[][] centres = centres(random, 3);
+        List<AnnotatedObject<Point, String>> first = list(dataset(random, centres, 20, "first-"));
+        List<AnnotatedObject<Point, String>> second = list(dataset(random, centres, 10, "second-"));
+
+        IncrementalLinearAnnotator<Point, String> kept = annotator();
+        kept.train(first);
+        assertEquals(first.size(), kept.features.size());
+        kept.train(second);
+        assertEquals(second.size(), kept.features.size());
+        assertEquals(second.size(), kept.getNumExtracted());
+
+        IncrementalLinearAnnotator<Point, String> dropped = annotator();
+        dropped.setKeepFeatures(false);
+        dropped.train(first);
+        assertEquals(0, dropped.features.size());
+        dropped.train(first);
+        assertEquals(first.size(), dropped.getNumExtracted());
+
+        IncrementalLinearAnnotator<Point, String> reference = annotator();
+        reference.train(first);
+        assertSameSolution(reference, dropped);
+    }
+}
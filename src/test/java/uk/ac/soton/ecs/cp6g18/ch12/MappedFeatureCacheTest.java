@@ -0,0 +1,142 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Tests for MappedFeatureCache.
+ *
+ * @author Charles Powell
+ */
+public class MappedFeatureCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns a random sparse vector, with values that are exact as floats.
+     */
+    static DoubleFV vector(Random random, int length){
+        double[] values = new double[length];
+        for(int i = 0; i < length; i++){
+            if(random.nextInt(3) == 0){
+                values[i] = random.nextInt(1000) / 1024.0;
+            }
+        }
+        return new DoubleFV(values);
+    }
+
+    @Test
+    public void pendingVectorsAreBoundedAndStillReadable() throws Exception {
+        File dir = folder.newFolder("cache");
+        Random random = new Random(1);
+        DoubleFV[] vectors = new DoubleFV[2000];
+
+        // 600 doubles per vector, so the limit is reached every 20 vectors; small segments
+        // make the writes roll over onto new segment files too
+        MappedFeatureCache cache = new MappedFeatureCache(dir, 64 * 1024, 20 * 600 * 8);
+        for(int i = 0; i < vectors.length; i++){
+            vectors[i] = vector(random, 600);
+            cache.put("record-" + i, vectors[i]);
+            assertTrue(cache.pending.size() < 20);
+        }
+        assertTrue(cache.segments.size() > 1);
+        for(int i = 0; i < vectors.length; i++){
+            assertArrayEquals(vectors[i].values, cache.get("record-" + i).values, 0);
+        }
+        cache.close();
+        assertEquals(0, cache.pending.size());
+
+        MappedFeatureCache reopened = new MappedFeatureCache(dir);
+        assertEquals(vectors.length, reopened.size());
+        for(int i = 0; i < vectors.length; i++){
+            assertArrayEquals(vectors[i].values, reopened.get("record-" + i).values, 0);
+        }
+        reopened.close();
+    }
+
+    /**
+     * Returns a random sparse vector, with values that are not exact as floats.
+     */
+    static DoubleFV inexactVector(Random random, int length){
+        double[] values = new double[length];
+        for(int i = 0; i < length; i++){
+            if(random.nextInt(3) == 0){
+                values[i] = random.nextDouble() / 3;
+            }
+        }
+        return new DoubleFV(values);
+    }
+
+    /**
+     * A record, identified by its index.
+     */
+    static class Record implements Identifiable {
+
+        // member variables
+        final int index;
+
+        Record(int index){
+            this.index = index;
+        }
+
+        public String getID() {
+            return "record-" + index;
+        }
+    }
+
+    @Test
+    public void putGivesTheVectorAsItIsReadBack() throws Exception {
+        Random random = new Random(2);
+        MappedFeatureCache cache = new MappedFeatureCache(folder.newFolder("cache"), 64 * 1024, 10 * 600 * 8);
+        for(int i = 0; i < 100; i++){
+            DoubleFV vector = inexactVector(random, 600);
+            DoubleFV cached = cache.put("record-" + i, vector);
+            for(int d = 0; d < vector.values.length; d++){
+                assertEquals((float) vector.values[d], cached.values[d], 0);
+            }
+            assertArrayEquals(cached.values, cache.get("record-" + i).values, 0);
+        }
+        cache.close();
+    }
+
+    @Test
+    public void coldAndWarmExtractionsAgree() throws Exception {
+        File dir = folder.newFolder("cache");
+        final DoubleFV[] vectors = new DoubleFV[50];
+        Random random = new Random(3);
+        for(int i = 0; i < vectors.length; i++){
+            vectors[i] = inexactVector(random, 300);
+        }
+        FeatureExtractor<DoubleFV, Record> extractor = new FeatureExtractor<DoubleFV, Record>() {
+            public DoubleFV extractFeature(Record record) {
+                return vectors[record.index];
+            }
+        };
+
+        DoubleFV[] cold = new DoubleFV[vectors.length];
+        MappedCachingFeatureExtractor<Record> first = new MappedCachingFeatureExtractor<Record>(dir, extractor);
+        for(int i = 0; i < vectors.length; i++){
+            cold[i] = first.extractFeature(new Record(i));
+        }
+        first.close();
+
+        MappedCachingFeatureExtractor<Record> second = new MappedCachingFeatureExtractor<Record>(dir, extractor);
+        for(int i = 0; i < vectors.length; i++){
+            assertTrue(second.getCache().contains("record-" + i));
+            assertArrayEquals(cold[i].values, second.extractFeature(new Record(i)).values, 0);
+        }
+        second.close();
+    }
+}
@@ -0,0 +1,179 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.feature.local.list.MemoryLocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageProvider;
+import org.openimaj.image.feature.dense.gradient.dsift.AbstractDenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.image.feature.dense.gradient.dsift.DenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.PyramidDenseSIFT;
+import org.openimaj.image.processing.convolution.FGaussianConvolve;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+
+import uk.ac.soton.ecs.cp6g18.common.Fingerprint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for MiniBatchVocabularyTrainer.
+ *
+ * @author Charles Powell
+ */
+public class MiniBatchVocabularyTrainerTest {
+
+    /**
+     * An image of the sample.
+     */
+    static class Image implements Identifiable, ImageProvider<FImage> {
+
+        // member variables
+        final String id;
+        final FImage image;
+
+        Image(String id, FImage image){
+            this.id = id;
+            this.image = image;
+        }
+
+        public String getID() {
+            return id;
+        }
+
+        public FImage getImage() {
+            return image.clone();
+        }
+    }
+
+    static List<Image> images(Random random, int count){
+        List<Image> images = new ArrayList<Image>();
+        for(int i = 0; i < count; i++){
+            images.add(new Image("image-" + i, DecodedImageCacheTest.image(random, 60, 50).processInplace(new FGaussianConvolve(1.5f))));
+        }
+        return images;
+    }
+
+    static ThreadLocal<AbstractDenseSIFT<FImage>> engines(){
+        return new ThreadLocal<AbstractDenseSIFT<FImage>>(){
+            @Override
+            protected AbstractDenseSIFT<FImage> initialValue(){
+                return new PyramidDenseSIFT<FImage>(new DenseSIFT(5, 7), 6f, 7);
+            }
+        };
+    }
+
+    static ThreadPoolExecutor pool(int threads){
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    }
+
+    static byte[][] train(List<Image> images, long seed, int threads){
+        ThreadPoolExecutor pool = pool(threads);
+        try{
+            ByteCentroidsResult result = new MiniBatchVocabularyTrainer(10, 300, 100, 20, seed, pool).train(images, engines());
+            return result.centroids;
+        }
+        finally{
+            pool.shutdown();
+        }
+    }
+
+    static LocalFeatureList<ByteDSIFTKeypoint> keypoints(int image, int count){
+        LocalFeatureList<ByteDSIFTKeypoint> keypoints = new MemoryLocalFeatureList<ByteDSIFTKeypoint>();
+        for(int k = 0; k < count; k++){
+            byte[] descriptor = new byte[MiniBatchVocabularyTrainer.DIMS];
+            descriptor[0] = (byte) image;
+            descriptor[1] = (byte) k;
+            keypoints.add(new ByteDSIFTKeypoint(0, 0, descriptor, 0));
+        }
+        return keypoints;
+    }
+
+    @Test
+    public void sameSeedGivesSameCentroids() {
+        List<Image> images = images(new Random(3204), 12);
+        ThreadPoolExecutor pool = pool(1);
+        try{
+            // more descriptors than the budget, so the sample is a choice among them
+            assertTrue(new MiniBatchVocabularyTrainer(10, 300, 100, 20, 3204, pool).sampleDescriptors(images, engines()).seen > 300);
+        }
+        finally{
+            pool.shutdown();
+        }
+
+        // however many threads, and so whatever order the images are finished in
+        byte[][] first = train(images, 3204, 4);
+        byte[][] second = train(images, 3204, 4);
+        byte[][] serial = train(images, 3204, 1);
+
+        assertEquals(10, first.length);
+        for(int c = 0; c < first.length; c++){
+            assertArrayEquals(first[c], second[c]);
+            assertArrayEquals(first[c], serial[c]);
+        }
+    }
+
+    @Test
+    public void reservoirRespectsItsBudget() {
+        MiniBatchVocabularyTrainer.Reservoir reservoir = new MiniBatchVocabularyTrainer.Reservoir(50);
+        for(int image = 0; image < 20; image++){
+            reservoir.offer(image, keypoints(image, 30), new Random(image));
+        }
+        assertEquals(50, reservoir.size);
+        assertEquals(600, reservoir.seen);
+        assertEquals(50 * MiniBatchVocabularyTrainer.DIMS, reservoir.ordered().length);
+    }
+
+    @Test
+    public void reservoirDoesNotDependOnOrder() {
+        List<Integer> order = new ArrayList<Integer>();
+        for(int image = 0; image < 20; image++){
+            order.add(image);
+        }
+
+        MiniBatchVocabularyTrainer.Reservoir forwards = new MiniBatchVocabularyTrainer.Reservoir(50);
+        for(int image : order){
+            forwards.offer(image, keypoints(image, 30), new Random(image));
+        }
+        Collections.shuffle(order, new Random(1));
+        MiniBatchVocabularyTrainer.Reservoir shuffled = new MiniBatchVocabularyTrainer.Reservoir(50);
+        for(int image : order){
+            shuffled.offer(image, keypoints(image, 30), new Random(image));
+        }
+
+        assertArrayEquals(forwards.ordered(), shuffled.ordered());
+    }
+
+    static String fingerprint(int numVisWords, int budget, int batchSize, int iterations, long seed){
+        ThreadPoolExecutor pool = pool(1);
+        try{
+            return new MiniBatchVocabularyTrainer(numVisWords, budget, batchSize, iterations, seed, pool).addTo(new Fingerprint()).toHex();
+        }
+        finally{
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void fingerprintCoversEveryParameter() {
+        String base = fingerprint(10, 300, 100, 20, 3204);
+        assertEquals(base, fingerprint(10, 300, 100, 20, 3204));
+        assertFalse(base.equals(fingerprint(11, 300, 100, 20, 3204)));
+        assertFalse(base.equals(fingerprint(10, 301, 100, 20, 3204)));
+        assertFalse(base.equals(fingerprint(10, 300, 101, 20, 3204)));
+        assertFalse(base.equals(fingerprint(10, 300, 100, 21, 3204)));
+        assertFalse(base.equals(fingerprint(10, 300, 100, 20, 3205)));
+    }
+}
@@ -0,0 +1,100 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.feature.dense.gradient.dsift.AbstractDenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.DenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.FloatDSIFTKeypoint;
+import org.openimaj.image.feature.dense.gradient.dsift.PyramidDenseSIFT;
+import org.openimaj.image.processing.convolution.FGaussianConvolve;
+
+import java.util.Random;
+
+/**
+ * Tests that MultiScaleDenseSIFT extracts exactly the same keypoints as the OpenIMAJ engines it
+ * replaces.
+ *
+ * @author Charles Powell
+ */
+public class MultiScaleDenseSIFTTest {
+
+    /**
+     * Returns a test image - smoothed noise over a gradient, so there is structure at every
+     * scale.
+     */
+    static FImage image(long seed, int width, int height){
+        Random random = new Random(seed);
+        FImage image = new FImage(width, height);
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                image.pixels[y][x] = random.nextFloat();
+            }
+        }
+        image.processInplace(new FGaussianConvolve(1.5f));
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                image.pixels[y][x] = 0.5f * image.pixels[y][x] + 0.5f * x / width;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Asserts that two engines give bit-identical keypoints (in the same order) for an image.
+     */
+    static void assertSameKeypoints(AbstractDenseSIFT<FImage> expectedEngine, AbstractDenseSIFT<FImage> actualEngine, FImage image){
+        expectedEngine.analyseImage(image);
+        actualEngine.analyseImage(image);
+        LocalFeatureList<FloatDSIFTKeypoint> expected = expectedEngine.getFloatKeypoints();
+        LocalFeatureList<FloatDSIFTKeypoint> actual = actualEngine.getFloatKeypoints();
+
+        assertTrue(expected.size() > 0);
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++){
+            assertEquals(expected.get(i).x, actual.get(i).x, 0f);
+            assertEquals(expected.get(i).y, actual.get(i).y, 0f);
+            assertEquals(expected.get(i).energy, actual.get(i).energy, 0f);
+            assertArrayEquals(expected.get(i).descriptor, actual.get(i).descriptor, 0f);
+        }
+    }
+
+    @Test
+    public void sameAsPyramidDenseSIFT() {
+        FImage image = image(1, 131, 97);
+        assertSameKeypoints(new PyramidDenseSIFT<FImage>(new DenseSIFT(3, 7), 6f, 4, 6, 8, 10), new MultiScaleDenseSIFT(3, 6f, 4, 6, 8, 10), image);
+        assertSameKeypoints(new PyramidDenseSIFT<FImage>(new DenseSIFT(5, 7), 6f, 7), new MultiScaleDenseSIFT(5, 6f, 7), image);
+    }
+
+    @Test
+    public void sameAsPyramidDenseSIFTWithoutSmoothing() {
+        assertSameKeypoints(new PyramidDenseSIFT<FImage>(new DenseSIFT(4, 7), 0f, 4, 8), new MultiScaleDenseSIFT(4, 0f, 4, 8), image(2, 80, 120));
+    }
+
+    @Test
+    public void engineIsReusedAcrossImageSizes() {
+        MultiScaleDenseSIFT engine = new MultiScaleDenseSIFT(3, 6f, 4, 6);
+        PyramidDenseSIFT<FImage> pdsift = new PyramidDenseSIFT<FImage>(new DenseSIFT(3, 7), 6f, 4, 6);
+        assertSameKeypoints(pdsift, engine, image(3, 100, 60));
+        assertSameKeypoints(pdsift, engine, image(4, 60, 100));
+        assertSameKeypoints(pdsift, engine, image(5, 60, 100));
+    }
+
+    @Test
+    public void binWidthAndHeightRebuildTheGrid() {
+        // a single unsmoothed size with non-square bins is a DenseSIFT with those bins
+        MultiScaleDenseSIFT engine = new MultiScaleDenseSIFT(3, 0f, 6);
+        engine.setBinWidth(4);
+        engine.setBinHeight(7);
+        assertEquals(4, engine.getBinWidth());
+        assertEquals(7, engine.getBinHeight());
+
+        FImage image = image(6, 90, 110);
+        assertSameKeypoints(new DenseSIFT(3, 3, 4, 7, 4, 4, 8, 2f, 0.2f), engine, image);
+        assertSameKeypoints(new DenseSIFT(3, 3, 4, 7, 4, 4, 8, 2f, 0.2f), engine.clone(), image);
+    }
+}
@@ -0,0 +1,102 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.processing.convolution.FGaussianConvolve;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests that PHOWFeatureJob, run in Hadoop's local runner, gives the features that the
+ * PooledPHOWExtractor it configures gives in process.
+ *
+ * @author Charles Powell
+ */
+public class PHOWFeatureJobTest {
+
+    // constants
+    static final int STEP = 3;
+    static final float MAG_FACTOR = 6f;
+    static final int[] SIZES = { 4, 6, 8 };
+    static final int[] BLOCKS = { 2, 4 };
+
+    TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void createFolder() throws Exception {
+        folder.create();
+    }
+
+    @After
+    public void deleteFolder() {
+        folder.delete();
+    }
+
+    /**
+     * Returns a random vocabulary of 50 visual words.
+     */
+    static ByteCentroidsResult vocabulary(Random random){
+        ByteCentroidsResult vocabulary = new ByteCentroidsResult();
+        vocabulary.centroids = new byte[50][MiniBatchVocabularyTrainer.DIMS];
+        for(byte[] centroid : vocabulary.centroids){
+            random.nextBytes(centroid);
+        }
+        return vocabulary;
+    }
+
+    @Test
+    public void jobFeaturesMatchTheInProcessExtractor() throws Exception {
+        Random random = new Random(3204);
+
+        // a few images in two classes, and a file that is not an image that can be decoded
+        File imageDir = folder.newFolder("images");
+        for(String group : new String[]{ "accordion", "anchor" }){
+            File groupDir = new File(imageDir, group);
+            groupDir.mkdirs();
+            for(int i = 1; i <= 3; i++){
+                FImage image = DecodedImageCacheTest.image(random, 80, 60).processInplace(new FGaussianConvolve(1f));
+                ImageUtilities.write(image, "png", new File(groupDir, "image_000" + i + ".png"));
+            }
+        }
+        FileOutputStream broken = new FileOutputStream(new File(imageDir, "anchor/image_0004.jpg"));
+        broken.write(new byte[]{ 1, 2, 3 });
+        broken.close();
+
+        ByteCentroidsResult vocabulary = vocabulary(random);
+        PooledPHOWExtractor extractor = new PooledPHOWExtractor(new MultiScaleDenseSIFT(STEP, MAG_FACTOR, SIZES), new FlatByteAssigner(vocabulary), PooledPHOWExtractor.Aggregation.PYRAMID, BLOCKS);
+        Configuration conf = PHOWFeatureJob.localConfiguration();
+
+        // with a single mapper thread, and through the MultithreadedMapper
+        for(int threads : new int[]{ 1, 2 }){
+            PHOWFeatureJob job = new PHOWFeatureJob(STEP, MAG_FACTOR, SIZES, PooledPHOWExtractor.Aggregation.PYRAMID, BLOCKS).setThreads(threads);
+            Path features = job.run(conf, new Path(imageDir.getAbsolutePath()), vocabulary, new Path(new File(folder.getRoot(), "work-" + threads).getAbsolutePath()));
+            Map<String, SparseDoubleFV> read = PHOWFeatureJob.readFeatures(conf, features);
+
+            assertEquals(6, read.size());
+            assertFalse(read.containsKey("anchor/image_0004.jpg"));
+            for(String group : new String[]{ "accordion", "anchor" }){
+                for(int i = 1; i <= 3; i++){
+                    String id = group + "/image_000" + i + ".png";
+                    SparseDoubleFV expected = extractor.extractSparseFeature(ImageUtilities.readF(new File(imageDir, id)));
+                    assertEquals(expected.length(), read.get(id).length());
+                    assertArrayEquals(expected.asDoubleVector(), read.get(id).asDoubleVector(), 0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.image.FImage;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.image.feature.dense.gradient.dsift.DenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.PyramidDenseSIFT;
+import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
+import org.openimaj.image.feature.local.aggregate.BlockSpatialAggregator;
+import org.openimaj.image.feature.local.aggregate.PyramidSpatialAggregator;
+import org.openimaj.image.processing.convolution.FGaussianConvolve;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.util.pair.IntFloatPair;
+
+import uk.ac.soton.ecs.cp6g18.ch12.MiniBatchVocabularyTrainerTest.Image;
+import uk.ac.soton.ecs.cp6g18.ch12.PooledPHOWExtractor.Aggregation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests that PHOWPipeline gives the same features as a hand-built PHOW extractor (a
+ * PyramidDenseSIFT, BagOfVisualWords and spatial aggregator, as in Ch12Exercises) and as the
+ * PooledPHOWExtractor it is built from.
+ *
+ * @author Charles Powell
+ */
+public class PHOWPipelineTest {
+
+    // constants
+    static final int STEP = 3;
+    static final float MAG_FACTOR = 6f;
+    static final int[] SIZES = { 4, 6 };
+    static final int NUM_IMAGES = 8;
+
+    static List<Image> images(Random random){
+        List<Image> images = new ArrayList<Image>();
+        for(int i = 0; i < NUM_IMAGES; i++){
+            FImage image = DecodedImageCacheTest.image(random, 70 + random.nextInt(20), 60 + random.nextInt(20));
+            images.add(new Image("image-" + i, image.processInplace(new FGaussianConvolve(1.5f))));
+        }
+        return images;
+    }
+
+    static PyramidDenseSIFT<FImage> pyramid(){
+        return new PyramidDenseSIFT<FImage>(new DenseSIFT(STEP, 7), MAG_FACTOR, SIZES);
+    }
+
+    /**
+     * Returns a vocabulary of every 29th descriptor of the images (so the images use many
+     * different words, and no word is far from them).
+     */
+    static ByteCentroidsResult vocabulary(List<Image> images){
+        PyramidDenseSIFT<FImage> pdsift = pyramid();
+        List<byte[]> centroids = new ArrayList<byte[]>();
+        for(Image image : images){
+            pdsift.analyseImage(image.getImage());
+            List<ByteDSIFTKeypoint> keypoints = pdsift.getByteKeypoints(0.015f);
+            for(int i = 0; i < keypoints.size(); i += 29){
+                centroids.add(keypoints.get(i).descriptor);
+            }
+        }
+        ByteCentroidsResult vocabulary = new ByteCentroidsResult();
+        vocabulary.centroids = centroids.toArray(new byte[centroids.size()][]);
+        return vocabulary;
+    }
+
+    /**
+     * Extracts the feature of an image step by step, as the PHOWExtractor of Ch12Exercises does.
+     */
+    static DoubleFV handBuilt(FImage image, HardAssigner<byte[], float[], IntFloatPair> assigner, Aggregation aggregation, int... blocks){
+        PyramidDenseSIFT<FImage> pdsift = pyramid();
+        pdsift.analyseImage(image);
+        BagOfVisualWords<byte[]> bovw = new BagOfVisualWords<byte[]>(assigner);
+        SparseIntFV histogram;
+        if(aggregation == Aggregation.BLOCK){
+            histogram = new BlockSpatialAggregator<byte[], SparseIntFV>(bovw, blocks[0], blocks[1]).aggregate(pdsift.getByteKeypoints(0.015f), image.getBounds());
+        }
+        else{
+            histogram = new PyramidSpatialAggregator<byte[], SparseIntFV>(bovw, blocks).aggregate(pdsift.getByteKeypoints(0.015f), image.getBounds());
+        }
+        return histogram.normaliseFV();
+    }
+
+    static PHOWPipeline<Image> pipeline(PooledPHOWExtractor extractor){
+        // small queues, so the stages block on each other
+        return new PHOWPipeline<Image>(extractor, 2, 3, 2, 1, 2, 0);
+    }
+
+    /**
+     * Asserts that the pipeline gives the expected dense and sparse features for every image.
+     */
+    static void assertSameFeatures(PHOWPipeline<Image> pipeline, List<Image> images, Map<String, DoubleFV> expected, Map<String, SparseDoubleFV> expectedSparse) throws Exception {
+        ListBackedDataset<Image> dataset = new ListBackedDataset<Image>(images);
+
+        Map<String, DoubleFV> features = pipeline.extractFeatures(dataset);
+        assertEquals(expected.keySet(), features.keySet());
+        for(String id : expected.keySet()){
+            assertArrayEquals(expected.get(id).values, features.get(id).values, 0);
+        }
+
+        Map<String, SparseDoubleFV> sparseFeatures = pipeline.extractSparseFeatures(dataset);
+        assertEquals(expected.keySet(), sparseFeatures.keySet());
+        for(String id : expected.keySet()){
+            SparseDoubleFV sparse = sparseFeatures.get(id);
+            assertArrayEquals(expectedSparse.get(id).values.indices(), sparse.values.indices());
+            assertArrayEquals(expectedSparse.get(id).values.values(), sparse.values.values(), 0);
+            assertArrayEquals(expected.get(id).values, sparse.asDoubleVector(), 0);
+        }
+    }
+
+    @Test
+    public void matchesTheHandBuiltExtractor() throws Exception {
+        List<Image> images = images(new Random(3204));
+        ByteCentroidsResult vocabulary = vocabulary(images);
+        HardAssigner<byte[], float[], IntFloatPair> exact = vocabulary.defaultHardAssigner();
+        FlatByteAssigner flat = new FlatByteAssigner(vocabulary);
+
+        int[][] blocks = { { 2, 2 }, { 1, 2, 4 } };
+        for(Aggregation aggregation : Aggregation.values()){
+            int[] levels = blocks[aggregation.ordinal()];
+            PooledPHOWExtractor extractor = new PooledPHOWExtractor(new DenseSIFT(STEP, 7), MAG_FACTOR, SIZES, flat, aggregation, levels);
+
+            Map<String, DoubleFV> expected = new HashMap<String, DoubleFV>();
+            Map<String, SparseDoubleFV> expectedSparse = new HashMap<String, SparseDoubleFV>();
+            for(Image image : images){
+                expected.put(image.getID(), handBuilt(image.getImage(), exact, aggregation, levels));
+                expectedSparse.put(image.getID(), extractor.extractSparseFeature(image.getImage()));
+            }
+            assertSameFeatures(pipeline(extractor), images, expected, expectedSparse);
+        }
+    }
+
+    @Test
+    public void matchesTheMultiScaleExtractor() throws Exception {
+        List<Image> images = images(new Random(3204));
+        FlatByteAssigner flat = new FlatByteAssigner(vocabulary(images));
+        PooledPHOWExtractor extractor = new PooledPHOWExtractor(new MultiScaleDenseSIFT(STEP, MAG_FACTOR, SIZES), flat, Aggregation.PYRAMID, 2, 4);
+
+        Map<String, DoubleFV> expected = new HashMap<String, DoubleFV>();
+        Map<String, SparseDoubleFV> expectedSparse = new HashMap<String, SparseDoubleFV>();
+        for(Image image : images){
+            expected.put(image.getID(), extractor.extractHistogram(image.getImage()).normaliseFV());
+            expectedSparse.put(image.getID(), extractor.extractSparseFeature(image.getImage()));
+        }
+        assertSameFeatures(pipeline(extractor), images, expected, expectedSparse);
+    }
+}
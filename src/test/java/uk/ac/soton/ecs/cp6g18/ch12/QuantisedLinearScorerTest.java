@@ -0,0 +1,101 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.SparseDoubleFV;
+
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.SolverType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that QuantisedLinearScorer agrees with the SparseLiblinearAnnotator it is exported from.
+ *
+ * @author Charles Powell
+ */
+public class QuantisedLinearScorerTest {
+
+    // constants
+    static final int NUM_CLASSES = 30;
+    static final int NUM_WORDS = 3000;
+    static final int WORDS_PER_IMAGE = 300;
+
+    static SparseLiblinearAnnotator<SparseDoubleFV, String> annotator;
+    static List<SparseDoubleFV> testFeatures = new ArrayList<SparseDoubleFV>();
+
+    /**
+     * Returns an L1 normalised histogram of visual words, drawn half from the words of a class
+     * and half from all of the words (so the classes overlap, as image classes do).
+     */
+    static SparseDoubleFV histogram(Random random, int[][] classWords, int c){
+        double[] counts = new double[NUM_WORDS];
+        for(int i = 0; i < WORDS_PER_IMAGE; i++){
+            int word = random.nextBoolean() ? classWords[c][random.nextInt(classWords[c].length)] : random.nextInt(NUM_WORDS);
+            counts[word] += 1.0 / WORDS_PER_IMAGE;
+        }
+        return new SparseDoubleFV(counts);
+    }
+
+    @BeforeClass
+    public static void train() {
+        Linear.disableDebugOutput();
+        Random random = new Random(3204);
+        int[][] classWords = new int[NUM_CLASSES][100];
+        for(int[] words : classWords){
+            for(int w = 0; w < words.length; w++){
+                words[w] = random.nextInt(NUM_WORDS);
+            }
+        }
+
+        MapBackedDataset<String, ListDataset<SparseDoubleFV>, SparseDoubleFV> training = new MapBackedDataset<String, ListDataset<SparseDoubleFV>, SparseDoubleFV>();
+        for(int c = 0; c < NUM_CLASSES; c++){
+            List<SparseDoubleFV> group = new ArrayList<SparseDoubleFV>();
+            for(int i = 0; i < 15; i++){
+                group.add(histogram(random, classWords, c));
+            }
+            training.put("class-" + c, new ListBackedDataset<SparseDoubleFV>(group));
+        }
+        for(int i = 0; i < 3000; i++){
+            testFeatures.add(histogram(random, classWords, i % NUM_CLASSES));
+        }
+
+        annotator = new SparseLiblinearAnnotator<SparseDoubleFV, String>(new FeatureExtractor<SparseDoubleFV, SparseDoubleFV>() {
+            public SparseDoubleFV extractFeature(SparseDoubleFV fv) {
+                return fv;
+            }
+        }, SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
+        annotator.train(training);
+    }
+
+    @Test
+    public void floatScorerAgreesWithLiblinear() {
+        QuantisedLinearScorer<String> scorer = QuantisedLinearScorer.export(annotator, QuantisedLinearScorer.Precision.FLOAT);
+        assertTrue(scorer.agreement(annotator, testFeatures) >= 0.999);
+
+        // the scores are the decision values, to float precision
+        for(SparseDoubleFV fv : testFeatures.subList(0, 100)){
+            double[] expected = annotator.decisionValues(fv);
+            float[] actual = scorer.score(fv);
+            for(int c = 0; c < NUM_CLASSES; c++){
+                assertEquals(expected[c], actual[c], 1e-4);
+            }
+        }
+    }
+
+    @Test
+    public void int8ScorerAgreesWithLiblinear() {
+        QuantisedLinearScorer<String> scorer = QuantisedLinearScorer.export(annotator, QuantisedLinearScorer.Precision.INT8);
+        double agreement = scorer.agreement(annotator, testFeatures);
+        assertTrue("agreement " + agreement, agreement >= 0.999);
+    }
+}
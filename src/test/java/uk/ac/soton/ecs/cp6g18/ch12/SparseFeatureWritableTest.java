@@ -0,0 +1,78 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.util.array.SparseDoubleArray;
+import org.openimaj.util.array.SparseHashedDoubleArray;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Random;
+
+/**
+ * Tests for SparseFeatureWritable.
+ *
+ * @author Charles Powell
+ */
+public class SparseFeatureWritableTest {
+
+    /**
+     * Writes a feature and reads it back into a reused Writable.
+     */
+    static SparseDoubleFV roundTrip(SparseDoubleFV feature, SparseFeatureWritable reused) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        new SparseFeatureWritable(feature).write(out);
+        out.close();
+
+        reused.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        return reused.get();
+    }
+
+    static void assertSameFeature(SparseDoubleFV expected, SparseDoubleFV actual){
+        assertEquals(expected.length(), actual.length());
+        assertArrayEquals(expected.asDoubleVector(), actual.asDoubleVector(), 0);
+        assertEquals(expected.getVector().used(), actual.getVector().used());
+    }
+
+    @Test
+    public void featuresAreReadBackExactly() throws Exception {
+        Random random = new Random(3204);
+        SparseFeatureWritable reused = new SparseFeatureWritable();
+        for(int f = 0; f < 20; f++){
+            // large gaps between the indices, and values that are not exact as floats
+            double[] values = new double[40000];
+            for(int i = 0; i < 300; i++){
+                values[random.nextInt(values.length)] = random.nextDouble() / 7;
+            }
+            SparseDoubleFV feature = new SparseDoubleFV(values);
+            assertSameFeature(feature, roundTrip(feature, reused));
+        }
+
+        // an empty feature
+        assertSameFeature(new SparseDoubleFV(10), roundTrip(new SparseDoubleFV(10), reused));
+    }
+
+    @Test
+    public void unsortedIndicesAreWrittenInOrder() throws Exception {
+        // a hashed array gives its indices in no particular order
+        SparseDoubleArray vector = new SparseHashedDoubleArray(1000);
+        Random random = new Random(1);
+        for(int i = 0; i < 100; i++){
+            vector.set(random.nextInt(1000), random.nextDouble());
+        }
+        SparseDoubleFV feature = new SparseDoubleFV(vector);
+
+        SparseDoubleFV read = roundTrip(feature, new SparseFeatureWritable());
+        assertSameFeature(feature, read);
+        int[] indices = read.getVector().indices();
+        for(int i = 1; i < read.getVector().used(); i++){
+            assertEquals(true, indices[i] > indices[i - 1]);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.SparseDoubleFV;
+import org.openimaj.ml.kernel.HomogeneousKernelMap;
+import org.openimaj.ml.kernel.HomogeneousKernelMap.KernelType;
+import org.openimaj.ml.kernel.HomogeneousKernelMap.WindowType;
+import org.openimaj.util.array.SparseBinSearchDoubleArray;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests SparseKernelMap against the dense features of OpenIMAJ's HomogeneousKernelMap.
+ *
+ * @author Charles Powell
+ */
+public class SparseKernelMapTest {
+
+    // constants
+    static final int LENGTH = 300;
+
+    static final FeatureExtractor<DoubleFV, DoubleFV> IDENTITY = new FeatureExtractor<DoubleFV, DoubleFV>() {
+        public DoubleFV extractFeature(DoubleFV fv) {
+            return fv;
+        }
+    };
+
+    /**
+     * Returns an L1 normalised histogram of a few small counts (so that values repeat, within
+     * and between features), with some zeros stored explicitly.
+     */
+    static SparseDoubleFV histogram(Random random){
+        int used = random.nextInt(40);
+        int[] indices = new int[used];
+        double[] values = new double[used];
+        int index = -1;
+        double total = 0;
+        for(int i = 0; i < used; i++){
+            index += 1 + random.nextInt((LENGTH - index - 1) / (used - i));
+            indices[i] = index;
+            values[i] = i % 9 == 8 ? 0 : 1 + random.nextInt(4);
+            total += values[i];
+        }
+        for(int i = 0; i < used; i++){
+            values[i] = total == 0 ? 0 : values[i] / total;
+        }
+        return new SparseDoubleFV(new SparseBinSearchDoubleArray(LENGTH, used, indices, values));
+    }
+
+    static void assertSameFeature(DoubleFV expected, SparseDoubleFV actual){
+        assertEquals(expected.length(), actual.length());
+        double[] dense = actual.asDoubleVector();
+        for(int d = 0; d < dense.length; d++){
+            assertEquals(expected.values[d], dense[d], 0);
+        }
+    }
+
+    @Test
+    public void matchesTheDenseKernelMap() {
+        Random random = new Random(3204);
+        SparseDoubleFV[] features = new SparseDoubleFV[50];
+        for(int f = 0; f < features.length; f++){
+            features[f] = histogram(random);
+        }
+        features[0] = new SparseDoubleFV(LENGTH);
+
+        for(KernelType kernel : KernelType.values()){
+            for(WindowType window : WindowType.values()){
+                HomogeneousKernelMap hkm = new HomogeneousKernelMap(kernel, window);
+                FeatureExtractor<DoubleFV, DoubleFV> dense = hkm.createWrappedExtractor(IDENTITY);
+                SparseKernelMap sparse = new SparseKernelMap(hkm);
+
+                // one at a time, and as a block sharing one lookup table
+                SparseDoubleFV[] block = sparse.map(features);
+                for(int f = 0; f < features.length; f++){
+                    DoubleFV expected = dense.extractFeature(new DoubleFV(features[f].asDoubleVector()));
+                    assertEquals(LENGTH * sparse.getWidth(), expected.length());
+                    assertSameFeature(expected, sparse.map(features[f]));
+                    assertSameFeature(expected, block[f]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void mapAllMatchesMap() {
+        Random random = new Random(3204);
+        Map<String, SparseDoubleFV> features = new HashMap<String, SparseDoubleFV>();
+        for(int f = 0; f < 100; f++){
+            features.put("feature-" + f, histogram(random));
+        }
+
+        SparseKernelMap sparse = new SparseKernelMap(new HomogeneousKernelMap(KernelType.Chi2, WindowType.Rectangular));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(3, 3, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        try{
+            Map<String, SparseDoubleFV> mapped = sparse.mapAll(features, 7, pool);
+            assertEquals(features.keySet(), mapped.keySet());
+            for(String id : features.keySet()){
+                assertSameFeature(new DoubleFV(sparse.map(features.get(id)).asDoubleVector()), mapped.get(id));
+            }
+        }
+        finally{
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package uk.ac.soton.ecs.cp6g18.ch12;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.experiment.evaluation.classification.BasicClassificationResult;
+import org.openimaj.experiment.evaluation.classification.ClassificationEvaluator;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.experiment.evaluation.classification.Classifier;
+import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMAnalyser;
+import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMResult;
+import org.openimaj.util.parallel.GlobalExecutorPool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for StreamingClassificationEvaluator.
+ *
+ * @author Charles Powell
+ */
+public class StreamingClassificationEvaluatorTest {
+
+    // constants
+    static final int NUM_OBJECTS = 100000;
+    static final int NUM_CLASSES = 50;
+
+    /**
+     * Classifier that is right for most objects, wrong for every tenth, and gives no class for
+     * every 97th.
+     */
+    static final Classifier<String, Integer> CLASSIFIER = new Classifier<String, Integer>() {
+        public ClassificationResult<String> classify(Integer object) {
+            BasicClassificationResult<String> result = new BasicClassificationResult<String>();
+            if(object % 97 == 0){
+                return result;
+            }
+            int predicted = object % 10 == 0 ? (object / 10) % NUM_CLASSES : object % NUM_CLASSES;
+            result.put("class-" + predicted, 1.0);
+            return result;
+        }
+    };
+
+    /**
+     * Returns a dataset of NUM_OBJECTS objects, spread over NUM_CLASSES classes.
+     */
+    static MapBackedDataset<String, ListDataset<Integer>, Integer> dataset(){
+        List<List<Integer>> groups = new ArrayList<List<Integer>>();
+        for(int c = 0; c < NUM_CLASSES; c++){
+            groups.add(new ArrayList<Integer>());
+        }
+        for(int i = 0; i < NUM_OBJECTS; i++){
+            groups.get(i % NUM_CLASSES).add(i);
+        }
+
+        MapBackedDataset<String, ListDataset<Integer>, Integer> dataset = new MapBackedDataset<String, ListDataset<Integer>, Integer>();
+        for(int c = 0; c < NUM_CLASSES; c++){
+            dataset.put("class-" + c, new ListBackedDataset<Integer>(groups.get(c)));
+        }
+        return dataset;
+    }
+
+    @Test
+    public void sameResultAsClassificationEvaluator() throws Exception {
+        MapBackedDataset<String, ListDataset<Integer>, Integer> dataset = dataset();
+
+        ClassificationEvaluator<CMResult<String>, String, Integer> eval = new ClassificationEvaluator<CMResult<String>, String, Integer>(CLASSIFIER, dataset, new CMAnalyser<Integer, String>(CMAnalyser.Strategy.SINGLE));
+        CMResult<String> expected = eval.analyse(eval.evaluate());
+
+        StreamingClassificationEvaluator<String, Integer> streaming = new StreamingClassificationEvaluator<String, Integer>(CLASSIFIER, dataset, 0, GlobalExecutorPool.getPool());
+        CMResult<String> actual = streaming.evaluate();
+
+        assertEquals(NUM_OBJECTS, streaming.getMatrix().getTotalCount());
+        assertEquals(expected.getMatrix().getTotalCorrectCount(), actual.getMatrix().getTotalCorrectCount(), 0);
+        assertEquals(expected.getSummaryReport(), actual.getSummaryReport());
+
+        // the detail reports list the classes in hash order, so the cells are compared instead
+        assertEquals(expected.getMatrix().getCategories(), actual.getMatrix().getCategories());
+        for(String target : expected.getMatrix().getCategories()){
+            for(String estimate : expected.getMatrix().getCategories()){
+                assertEquals(expected.getMatrix().getCount(target, estimate), actual.getMatrix().getCount(target, estimate), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.image.FImage;
+import org.openimaj.image.processing.convolution.FGaussianConvolve;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that BatchProjection gives bit-identical features to projecting one image at a time.
+ *
+ * @author Charles Powell
+ */
+public class BatchProjectionTest {
+
+    // constants - images of more pixels than a PIXEL_BLOCK, and an odd number of components, so
+    // every path of the blocked product is used
+    static final int WIDTH = 40;
+    static final int HEIGHT = 33;
+    static final int NUM_COMPONENTS = 15;
+
+    /**
+     * Returns some smoothed noise images.
+     */
+    static List<FImage> images(Random random, int count){
+        List<FImage> images = new ArrayList<FImage>();
+        for(int i = 0; i < count; i++){
+            FImage image = new FImage(WIDTH, HEIGHT);
+            for(int y = 0; y < HEIGHT; y++){
+                for(int x = 0; x < WIDTH; x++){
+                    image.pixels[y][x] = random.nextFloat();
+                }
+            }
+            images.add(image.processInplace(new FGaussianConvolve(2f)));
+        }
+        return images;
+    }
+
+    /**
+     * Asserts that packed features are bit-identical to the features of each image.
+     */
+    static void assertSameBits(List<DoubleFV> expected, double[] packed){
+        assertEquals(expected.size() * NUM_COMPONENTS, packed.length);
+        for(int i = 0; i < expected.size(); i++){
+            for(int c = 0; c < NUM_COMPONENTS; c++){
+                assertEquals("image " + i + ", component " + c, Double.doubleToRawLongBits(expected.get(i).values[c]), Double.doubleToRawLongBits(packed[i * NUM_COMPONENTS + c]));
+            }
+        }
+    }
+
+    @Test
+    public void batchFeaturesAreBitIdentical() {
+        Random random = new Random(3204);
+        StreamingEigenImages eigen = new StreamingEigenImages(NUM_COMPONENTS, StreamingEigenImages.Mode.EXACT);
+        eigen.train(images(random, 60));
+
+        // more than a BATCH_SIZE of images, not a multiple of the image blocks
+        List<FImage> probes = images(random, BatchProjection.BATCH_SIZE + 37);
+        List<DoubleFV> expected = new ArrayList<DoubleFV>();
+        for(FImage probe : probes){
+            expected.add(eigen.extractFeature(probe));
+        }
+        assertSameBits(expected, eigen.extractFeatures(probes));
+        assertSameBits(expected.subList(0, 3), eigen.extractFeatures(probes.subList(0, 3)));
+        assertEquals(0, eigen.extractFeatures(new ArrayList<FImage>()).length);
+    }
+
+    @Test
+    public void mappedBatchFeaturesAreBitIdentical() throws Exception {
+        Random random = new Random(1);
+        StreamingEigenImages eigen = new StreamingEigenImages(NUM_COMPONENTS, StreamingEigenImages.Mode.EXACT);
+        eigen.train(images(random, 60));
+
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        try{
+            File file = new File(folder.getRoot(), "model.eigf");
+            MappedEigenfaceModel.write(file, eigen, new FlatFaceGallery(NUM_COMPONENTS));
+            MappedEigenfaceModel model = MappedEigenfaceModel.open(file);
+
+            List<FImage> probes = images(random, 101);
+            List<DoubleFV> expected = new ArrayList<DoubleFV>();
+            for(FImage probe : probes){
+                expected.add(model.extractFeature(probe));
+            }
+            assertSameBits(expected, model.extractFeatures(probes));
+        }
+        finally{
+            folder.delete();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.DoubleFVComparison;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for CompressedFaceGallery, with a quantiser learnt from features other than the
+ * enrolments.
+ *
+ * @author Charles Powell
+ */
+public class CompressedFaceGalleryTest {
+
+    // constants
+    static final int NUM_DIMENSIONS = 20;
+
+    TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void createFolder() throws Exception {
+        folder.create();
+    }
+
+    @After
+    public void deleteFolder() {
+        folder.delete();
+    }
+
+    static List<DoubleFV> features(Random random, int count){
+        List<DoubleFV> features = new ArrayList<DoubleFV>();
+        for(int i = 0; i < count; i++){
+            double[] values = new double[NUM_DIMENSIONS];
+            for(int d = 0; d < NUM_DIMENSIONS; d++){
+                values[d] = random.nextGaussian() * 10 / (d + 1);
+            }
+            features.add(new DoubleFV(values));
+        }
+        return features;
+    }
+
+    @Test
+    public void reRankingEveryEnrolmentIsExact() throws Exception {
+        Random random = new Random(3204);
+        File vectorFile = new File(folder.getRoot(), "nested/gallery.vectors");
+        CompressedFaceGallery gallery = new CompressedFaceGallery(features(random, 300), 5, 16, 3204, vectorFile);
+        try{
+            List<DoubleFV> enrolments = features(random, 200);
+            for(int i = 0; i < enrolments.size(); i++){
+                gallery.enrol("person-" + (i % 7), enrolments.get(i));
+            }
+            assertEquals(200, gallery.size());
+            for(int i = 0; i < enrolments.size(); i += 13){
+                assertEquals("person-" + (i % 7), gallery.getPerson(i));
+            }
+
+            List<DoubleFV> probes = features(random, 50);
+            int[] exact = new int[probes.size()];
+            for(int i = 0; i < probes.size(); i++){
+                double minDistance = Double.MAX_VALUE;
+                for(int j = 0; j < enrolments.size(); j++){
+                    double distance = DoubleFVComparison.EUCLIDEAN.compare(probes.get(i), enrolments.get(j));
+                    if(distance < minDistance){
+                        minDistance = distance;
+                        exact[i] = j;
+                    }
+                }
+            }
+            assertEquals(1.0, gallery.recallAt1(probes, exact, enrolments.size()), 0);
+            double recall = gallery.recallAt1(probes, exact, 1);
+            assertTrue(recall <= gallery.recallAt1(probes, exact, 20));
+        }
+        finally{
+            gallery.close();
+        }
+    }
+
+    /**
+     * Asserts that the approximate distances of the gallery are the distances to the features
+     * reconstructed from the codes.
+     */
+    static void assertApproximateDistances(CompressedFaceGallery gallery, List<DoubleFV> probes){
+        for(DoubleFV probe : probes){
+            double[] approximate = gallery.approximateDistances(probe.values);
+            assertEquals(gallery.size(), approximate.length);
+            for(int i = 0; i < gallery.size(); i++){
+                double expected = DoubleFVComparison.SUM_SQUARE.compare(probe, new DoubleFV(gallery.getApproximateFeature(i)));
+                assertEquals(expected, approximate[i], 1e-9 * Math.max(1, expected));
+            }
+        }
+    }
+
+    @Test
+    public void approximateDistancesMatchTheApproximateFeatures() throws Exception {
+        Random random = new Random(7);
+        CompressedFaceGallery gallery = new CompressedFaceGallery(features(random, 300), 5, 16, 7, new File(folder.getRoot(), "gallery.vectors"));
+        try{
+            for(DoubleFV feature : features(random, 100)){
+                gallery.enrol("person", feature);
+            }
+            assertApproximateDistances(gallery, features(random, 10));
+        }
+        finally{
+            gallery.close();
+        }
+    }
+
+    @Test
+    public void smallSampleClipsTheCentroids() throws Exception {
+        Random random = new Random(11);
+        CompressedFaceGallery gallery = new CompressedFaceGallery(features(random, 5), 4, 16, 11, new File(folder.getRoot(), "gallery.vectors"));
+        try{
+            assertEquals(5, gallery.numCentroids);
+            assertEquals(4 * 5 * (NUM_DIMENSIONS / 4), gallery.centroids.length);
+
+            List<DoubleFV> enrolments = features(random, 40);
+            for(int i = 0; i < enrolments.size(); i++){
+                gallery.enrol("person-" + (i % 3), enrolments.get(i));
+            }
+            assertApproximateDistances(gallery, features(random, 10));
+
+            // every enrolment re-ranked, so the nearest is exact
+            DoubleFV probe = features(random, 1).get(0);
+            int best = 0;
+            for(int j = 1; j < enrolments.size(); j++){
+                if(DoubleFVComparison.EUCLIDEAN.compare(probe, enrolments.get(j)) < DoubleFVComparison.EUCLIDEAN.compare(probe, enrolments.get(best))){
+                    best = j;
+                }
+            }
+            assertEquals(best, gallery.search(probe, 1, enrolments.size()).get(0).first);
+        }
+        finally{
+            gallery.close();
+        }
+    }
+
+    @Test
+    public void vectorFileIsDeletedOnClose() throws Exception {
+        Random random = new Random(1);
+        File vectorFile = new File(folder.getRoot(), "gallery.vectors");
+        CompressedFaceGallery gallery = new CompressedFaceGallery(features(random, 50), 4, 8, 1, vectorFile);
+        gallery.enrol("person", features(random, 1).get(0));
+        assertTrue(vectorFile.exists());
+        gallery.close();
+        assertFalse(vectorFile.exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyCentroidsAreRejected() throws Exception {
+        new CompressedFaceGallery(features(new Random(1), 10), 4, CompressedFaceGallery.NUM_CENTROIDS + 1, 1, new File(folder.getRoot(), "gallery.vectors"));
+    }
+}
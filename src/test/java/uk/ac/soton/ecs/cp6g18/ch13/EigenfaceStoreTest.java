@@ -0,0 +1,104 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openimaj.image.FImage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for EigenfaceStore.
+ *
+ * @author Charles Powell
+ */
+public class EigenfaceStoreTest {
+
+    TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void createFolder() throws Exception {
+        folder.create();
+    }
+
+    @After
+    public void deleteFolder() {
+        folder.delete();
+    }
+
+    static StreamingEigenImages eigen(List<FImage> images){
+        StreamingEigenImages eigen = new StreamingEigenImages(BatchProjectionTest.NUM_COMPONENTS, StreamingEigenImages.Mode.EXACT);
+        eigen.train(images);
+        return eigen;
+    }
+
+    @Test
+    public void publishingReplacesTheModelForNewReadersOnly() throws Exception {
+        Random random = new Random(3204);
+        EigenfaceStore store = new EigenfaceStore(folder.newFolder("store"));
+        assertNull(store.open("faces"));
+        assertNull(store.reopenIfChanged("faces", null));
+
+        List<FImage> images = BatchProjectionTest.images(random, 40);
+        StreamingEigenImages first = eigen(images);
+        store.publish("faces", first, MappedEigenfaceModelTest.gallery(first, images));
+        MappedEigenfaceModel old = store.open("faces");
+        assertSame(old, store.reopenIfChanged("faces", old));
+
+        // a second model, of other images and a larger gallery
+        List<FImage> more = BatchProjectionTest.images(random, 50);
+        StreamingEigenImages second = eigen(more);
+        store.publish("faces", second, MappedEigenfaceModelTest.gallery(second, more));
+
+        // the reader holding the old model still reads it in full
+        assertEquals(40, old.size());
+        assertArrayEquals(first.getEigenValues(), old.getEigenValues(), 0);
+        assertArrayEquals(first.extractFeature(images.get(0)).values, old.extractFeature(images.get(0)).values, 0);
+        assertEquals(old.getPerson(0), old.identify(old.extractFeature(images.get(0))).first);
+
+        // new readers, and readers that reopen, see the new model
+        MappedEigenfaceModel reopened = store.reopenIfChanged("faces", old);
+        assertNotSame(old, reopened);
+        assertEquals(50, reopened.size());
+        assertArrayEquals(second.getEigenValues(), reopened.getEigenValues(), 0);
+        assertEquals(50, store.open("faces").size());
+        assertSame(reopened, store.reopenIfChanged("faces", reopened));
+
+        // no temporary files are left behind
+        assertEquals(Arrays.asList("faces" + EigenfaceStore.EXTENSION), Arrays.asList(store.root.list()));
+    }
+
+    @Test
+    public void missingModelIsBuiltOnce() throws Exception {
+        final List<FImage> images = BatchProjectionTest.images(new Random(1), 30);
+        final int[] builds = new int[1];
+        EigenfaceStore.Builder builder = new EigenfaceStore.Builder() {
+            public StreamingEigenImages buildModel() {
+                builds[0]++;
+                return eigen(images);
+            }
+
+            public FlatFaceGallery buildGallery(StreamingEigenImages eigen) {
+                return MappedEigenfaceModelTest.gallery(eigen, images);
+            }
+        };
+
+        EigenfaceStore store = new EigenfaceStore(folder.newFolder("store"));
+        MappedEigenfaceModel built = store.getOrBuild("faces", builder);
+        MappedEigenfaceModel loaded = store.getOrBuild("faces", builder);
+        assertEquals(1, builds[0]);
+        assertEquals(30, built.size());
+        assertArrayEquals(built.getEigenValues(), loaded.getEigenValues(), 0);
+        assertFalse(store.getFile("other").exists());
+    }
+}
@@ -0,0 +1,150 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.DoubleFVComparison;
+import org.openimaj.util.pair.ObjectDoublePair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests that FaceGallery gives the same answers as comparing the probe with every enrolment.
+ *
+ * @author Charles Powell
+ */
+public class FaceGalleryTest {
+
+    // constants
+    static final int NUM_DIMENSIONS = 20;
+
+    /**
+     * Returns a feature like an eigenface projection (with the variance falling off along the
+     * dimensions).
+     */
+    static DoubleFV feature(Random random){
+        double[] values = new double[NUM_DIMENSIONS];
+        for(int d = 0; d < NUM_DIMENSIONS; d++){
+            values[d] = random.nextGaussian() * 10 / (d + 1);
+        }
+        return new DoubleFV(values);
+    }
+
+    /**
+     * Asserts that the k nearest enrolments are those found by comparing the probe with every
+     * enrolment.
+     */
+    static void assertExact(FaceGallery gallery, List<String> people, List<DoubleFV> features, DoubleFV probe, int k){
+        List<ObjectDoublePair<String>> nearest = gallery.nearest(probe, k);
+        double[] distances = new double[features.size()];
+        for(int i = 0; i < distances.length; i++){
+            distances[i] = features.get(i).compare(probe, DoubleFVComparison.EUCLIDEAN);
+        }
+        double[] sorted = distances.clone();
+        Arrays.sort(sorted);
+
+        assertEquals(Math.min(k, features.size()), nearest.size());
+        for(int j = 0; j < nearest.size(); j++){
+            assertEquals(sorted[j], nearest.get(j).second, 1e-9);
+        }
+
+        // the enrolments within a distance between the k-th and the next (so there are k)
+        if(nearest.size() < features.size()){
+            double radius = (sorted[k - 1] + sorted[k]) / 2;
+            assertEquals(k, gallery.withinDistance(probe, radius).size());
+        }
+        if(!nearest.isEmpty()){
+            assertEquals(people.get(indexOf(distances, sorted[0])), gallery.identify(probe).first);
+        }
+    }
+
+    static int indexOf(double[] values, double value){
+        for(int i = 0; i < values.length; i++){
+            if(values[i] == value){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void enrolledGalleryIsExact() {
+        Random random = new Random(3204);
+        FaceGallery gallery = new FaceGallery(NUM_DIMENSIONS);
+        List<String> people = new ArrayList<String>();
+        List<DoubleFV> features = new ArrayList<DoubleFV>();
+
+        // checks the gallery as it grows through buffers and merged trees
+        for(int i = 0; i < 1500; i++){
+            String person = "person-" + random.nextInt(100);
+            DoubleFV feature = feature(random);
+            assertEquals(i, gallery.enrol(person, feature));
+            people.add(person);
+            features.add(feature);
+            if(i % 97 == 0 || i == 1499){
+                assertExact(gallery, people, features, feature(random), 1);
+                assertExact(gallery, people, features, feature(random), 10);
+            }
+        }
+        assertEquals(1500, gallery.size());
+    }
+
+    @Test
+    public void builtGalleryIsExact() {
+        Random random = new Random(1);
+        Map<String, DoubleFV[]> database = new LinkedHashMap<String, DoubleFV[]>();
+        List<String> people = new ArrayList<String>();
+        List<DoubleFV> features = new ArrayList<DoubleFV>();
+        for(int p = 0; p < 40; p++){
+            DoubleFV[] fvs = new DoubleFV[5];
+            for(int i = 0; i < fvs.length; i++){
+                fvs[i] = feature(random);
+                people.add("person-" + p);
+                features.add(fvs[i]);
+            }
+            database.put("person-" + p, fvs);
+        }
+
+        FaceGallery gallery = new FaceGallery(database);
+        for(int q = 0; q < 50; q++){
+            assertExact(gallery, people, features, feature(random), 3);
+        }
+
+        // enrolments after the gallery is built are searched too
+        for(int i = 0; i < 100; i++){
+            DoubleFV feature = feature(random);
+            gallery.enrol("late", feature);
+            people.add("late");
+            features.add(feature);
+        }
+        for(int q = 0; q < 50; q++){
+            assertExact(gallery, people, features, feature(random), 3);
+        }
+    }
+
+    @Test
+    public void identicalFeaturesAreKeptApart() {
+        FaceGallery gallery = new FaceGallery(NUM_DIMENSIONS);
+        DoubleFV same = feature(new Random(2));
+        for(int i = 0; i < 1000; i++){
+            gallery.enrol("person-" + i, same);
+        }
+        assertEquals(1000, gallery.withinDistance(same, 0).size());
+        assertEquals(5, gallery.nearest(same, 5).size());
+        assertEquals(0, gallery.identify(same).second, 0);
+    }
+
+    @Test
+    public void emptyGalleryIdentifiesNoOne() {
+        FaceGallery gallery = new FaceGallery(NUM_DIMENSIONS);
+        assertNull(gallery.identify(feature(new Random(3))));
+        assertNull(gallery.identify(feature(new Random(3)), 100));
+    }
+}
@@ -0,0 +1,135 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.DoubleFVComparison;
+import org.openimaj.util.pair.ObjectDoublePair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that FlatFaceGallery gives the same answers as comparing each probe with every
+ * enrolment (DoubleFVComparison.EUCLIDEAN).
+ *
+ * @author Charles Powell
+ */
+public class FlatFaceGalleryTest {
+
+    // constants - a gallery of more than a GALLERY_BLOCK and probes of more than a PROBE_BLOCK,
+    // neither a multiple of the blocks (or of the 4 x 2 inner loop), so every path is used
+    static final int NUM_DIMENSIONS = 29;
+    static final int NUM_ENROLMENTS = 201;
+    static final int NUM_PROBES = 75;
+
+    static DoubleFV feature(Random random){
+        double[] values = new double[NUM_DIMENSIONS];
+        for(int d = 0; d < NUM_DIMENSIONS; d++){
+            values[d] = random.nextGaussian() * 10 / (d + 1);
+        }
+        return new DoubleFV(values);
+    }
+
+    static List<DoubleFV> features(Random random, int count){
+        List<DoubleFV> features = new ArrayList<DoubleFV>();
+        for(int i = 0; i < count; i++){
+            features.add(feature(random));
+        }
+        return features;
+    }
+
+    /**
+     * Asserts that a gallery's answers for a batch of probes are those of comparing each probe
+     * with every enrolment.
+     */
+    static void assertExact(FlatFaceGallery gallery, List<String> people, List<DoubleFV> features, List<DoubleFV> probes){
+        List<ObjectDoublePair<String>> matches = gallery.identify(probes);
+        List<ObjectDoublePair<String>> packedMatches = gallery.identify(gallery.pack(probes));
+        double[][] distances = gallery.distances(probes);
+        assertEquals(probes.size(), matches.size());
+        assertEquals(probes.size(), packedMatches.size());
+        assertEquals(probes.size(), distances.length);
+
+        for(int p = 0; p < probes.size(); p++){
+            int best = -1;
+            double bestDistance = Double.POSITIVE_INFINITY;
+            for(int i = 0; i < features.size(); i++){
+                double distance = features.get(i).compare(probes.get(p), DoubleFVComparison.EUCLIDEAN);
+                assertEquals(distance, distances[p][i], 1e-6);
+                if(distance < bestDistance){
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+
+            assertEquals(people.get(best), matches.get(p).first);
+            assertEquals(bestDistance, matches.get(p).second, 1e-6);
+            assertEquals(matches.get(p).first, packedMatches.get(p).first);
+            assertEquals(matches.get(p).second, packedMatches.get(p).second, 0);
+            ObjectDoublePair<String> single = gallery.identify(probes.get(p));
+            assertEquals(matches.get(p).first, single.first);
+            assertEquals(matches.get(p).second, single.second, 0);
+        }
+    }
+
+    @Test
+    public void identificationIsExact() {
+        Random random = new Random(3204);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(3, 3, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        try{
+            FlatFaceGallery gallery = new FlatFaceGallery(NUM_DIMENSIONS, pool);
+            List<String> people = new ArrayList<String>();
+            List<DoubleFV> features = features(random, NUM_ENROLMENTS);
+
+            // half enrolled one at a time, half as a packed batch
+            int half = NUM_ENROLMENTS / 2;
+            for(int i = 0; i < half; i++){
+                people.add("person-" + random.nextInt(40));
+                gallery.enrol(people.get(i), features.get(i));
+            }
+            List<String> batch = new ArrayList<String>();
+            for(int i = half; i < NUM_ENROLMENTS; i++){
+                people.add("person-" + random.nextInt(40));
+                batch.add(people.get(i));
+            }
+            gallery.enrol(batch, gallery.pack(features.subList(half, NUM_ENROLMENTS)));
+
+            assertEquals(NUM_ENROLMENTS, gallery.size());
+            for(int i = 0; i < NUM_ENROLMENTS; i++){
+                assertEquals(people.get(i), gallery.getPerson(i));
+                assertArrayEquals(features.get(i).values, gallery.getFeature(i), 0);
+            }
+
+            assertExact(gallery, people, features, features(random, NUM_PROBES));
+            assertExact(gallery, people, features, features(random, 3));
+
+            // probes that are enrolments are at (almost) no distance
+            List<ObjectDoublePair<String>> matches = gallery.identify(features.subList(0, 10));
+            for(int i = 0; i < 10; i++){
+                assertEquals(0, matches.get(i).second, 1e-6);
+            }
+        }
+        finally{
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void emptyGalleryIdentifiesNoOne() {
+        FlatFaceGallery gallery = new FlatFaceGallery(NUM_DIMENSIONS);
+        List<DoubleFV> probes = features(new Random(1), 5);
+        for(ObjectDoublePair<String> match : gallery.identify(probes)){
+            assertNull(match);
+        }
+        assertEquals(0, gallery.identify(new ArrayList<DoubleFV>()).size());
+        assertEquals(0, gallery.distances(probes)[0].length);
+    }
+}
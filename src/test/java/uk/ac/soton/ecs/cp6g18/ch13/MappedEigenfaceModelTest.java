@@ -0,0 +1,106 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.image.FImage;
+import org.openimaj.util.pair.ObjectDoublePair;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that a MappedEigenfaceModel read back from its file is the model that was written.
+ *
+ * @author Charles Powell
+ */
+public class MappedEigenfaceModelTest {
+
+    TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void createFolder() throws Exception {
+        folder.create();
+    }
+
+    @After
+    public void deleteFolder() {
+        folder.delete();
+    }
+
+    /**
+     * Returns a gallery of the features of some images, with a few images per person (and
+     * non-ASCII names, to check the labels are encoded).
+     */
+    static FlatFaceGallery gallery(StreamingEigenImages eigen, List<FImage> images){
+        FlatFaceGallery gallery = new FlatFaceGallery(eigen.getNumComponents());
+        for(int i = 0; i < images.size(); i++){
+            gallery.enrol("persön-" + (i % 7), eigen.extractFeature(images.get(i)));
+        }
+        return gallery;
+    }
+
+    @Test
+    public void modelIsReadBackExactly() throws Exception {
+        Random random = new Random(3204);
+        StreamingEigenImages eigen = new StreamingEigenImages(BatchProjectionTest.NUM_COMPONENTS, StreamingEigenImages.Mode.EXACT);
+        eigen.train(BatchProjectionTest.images(random, 60));
+        FlatFaceGallery gallery = gallery(eigen, BatchProjectionTest.images(random, 40));
+
+        File file = new File(folder.getRoot(), "model.eigf");
+        MappedEigenfaceModel.write(file, eigen, gallery);
+        MappedEigenfaceModel model = MappedEigenfaceModel.open(file);
+
+        // the basis, mean and eigenvalues
+        assertEquals(eigen.getNumComponents(), model.getNumComponents());
+        assertEquals(eigen.getNumImages(), model.getNumImages());
+        assertArrayEquals(eigen.getEigenValues(), model.getEigenValues(), 0);
+        for(int d = 0; d < eigen.numPixels; d++){
+            assertEquals(eigen.mean[d], model.mean.get(d), 0);
+        }
+        for(int i = 0; i < eigen.basis.length; i++){
+            assertEquals(eigen.basis[i], model.basis.get(i), 0);
+        }
+
+        // the gallery features and labels
+        assertEquals(gallery.size(), model.size());
+        for(int i = 0; i < gallery.size(); i++){
+            assertEquals(gallery.getPerson(i), model.getPerson(i));
+            assertArrayEquals(gallery.getFeature(i), model.getFeature(i), 0);
+        }
+        FlatFaceGallery copied = model.toFlatGallery();
+        for(int i = 0; i < gallery.size(); i++){
+            assertEquals(gallery.getPerson(i), copied.getPerson(i));
+            assertArrayEquals(gallery.getFeature(i), copied.getFeature(i), 0);
+        }
+
+        // features and identities of new images
+        for(FImage probe : BatchProjectionTest.images(random, 20)){
+            DoubleFV feature = eigen.extractFeature(probe);
+            assertArrayEquals(feature.values, model.extractFeature(probe).values, 0);
+
+            ObjectDoublePair<String> expected = gallery.identify(feature);
+            ObjectDoublePair<String> actual = model.identify(feature);
+            assertEquals(expected.first, actual.first);
+            assertEquals(expected.second, actual.second, 1e-9);
+        }
+    }
+
+    @Test
+    public void emptyGalleryIdentifiesNoOne() throws Exception {
+        StreamingEigenImages eigen = new StreamingEigenImages(BatchProjectionTest.NUM_COMPONENTS, StreamingEigenImages.Mode.EXACT);
+        eigen.train(BatchProjectionTest.images(new Random(1), 30));
+
+        File file = new File(folder.getRoot(), "model.eigf");
+        MappedEigenfaceModel.write(file, eigen, new FlatFaceGallery(eigen.getNumComponents()));
+        MappedEigenfaceModel model = MappedEigenfaceModel.open(file);
+        assertEquals(0, model.size());
+        assertEquals(null, model.identify(new DoubleFV(new double[BatchProjectionTest.NUM_COMPONENTS])));
+    }
+}
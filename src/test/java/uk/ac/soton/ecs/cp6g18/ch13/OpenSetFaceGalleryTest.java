@@ -0,0 +1,107 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.DoubleFVComparison;
+import org.openimaj.util.pair.ObjectDoublePair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that OpenSetFaceGallery gives the same answers as comparing the probe with every
+ * enrolment and then applying the threshold.
+ *
+ * @author Charles Powell
+ */
+public class OpenSetFaceGalleryTest {
+
+    // constants
+    static final int NUM_DIMENSIONS = 23;
+
+    /**
+     * Returns a feature whose variance rises along the dimensions (so the gallery has to reorder
+     * them).
+     */
+    static DoubleFV feature(Random random){
+        double[] values = new double[NUM_DIMENSIONS];
+        for(int d = 0; d < NUM_DIMENSIONS; d++){
+            values[d] = random.nextGaussian() * (d + 1);
+        }
+        return new DoubleFV(values);
+    }
+
+    /**
+     * Asserts that the gallery identifies a probe as comparing it with every enrolment does, for
+     * thresholds either side of the nearest distance.
+     */
+    static void assertExact(OpenSetFaceGallery gallery, List<String> people, List<DoubleFV> features, DoubleFV probe){
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for(int i = 0; i < features.size(); i++){
+            double distance = features.get(i).compare(probe, DoubleFVComparison.EUCLIDEAN);
+            if(distance < bestDistance){
+                bestDistance = distance;
+                best = i;
+            }
+        }
+
+        ObjectDoublePair<String> nearest = gallery.identify(probe);
+        assertEquals(people.get(best), nearest.first);
+        assertEquals(bestDistance, nearest.second, 1e-9);
+
+        ObjectDoublePair<String> known = gallery.identify(probe, bestDistance * 1.001);
+        assertEquals(people.get(best), known.first);
+        assertEquals(bestDistance, known.second, 1e-9);
+        assertNull(gallery.identify(probe, bestDistance * 0.999));
+    }
+
+    @Test
+    public void identificationIsExact() {
+        Random random = new Random(3204);
+        OpenSetFaceGallery gallery = new OpenSetFaceGallery(NUM_DIMENSIONS);
+        List<String> people = new ArrayList<String>();
+        List<DoubleFV> features = new ArrayList<DoubleFV>();
+
+        // checks the gallery as it grows (and its dimensions are reordered)
+        for(int i = 0; i < 1000; i++){
+            String person = "person-" + random.nextInt(50);
+            DoubleFV feature = feature(random);
+            gallery.enrol(person, feature);
+            people.add(person);
+            features.add(feature);
+            if(i % 83 == 0 || i == 999){
+                for(int q = 0; q < 5; q++){
+                    assertExact(gallery, people, features, feature(random));
+                }
+            }
+        }
+
+        // the stored features are given back in their original order
+        for(int i = 0; i < features.size(); i += 97){
+            assertArrayEquals(features.get(i).values, gallery.getFeature(i), 0);
+        }
+    }
+
+    @Test
+    public void impostorsAreUnknown() {
+        Random random = new Random(1);
+        OpenSetFaceGallery gallery = new OpenSetFaceGallery(NUM_DIMENSIONS);
+        for(int i = 0; i < 200; i++){
+            gallery.enrol("person-" + i, feature(random));
+        }
+
+        // far from every enrolment
+        double[] far = new double[NUM_DIMENSIONS];
+        for(int d = 0; d < NUM_DIMENSIONS; d++){
+            far[d] = 1000;
+        }
+        assertNull(gallery.identify(new DoubleFV(far), 100));
+        assertNull(new OpenSetFaceGallery(NUM_DIMENSIONS).identify(new DoubleFV(far)));
+    }
+}
@@ -0,0 +1,199 @@
+package uk.ac.soton.ecs.cp6g18.ch13;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openimaj.image.FImage;
+import org.openimaj.image.processing.convolution.FGaussianConvolve;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests the RANDOMISED and INCREMENTAL modes, and update(), of StreamingEigenImages against the
+ * EXACT mode, on synthetic faces (smooth templates mixed with falling weights, plus noise).
+ *
+ * There are more templates than components, so the faces have directions of variance beyond the
+ * basis, and the modes that do not see every face at once lose some of them.
+ *
+ * @author Charles Powell
+ */
+public class StreamingEigenImagesTest {
+
+    // constants
+    static final int WIDTH = 46;
+    static final int HEIGHT = 56;
+    static final int NUM_TEMPLATES = 80;
+    static final int NUM_COMPONENTS = 40;
+    static final int NUM_LEADING = 10;
+
+    static FImage[] templates;
+    static List<FImage> training;
+    static List<FImage> heldOut;
+    static StreamingEigenImages exact;
+
+    /**
+     * Returns an image that is a random mixture of the templates, plus noise.
+     */
+    static FImage face(Random random){
+        FImage face = new FImage(WIDTH, HEIGHT);
+        for(int t = 0; t < NUM_TEMPLATES; t++){
+            float weight = (float) (random.nextGaussian() * 10 / (t + 1));
+            for(int y = 0; y < HEIGHT; y++){
+                for(int x = 0; x < WIDTH; x++){
+                    face.pixels[y][x] += weight * templates[t].pixels[y][x];
+                }
+            }
+        }
+        for(int y = 0; y < HEIGHT; y++){
+            for(int x = 0; x < WIDTH; x++){
+                face.pixels[y][x] += (float) (random.nextGaussian() * 0.05);
+            }
+        }
+        return face;
+    }
+
+    static List<FImage> faces(Random random, int count){
+        List<FImage> faces = new ArrayList<FImage>();
+        for(int i = 0; i < count; i++){
+            faces.add(face(random));
+        }
+        return faces;
+    }
+
+    @BeforeClass
+    public static void createFaces() {
+        Random random = new Random(3204);
+        templates = new FImage[NUM_TEMPLATES];
+        for(int t = 0; t < NUM_TEMPLATES; t++){
+            templates[t] = new FImage(WIDTH, HEIGHT);
+            for(int y = 0; y < HEIGHT; y++){
+                for(int x = 0; x < WIDTH; x++){
+                    templates[t].pixels[y][x] = (float) random.nextGaussian();
+                }
+            }
+            templates[t].processInplace(new FGaussianConvolve(2f));
+        }
+        training = faces(random, 400);
+        heldOut = faces(random, 100);
+
+        exact = new StreamingEigenImages(NUM_COMPONENTS, StreamingEigenImages.Mode.EXACT);
+        exact.train(training);
+    }
+
+    /**
+     * Returns the mean squared error of reconstructing the held-out faces from their features.
+     */
+    static double reconstructionError(StreamingEigenImages eigen){
+        double error = 0;
+        for(FImage face : heldOut){
+            FImage reconstruction = eigen.reconstruct(eigen.extractFeature(face));
+            for(int y = 0; y < HEIGHT; y++){
+                for(int x = 0; x < WIDTH; x++){
+                    double diff = face.pixels[y][x] - reconstruction.pixels[y][x];
+                    error += diff * diff;
+                }
+            }
+        }
+        return error / (heldOut.size() * WIDTH * HEIGHT);
+    }
+
+    /**
+     * Returns the mean squared length of the projections of the leading components of a basis
+     * onto the leading components of the exact basis (1 if they span the same subspace).
+     */
+    static double subspaceOverlap(StreamingEigenImages eigen){
+        int numPixels = WIDTH * HEIGHT;
+        double overlap = 0;
+        for(int i = 0; i < NUM_LEADING; i++){
+            for(int j = 0; j < NUM_LEADING; j++){
+                double dot = StreamingEigenImages.dot(eigen.basis, i * numPixels, exact.basis, j * numPixels, numPixels);
+                overlap += dot * dot;
+            }
+        }
+        return overlap / NUM_LEADING;
+    }
+
+    /**
+     * Asserts that a basis matches the exact basis - the same leading subspace and variances,
+     * and a reconstruction error within a fraction of the exact error.
+     */
+    static void assertMatchesExact(StreamingEigenImages eigen, double errorTolerance){
+        assertEquals(training.size(), eigen.getNumImages());
+        assertTrue("subspace overlap " + subspaceOverlap(eigen), subspaceOverlap(eigen) > 0.999);
+
+        double[] expected = exact.getEigenValues();
+        double[] actual = eigen.getEigenValues();
+        for(int c = 0; c < NUM_LEADING; c++){
+            assertEquals(expected[c], actual[c], expected[c] * 0.01);
+        }
+
+        double exactError = reconstructionError(exact);
+        double error = reconstructionError(eigen);
+        assertTrue("error " + error + " against " + exactError, error <= exactError * (1 + errorTolerance));
+    }
+
+    @Test
+    public void randomisedMatchesExact() {
+        StreamingEigenImages randomised = new StreamingEigenImages(NUM_COMPONENTS, StreamingEigenImages.Mode.RANDOMISED, 3204);
+        randomised.train(training);
+        assertMatchesExact(randomised, 0.01);
+    }
+
+    @Test
+    public void incrementalMatchesExact() {
+        StreamingEigenImages incremental = new StreamingEigenImages(NUM_COMPONENTS, StreamingEigenImages.Mode.INCREMENTAL);
+        incremental.train(training);
+        assertMatchesExact(incremental, 0.03);
+    }
+
+    @Test
+    public void updateMatchesRetraining() {
+        StreamingEigenImages updated = new StreamingEigenImages(NUM_COMPONENTS, StreamingEigenImages.Mode.EXACT);
+        updated.train(training.subList(0, 200));
+        updated.update(training.subList(200, 300));
+        updated.update(training.subList(300, 400));
+        assertMatchesExact(updated, 0.03);
+
+        // the mean is that of every image
+        double[] mean = new double[WIDTH * HEIGHT];
+        for(FImage face : training){
+            for(int y = 0; y < HEIGHT; y++){
+                for(int x = 0; x < WIDTH; x++){
+                    mean[y * WIDTH + x] += face.pixels[y][x] / training.size();
+                }
+            }
+        }
+        for(int d = 0; d < mean.length; d++){
+            assertEquals(mean[d], updated.mean[d], 1e-6);
+        }
+    }
+
+    @Test
+    public void updatesOfFewDirectionsAreExact() {
+        // the first 30 faces have fewer directions of variance than there are components, so
+        // nothing is lost between the updates
+        List<FImage> few = training.subList(0, 30);
+        StreamingEigenImages whole = new StreamingEigenImages(NUM_COMPONENTS, StreamingEigenImages.Mode.EXACT);
+        whole.train(few);
+        StreamingEigenImages incremental = new StreamingEigenImages(NUM_COMPONENTS, StreamingEigenImages.Mode.INCREMENTAL);
+        incremental.train(few.subList(0, 10));
+        incremental.update(few.subList(10, 30));
+
+        double[] expected = whole.getEigenValues();
+        double[] actual = incremental.getEigenValues();
+        for(int c = 0; c < NUM_COMPONENTS; c++){
+            assertEquals(expected[c], actual[c], 1e-8 * expected[0]);
+        }
+        for(FImage face : heldOut.subList(0, 10)){
+            double[] a = whole.reconstruct(whole.extractFeature(face)).getDoublePixelVector();
+            double[] b = incremental.reconstruct(incremental.extractFeature(face)).getDoublePixelVector();
+            for(int d = 0; d < a.length; d++){
+                assertEquals(a[d], b[d], 1e-4);
+            }
+        }
+    }
+}
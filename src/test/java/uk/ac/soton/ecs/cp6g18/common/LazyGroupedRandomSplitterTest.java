@@ -0,0 +1,44 @@
+package uk.ac.soton.ecs.cp6g18.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for LazyGroupedRandomSplitter.
+ *
+ * @author Charles Powell
+ */
+public class LazyGroupedRandomSplitterTest {
+
+    @Test
+    public void splitsPartitionEachGroup() {
+        LazyGroupedRandomSplitter<String, String> splits = new LazyGroupedRandomSplitter<String, String>(LazyGroupedUniformSamplerTest.dataset(), 2, 3, 5, 3204);
+        for(String key : splits.getTrainingDataset().getGroups()){
+            List<String> instances = new ArrayList<String>();
+            instances.addAll(splits.getTrainingDataset().getInstances(key));
+            instances.addAll(splits.getValidationDataset().getInstances(key));
+            instances.addAll(splits.getTestDataset().getInstances(key));
+            assertEquals(5, splits.getTestDataset().getInstances(key).size());
+            assertEquals(5, splits.getRemainingDataset().getInstances(key).size());
+            instances.addAll(splits.getRemainingDataset().getInstances(key));
+
+            // every instance of the group, once
+            Set<String> distinct = new HashSet<String>(instances);
+            assertEquals(15, instances.size());
+            assertEquals(15, distinct.size());
+        }
+    }
+
+    @Test
+    public void testingTakesWhatIsLeft() {
+        LazyGroupedRandomSplitter<String, String> splits = new LazyGroupedRandomSplitter<String, String>(LazyGroupedUniformSamplerTest.dataset(), 2, 0, Integer.MAX_VALUE, 1);
+        assertEquals(13 * 20, LazyGroupedUniformSamplerTest.instances(splits.getTestDataset()).size());
+        assertEquals(0, LazyGroupedUniformSamplerTest.instances(splits.getRemainingDataset()).size());
+    }
+}
@@ -0,0 +1,107 @@
+package uk.ac.soton.ecs.cp6g18.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for LazyGroupedUniformSampler.
+ *
+ * @author Charles Powell
+ */
+public class LazyGroupedUniformSamplerTest {
+
+    /**
+     * Returns a dataset of 20 groups of 15 instances ("group/instance").
+     */
+    static MapBackedDataset<String, ListDataset<String>, String> dataset(){
+        MapBackedDataset<String, ListDataset<String>, String> dataset = new MapBackedDataset<String, ListDataset<String>, String>();
+        for(int g = 0; g < 20; g++){
+            List<String> instances = new ArrayList<String>();
+            for(int i = 0; i < 15; i++){
+                instances.add(g + "/" + i);
+            }
+            dataset.put("group-" + g, new ListBackedDataset<String>(instances));
+        }
+        return dataset;
+    }
+
+    static List<String> instances(LazyGroupedDataset<String, String> sample){
+        List<String> instances = new ArrayList<String>();
+        for(String instance : sample){
+            instances.add(instance);
+        }
+        return instances;
+    }
+
+    @Test
+    public void sameSeedGivesSameSample() {
+        List<String> first = instances(LazyGroupedUniformSampler.sample(dataset(), 30, 3204));
+        List<String> second = instances(LazyGroupedUniformSampler.sample(dataset(), 30, 3204));
+        List<String> other = instances(LazyGroupedUniformSampler.sample(dataset(), 30, 3205));
+
+        assertEquals(30, first.size());
+        assertEquals(30, new HashSet<String>(first).size());
+        assertEquals(first, second);
+        assertFalse(first.equals(other));
+    }
+
+    @Test
+    public void instancesKeepTheirGroups() {
+        LazyGroupedDataset<String, String> sample = LazyGroupedUniformSampler.sample(dataset(), 100, 1);
+        Set<String> keys = sample.getGroups();
+        int total = 0;
+        for(String key : keys){
+            assertTrue(sample.getInstances(key).size() > 0);
+            for(String instance : sample.getInstances(key)){
+                assertEquals(key, "group-" + instance.substring(0, instance.indexOf('/')));
+                total++;
+            }
+        }
+        assertEquals(100, total);
+    }
+
+    @Test
+    public void sampleIsClippedToTheDataset() {
+        assertEquals(300, instances(LazyGroupedUniformSampler.sample(dataset(), 1000, 1)).size());
+    }
+
+    @Test
+    public void cachedSampleReadsEachInstanceOnce() {
+        // counts the reads of the source
+        final AtomicInteger reads = new AtomicInteger();
+        MapBackedDataset<String, ListDataset<String>, String> dataset = dataset();
+        for(String key : dataset.getGroups()){
+            final ListDataset<String> group = dataset.get(key);
+            dataset.put(key, new ListBackedDataset<String>(group) {
+                @Override
+                public String getInstance(int index) {
+                    reads.incrementAndGet();
+                    return super.getInstance(index);
+                }
+            });
+        }
+
+        LazyGroupedDataset<String, String> sample = LazyGroupedUniformSampler.sample(dataset, 30, 3204).cached();
+        List<String> first = instances(sample);
+        List<String> second = instances(sample);
+        assertEquals(first, second);
+        assertEquals(30, reads.get());
+        for(int i = 0; i < first.size(); i++){
+            assertSame(first.get(i), second.get(i));
+        }
+        assertEquals(instances(LazyGroupedUniformSampler.sample(dataset(), 30, 3204)), first);
+    }
+}
@@ -0,0 +1,82 @@
+package uk.ac.soton.ecs.cp6g18.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for StoreLock.
+ *
+ * @author Charles Powell
+ */
+public class StoreLockTest {
+
+    TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void createFolder() throws Exception {
+        folder.create();
+    }
+
+    @After
+    public void deleteFolder() {
+        folder.delete();
+    }
+
+    @Test
+    public void missingArtifactIsBuiltOnce() throws Exception {
+        final File lockPath = new File(folder.getRoot(), "artifact.lock");
+        final AtomicReference<String> published = new AtomicReference<String>();
+        final AtomicInteger builds = new AtomicInteger();
+
+        final Callable<String> loader = new Callable<String>() {
+            public String call() {
+                return published.get();
+            }
+        };
+        final Callable<String> builder = new Callable<String>() {
+            public String call() throws Exception {
+                builds.incrementAndGet();
+                Thread.sleep(50);
+                published.set("artifact");
+                return "artifact";
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try{
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for(int i = 0; i < 8; i++){
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return StoreLock.getOrBuild(lockPath, loader, builder);
+                    }
+                }));
+            }
+            for(Future<String> result : results){
+                assertEquals("artifact", result.get());
+            }
+        }
+        finally{
+            executor.shutdown();
+        }
+        assertEquals(1, builds.get());
+
+        // once published, it is only loaded
+        assertEquals("artifact", StoreLock.getOrBuild(lockPath, loader, builder));
+        assertEquals(1, builds.get());
+    }
+}